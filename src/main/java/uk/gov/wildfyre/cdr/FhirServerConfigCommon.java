@@ -1,6 +1,8 @@
 package uk.gov.wildfyre.cdr;
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.persistence.EntityManagerFactory;
@@ -11,7 +13,6 @@ import ca.uhn.fhir.jpa.search.ElasticsearchMappingProvider;
 
 import ca.uhn.fhir.jpa.subscription.module.subscriber.email.IEmailSender;
 import ca.uhn.fhir.jpa.subscription.module.subscriber.email.JavaMailEmailSender;
-import org.apache.commons.dbcp2.BasicDataSource;
 import org.hibernate.jpa.HibernatePersistenceProvider;
 import org.hibernate.search.elasticsearch.cfg.ElasticsearchEnvironment;
 import org.hl7.fhir.instance.model.Subscription;
@@ -25,8 +26,14 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import ca.uhn.fhir.jpa.config.BaseJavaConfigDstu3;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
-
-import java.sql.Driver;
+import ca.uhn.fhir.jpa.provider.dstu3.JpaSystemProviderDstu3;
+import uk.gov.wildfyre.cdr.datasource.ConnectionPoolFactory;
+import uk.gov.wildfyre.cdr.datasource.ReplicaRoutingDataSource;
+import uk.gov.wildfyre.cdr.indexing.AsyncElasticsearchIndexManager;
+import uk.gov.wildfyre.cdr.indexing.IndexingErrorHandler;
+import uk.gov.wildfyre.cdr.providers.FHIRCDRSystemProvider;
+import uk.gov.wildfyre.cdr.support.HibernateCacheProfile;
+import uk.gov.wildfyre.cdr.support.JmxSupport;
 
 /**
  * This is the primary configuration file for the example server
@@ -119,6 +126,28 @@ public class FhirServerConfigCommon extends BaseJavaConfigDstu3 {
 		}
 		// TODO retVal.getTreatBaseUrlsAsLocal().add(externalUrl);
 		retVal.setAllowExternalReferences(true);
+
+		// Settings which the DAOs read per request follow changes to the hapi.properties override file
+		HapiProperties.subscribe(config -> {
+			retVal.setAllowContainsSearches(config.isAllowContainsSearches());
+			retVal.setAllowMultipleDelete(config.isAllowMultipleDelete());
+			retVal.setExpungeEnabled(config.isExpungeEnabled());
+			retVal.setAutoCreatePlaceholderReferenceTargets(config.isAllowPlaceholderReferences());
+			retVal.setFetchSizeDefaultMaximum(config.getMaximumFetchSize());
+			retVal.setReuseCachedSearchResultsForMillis(config.getReuseCachedSearchResultsMillis());
+		});
+		return retVal;
+	}
+
+	/**
+	 * Batch and transaction Bundles may be processed in parallel, see JpaRestfulServer
+	 */
+	@Override
+	@Bean(name = "mySystemProviderDstu3")
+	public JpaSystemProviderDstu3 systemProviderDstu3() {
+		FHIRCDRSystemProvider retVal = new FHIRCDRSystemProvider();
+		retVal.setContext(fhirContextDstu3());
+		retVal.setDao(systemDaoDstu3());
 		return retVal;
 	}
 
@@ -142,22 +171,30 @@ public class FhirServerConfigCommon extends BaseJavaConfigDstu3 {
 		return modelConfig;
 	}
 	/**
-	 * The following bean configures the database connection. The 'url' property value of "jdbc:derby:directory:jpaserver_derby_files;create=true" indicates that the server should save resources in a
-	 * directory called "jpaserver_derby_files".
-	 *
-	 * A URL to a remote database could also be placed here, along with login credentials and other properties supported by BasicDataSource.
+	 * The following bean configures the database connection pool, see {@link ConnectionPoolFactory} for the
+	 * datasource.* settings which tune it. If read replicas are configured the pools are wrapped in a
+	 * {@link ReplicaRoutingDataSource}.
 	 */
-	@Bean
-	public DataSource dataSource() throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
-		BasicDataSource retVal = new BasicDataSource();
-		Driver driver = (Driver) Class.forName(HapiProperties.getDataSourceDriver()).getConstructor().newInstance();
-		retVal.setDriver(driver);
-		retVal.setUrl(HapiProperties.getDataSourceUrl());
-		retVal.setUsername(HapiProperties.getDataSourceUsername());
-		retVal.setPassword(HapiProperties.getDataSourcePassword());
-		retVal.setMaxTotal(HapiProperties.getDataSourceMaxPoolSize());
+	@Bean(destroyMethod = "close")
+	public DataSource dataSource() {
+		DataSource primary = ConnectionPoolFactory.create("primary", HapiProperties.getDataSourceDriver(),
+				HapiProperties.getDataSourceUrl(), HapiProperties.getDataSourceUsername(), HapiProperties.getDataSourcePassword());
+
+		List<String> replicaUrls = HapiProperties.getDataSourceReplicaUrls();
+		if (replicaUrls.isEmpty()) {
+			return primary;
+		}
+		Map<String, DataSource> replicas = new LinkedHashMap<>();
+		for (String replicaUrl : replicaUrls) {
+			String name = "replica-" + (replicas.size() + 1);
+			replicas.put(name, ConnectionPoolFactory.create(name, HapiProperties.getDataSourceDriver(), replicaUrl,
+					HapiProperties.getDataSourceReplicaUsername(), HapiProperties.getDataSourceReplicaPassword()));
+		}
+		ReplicaRoutingDataSource retVal = new ReplicaRoutingDataSource(primary, replicas,
+				HapiProperties.getDataSourceReplicaMaxLagMillis(), HapiProperties.getDataSourceReplicaLagQuery(),
+				HapiProperties.getDataSourceReplicaHealthCheckSeconds(), HapiProperties.getDataSourceReplicaStickySeconds());
+		JmxSupport.register("ReplicaRouting", retVal);
 		return retVal;
-
 	}
 
 
@@ -185,19 +222,17 @@ public class FhirServerConfigCommon extends BaseJavaConfigDstu3 {
 		extraProperties.put("hibernate.format_sql", "true");
 		extraProperties.put("hibernate.show_sql", HapiProperties.getHibernateShowSql());
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
-		extraProperties.put("hibernate.jdbc.batch_size", "20");
-		extraProperties.put("hibernate.cache.use_query_cache", "false");
-		extraProperties.put("hibernate.cache.use_second_level_cache", "false");
+		// Inserts and updates are ordered by entity so each table's rows go to the database as one JDBC batch
+		extraProperties.put("hibernate.jdbc.batch_size", String.valueOf(HapiProperties.getHibernateJdbcBatchSize()));
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
+		extraProperties.put("hibernate.jdbc.batch_versioned_data", "true");
+		HibernateCacheProfile.apply(extraProperties);
 		extraProperties.put("hibernate.cache.use_structured_entries", "false");
 		extraProperties.put("hibernate.cache.use_minimal_puts", "false");
 
 		extraProperties.put("current_session_context_class","thread");
-
-		extraProperties.put("hibernate.c3p0.min_size","5");
-		extraProperties.put("hibernate.c3p0.max_size","20");
-		extraProperties.put("hibernate.c3p0.timeout","300");
-		extraProperties.put("hibernate.c3p0.max_statements","50");
-		extraProperties.put("hibernate.c3p0.idle_test_period","3000");
+		// Connection pooling is configured on the DataSource (datasource.* in hapi.properties)
 
 		// the belowing properties are used for ElasticSearch integration
 		extraProperties.put(ElasticsearchEnvironment.ANALYSIS_DEFINITION_PROVIDER, ElasticsearchMappingProvider.class.getName());
@@ -206,6 +241,12 @@ public class FhirServerConfigCommon extends BaseJavaConfigDstu3 {
 		extraProperties.put("hibernate.search.default.elasticsearch.index_schema_management_strategy", "CREATE");
 		extraProperties.put("hibernate.search.default.elasticsearch.index_management_wait_timeout", "10000");
 		extraProperties.put("hibernate.search.default.elasticsearch.required_index_status", "yellow");
+		// Documents Elasticsearch rejects are retried by the AsyncIndexer and reported to a running reindex
+		extraProperties.put("hibernate.search.error_handler", IndexingErrorHandler.class.getName());
+		if (HapiProperties.getIndexingAsync()) {
+			// Index work is queued at commit and sent in the background, see AsyncIndexer
+			extraProperties.put("hibernate.search.default.indexmanager", AsyncElasticsearchIndexManager.class.getName());
+		}
 
 		return extraProperties;
 	}
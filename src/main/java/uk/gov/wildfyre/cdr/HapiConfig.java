@@ -0,0 +1,146 @@
+package uk.gov.wildfyre.cdr;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the server configuration, resolved once from (in order of precedence) environment
+ * variables, system properties, the -Dhapi.properties override file and the bundled hapi.properties.
+ *
+ * Settings read on every request are parsed into fields when the snapshot is built, everything else is looked up
+ * from the resolved values. A new snapshot replaces this one when the override file changes, see
+ * {@link HapiProperties#subscribe(java.util.function.Consumer)}.
+ */
+public final class HapiConfig {
+
+    private final Map<String, String> values;
+
+    private final long version;
+
+    private final boolean securityOauth;
+    private final String securityOauthScope;
+    private final boolean securitySmartScope;
+
+    private final EncodingEnum defaultEncoding;
+    private final boolean defaultPrettyPrint;
+
+    private final boolean validationFlag;
+
+    private final boolean allowContainsSearches;
+    private final boolean allowMultipleDelete;
+    private final boolean allowPlaceholderReferences;
+    private final boolean expungeEnabled;
+    private final int maximumFetchSize;
+    private final long reuseCachedSearchResultsMillis;
+
+    HapiConfig(Map<String, String> values, long version) {
+        this.values = Collections.unmodifiableMap(values);
+        this.version = version;
+
+        this.securityOauth = getBoolean(HapiProperties.SECURITY_OAUTH, false);
+        this.securityOauthScope = getString(HapiProperties.SECURITY_OAUTH_SCOPE);
+        this.securitySmartScope = getBoolean(HapiProperties.SECURITY_SMART_SCOPE, false);
+
+        String encoding = getString(HapiProperties.DEFAULT_ENCODING);
+        this.defaultEncoding = (encoding != null) ? EncodingEnum.valueOf(encoding) : EncodingEnum.JSON;
+        this.defaultPrettyPrint = getBoolean(HapiProperties.DEFAULT_PRETTY_PRINT, true);
+
+        this.validationFlag = getBoolean(HapiProperties.VALIDATION_FLAG, false);
+
+        this.allowContainsSearches = getBoolean(HapiProperties.ALLOW_CONTAINS_SEARCHES, true);
+        this.allowMultipleDelete = getBoolean(HapiProperties.ALLOW_MULTIPLE_DELETE, false);
+        this.allowPlaceholderReferences = getBoolean(HapiProperties.ALLOW_PLACEHOLDER_REFERENCES, true);
+        this.expungeEnabled = getBoolean(HapiProperties.EXPUNGE_ENABLED, true);
+        this.maximumFetchSize = getInteger(HapiProperties.MAX_FETCH_SIZE, Integer.MAX_VALUE);
+        this.reuseCachedSearchResultsMillis = getLong(HapiProperties.REUSE_CACHED_SEARCH_RESULTS_MILLIS, -1L);
+    }
+
+    /**
+     * @return the value, or null if it is not set or is empty
+     */
+    public String getString(String propertyName) {
+        String value = values.get(propertyName);
+        return (value == null || value.isEmpty()) ? null : value;
+    }
+
+    public String getString(String propertyName, String defaultValue) {
+        String value = getString(propertyName);
+        return (value != null) ? value : defaultValue;
+    }
+
+    public Boolean getBoolean(String propertyName, Boolean defaultValue) {
+        String value = getString(propertyName);
+        return (value != null) ? Boolean.valueOf(value) : defaultValue;
+    }
+
+    public Integer getInteger(String propertyName, Integer defaultValue) {
+        String value = getString(propertyName);
+        return (value != null) ? Integer.valueOf(value.trim()) : defaultValue;
+    }
+
+    public Long getLong(String propertyName, Long defaultValue) {
+        String value = getString(propertyName);
+        return (value != null) ? Long.valueOf(value.trim()) : defaultValue;
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * @return incremented each time the configuration is reloaded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isSecurityOauth() {
+        return securityOauth;
+    }
+
+    public String getSecurityOauthScope() {
+        return securityOauthScope;
+    }
+
+    public boolean isSecuritySmartScope() {
+        return securitySmartScope;
+    }
+
+    public EncodingEnum getDefaultEncoding() {
+        return defaultEncoding;
+    }
+
+    public boolean isDefaultPrettyPrint() {
+        return defaultPrettyPrint;
+    }
+
+    public boolean isValidationFlag() {
+        return validationFlag;
+    }
+
+    public boolean isAllowContainsSearches() {
+        return allowContainsSearches;
+    }
+
+    public boolean isAllowMultipleDelete() {
+        return allowMultipleDelete;
+    }
+
+    public boolean isAllowPlaceholderReferences() {
+        return allowPlaceholderReferences;
+    }
+
+    public boolean isExpungeEnabled() {
+        return expungeEnabled;
+    }
+
+    public int getMaximumFetchSize() {
+        return maximumFetchSize;
+    }
+
+    public long getReuseCachedSearchResultsMillis() {
+        return reuseCachedSearchResultsMillis;
+    }
+}
@@ -3,12 +3,27 @@ package uk.gov.wildfyre.cdr;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 public class HapiProperties {
 
@@ -24,6 +39,23 @@ public class HapiProperties {
     static final String DATASOURCE_PASSWORD = "datasource.password";
     static final String DATASOURCE_URL = "datasource.url";
     static final String DATASOURCE_USERNAME = "datasource.username";
+    static final String DATASOURCE_POOL = "datasource.pool";
+    static final String DATASOURCE_MIN_IDLE = "datasource.min_idle";
+    static final String DATASOURCE_MAX_LIFETIME_MILLIS = "datasource.max_lifetime_millis";
+    static final String DATASOURCE_IDLE_TIMEOUT_MILLIS = "datasource.idle_timeout_millis";
+    static final String DATASOURCE_ACQUIRE_TIMEOUT_MILLIS = "datasource.acquire_timeout_millis";
+    static final String DATASOURCE_STATEMENT_CACHE_SIZE = "datasource.statement_cache_size";
+    static final String DATASOURCE_LEAK_DETECTION_MILLIS = "datasource.leak_detection_millis";
+    static final String DATASOURCE_REMOVE_ABANDONED_SECONDS = "datasource.remove_abandoned_seconds";
+    static final String DATASOURCE_REWRITE_BATCHED_INSERTS = "datasource.rewrite_batched_inserts";
+    static final String DATASOURCE_REPLICA_URLS = "datasource.replica.urls";
+    static final String DATASOURCE_REPLICA_USERNAME = "datasource.replica.username";
+    static final String DATASOURCE_REPLICA_PASSWORD = "datasource.replica.password";
+    static final String DATASOURCE_REPLICA_OPERATIONS = "datasource.replica.operations";
+    static final String DATASOURCE_REPLICA_MAX_LAG_MILLIS = "datasource.replica.max_lag_millis";
+    static final String DATASOURCE_REPLICA_LAG_QUERY = "datasource.replica.lag_query";
+    static final String DATASOURCE_REPLICA_HEALTH_CHECK_SECONDS = "datasource.replica.health_check_seconds";
+    static final String DATASOURCE_REPLICA_STICKY_SECONDS = "datasource.replica.sticky_seconds";
     static final String DEFAULT_ENCODING = "default_encoding";
     static final String DEFAULT_PAGE_SIZE = "default_page_size";
     static final String DEFAULT_PRETTY_PRINT = "default_pretty_print";
@@ -51,6 +83,7 @@ public class HapiProperties {
     static final String ALLOW_CONTAINS_SEARCHES = "allow_contains_searches";
     static final String ALLOW_OVERRIDE_DEFAULT_SEARCH_PARAMS = "allow_override_default_search_params";
     static final String EMAIL_FROM = "email.from";
+    static final String EXPUNGE_ENABLED = "expunge_enabled";
 
     static final String SOFTWARE_NAME = "software.name";
     static final String SOFTWARE_VERSION = "software.version";
@@ -58,8 +91,68 @@ public class HapiProperties {
     static final String SOFTWARE_IMPLEMENTATION_URL = "software.implementation.url";
     static final String SOFTWARE_IMPLEMENTATION_GUIDE = "software.implementation.guide";
 
+    static final String METADATA_CACHE_TTL_SECONDS = "metadata.cache_ttl_seconds";
+    static final String STATISTICS_RECONCILE_SECONDS = "statistics.reconcile_seconds";
+    static final String RESOURCE_CACHE_ENABLED = "resource_cache.enabled";
+    static final String RESOURCE_CACHE_MAX_BYTES = "resource_cache.max_bytes";
+    static final String RESOURCE_CACHE_BLOCK_SIZE = "resource_cache.block_size";
+    static final String SEARCH_CACHE_ENABLED = "search_cache.enabled";
+    static final String SEARCH_CACHE_MAX_BYTES = "search_cache.max_bytes";
+    static final String SEARCH_CACHE_TTL_SECONDS = "search_cache.ttl_seconds";
+    static final String BULK_EXPORT_ENABLED = "bulk.export.enabled";
+    static final String BULK_EXPORT_DIR = "bulk.export.dir";
+    static final String BULK_EXPORT_THREADS = "bulk.export.threads";
+    static final String BULK_EXPORT_BATCH_SIZE = "bulk.export.batch_size";
+    static final String BULK_EXPORT_MAX_JOBS = "bulk.export.max_jobs";
+    static final String BULK_EXPORT_RETENTION_HOURS = "bulk.export.retention_hours";
+    static final String BULK_IMPORT_ENABLED = "bulk.import.enabled";
+    static final String BULK_IMPORT_DIR = "bulk.import.dir";
+    static final String BULK_IMPORT_THREADS = "bulk.import.threads";
+    static final String BULK_IMPORT_BATCH_SIZE = "bulk.import.batch_size";
+    static final String BULK_IMPORT_MAX_JOBS = "bulk.import.max_jobs";
+    static final String BULK_IMPORT_ALLOW_UNAUTHENTICATED = "bulk.import.allow_unauthenticated";
+    static final String BUNDLE_PARALLEL = "bundle.parallel";
+    static final String BUNDLE_THREADS = "bundle.threads";
+    static final String STREAMING_ENABLED = "streaming.enabled";
+    static final String STREAMING_MIN_PAGE_SIZE = "streaming.min_page_size";
+    static final String STREAMING_FETCH_SIZE = "streaming.fetch_size";
+    static final String PAGING_KEYSET_ENABLED = "paging.keyset.enabled";
+    static final String PAGING_KEYSET_SECRET = "paging.keyset.secret";
+    static final String INDEXING_ASYNC = "indexing.async";
+    static final String INDEXING_QUEUE_SIZE = "indexing.queue_size";
+    static final String INDEXING_BATCH_SIZE = "indexing.batch_size";
+    static final String INDEXING_BATCH_BYTES = "indexing.batch_bytes";
+    static final String INDEXING_OFFER_TIMEOUT_MILLIS = "indexing.offer_timeout_millis";
+    static final String INDEXING_RETRY_DIR = "indexing.retry_dir";
+    static final String INDEXING_RETRY_SECONDS = "indexing.retry_seconds";
+    static final String INDEXING_MAX_ATTEMPTS = "indexing.max_attempts";
+    static final String REINDEX_ENABLED = "reindex.enabled";
+    static final String REINDEX_DIR = "reindex.dir";
+    static final String REINDEX_THREADS = "reindex.threads";
+    static final String REINDEX_BATCH_SIZE = "reindex.batch_size";
+    static final String REINDEX_ALLOW_UNAUTHENTICATED = "reindex.allow_unauthenticated";
+
     static final String VALIDATION_FLAG = "validate.flag";
     static final String VALIDATION_SERVER = "validation.server";
+    static final String VALIDATION_MODE = "validation.mode";
+    static final String VALIDATION_LOCAL_PROFILES_DIR = "validation.local.profiles_dir";
+    static final String VALIDATION_CACHE_SIZE = "validation.cache.size";
+    static final String VALIDATION_CACHE_TTL_SECONDS = "validation.cache.ttl_seconds";
+    static final String VALIDATION_BUNDLE_PARALLEL = "validation.bundle.parallel";
+    static final String VALIDATION_BUNDLE_THREADS = "validation.bundle.threads";
+    static final String VALIDATION_BUNDLE_FAIL_FAST = "validation.bundle.fail_fast";
+    static final String VALIDATION_TIMEOUT_MILLIS = "validation.timeout_millis";
+    static final String VALIDATION_BREAKER_FAILURE_THRESHOLD = "validation.breaker.failure_threshold";
+    static final String VALIDATION_BREAKER_OPEN_SECONDS = "validation.breaker.open_seconds";
+    static final String VALIDATION_BREAKER_MAX_CONCURRENT = "validation.breaker.max_concurrent";
+    static final String VALIDATION_DEGRADE = "validation.degrade";
+    static final String VALIDATION_DEGRADE_QUEUE_SIZE = "validation.degrade.queue_size";
+    static final String VALIDATION_ASYNC = "validation.async";
+    static final String VALIDATION_ASYNC_THREADS = "validation.async.threads";
+    static final String VALIDATION_ASYNC_QUEUE_SIZE = "validation.async.queue_size";
+    static final String VALIDATION_ASYNC_OUTCOME_DIR = "validation.async.outcome_dir";
+    static final String VALIDATION_ASYNC_OUTCOME_VERSIONS = "validation.async.outcome_versions";
+    static final String VALIDATION_ASYNC_OUTCOME_RETENTION_HOURS = "validation.async.outcome_retention_hours";
 
     static final String APP_USER = "jolokia.username";
     static final String APP_PASSWORD = "jolokia.password";
@@ -67,49 +160,144 @@ public class HapiProperties {
     static final String HIBERNATE_DIALECT = "hibernate.dialect";
     static final String HIBERNATE_ELASTICSEARCH_HOST = "hibernate.search.default.elasticsearch.host";
     static final String HIBERNATE_SHOW_SQL = "hibernate.show_sql";
+    static final String HIBERNATE_JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+    static final String HIBERNATE_SECOND_LEVEL_CACHE = "hibernate.cache.use_second_level_cache";
+    static final String HIBERNATE_QUERY_CACHE = "hibernate.cache.use_query_cache";
+    static final String HIBERNATE_CACHE_REGIONS = "hibernate.cache.regions.";
 
     static final String SECURITY_OAUTH = "security.oauth2";
     static final String SECURITY_OPENID_CONFIG = "security.oauth2.configuration.server";
     static final String SECURITY_OAUTH_SCOPE = "security.oauth2.scope";
     static final String SECURITY_SMART_SCOPE = "security.oauth2.smart";
+    static final String SECURITY_OAUTH_TOKEN_CACHE_SIZE = "security.oauth2.token_cache.size";
+    static final String SECURITY_JWKS_REFRESH_SECONDS = "security.oauth2.jwks.refresh_seconds";
+    static final String SECURITY_JWKS_MIN_REFRESH_SECONDS = "security.oauth2.jwks.min_refresh_seconds";
+
+
+    private static final long RELOAD_DEBOUNCE_MILLIS = 500;
+
+    private static volatile HapiConfig config;
 
+    private static final List<Consumer<HapiConfig>> subscribers = new CopyOnWriteArrayList<>();
 
-    private static Properties properties;
+    // Set through setProperty, applied over the files by every reload. Guarded by HapiProperties.class
+    private static final Properties runtimeOverrides = new Properties();
+
+    // Subscribers are told of snapshots in version order, one that has been overtaken is not delivered
+    private static final Object deliveryLock = new Object();
+
+    private static long deliveredVersion;
+
+    private static Thread watcher;
+
+    /**
+     * @return the current configuration snapshot, loaded on first use
+     */
+    public static HapiConfig getConfig() {
+        HapiConfig current = config;
+        if (current == null) {
+            synchronized (HapiProperties.class) {
+                current = config;
+                if (current == null) {
+                    current = new HapiConfig(resolve(), 1);
+                    config = current;
+                }
+            }
+        }
+        return current;
+    }
 
     /*
      * Force the configuration to be reloaded
      */
     public static void forceReload() {
-        properties = null;
-        getProperties();
+        reload();
     }
 
     /**
      * This is mostly here for unit tests. Use the actual properties file
-     * to set values
+     * to set values. The value is kept over later reloads of the files.
      */
     @VisibleForTesting
     public static void setProperty(String theKey, String theValue) {
-        getProperties().setProperty(theKey, theValue);
+        synchronized (HapiProperties.class) {
+            runtimeOverrides.setProperty(theKey, theValue);
+        }
+        reload();
     }
 
     public static Properties getProperties() {
-        if (properties == null) {
-            // Load the configurable properties file
-            try (InputStream in = HapiProperties.class.getClassLoader().getResourceAsStream(HAPI_PROPERTIES)){
-                HapiProperties.properties = new Properties();
-                HapiProperties.properties.load(in);
-            } catch (Exception e) {
-                throw new ConfigurationException("Could not load HAPI properties", e);
-            }
+        Properties properties = new Properties();
+        properties.putAll(getConfig().getValues());
+        return properties;
+    }
 
-            Properties overrideProps = loadOverrideProperties();
-            if(overrideProps != null) {
-                properties.putAll(overrideProps);
+    /**
+     * Be told of each new configuration snapshot after it has been swapped in. Only settings which are read at
+     * runtime (rather than when the server starts) can take effect this way.
+     */
+    public static void subscribe(Consumer<HapiConfig> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Build a new snapshot and swap it in, a snapshot that fails to load leaves the current one in place.
+     */
+    private static void reload() {
+        HapiConfig next;
+        synchronized (HapiProperties.class) {
+            long version = (config != null) ? config.getVersion() + 1 : 1;
+            next = new HapiConfig(resolve(), version);
+            config = next;
+        }
+        log.info("Configuration reloaded (version " + next.getVersion() + ")");
+        synchronized (deliveryLock) {
+            if (next.getVersion() <= deliveredVersion) {
+                // A later snapshot has already been delivered, this one must not undo it
+                return;
+            }
+            deliveredVersion = next.getVersion();
+            for (Consumer<HapiConfig> subscriber : subscribers) {
+                try {
+                    subscriber.accept(next);
+                } catch (Exception ex) {
+                    log.error("Configuration subscriber failed " + ex.getMessage(), ex);
+                }
             }
         }
+    }
 
-        return properties;
+    /**
+     * Resolve every property once. Environment variables take precedence over system properties, which take
+     * precedence over values set through setProperty, then the -Dhapi.properties override file and then the bundled
+     * hapi.properties.
+     */
+    private static Map<String, String> resolve() {
+        Properties properties = new Properties();
+        // Load the configurable properties file
+        try (InputStream in = HapiProperties.class.getClassLoader().getResourceAsStream(HAPI_PROPERTIES)){
+            properties.load(in);
+        } catch (Exception e) {
+            throw new ConfigurationException("Could not load HAPI properties", e);
+        }
+
+        Properties overrideProps = loadOverrideProperties();
+        if(overrideProps != null) {
+            properties.putAll(overrideProps);
+        }
+        synchronized (HapiProperties.class) {
+            properties.putAll(runtimeOverrides);
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            values.put(name, properties.getProperty(name));
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            values.put(name, System.getProperty(name));
+        }
+        values.putAll(System.getenv());
+        return values;
     }
 
     /**
@@ -120,9 +308,9 @@ public class HapiProperties {
     private static Properties loadOverrideProperties() {
         String confFile = System.getProperty(HAPI_PROPERTIES);
         if(confFile != null) {
-            try {
+            try (InputStream in = new FileInputStream(confFile)) {
                 Properties props = new Properties();
-                props.load(new FileInputStream(confFile));
+                props.load(in);
                 return props;
             }
             catch (Exception e) {
@@ -133,58 +321,75 @@ public class HapiProperties {
         return null;
     }
 
-    private static String getProperty(String propertyName) {
-        Properties properties = HapiProperties.getProperties();
-        log.trace("Looking for property = " + propertyName);
-        if (System.getenv(propertyName)!= null) {
-            String value= System.getenv(propertyName);
-            log.debug("System Environment property Found " + propertyName+ " = "+ value);
-            return value;
-        }
-        if (System.getProperty(propertyName)!= null) {
-            String value= System.getenv(propertyName);
-            log.debug("System Property Found " + propertyName+ " = "+ value);
-            return value;
+    /**
+     * Watch the -Dhapi.properties override file, if there is one, and reload the configuration when it changes.
+     * Safe to call more than once.
+     */
+    public static synchronized void watch() {
+        String confFile = System.getProperty(HAPI_PROPERTIES);
+        if (confFile == null || watcher != null) {
+            return;
         }
-        if (properties != null) {
-            return properties.getProperty(propertyName);
+        Path file = Paths.get(confFile).toAbsolutePath();
+        watcher = new Thread(() -> watchFile(file), "hapi-properties-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void watchFile(Path file) {
+        try (WatchService watchService = file.getFileSystem().newWatchService()) {
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            log.info("Watching " + file + " for configuration changes");
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (file.getFileName().equals(event.context())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    // Editors often write a file in several steps, wait for them to finish
+                    Thread.sleep(RELOAD_DEBOUNCE_MILLIS);
+                    WatchKey pending;
+                    while ((pending = watchService.poll()) != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    try {
+                        reload();
+                    } catch (RuntimeException ex) {
+                        // A bad value fails the new snapshot, not the watch, the next edit can fix it
+                        log.error("Unable to reload " + file + ", keeping the current configuration " + ex);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            log.error("Unable to watch " + file + " for configuration changes " + ex.getMessage());
         }
+    }
 
-        return null;
+    private static String getProperty(String propertyName) {
+        return getConfig().getString(propertyName);
     }
 
     private static String getProperty(String propertyName, String defaultValue) {
-        Properties properties = HapiProperties.getProperties();
-
-        if (properties != null) {
-            String value = properties.getProperty(propertyName);
-
-            if (value != null && value.length() > 0) {
-                return value;
-            }
-        }
-
-        return defaultValue;
+        return getConfig().getString(propertyName, defaultValue);
     }
 
     private static Boolean getBooleanProperty(String propertyName, Boolean defaultValue) {
-        String value = HapiProperties.getProperty(propertyName);
-
-        if (value == null || value.length() == 0) {
-            return defaultValue;
-        }
-
-        return Boolean.parseBoolean(value);
+        return getConfig().getBoolean(propertyName, defaultValue);
     }
 
     private static Integer getIntegerProperty(String propertyName, Integer defaultValue) {
-        String value = HapiProperties.getProperty(propertyName);
-
-        if (value == null || value.length() == 0) {
-            return defaultValue;
-        }
+        return getConfig().getInteger(propertyName, defaultValue);
+    }
 
-        return Integer.parseInt(value);
+    private static Long getLongProperty(String propertyName, Long defaultValue) {
+        return getConfig().getLong(propertyName, defaultValue);
     }
 
     public static FhirVersionEnum getFhirVersion() {
@@ -208,17 +413,11 @@ public class HapiProperties {
     }
 
     public static EncodingEnum getDefaultEncoding() {
-        String defaultEncodingString = HapiProperties.getProperty(DEFAULT_ENCODING);
-
-        if (defaultEncodingString != null && defaultEncodingString.length() > 0) {
-            return EncodingEnum.valueOf(defaultEncodingString);
-        }
-
-        return EncodingEnum.JSON;
+        return getConfig().getDefaultEncoding();
     }
 
     public static Boolean getDefaultPrettyPrint() {
-        return HapiProperties.getBooleanProperty(DEFAULT_PRETTY_PRINT, true);
+        return getConfig().isDefaultPrettyPrint();
     }
 
     public static String getServerAddress() {
@@ -234,7 +433,7 @@ public class HapiProperties {
     }
 
     public static Integer getMaximumFetchSize() {
-        return HapiProperties.getIntegerProperty(MAX_FETCH_SIZE, Integer.MAX_VALUE);
+        return getConfig().getMaximumFetchSize();
     }
 
     public static String getPersistenceUnitName() {
@@ -277,8 +476,94 @@ public class HapiProperties {
         return HapiProperties.getProperty(DATASOURCE_PASSWORD);
     }
 
+    public static String getDataSourcePool() {
+        return HapiProperties.getProperty(DATASOURCE_POOL, "hikari");
+    }
+
+    public static Integer getDataSourceMinIdle() {
+        return HapiProperties.getIntegerProperty(DATASOURCE_MIN_IDLE, 2);
+    }
+
+    public static Long getDataSourceMaxLifetimeMillis() {
+        return HapiProperties.getLongProperty(DATASOURCE_MAX_LIFETIME_MILLIS, 1800000L);
+    }
+
+    public static Long getDataSourceIdleTimeoutMillis() {
+        return HapiProperties.getLongProperty(DATASOURCE_IDLE_TIMEOUT_MILLIS, 600000L);
+    }
+
+    public static Long getDataSourceAcquireTimeoutMillis() {
+        return HapiProperties.getLongProperty(DATASOURCE_ACQUIRE_TIMEOUT_MILLIS, 30000L);
+    }
+
+    public static Integer getDataSourceStatementCacheSize() {
+        return HapiProperties.getIntegerProperty(DATASOURCE_STATEMENT_CACHE_SIZE, 256);
+    }
+
+    public static Long getDataSourceLeakDetectionMillis() {
+        return HapiProperties.getLongProperty(DATASOURCE_LEAK_DETECTION_MILLIS, 0L);
+    }
+
+    public static Integer getDataSourceRemoveAbandonedSeconds() {
+        return HapiProperties.getIntegerProperty(DATASOURCE_REMOVE_ABANDONED_SECONDS, 0);
+    }
+
+    public static Boolean getDataSourceRewriteBatchedInserts() {
+        return HapiProperties.getBooleanProperty(DATASOURCE_REWRITE_BATCHED_INSERTS, true);
+    }
+
+    public static List<String> getDataSourceReplicaUrls() {
+        List<String> urls = new ArrayList<>();
+        String value = HapiProperties.getProperty(DATASOURCE_REPLICA_URLS);
+        if (value != null) {
+            for (String url : value.split(",")) {
+                if (!url.trim().isEmpty()) {
+                    urls.add(url.trim());
+                }
+            }
+        }
+        return urls;
+    }
+
+    public static String getDataSourceReplicaUsername() {
+        return HapiProperties.getProperty(DATASOURCE_REPLICA_USERNAME, getDataSourceUsername());
+    }
+
+    public static String getDataSourceReplicaPassword() {
+        return HapiProperties.getProperty(DATASOURCE_REPLICA_PASSWORD, getDataSourcePassword());
+    }
+
+    public static Set<RestOperationTypeEnum> getDataSourceReplicaOperations() {
+        Set<RestOperationTypeEnum> operations = EnumSet.noneOf(RestOperationTypeEnum.class);
+        String value = HapiProperties.getProperty(DATASOURCE_REPLICA_OPERATIONS, "READ,VREAD");
+        for (String operation : value.split(",")) {
+            if (!operation.trim().isEmpty()) {
+                operations.add(RestOperationTypeEnum.valueOf(operation.trim().toUpperCase()));
+            }
+        }
+        return operations;
+    }
+
+    public static Long getDataSourceReplicaMaxLagMillis() {
+        return HapiProperties.getLongProperty(DATASOURCE_REPLICA_MAX_LAG_MILLIS, 5000L);
+    }
+
+    public static String getDataSourceReplicaLagQuery() {
+        return HapiProperties.getProperty(DATASOURCE_REPLICA_LAG_QUERY,
+                "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+                        + "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END");
+    }
+
+    public static Integer getDataSourceReplicaHealthCheckSeconds() {
+        return HapiProperties.getIntegerProperty(DATASOURCE_REPLICA_HEALTH_CHECK_SECONDS, 10);
+    }
+
+    public static Integer getDataSourceReplicaStickySeconds() {
+        return HapiProperties.getIntegerProperty(DATASOURCE_REPLICA_STICKY_SECONDS, 10);
+    }
+
     public static Boolean getAllowMultipleDelete() {
-        return HapiProperties.getBooleanProperty(ALLOW_MULTIPLE_DELETE, false);
+        return getConfig().isAllowMultipleDelete();
     }
 
     public static Boolean getAllowExternalReferences() {
@@ -286,7 +571,7 @@ public class HapiProperties {
     }
 
     public static Boolean getExpungeEnabled() {
-        return HapiProperties.getBooleanProperty("expunge_enabled", true);
+        return getConfig().isExpungeEnabled();
     }
 
     public static Integer getTestPort() {
@@ -318,7 +603,7 @@ public class HapiProperties {
     }
 
     public static Boolean getAllowPlaceholderReferences() {
-        return HapiProperties.getBooleanProperty(ALLOW_PLACEHOLDER_REFERENCES, true);
+        return getConfig().isAllowPlaceholderReferences();
     }
 
     public static Boolean getSubscriptionEmailEnabled() {
@@ -334,7 +619,7 @@ public class HapiProperties {
     }
 
     public static Boolean getAllowContainsSearches() {
-        return HapiProperties.getBooleanProperty(ALLOW_CONTAINS_SEARCHES, true);
+        return getConfig().isAllowContainsSearches();
     }
 
     public static Boolean getAllowOverrideDefaultSearchParams() {
@@ -366,8 +651,7 @@ public class HapiProperties {
     }
 
     public static Long getReuseCachedSearchResultsMillis() {
-        String value = HapiProperties.getProperty(REUSE_CACHED_SEARCH_RESULTS_MILLIS, "-1");
-        return Long.valueOf(value);
+        return getConfig().getReuseCachedSearchResultsMillis();
     }
 
     public static String getSoftwareName() {
@@ -380,13 +664,249 @@ public class HapiProperties {
 
 
     public static Boolean getValidationFlag() {
-        return HapiProperties.getBooleanProperty(VALIDATION_FLAG, false);
+        return getConfig().isValidationFlag();
     }
 
     public static String getValidationServer() {
         return HapiProperties.getProperty(VALIDATION_SERVER);
     }
 
+    public static String getValidationMode() {
+        return HapiProperties.getProperty(VALIDATION_MODE, "remote");
+    }
+
+    public static String getValidationLocalProfilesDir() {
+        return HapiProperties.getProperty(VALIDATION_LOCAL_PROFILES_DIR);
+    }
+
+    public static Integer getValidationCacheSize() {
+        return HapiProperties.getIntegerProperty(VALIDATION_CACHE_SIZE, 1000);
+    }
+
+    public static Integer getValidationCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(VALIDATION_CACHE_TTL_SECONDS, 3600);
+    }
+
+    public static Boolean getValidationBundleParallel() {
+        return HapiProperties.getBooleanProperty(VALIDATION_BUNDLE_PARALLEL, false);
+    }
+
+    public static Integer getValidationBundleThreads() {
+        return HapiProperties.getIntegerProperty(VALIDATION_BUNDLE_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Boolean getValidationBundleFailFast() {
+        return HapiProperties.getBooleanProperty(VALIDATION_BUNDLE_FAIL_FAST, true);
+    }
+
+    public static Integer getValidationTimeoutMillis() {
+        return HapiProperties.getIntegerProperty(VALIDATION_TIMEOUT_MILLIS, 5000);
+    }
+
+    public static Integer getValidationBreakerFailureThreshold() {
+        return HapiProperties.getIntegerProperty(VALIDATION_BREAKER_FAILURE_THRESHOLD, 5);
+    }
+
+    public static Integer getValidationBreakerOpenSeconds() {
+        return HapiProperties.getIntegerProperty(VALIDATION_BREAKER_OPEN_SECONDS, 30);
+    }
+
+    public static Integer getValidationBreakerMaxConcurrent() {
+        return HapiProperties.getIntegerProperty(VALIDATION_BREAKER_MAX_CONCURRENT, 20);
+    }
+
+    public static String getValidationDegradePolicy() {
+        return HapiProperties.getProperty(VALIDATION_DEGRADE, "reject");
+    }
+
+    public static Integer getValidationDegradeQueueSize() {
+        return HapiProperties.getIntegerProperty(VALIDATION_DEGRADE_QUEUE_SIZE, 1000);
+    }
+
+    public static Boolean getValidationAsync() {
+        return HapiProperties.getBooleanProperty(VALIDATION_ASYNC, false);
+    }
+
+    public static Integer getValidationAsyncThreads() {
+        return HapiProperties.getIntegerProperty(VALIDATION_ASYNC_THREADS, 2);
+    }
+
+    public static Integer getValidationAsyncQueueSize() {
+        return HapiProperties.getIntegerProperty(VALIDATION_ASYNC_QUEUE_SIZE, 1000);
+    }
+
+    public static String getValidationAsyncOutcomeDir() {
+        return HapiProperties.getProperty(VALIDATION_ASYNC_OUTCOME_DIR, "/tmp/cdr-validation");
+    }
+
+    public static Integer getValidationAsyncOutcomeVersions() {
+        return HapiProperties.getIntegerProperty(VALIDATION_ASYNC_OUTCOME_VERSIONS, 5);
+    }
+
+    public static Integer getValidationAsyncOutcomeRetentionHours() {
+        return HapiProperties.getIntegerProperty(VALIDATION_ASYNC_OUTCOME_RETENTION_HOURS, 168);
+    }
+
+    public static Integer getMetadataCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(METADATA_CACHE_TTL_SECONDS, 3600);
+    }
+
+    public static Integer getStatisticsReconcileSeconds() {
+        return HapiProperties.getIntegerProperty(STATISTICS_RECONCILE_SECONDS, 3600);
+    }
+
+    public static Boolean getResourceCacheEnabled() {
+        return HapiProperties.getBooleanProperty(RESOURCE_CACHE_ENABLED, false);
+    }
+
+    public static Long getResourceCacheMaxBytes() {
+        return HapiProperties.getLongProperty(RESOURCE_CACHE_MAX_BYTES, 67108864L);
+    }
+
+    public static Integer getResourceCacheBlockSize() {
+        return HapiProperties.getIntegerProperty(RESOURCE_CACHE_BLOCK_SIZE, 1024);
+    }
+
+    public static Boolean getSearchCacheEnabled() {
+        return HapiProperties.getBooleanProperty(SEARCH_CACHE_ENABLED, false);
+    }
+
+    public static Long getSearchCacheMaxBytes() {
+        return HapiProperties.getLongProperty(SEARCH_CACHE_MAX_BYTES, 33554432L);
+    }
+
+    public static Integer getSearchCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(SEARCH_CACHE_TTL_SECONDS, 300);
+    }
+
+    public static Boolean getBulkExportEnabled() {
+        return HapiProperties.getBooleanProperty(BULK_EXPORT_ENABLED, false);
+    }
+
+    public static String getBulkExportDir() {
+        return HapiProperties.getProperty(BULK_EXPORT_DIR, "/tmp/cdr-export");
+    }
+
+    public static Integer getBulkExportThreads() {
+        return HapiProperties.getIntegerProperty(BULK_EXPORT_THREADS, 4);
+    }
+
+    public static Integer getBulkExportBatchSize() {
+        return HapiProperties.getIntegerProperty(BULK_EXPORT_BATCH_SIZE, 500);
+    }
+
+    public static Integer getBulkExportMaxJobs() {
+        return HapiProperties.getIntegerProperty(BULK_EXPORT_MAX_JOBS, 2);
+    }
+
+    public static Integer getBulkExportRetentionHours() {
+        return HapiProperties.getIntegerProperty(BULK_EXPORT_RETENTION_HOURS, 24);
+    }
+
+    public static Boolean getBulkImportEnabled() {
+        return HapiProperties.getBooleanProperty(BULK_IMPORT_ENABLED, false);
+    }
+
+    public static String getBulkImportDir() {
+        return HapiProperties.getProperty(BULK_IMPORT_DIR, "/tmp/cdr-import");
+    }
+
+    public static Integer getBulkImportThreads() {
+        return HapiProperties.getIntegerProperty(BULK_IMPORT_THREADS, 4);
+    }
+
+    public static Integer getBulkImportBatchSize() {
+        return HapiProperties.getIntegerProperty(BULK_IMPORT_BATCH_SIZE, 1000);
+    }
+
+    public static Integer getBulkImportMaxJobs() {
+        return HapiProperties.getIntegerProperty(BULK_IMPORT_MAX_JOBS, 1);
+    }
+
+    public static Boolean getBulkImportAllowUnauthenticated() {
+        return HapiProperties.getBooleanProperty(BULK_IMPORT_ALLOW_UNAUTHENTICATED, false);
+    }
+
+    public static Boolean getBundleParallel() {
+        return HapiProperties.getBooleanProperty(BUNDLE_PARALLEL, false);
+    }
+
+    public static Integer getBundleThreads() {
+        return HapiProperties.getIntegerProperty(BUNDLE_THREADS, 8);
+    }
+
+    public static Boolean getStreamingEnabled() {
+        return HapiProperties.getBooleanProperty(STREAMING_ENABLED, false);
+    }
+
+    public static Integer getStreamingMinPageSize() {
+        return HapiProperties.getIntegerProperty(STREAMING_MIN_PAGE_SIZE, 50);
+    }
+
+    public static Integer getStreamingFetchSize() {
+        return HapiProperties.getIntegerProperty(STREAMING_FETCH_SIZE, 20);
+    }
+
+    public static Boolean getPagingKeysetEnabled() {
+        return HapiProperties.getBooleanProperty(PAGING_KEYSET_ENABLED, false);
+    }
+
+    public static String getPagingKeysetSecret() {
+        return HapiProperties.getProperty(PAGING_KEYSET_SECRET);
+    }
+
+    public static Boolean getIndexingAsync() {
+        return HapiProperties.getBooleanProperty(INDEXING_ASYNC, false);
+    }
+
+    public static Integer getIndexingQueueSize() {
+        return HapiProperties.getIntegerProperty(INDEXING_QUEUE_SIZE, 10000);
+    }
+
+    public static Integer getIndexingBatchSize() {
+        return HapiProperties.getIntegerProperty(INDEXING_BATCH_SIZE, 250);
+    }
+
+    public static Integer getIndexingBatchBytes() {
+        return HapiProperties.getIntegerProperty(INDEXING_BATCH_BYTES, 5242880);
+    }
+
+    public static Integer getIndexingOfferTimeoutMillis() {
+        return HapiProperties.getIntegerProperty(INDEXING_OFFER_TIMEOUT_MILLIS, 2000);
+    }
+
+    public static String getIndexingRetryDir() {
+        return HapiProperties.getProperty(INDEXING_RETRY_DIR, "/tmp/cdr-indexing");
+    }
+
+    public static Integer getIndexingRetrySeconds() {
+        return HapiProperties.getIntegerProperty(INDEXING_RETRY_SECONDS, 60);
+    }
+
+    public static Integer getIndexingMaxAttempts() {
+        return HapiProperties.getIntegerProperty(INDEXING_MAX_ATTEMPTS, 10);
+    }
+
+    public static Boolean getReindexEnabled() {
+        return HapiProperties.getBooleanProperty(REINDEX_ENABLED, false);
+    }
+
+    public static String getReindexDir() {
+        return HapiProperties.getProperty(REINDEX_DIR, "/tmp/cdr-reindex");
+    }
+
+    public static Integer getReindexThreads() {
+        return HapiProperties.getIntegerProperty(REINDEX_THREADS, 2);
+    }
+
+    public static Integer getReindexBatchSize() {
+        return HapiProperties.getIntegerProperty(REINDEX_BATCH_SIZE, 100);
+    }
+
+    public static Boolean getReindexAllowUnauthenticated() {
+        return HapiProperties.getBooleanProperty(REINDEX_ALLOW_UNAUTHENTICATED, false);
+    }
+
     public static String getAppUser() {
         return HapiProperties.getProperty(APP_USER);
     }
@@ -407,8 +927,28 @@ public class HapiProperties {
         return HapiProperties.getProperty(HIBERNATE_SHOW_SQL);
     }
 
+    public static Integer getHibernateJdbcBatchSize() {
+        return HapiProperties.getIntegerProperty(HIBERNATE_JDBC_BATCH_SIZE, 50);
+    }
+
+    public static Boolean getHibernateSecondLevelCache() {
+        return HapiProperties.getBooleanProperty(HIBERNATE_SECOND_LEVEL_CACHE, false);
+    }
+
+    public static Boolean getHibernateQueryCache() {
+        return HapiProperties.getBooleanProperty(HIBERNATE_QUERY_CACHE, false);
+    }
+
+    public static Integer getHibernateCacheRegionSize(String region, Integer defaultValue) {
+        return HapiProperties.getIntegerProperty(HIBERNATE_CACHE_REGIONS + region + ".size", defaultValue);
+    }
+
+    public static Integer getHibernateCacheRegionTtlSeconds(String region, Integer defaultValue) {
+        return HapiProperties.getIntegerProperty(HIBERNATE_CACHE_REGIONS + region + ".ttl_seconds", defaultValue);
+    }
+
     public static Boolean getSecurityOauth() {
-        return HapiProperties.getBooleanProperty(SECURITY_OAUTH, false);
+        return getConfig().isSecurityOauth();
     }
 
     public static String getSecurityOpenidConfig() {
@@ -416,11 +956,23 @@ public class HapiProperties {
     }
 
     public static Boolean getSecuritySmartScope() {
-        return HapiProperties.getBooleanProperty(SECURITY_SMART_SCOPE, false);
+        return getConfig().isSecuritySmartScope();
     }
 
     public static String getSecurityOauthScope() {
-        return HapiProperties.getProperty(SECURITY_OAUTH_SCOPE);
+        return getConfig().getSecurityOauthScope();
+    }
+
+    public static Integer getSecurityOauthTokenCacheSize() {
+        return HapiProperties.getIntegerProperty(SECURITY_OAUTH_TOKEN_CACHE_SIZE, 1000);
+    }
+
+    public static Integer getSecurityJwksRefreshSeconds() {
+        return HapiProperties.getIntegerProperty(SECURITY_JWKS_REFRESH_SECONDS, 3600);
+    }
+
+    public static Integer getSecurityJwksMinRefreshSeconds() {
+        return HapiProperties.getIntegerProperty(SECURITY_JWKS_MIN_REFRESH_SECONDS, 30);
     }
 
     public static String getSoftwareImplementationDesc() {
@@ -4,30 +4,78 @@ package uk.gov.wildfyre.cdr;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.model.interceptor.executor.InterceptorService;
-import ca.uhn.fhir.jpa.provider.dstu3.JpaConformanceProviderDstu3;
+import ca.uhn.fhir.jpa.provider.BaseJpaResourceProvider;
 import ca.uhn.fhir.jpa.provider.dstu3.JpaSystemProviderDstu3;
 import ca.uhn.fhir.jpa.provider.dstu3.TerminologyUploaderProviderDstu3;
 import ca.uhn.fhir.jpa.provider.r4.JpaConformanceProviderR4;
 import ca.uhn.fhir.jpa.provider.r4.JpaSystemProviderR4;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
 import ca.uhn.fhir.jpa.subscription.SubscriptionInterceptorLoader;
 import ca.uhn.fhir.jpa.subscription.module.interceptor.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
+import org.hibernate.SessionFactory;
 import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.Meta;
 import org.springframework.context.ApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.context.ContextLoaderListener;
+import uk.gov.wildfyre.cdr.apidocs.OpenAPIService;
+import uk.gov.wildfyre.cdr.bulk.BulkExportService;
+import uk.gov.wildfyre.cdr.bulk.BulkImportService;
+import uk.gov.wildfyre.cdr.bundle.ParallelBundleProcessor;
+import uk.gov.wildfyre.cdr.cache.EncodedResourceCache;
+import uk.gov.wildfyre.cdr.cache.SearchResultCache;
+import uk.gov.wildfyre.cdr.datasource.ReplicaRoutingDataSource;
 import uk.gov.wildfyre.cdr.idp.OAuth2Interceptor;
+import uk.gov.wildfyre.cdr.indexing.AsyncIndexer;
+import uk.gov.wildfyre.cdr.indexing.FullTextReindexService;
+import uk.gov.wildfyre.cdr.interceptors.AsyncValidationInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.BulkExportInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.BulkImportInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.CapabilityStatementInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.EncodedResourceCacheInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.FullTextReindexInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.KeysetPagingInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.ReadReplicaRoutingInterceptor;
 import uk.gov.wildfyre.cdr.interceptors.RequestValidatingInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.ResourceCountInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.SearchResultCacheInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.StreamingBundleInterceptor;
+import uk.gov.wildfyre.cdr.interceptors.ValidationOutcomeInterceptor;
+import uk.gov.wildfyre.cdr.paging.KeysetPagingProvider;
 import uk.gov.wildfyre.cdr.providers.FHIRCDRConformanceProvider;
-
+import uk.gov.wildfyre.cdr.providers.FHIRCDRSystemProvider;
+import uk.gov.wildfyre.cdr.statistics.ResourceCountStatistics;
+import uk.gov.wildfyre.cdr.support.HibernateCacheStatistics;
+import uk.gov.wildfyre.cdr.support.JmxSupport;
+import uk.gov.wildfyre.cdr.support.SearchRequestTranslator;
+import uk.gov.wildfyre.cdr.validation.AsyncValidationService;
+import uk.gov.wildfyre.cdr.validation.CachingValidationEngine;
+import uk.gov.wildfyre.cdr.validation.CareConnectValidationSupport;
+import uk.gov.wildfyre.cdr.validation.CircuitBreakerValidationEngine;
+import uk.gov.wildfyre.cdr.validation.LocalValidationEngine;
+import uk.gov.wildfyre.cdr.validation.ParallelBundleValidator;
+import uk.gov.wildfyre.cdr.validation.RemoteValidationEngine;
+import uk.gov.wildfyre.cdr.validation.TimedValidationEngine;
+import uk.gov.wildfyre.cdr.validation.ValidationEngine;
+import uk.gov.wildfyre.cdr.validation.ValidationOutcomeStore;
+
+import javax.persistence.EntityManagerFactory;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 @WebServlet(urlPatterns = { "/STU3/*" }, displayName = "FHIR CDR Server")
 public class JpaRestfulServer extends RestfulServer {
@@ -36,6 +84,16 @@ public class JpaRestfulServer extends RestfulServer {
 
 	private ApplicationContext appCtx;
 
+	private transient AsyncIndexer asyncIndexer;
+
+	private transient OAuth2Interceptor oAuth2Interceptor;
+
+	private transient BulkExportService exportService;
+
+	private transient BulkImportService importService;
+
+	private transient FullTextReindexService reindexService;
+
 	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JpaRestfulServer.class);
 
 	public JpaRestfulServer() {
@@ -59,6 +117,9 @@ public class JpaRestfulServer extends RestfulServer {
 	protected void initialize() throws ServletException {
 		super.initialize();
 
+		// Reload the configuration when the -Dhapi.properties override file changes
+		HapiProperties.watch();
+
 		FhirVersionEnum fhirVersion = FhirVersionEnum.DSTU3;
 
 		/*
@@ -96,11 +157,32 @@ public class JpaRestfulServer extends RestfulServer {
 		 * provide further customization of your server's CapabilityStatement
 		 */
 
+		FHIRCDRConformanceProvider cdrConformanceProvider = null;
+		ResourceCountStatistics resourceCountStatistics = null;
 		if (fhirVersion == FhirVersionEnum.DSTU3) {
 			IFhirSystemDao<Bundle, Meta> systemDao = appCtx.getBean("mySystemDaoDstu3", IFhirSystemDao.class);
-			JpaConformanceProviderDstu3 confProvider = new FHIRCDRConformanceProvider(this, systemDao, appCtx.getBean(DaoConfig.class));
+			FHIRCDRConformanceProvider confProvider = new FHIRCDRConformanceProvider(this, systemDao, appCtx.getBean(DaoConfig.class));
 			confProvider.setImplementationDescription("HAPI FHIR DSTU3 Server");
 			setServerConformanceProvider(confProvider);
+
+			// Per type resource counts, maintained as resources are written rather than counted for each CapabilityStatement
+			resourceCountStatistics = new ResourceCountStatistics(appCtx.getBean(EntityManagerFactory.class),
+					HapiProperties.getStatisticsReconcileSeconds());
+			JmxSupport.register("ResourceCounts", resourceCountStatistics);
+			registerInterceptor(new ResourceCountInterceptor(resourceCountStatistics));
+			confProvider.setResourceCountStatistics(resourceCountStatistics);
+
+			// Serve /metadata pre-encoded with an ETag, rebuilt when SearchParameters or StructureDefinitions change
+			CapabilityStatementInterceptor capabilityStatementInterceptor = new CapabilityStatementInterceptor(confProvider);
+			JmxSupport.register("CapabilityStatement", capabilityStatementInterceptor);
+			registerInterceptor(capabilityStatementInterceptor);
+
+			// software.* and the security settings may have changed
+			HapiProperties.subscribe(config -> confProvider.invalidate());
+
+			// /apidocs is generated in process from the same cached statement
+			appCtx.getBean(OpenAPIService.class).setConformanceProvider(confProvider);
+			cdrConformanceProvider = confProvider;
 		} else if (fhirVersion == FhirVersionEnum.R4) {
 			IFhirSystemDao<org.hl7.fhir.r4.model.Bundle, org.hl7.fhir.r4.model.Meta> systemDao = appCtx.getBean("mySystemDaoR4", IFhirSystemDao.class);
 			JpaConformanceProviderR4 confProvider = new JpaConformanceProviderR4(this, systemDao, appCtx.getBean(DaoConfig.class));
@@ -131,8 +213,16 @@ public class JpaRestfulServer extends RestfulServer {
 		 */
 		setDefaultResponseEncoding(HapiProperties.getDefaultEncoding());
 
+		HapiProperties.subscribe(config -> {
+			setDefaultPrettyPrint(config.isDefaultPrettyPrint());
+			setDefaultResponseEncoding(config.getDefaultEncoding());
+		});
 
-		setPagingProvider(appCtx.getBean(DatabaseBackedPagingProvider.class));
+
+		DatabaseBackedPagingProvider pagingProvider = appCtx.getBean(DatabaseBackedPagingProvider.class);
+		pagingProvider.setDefaultPageSize(HapiProperties.getDefaultPageSize());
+		pagingProvider.setMaximumPageSize(HapiProperties.getMaximumPageSize());
+		setPagingProvider(pagingProvider);
 
 
 		String serverAddress = HapiProperties.getServerAddress();
@@ -161,16 +251,229 @@ public class JpaRestfulServer extends RestfulServer {
 			 registerProvider(appCtx.getBean(TerminologyUploaderProviderDstu3.class));
 		}
 
+		if (HapiProperties.getHibernateSecondLevelCache()) {
+			SessionFactory sessionFactory = appCtx.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class);
+			JmxSupport.register("HibernateCache", new HibernateCacheStatistics(sessionFactory));
+		}
+
+		DataSource dataSource = appCtx.getBean(DataSource.class);
+		if (dataSource instanceof ReplicaRoutingDataSource) {
+			// Send read only requests to the read replicas
+			registerInterceptor(new ReadReplicaRoutingInterceptor((ReplicaRoutingDataSource) dataSource,
+					HapiProperties.getDataSourceReplicaOperations()));
+		}
+
 		if (HapiProperties.getSecurityOauth()) {
-			registerInterceptor(new OAuth2Interceptor(appCtx));  // Add OAuth2 Security Filter
+			oAuth2Interceptor = new OAuth2Interceptor(appCtx);
+			registerInterceptor(oAuth2Interceptor);  // Add OAuth2 Security Filter
+		}
+
+		EncodedResourceCache resourceCache = null;
+		if (HapiProperties.getResourceCacheEnabled()) {
+			// Registered after the OAuth2Interceptor, reads are only answered from the cache once access is checked
+			resourceCache = new EncodedResourceCache(HapiProperties.getResourceCacheMaxBytes(),
+					HapiProperties.getResourceCacheBlockSize());
+			JmxSupport.register("ResourceCache", resourceCache);
+			registerInterceptor(new EncodedResourceCacheInterceptor(resourceCache));
+		}
+
+		SearchResultCache searchCache = null;
+		if (HapiProperties.getSearchCacheEnabled()) {
+			// Results read from a replica may be missing writes made within its maximum lag
+			long settleMillis = (dataSource instanceof ReplicaRoutingDataSource) ? HapiProperties.getDataSourceReplicaMaxLagMillis() : 0;
+			searchCache = new SearchResultCache(HapiProperties.getSearchCacheMaxBytes(),
+					HapiProperties.getSearchCacheTtlSeconds(), settleMillis);
+			JmxSupport.register("SearchCache", searchCache);
+			registerInterceptor(new SearchResultCacheInterceptor(searchCache, ctx));
+		}
+
+		Map<String, IFhirResourceDao<?>> daos = new TreeMap<>();
+		for (IResourceProvider provider : resourceProviders) {
+			if (provider instanceof BaseJpaResourceProvider) {
+				daos.put(ctx.getResourceDefinition(provider.getResourceType()).getName(), ((BaseJpaResourceProvider<?>) provider).getDao());
+			}
+		}
+
+		SearchRequestTranslator searchTranslator = new SearchRequestTranslator(ctx, appCtx.getBean(MatchUrlService.class));
+
+		if (HapiProperties.getPagingKeysetEnabled() && fhirVersion == FhirVersionEnum.DSTU3) {
+			// Searches sorted by _lastUpdated are paged by cursor, others still by the stored search
+			KeysetPagingProvider keysetPaging = new KeysetPagingProvider(daos, searchTranslator, pagingProvider,
+					HapiProperties.getPagingKeysetSecret());
+			JmxSupport.register("KeysetPaging", keysetPaging);
+			registerInterceptor(new KeysetPagingInterceptor(ctx, keysetPaging));
+		}
+
+		if (HapiProperties.getStreamingEnabled() && fhirVersion == FhirVersionEnum.DSTU3) {
+			// Large search and history pages are written as they are loaded rather than built into a Bundle first
+			StreamingBundleInterceptor streamingInterceptor = new StreamingBundleInterceptor(ctx, daos,
+					appCtx.getBean("mySystemDaoDstu3", IFhirSystemDao.class), pagingProvider, searchTranslator,
+					HapiProperties.getStreamingMinPageSize(), HapiProperties.getStreamingFetchSize());
+			JmxSupport.register("StreamingBundles", streamingInterceptor);
+			registerInterceptor(streamingInterceptor);
+		}
+
+		if (HapiProperties.getBundleParallel() && systemProvider instanceof FHIRCDRSystemProvider) {
+			ParallelBundleProcessor bundleProcessor = new ParallelBundleProcessor(ctx,
+					appCtx.getBean("mySystemDaoDstu3", IFhirSystemDao.class), daos, appCtx.getBean(EntityManagerFactory.class),
+					appCtx.getBean(PlatformTransactionManager.class), HapiProperties.getBundleThreads());
+			JmxSupport.register("BundleProcessor", bundleProcessor);
+			((FHIRCDRSystemProvider) systemProvider).setBundleProcessor(bundleProcessor);
+		}
+
+		if (HapiProperties.getBulkExportEnabled()) {
+			exportService = new BulkExportService(ctx, daos, appCtx.getBean(EntityManagerFactory.class),
+					appCtx.getBean(PlatformTransactionManager.class), HapiProperties.getBulkExportDir(),
+					HapiProperties.getBulkExportThreads(), HapiProperties.getBulkExportBatchSize(),
+					HapiProperties.getBulkExportRetentionHours());
+			JmxSupport.register("BulkExport", exportService);
+			registerInterceptor(new BulkExportInterceptor(exportService, oAuth2Interceptor, HapiProperties.getBulkExportMaxJobs()));
+		}
+
+		if (HapiProperties.getBulkImportEnabled() && oAuth2Interceptor == null && !HapiProperties.getBulkImportAllowUnauthenticated()) {
+			// Imports write straight to the store, skipping validation, so anonymous callers must be explicitly allowed
+			log.warn("bulk.import.enabled is ignored without security.oauth2, set bulk.import.allow_unauthenticated to allow it");
+		} else if (HapiProperties.getBulkImportEnabled()) {
+			importService = new BulkImportService(ctx, daos, appCtx.getBean(PlatformTransactionManager.class),
+					HapiProperties.getBulkImportDir(), HapiProperties.getBulkImportThreads(), HapiProperties.getBulkImportBatchSize());
+			// Imported resources don't pass through the server interceptors, so the caches are told directly
+			if (resourceCache != null) {
+				EncodedResourceCache importResourceCache = resourceCache;
+				importService.addWriteListener(importResourceCache::invalidate);
+			}
+			if (searchCache != null) {
+				SearchResultCache importSearchCache = searchCache;
+				importService.addWriteListener((resourceType, id) -> {
+					if ("SearchParameter".equals(resourceType)) {
+						importSearchCache.invalidateAll();
+					}
+					importSearchCache.written(resourceType);
+				});
+			}
+			if (cdrConformanceProvider != null) {
+				FHIRCDRConformanceProvider importConformanceProvider = cdrConformanceProvider;
+				importService.addWriteListener((resourceType, id) -> {
+					if ("SearchParameter".equals(resourceType) || "StructureDefinition".equals(resourceType)) {
+						importConformanceProvider.invalidate();
+					}
+				});
+			}
+			if (resourceCountStatistics != null) {
+				importService.addCompletionListener(resourceCountStatistics::requestReconcile);
+			}
+			JmxSupport.register("BulkImport", importService);
+			registerInterceptor(new BulkImportInterceptor(importService, ctx, oAuth2Interceptor, HapiProperties.getBulkImportMaxJobs()));
+		}
+
+		if (HapiProperties.getIndexingAsync()) {
+			// Hibernate Search hands index work to this from AsyncElasticsearchIndexManager once it is running
+			try {
+				asyncIndexer = new AsyncIndexer(HapiProperties.getIndexingQueueSize(), HapiProperties.getIndexingBatchSize(),
+						HapiProperties.getIndexingBatchBytes(), HapiProperties.getIndexingOfferTimeoutMillis(),
+						HapiProperties.getIndexingRetryDir(), HapiProperties.getIndexingRetrySeconds(),
+						HapiProperties.getIndexingMaxAttempts());
+			} catch (IOException ex) {
+				throw new ServletException("Unable to create " + HapiProperties.getIndexingRetryDir(), ex);
+			}
+			asyncIndexer.start(ctx, appCtx.getBean(EntityManagerFactory.class), daos);
+			JmxSupport.register("AsyncIndexing", asyncIndexer);
+		}
+
+		if (HapiProperties.getReindexEnabled() && oAuth2Interceptor == null && !HapiProperties.getReindexAllowUnauthenticated()) {
+			// A reindex loads every resource and can purge the index, anonymous callers must be explicitly allowed
+			log.warn("reindex.enabled is ignored without security.oauth2, set reindex.allow_unauthenticated to allow it");
+		} else if (HapiProperties.getReindexEnabled()) {
+			reindexService = new FullTextReindexService(ctx, daos, appCtx.getBean(EntityManagerFactory.class),
+					HapiProperties.getReindexDir(), HapiProperties.getReindexThreads(), HapiProperties.getReindexBatchSize());
+			JmxSupport.register("FullTextReindex", reindexService);
+			registerInterceptor(new FullTextReindexInterceptor(reindexService, oAuth2Interceptor));
 		}
 
 		if (HapiProperties.getValidationFlag()) {
-			RequestValidatingInterceptor requestInterceptor = new RequestValidatingInterceptor(log, ctx, HapiProperties.getValidationServer());
-			registerInterceptor(requestInterceptor);
+			ValidationEngine validationEngine = getValidationEngine(ctx);
+			if (HapiProperties.getValidationAsync()) {
+				// Shadow validation, writes go straight through and are validated in the background
+				ValidationOutcomeStore outcomeStore = appCtx.getBean(ValidationOutcomeStore.class);
+				AsyncValidationService validationService = new AsyncValidationService(validationEngine,
+						outcomeStore, RequestValidatingInterceptor::pass,
+						HapiProperties.getValidationAsyncThreads(), HapiProperties.getValidationAsyncQueueSize());
+				JmxSupport.register("ShadowValidation", validationService);
+				registerInterceptor(new AsyncValidationInterceptor(validationService));
+				registerInterceptor(new ValidationOutcomeInterceptor(outcomeStore, oAuth2Interceptor));
+			} else {
+				RequestValidatingInterceptor requestInterceptor = new RequestValidatingInterceptor(log, ctx, validationEngine);
+				if (HapiProperties.getValidationBundleParallel()) {
+					requestInterceptor.setBundleValidator(new ParallelBundleValidator(validationEngine, RequestValidatingInterceptor::pass,
+							HapiProperties.getValidationBundleThreads(), HapiProperties.getValidationBundleFailFast()));
+				}
+				registerInterceptor(requestInterceptor);
+			}
 		}
 
 
 	}
 
+	@Override
+	protected void service(HttpServletRequest theRequest, HttpServletResponse theResponse) throws ServletException, IOException {
+		try {
+			super.service(theRequest, theResponse);
+		} finally {
+			// An interceptor may end the request before the routing interceptor's own hooks run, container threads are reused
+			ReplicaRoutingDataSource.setReadOnlyRequest(false);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (asyncIndexer != null) {
+			// Documents still queued are journalled and indexed after the restart
+			asyncIndexer.shutdown();
+		}
+		if (exportService != null) {
+			exportService.shutdown();
+		}
+		if (importService != null) {
+			importService.shutdown();
+		}
+		if (reindexService != null) {
+			reindexService.shutdown();
+		}
+		if (oAuth2Interceptor != null) {
+			oAuth2Interceptor.shutdown();
+		}
+		super.destroy();
+	}
+
+	private ValidationEngine getValidationEngine(FhirContext ctx) {
+		ValidationEngine engine;
+		if ("local".equalsIgnoreCase(HapiProperties.getValidationMode())) {
+			log.info("Validating in process against CareConnect profiles");
+			engine = new LocalValidationEngine(ctx, CareConnectValidationSupport.build(ctx,
+					HapiProperties.getValidationLocalProfilesDir(), HapiProperties.getValidationServer()));
+		} else {
+			log.info("Validating against " + HapiProperties.getValidationServer());
+			engine = new RemoteValidationEngine(ctx, HapiProperties.getValidationServer(), HapiProperties.getValidationTimeoutMillis());
+		}
+		TimedValidationEngine timedEngine = new TimedValidationEngine(engine);
+		JmxSupport.register("ValidationEngine", timedEngine);
+
+		CircuitBreakerValidationEngine breakerEngine = new CircuitBreakerValidationEngine(timedEngine,
+				HapiProperties.getValidationTimeoutMillis(),
+				HapiProperties.getValidationBreakerFailureThreshold(),
+				HapiProperties.getValidationBreakerOpenSeconds(),
+				HapiProperties.getValidationBreakerMaxConcurrent(),
+				CircuitBreakerValidationEngine.parsePolicy(HapiProperties.getValidationDegradePolicy()),
+				HapiProperties.getValidationDegradeQueueSize());
+		JmxSupport.register("ValidationCircuitBreaker", breakerEngine);
+		engine = breakerEngine;
+
+		if (HapiProperties.getValidationCacheSize() > 0) {
+			CachingValidationEngine cachingEngine = new CachingValidationEngine(engine, ctx,
+					HapiProperties.getValidationCacheSize(), HapiProperties.getValidationCacheTtlSeconds());
+			JmxSupport.register("ValidationCache", cachingEngine);
+			engine = cachingEngine;
+		}
+		return engine;
+	}
+
 }
@@ -1,24 +1,21 @@
 package uk.gov.wildfyre.cdr.apidocs;
 
-import ca.uhn.fhir.context.FhirContext;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.hl7.fhir.dstu3.model.CapabilityStatement;
 import org.json.JSONArray;
 import org.json.JSONObject;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.ApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.providers.FHIRCDRConformanceProvider;
 
-import java.io.IOException;
-import java.net.UnknownHostException;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -27,53 +24,87 @@ public class OpenAPIService {
 
     // Swagger guide https://swagger.io/docs/specification/2-0/basic-structure/
 
-    @Autowired
-    private ApplicationContext appCtx;
-
-    @Autowired
-    private FhirContext ctx;
-
-    @Value("${server.port}")
-    private String serverPort;
-
     @Value("${server.servlet.context-path}")
     private String serverPath;
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OpenAPIService.class);
 
-    @RequestMapping("/apidocs")
-    public String greeting() {
-        HttpClient client = getHttpClient();
-
-        String apidocs = "http://localhost:"+serverPort+serverPath+"/STU3/metadata";
-
-        HttpGet request = new HttpGet(apidocs);
-        request.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
-        request.setHeader(HttpHeaders.ACCEPT, "application/json");
-
-        try {
-
-            HttpResponse response = client.execute(request);
-            log.trace("Response "+response.getStatusLine().toString());
-            if (response.getStatusLine().toString().contains("200")) {
+    private volatile FHIRCDRConformanceProvider conformanceProvider;
+
+    private volatile ApiDocs apiDocs;
+
+    /**
+     * The generated document, along with the CapabilityStatement it was generated from and the provider's
+     * invalidation count at the time
+     */
+    private static final class ApiDocs {
+        private final CapabilityStatement source;
+        private final long invalidations;
+        private final String json;
+        private final String etag;
+
+        private ApiDocs(CapabilityStatement source, long invalidations, String json) {
+            this.source = source;
+            this.invalidations = invalidations;
+            this.json = json;
+            this.etag = "\"" + DigestUtils.sha256Hex(json.getBytes(StandardCharsets.UTF_8)).substring(0, 32) + "\"";
+        }
+    }
 
-                String encoding = "UTF-8";
-                String body = IOUtils.toString(response.getEntity().getContent(), encoding);
-                log.trace(body);
+    /**
+     * Called by the FHIR servlet once its conformance provider has been created
+     */
+    public void setConformanceProvider(FHIRCDRConformanceProvider conformanceProvider) {
+        this.conformanceProvider = conformanceProvider;
+    }
 
-                CapabilityStatement capabilityStatement = (CapabilityStatement) ctx.newJsonParser().parseResource(body);
-                log.trace("Parsing");
-                return parseConformanceStatement(capabilityStatement);
+    /**
+     * The document is generated from the conformance provider's cached CapabilityStatement and regenerated only when
+     * that statement is rebuilt, so it is invalidated along with it. The statement is only ever built for /metadata,
+     * this request is not on the FHIR servlet. Until /metadata has been requested, and from when the statement is
+     * invalidated until /metadata rebuilds it, the document comes from a statement built just for it.
+     */
+    @RequestMapping("/apidocs")
+    public ResponseEntity<String> greeting(HttpServletRequest request) {
+        FHIRCDRConformanceProvider provider = conformanceProvider;
+        if (provider == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body("Unable to resolve swagger/openapi documentation, the FHIR server has not started");
+        }
 
+        // Read before the statement, so an invalidation in between is seen as stale on the next request
+        long invalidations = provider.getInvalidations();
+        FHIRCDRConformanceProvider.CachedCapabilityStatement built = provider.getBuiltConformance();
+        ApiDocs current = apiDocs;
+        if (isStale(current, built, invalidations)) {
+            synchronized (this) {
+                current = apiDocs;
+                if (isStale(current, built, invalidations)) {
+                    log.trace("Generating apidocs");
+                    CapabilityStatement capabilityStatement = (built != null)
+                            ? built.getCapabilityStatement()
+                            : provider.buildUncachedConformance(request);
+                    current = new ApiDocs(capabilityStatement, invalidations, parseConformanceStatement(capabilityStatement));
+                    apiDocs = current;
+                }
             }
+        }
 
-        } catch (UnknownHostException e) {
-            log.error("Host not known");
-        } catch (IOException ex) {
-            log.error("IO Exception " + ex.getMessage());
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains(current.etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(current.etag).build();
         }
+        return ResponseEntity.ok()
+                .eTag(current.etag)
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+                .body(current.json);
+    }
 
-        return "Unable to resolve swagger/openapi documentation from " + apidocs;
+    private boolean isStale(ApiDocs current, FHIRCDRConformanceProvider.CachedCapabilityStatement built, long invalidations) {
+        if (current == null || current.invalidations != invalidations) {
+            return true;
+        }
+        return built != null && current.source != built.getCapabilityStatement();
     }
 
     private String parseConformanceStatement(CapabilityStatement capabilityStatement) {
@@ -281,9 +312,4 @@ public class OpenAPIService {
                 .put("description","Unexpected error"));
         return obj;
     }
-
-    private HttpClient getHttpClient() {
-        final HttpClient httpClient = HttpClientBuilder.create().build();
-        return httpClient;
-    }
 }
@@ -0,0 +1,248 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one bulk data $export, see {@link BulkExportService}
+ */
+public class BulkExportJob {
+
+    public enum Level {
+        SYSTEM, PATIENT, GROUP
+    }
+
+    public enum Status {
+        ACCEPTED, IN_PROGRESS, COMPLETE, FAILED, CANCELLED
+    }
+
+    /**
+     * The NDJSON file written for one resource type
+     */
+    public static final class Output {
+        private final String resourceType;
+        private final Path file;
+        private final long count;
+
+        Output(String resourceType, Path file, long count) {
+            this.resourceType = resourceType;
+            this.file = file;
+            this.count = count;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final String owner;
+
+    private final String request;
+
+    private final String serverBase;
+
+    private final Level level;
+
+    private final String groupId;
+
+    private final List<String> resourceTypes;
+
+    private final Date since;
+
+    private final Date transactionTime = new Date();
+
+    private final Path directory;
+
+    private final Map<String, Output> outputs = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger remainingTypes;
+
+    private final AtomicLong exported = new AtomicLong();
+
+    private volatile List<Long> patientPids;
+
+    private volatile Status status = Status.ACCEPTED;
+
+    private volatile String error;
+
+    private volatile long completedAt;
+
+    // Tasks writing to the job's directory, guarded by this
+    private int runningTasks;
+
+    BulkExportJob(String owner, String request, String serverBase, Level level, String groupId, List<String> resourceTypes, Date since,
+                  Path root) {
+        this.owner = owner;
+        this.request = request;
+        this.serverBase = serverBase;
+        this.level = level;
+        this.groupId = groupId;
+        this.resourceTypes = Collections.unmodifiableList(resourceTypes);
+        this.since = since;
+        this.directory = root.resolve(id);
+        this.remainingTypes = new AtomicInteger(resourceTypes.size());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the client which started the export, only it may poll, cancel or download
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public String getServerBase() {
+        return serverBase;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public List<String> getResourceTypes() {
+        return resourceTypes;
+    }
+
+    public Date getSince() {
+        return since;
+    }
+
+    public Date getTransactionTime() {
+        return transactionTime;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Map<String, Output> getOutputs() {
+        return Collections.unmodifiableMap(outputs);
+    }
+
+    public long getExported() {
+        return exported.get();
+    }
+
+    public int getRemainingTypes() {
+        return remainingTypes.get();
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    /**
+     * @return the Patients of the Group being exported, null unless this is a Group level export
+     */
+    List<Long> getPatientPids() {
+        return patientPids;
+    }
+
+    void setPatientPids(List<Long> patientPids) {
+        this.patientPids = patientPids;
+    }
+
+    void started() {
+        if (status == Status.ACCEPTED) {
+            status = Status.IN_PROGRESS;
+        }
+    }
+
+    void exported(long count) {
+        exported.addAndGet(count);
+    }
+
+    void addOutput(Output output) {
+        outputs.put(output.getResourceType(), output);
+    }
+
+    /**
+     * @return true if this was the last resource type to finish
+     */
+    boolean typeFinished() {
+        return remainingTypes.decrementAndGet() == 0;
+    }
+
+    synchronized void finish(Status finalStatus, String message) {
+        if (!isFinished()) {
+            status = finalStatus;
+            error = message;
+            completedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Called before a task touches the job's directory
+     *
+     * @return false if the job has finished, the task must not start
+     */
+    synchronized boolean taskStarted() {
+        if (isFinished()) {
+            return false;
+        }
+        runningTasks++;
+        return true;
+    }
+
+    synchronized void taskEnded() {
+        runningTasks--;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the running tasks to close their files, once the job has finished no more will start
+     *
+     * @return false if they were still running when the timeout expired
+     */
+    synchronized boolean awaitTasks(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (runningTasks > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,426 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.dstu3.model.Group;
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.gov.wildfyre.cdr.datasource.ReplicaRoutingDataSource;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Runs bulk data $export jobs in the background, writing one NDJSON file per resource type under
+ * bulk.export.dir/{job id}.
+ *
+ * Each resource type is exported by its own task on a shared worker pool, so the types of a job are exported in
+ * parallel. A task walks HFJ_RESOURCE in resource id order, bulk.export.batch_size rows at a time, each batch
+ * starting after the last id of the one before, in a short read only transaction whose entities are discarded once
+ * written. However many resources are exported, at most one batch per worker is held in memory. Batches may be
+ * read from a replica.
+ *
+ * Patient and Group level exports include the resources which reference a Patient (or one of the Group's
+ * Patients), which approximates the Patient compartment. Finished jobs and their files are removed after
+ * bulk.export.retention_hours.
+ */
+public class BulkExportService implements BulkExportServiceMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportService.class);
+
+    // Keeps IN lists within the limits of every supported database
+    private static final int PID_CHUNK_SIZE = 500;
+
+    private static final String PATIENT = "Patient";
+
+    // A cancelled task stops after the batch it is writing, which is bounded by bulk.export.batch_size
+    private static final long CANCEL_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final FhirContext ctx;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Path root;
+
+    private final int batchSize;
+
+    private final long retentionMillis;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService cleaner;
+
+    private final Map<String, BulkExportJob> jobs = new ConcurrentHashMap<>();
+
+    private final LongAdder jobsStarted = new LongAdder();
+
+    private final LongAdder jobsCompleted = new LongAdder();
+
+    private final LongAdder jobsFailed = new LongAdder();
+
+    private final LongAdder resourcesExported = new LongAdder();
+
+    private final LongAdder bytesWritten = new LongAdder();
+
+    /**
+     * A batch of resources read in one transaction, and the id to start the next batch after
+     */
+    private static final class Batch {
+        private final List<IBaseResource> resources;
+        private final long lastPid;
+
+        private Batch(List<IBaseResource> resources, long lastPid) {
+            this.resources = resources;
+            this.lastPid = lastPid;
+        }
+    }
+
+    public BulkExportService(FhirContext ctx, Map<String, IFhirResourceDao<?>> daos, EntityManagerFactory entityManagerFactory,
+                             PlatformTransactionManager transactionManager, String directory, int threads, int batchSize,
+                             int retentionHours) {
+        this.ctx = ctx;
+        this.daos = daos;
+        this.entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.root = Paths.get(directory);
+        this.batchSize = batchSize;
+        this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bulk-export-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-export-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::removeExpired, 0, 1, TimeUnit.HOURS);
+    }
+
+    public boolean isExportable(String resourceType) {
+        return daos.containsKey(resourceType);
+    }
+
+    public Collection<String> getExportableTypes() {
+        return Collections.unmodifiableSet(daos.keySet());
+    }
+
+    /**
+     * @param owner the client starting the export, see {@link BulkExportJob#getOwner()}
+     */
+    public BulkExportJob submit(String owner, String request, String serverBase, BulkExportJob.Level level, String groupId,
+                                List<String> resourceTypes, Date since) {
+        BulkExportJob job = new BulkExportJob(owner, request, serverBase, level, groupId, resourceTypes, since, root);
+        jobs.put(job.getId(), job);
+        jobsStarted.increment();
+        executor.execute(() -> start(job));
+        log.info("Bulk export " + job.getId() + " accepted for " + resourceTypes);
+        return job;
+    }
+
+    public BulkExportJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Stop the job if it is still running and remove it along with its files. The files are only deleted once the
+     * job's tasks have closed them, if they don't stop in time the directory is left for the cleaner.
+     */
+    public boolean cancel(String jobId) {
+        BulkExportJob job = jobs.remove(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.finish(BulkExportJob.Status.CANCELLED, null);
+        try {
+            if (!job.awaitTasks(CANCEL_WAIT_MILLIS)) {
+                log.warn("Bulk export " + jobId + " is still writing, its files will be removed by the cleaner");
+                return true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        deleteDirectory(job.getDirectory());
+        return true;
+    }
+
+    public int getActiveJobCount() {
+        int active = 0;
+        for (BulkExportJob job : jobs.values()) {
+            if (!job.isFinished()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private void start(BulkExportJob job) {
+        if (!job.taskStarted()) {
+            return;
+        }
+        try {
+            Files.createDirectories(job.getDirectory());
+            if (job.getLevel() == BulkExportJob.Level.GROUP) {
+                job.setPatientPids(transactionTemplate.execute(status -> groupPatientPids(job.getGroupId())));
+            }
+            job.started();
+            for (String resourceType : job.getResourceTypes()) {
+                executor.execute(() -> exportType(job, resourceType));
+            }
+        } catch (Exception ex) {
+            failed(job, ex);
+        } finally {
+            job.taskEnded();
+        }
+    }
+
+    private List<Long> groupPatientPids(String groupId) {
+        @SuppressWarnings("unchecked")
+        IFhirResourceDao<Group> groupDao = (IFhirResourceDao<Group>) daos.get("Group");
+        @SuppressWarnings("unchecked")
+        IFhirResourceDao<IBaseResource> patientDao = (IFhirResourceDao<IBaseResource>) daos.get(PATIENT);
+        Group group = groupDao.read(new IdType("Group", groupId));
+        List<Long> pids = new ArrayList<>();
+        for (Group.GroupMemberComponent member : group.getMember()) {
+            IdType reference = new IdType(member.getEntity().getReference());
+            if (PATIENT.equals(reference.getResourceType()) && reference.hasIdPart()) {
+                pids.add(patientDao.readEntity(reference.toUnqualifiedVersionless()).getId());
+            }
+        }
+        Collections.sort(pids);
+        return pids;
+    }
+
+    private void exportType(BulkExportJob job, String resourceType) {
+        if (!job.taskStarted()) {
+            return;
+        }
+        try {
+            writeType(job, resourceType, job.getDirectory().resolve(resourceType + ".ndjson"));
+        } finally {
+            job.taskEnded();
+        }
+    }
+
+    private void writeType(BulkExportJob job, String resourceType, Path file) {
+        long count = 0;
+        ReplicaRoutingDataSource.setReadOnlyRequest(true);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            IParser parser = ctx.newJsonParser().setPrettyPrint(false);
+            List<Long> patientPids = job.getPatientPids();
+            if (patientPids == null) {
+                count = exportRange(job, resourceType, null, parser, writer);
+            } else {
+                for (int from = 0; from < patientPids.size() && !job.isFinished(); from += PID_CHUNK_SIZE) {
+                    List<Long> chunk = patientPids.subList(from, Math.min(patientPids.size(), from + PID_CHUNK_SIZE));
+                    count += exportRange(job, resourceType, chunk, parser, writer);
+                }
+            }
+        } catch (Exception ex) {
+            failed(job, ex);
+            return;
+        } finally {
+            ReplicaRoutingDataSource.setReadOnlyRequest(false);
+        }
+
+        if (count > 0) {
+            bytesWritten.add(file.toFile().length());
+            job.addOutput(new BulkExportJob.Output(resourceType, file, count));
+        } else {
+            file.toFile().delete();
+        }
+        if (job.typeFinished() && !job.isFinished()) {
+            job.finish(BulkExportJob.Status.COMPLETE, null);
+            jobsCompleted.increment();
+            log.info("Bulk export " + job.getId() + " complete, " + job.getExported() + " resources");
+        }
+    }
+
+    /**
+     * Write every resource of the type in scope, optionally restricted to the given Patients
+     */
+    private long exportRange(BulkExportJob job, String resourceType, List<Long> patientPids, IParser parser, Writer writer)
+            throws IOException {
+        IFhirResourceDao<?> dao = daos.get(resourceType);
+        long count = 0;
+        long lastPid = -1;
+        while (!job.isFinished()) {
+            long after = lastPid;
+            Batch batch = transactionTemplate.execute(status -> readBatch(job, resourceType, dao, patientPids, after));
+            for (IBaseResource resource : batch.resources) {
+                writer.write(parser.encodeResourceToString(resource));
+                writer.write('\n');
+            }
+            count += batch.resources.size();
+            job.exported(batch.resources.size());
+            resourcesExported.add(batch.resources.size());
+            if (batch.lastPid < 0) {
+                break;
+            }
+            lastPid = batch.lastPid;
+        }
+        return count;
+    }
+
+    private Batch readBatch(BulkExportJob job, String resourceType, IFhirResourceDao<?> dao, List<Long> patientPids, long after) {
+        StringBuilder jpql = new StringBuilder("SELECT r FROM ResourceTable r WHERE r.myResourceType = :type"
+                + " AND r.myDeleted IS NULL AND r.myId > :after");
+        if (job.getSince() != null) {
+            jpql.append(" AND r.myUpdated >= :since");
+        }
+        boolean patientScoped = job.getLevel() != BulkExportJob.Level.SYSTEM;
+        if (patientScoped && PATIENT.equals(resourceType)) {
+            if (patientPids != null) {
+                jpql.append(" AND r.myId IN :patients");
+            }
+        } else if (patientScoped) {
+            jpql.append(" AND EXISTS (SELECT l.myId FROM ResourceLink l WHERE l.mySourceResourcePid = r.myId"
+                    + " AND l.myTargetResourceType = 'Patient'");
+            if (patientPids != null) {
+                jpql.append(" AND l.myTargetResourcePid IN :patients");
+            }
+            jpql.append(")");
+        }
+        jpql.append(" ORDER BY r.myId");
+
+        TypedQuery<ResourceTable> query = entityManager.createQuery(jpql.toString(), ResourceTable.class);
+        query.setParameter("type", resourceType);
+        query.setParameter("after", after);
+        if (job.getSince() != null) {
+            query.setParameter("since", job.getSince());
+        }
+        if (patientScoped && patientPids != null) {
+            query.setParameter("patients", patientPids);
+        }
+        query.setMaxResults(batchSize);
+
+        List<ResourceTable> entities = query.getResultList();
+        List<IBaseResource> resources = new ArrayList<>(entities.size());
+        for (ResourceTable entity : entities) {
+            IBaseResource resource = dao.toResource(entity, false);
+            if (resource != null) {
+                resources.add(resource);
+            }
+        }
+        long lastPid = entities.size() < batchSize ? -1 : entities.get(entities.size() - 1).getId();
+        return new Batch(resources, lastPid);
+    }
+
+    private void failed(BulkExportJob job, Exception ex) {
+        log.error("Bulk export " + job.getId() + " failed " + ex.getMessage());
+        if (!job.isFinished()) {
+            job.finish(BulkExportJob.Status.FAILED, ex.getMessage());
+            jobsFailed.increment();
+        }
+    }
+
+    private void removeExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (BulkExportJob job : jobs.values()) {
+            if (job.isFinished() && job.getCompletedAt() < cutoff) {
+                cancel(job.getId());
+            }
+        }
+        // Left behind by a restart
+        File[] directories = root.toFile().listFiles(File::isDirectory);
+        if (directories != null) {
+            for (File directory : directories) {
+                if (!jobs.containsKey(directory.getName()) && directory.lastModified() < cutoff) {
+                    deleteDirectory(directory.toPath());
+                }
+            }
+        }
+    }
+
+    private void deleteDirectory(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException ex) {
+            log.warn("Unable to remove " + directory + " " + ex.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        cleaner.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return getActiveJobCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getJobsStarted() {
+        return jobsStarted.sum();
+    }
+
+    @Override
+    public long getJobsCompleted() {
+        return jobsCompleted.sum();
+    }
+
+    @Override
+    public long getJobsFailed() {
+        return jobsFailed.sum();
+    }
+
+    @Override
+    public long getResourcesExported() {
+        return resourcesExported.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+}
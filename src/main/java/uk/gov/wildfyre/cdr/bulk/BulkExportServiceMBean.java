@@ -0,0 +1,18 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+public interface BulkExportServiceMBean {
+
+    int getActiveJobs();
+
+    int getQueueDepth();
+
+    long getJobsStarted();
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getResourcesExported();
+
+    long getBytesWritten();
+}
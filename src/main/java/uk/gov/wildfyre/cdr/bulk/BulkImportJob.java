@@ -0,0 +1,195 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one bulk NDJSON $import, see {@link BulkImportService}
+ */
+public class BulkImportJob {
+
+    // Only the first errors are kept, the rest are counted
+    private static final int MAX_ERRORS = 100;
+
+    public enum Status {
+        ACCEPTED, IN_PROGRESS, COMPLETE, FAILED, CANCELLED
+    }
+
+    /**
+     * One NDJSON file to import, all of the one resource type
+     */
+    public static final class Input {
+        private final String resourceType;
+        private final String url;
+        private final Path file;
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile long resumedFrom;
+
+        public Input(String resourceType, String url, Path file) {
+            this.resourceType = resourceType;
+            this.url = url;
+            this.file = file;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getImported() {
+            return imported.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return the number of lines skipped because an earlier attempt had already imported them
+         */
+        public long getResumedFrom() {
+            return resumedFrom;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final String request;
+
+    private final List<Input> inputs;
+
+    private final Date transactionTime = new Date();
+
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    private volatile Status status = Status.ACCEPTED;
+
+    private volatile String failure;
+
+    private volatile long startedAt;
+
+    private volatile long completedAt;
+
+    BulkImportJob(String request, List<Input> inputs) {
+        this.request = request;
+        this.inputs = Collections.unmodifiableList(new ArrayList<>(inputs));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public List<Input> getInputs() {
+        return inputs;
+    }
+
+    public Date getTransactionTime() {
+        return transactionTime;
+    }
+
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public long getImported() {
+        long imported = 0;
+        for (Input input : inputs) {
+            imported += input.getImported();
+        }
+        return imported;
+    }
+
+    public long getFailed() {
+        long failed = 0;
+        for (Input input : inputs) {
+            failed += input.getFailed();
+        }
+        return failed;
+    }
+
+    /**
+     * @return resources imported per second since the job started
+     */
+    public double getResourcesPerSecond() {
+        if (startedAt == 0) {
+            return 0;
+        }
+        long end = (completedAt > 0) ? completedAt : System.currentTimeMillis();
+        return getImported() * 1000.0 / Math.max(1, end - startedAt);
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    void started() {
+        startedAt = System.currentTimeMillis();
+        if (status == Status.ACCEPTED) {
+            status = Status.IN_PROGRESS;
+        }
+    }
+
+    void resumedFrom(Input input, long line) {
+        input.resumedFrom = line;
+    }
+
+    void imported(Input input, long count) {
+        input.imported.addAndGet(count);
+    }
+
+    void failed(Input input, long line, String message) {
+        input.failed.incrementAndGet();
+        error(input.getUrl() + " line " + line + ": " + message);
+    }
+
+    void error(String message) {
+        if (errorCount.incrementAndGet() <= MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    synchronized void finish(Status finalStatus, String message) {
+        if (!isFinished()) {
+            status = finalStatus;
+            failure = message;
+            completedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs bulk NDJSON $import jobs in the background from files under bulk.import.dir.
+ *
+ * A reader thread per job reads each file in chunks of bulk.import.batch_size lines and hands them to a shared
+ * worker pool, which parses a chunk and writes it through the resource DAOs in a single transaction. Hibernate
+ * orders the inserts and updates of the transaction so the index rows go to the database as JDBC batches, which
+ * the driver sends as multi-row inserts (see hibernate.jdbc.batch_size and datasource.rewrite_batched_inserts).
+ * Only a couple of chunks per worker are in flight at once, the reader waits for the workers to catch up.
+ *
+ * A chunk which fails to commit is retried a resource at a time so only the failing resources are rejected.
+ * Resources which fail because of the database rather than their content are not checkpointed, so they are written
+ * when the import is submitted again.
+ * Resources with an id are written as updates (so importing them again is harmless), those without are created.
+ * Progress through each file is checkpointed, see {@link ImportCheckpoint}.
+ *
+ * Writes made by an import don't pass through the REST layer, so server interceptors are not told about them.
+ * Anything caching resources registers a listener, which is called for each resource once its chunk has committed.
+ */
+public class BulkImportService implements BulkImportServiceMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkImportService.class);
+
+    private static final int RATE_WINDOW_SECONDS = 60;
+
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final FhirContext ctx;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final Path root;
+
+    private final Path checkpointDir;
+
+    private final int batchSize;
+
+    private final int maxInFlight;
+
+    private final ExecutorService readers;
+
+    private final ExecutorService workers;
+
+    private final Map<String, BulkImportJob> jobs = new ConcurrentHashMap<>();
+
+    private final List<BiConsumer<String, String>> writeListeners = new CopyOnWriteArrayList<>();
+
+    private final List<Runnable> completionListeners = new CopyOnWriteArrayList<>();
+
+    private final LongAdder jobsStarted = new LongAdder();
+
+    private final LongAdder jobsCompleted = new LongAdder();
+
+    private final LongAdder jobsFailed = new LongAdder();
+
+    private final LongAdder resourcesImported = new LongAdder();
+
+    private final LongAdder resourcesFailed = new LongAdder();
+
+    private final LongAdder chunksCommitted = new LongAdder();
+
+    private final long[] rateSeconds = new long[RATE_WINDOW_SECONDS];
+
+    private final long[] rateCounts = new long[RATE_WINDOW_SECONDS];
+
+    public BulkImportService(FhirContext ctx, Map<String, IFhirResourceDao<?>> daos, PlatformTransactionManager transactionManager,
+                             String directory, int threads, int batchSize) {
+        this.ctx = ctx;
+        this.daos = daos;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.root = Paths.get(directory).toAbsolutePath().normalize();
+        this.checkpointDir = root.resolve(".checkpoints");
+        this.batchSize = batchSize;
+        this.maxInFlight = threads * 2;
+
+        AtomicInteger readerCount = new AtomicInteger();
+        this.readers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "bulk-import-reader-" + readerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-import-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Called with the resource type and id of each imported resource, once it has been committed
+     */
+    public void addWriteListener(BiConsumer<String, String> listener) {
+        writeListeners.add(listener);
+    }
+
+    /**
+     * Called when an import job finishes
+     */
+    public void addCompletionListener(Runnable listener) {
+        completionListeners.add(listener);
+    }
+
+    public boolean isImportable(String resourceType) {
+        return daos.containsKey(resourceType);
+    }
+
+    /**
+     * @return the file, if it is within bulk.import.dir
+     */
+    public Path resolve(String url) {
+        String location = url.startsWith("file:") ? Paths.get(URI.create(url)).toString() : url;
+        Path file = root.resolve(location).toAbsolutePath().normalize();
+        if (!file.startsWith(root) || file.startsWith(checkpointDir) || !Files.isRegularFile(file)) {
+            return null;
+        }
+        return file;
+    }
+
+    public BulkImportJob submit(String request, List<BulkImportJob.Input> inputs) {
+        long cutoff = System.currentTimeMillis() - RETENTION_MILLIS;
+        jobs.values().removeIf(finished -> finished.isFinished() && finished.getCompletedAt() < cutoff);
+
+        BulkImportJob job = new BulkImportJob(request, inputs);
+        jobs.put(job.getId(), job);
+        jobsStarted.increment();
+        readers.execute(() -> run(job));
+        log.info("Bulk import " + job.getId() + " accepted for " + inputs.size() + " files");
+        return job;
+    }
+
+    public BulkImportJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Stop the job, its checkpoints are kept so it can be resumed by submitting the same files again
+     */
+    public boolean cancel(String jobId) {
+        BulkImportJob job = jobs.remove(jobId);
+        if (job == null) {
+            return false;
+        }
+        job.finish(BulkImportJob.Status.CANCELLED, null);
+        return true;
+    }
+
+    public int getActiveJobCount() {
+        int active = 0;
+        for (BulkImportJob job : jobs.values()) {
+            if (!job.isFinished()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private void run(BulkImportJob job) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        job.started();
+        try {
+            for (BulkImportJob.Input input : job.getInputs()) {
+                if (job.isFinished()) {
+                    break;
+                }
+                importFile(job, input, inFlight);
+            }
+            // Wait for the last chunks to commit
+            inFlight.acquire(maxInFlight);
+            if (!job.isFinished()) {
+                job.finish(BulkImportJob.Status.COMPLETE, null);
+                jobsCompleted.increment();
+                log.info("Bulk import " + job.getId() + " complete, " + job.getImported() + " resources imported, "
+                        + job.getFailed() + " failed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            job.finish(BulkImportJob.Status.CANCELLED, null);
+        } catch (Exception ex) {
+            log.error("Bulk import " + job.getId() + " failed " + ex.getMessage());
+            job.finish(BulkImportJob.Status.FAILED, ex.getMessage());
+            jobsFailed.increment();
+        } finally {
+            for (Runnable listener : completionListeners) {
+                listener.run();
+            }
+        }
+    }
+
+    private void importFile(BulkImportJob job, BulkImportJob.Input input, Semaphore inFlight) throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointDir, input.getFile());
+        long resumeFrom = checkpoint.getCommittedLines();
+        job.resumedFrom(input, resumeFrom);
+
+        long lineNumber = 0;
+        long chunkStart = resumeFrom;
+        List<String> lines = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(input.getFile(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && !job.isFinished()) {
+                long before = lineNumber++;
+                if (checkpoint.isCommitted(before)) {
+                    // A chunk is a run of consecutive lines, so one is never carried across lines already committed
+                    if (!lines.isEmpty()) {
+                        submitChunk(job, input, checkpoint, chunkStart, lines, inFlight);
+                        lines = new ArrayList<>(batchSize);
+                    }
+                    continue;
+                }
+                if (lines.isEmpty()) {
+                    chunkStart = before;
+                }
+                lines.add(line);
+                if (lines.size() == batchSize) {
+                    submitChunk(job, input, checkpoint, chunkStart, lines, inFlight);
+                    lines = new ArrayList<>(batchSize);
+                }
+            }
+        }
+        if (!job.isFinished()) {
+            if (!lines.isEmpty()) {
+                submitChunk(job, input, checkpoint, chunkStart, lines, inFlight);
+            }
+            checkpoint.finishedReading(lineNumber);
+        }
+    }
+
+    private void submitChunk(BulkImportJob job, BulkImportJob.Input input, ImportCheckpoint checkpoint, long startLine,
+                             List<String> lines, Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            workers.execute(() -> {
+                try {
+                    importChunk(job, input, checkpoint, startLine, lines);
+                } catch (RuntimeException ex) {
+                    log.warn("Bulk import " + job.getId() + " chunk failed " + ex.getMessage());
+                    job.error(input.getUrl() + " lines " + (startLine + 1) + "-" + (startLine + lines.size()) + ": " + ex.getMessage());
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Parse and write lines [startLine, startLine + lines.size()) of the file
+     */
+    private void importChunk(BulkImportJob job, BulkImportJob.Input input, ImportCheckpoint checkpoint, long startLine,
+                             List<String> lines) {
+        if (job.isFinished()) {
+            return;
+        }
+        IParser parser = ctx.newJsonParser();
+        // Lines which failed because of the database rather than the resource, left out of the checkpoint
+        boolean[] unsettled = new boolean[lines.size()];
+        List<IBaseResource> resources = new ArrayList<>(lines.size());
+        List<Long> lineNumbers = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            long lineNumber = startLine + i + 1;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                IBaseResource resource = parser.parseResource(line);
+                String resourceType = ctx.getResourceDefinition(resource).getName();
+                if (!resourceType.equals(input.getResourceType())) {
+                    job.failed(input, lineNumber, resourceType + " found in a file of " + input.getResourceType());
+                    resourcesFailed.increment();
+                    continue;
+                }
+                resources.add(resource);
+                lineNumbers.add(lineNumber);
+            } catch (RuntimeException ex) {
+                job.failed(input, lineNumber, ex.getMessage());
+                resourcesFailed.increment();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        IFhirResourceDao<IBaseResource> dao = (IFhirResourceDao<IBaseResource>) daos.get(input.getResourceType());
+        List<String> ids = new ArrayList<>(resources.size());
+        try {
+            transactionTemplate.execute(status -> {
+                for (IBaseResource resource : resources) {
+                    ids.add(store(dao, resource));
+                }
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            log.debug("Import chunk failed, retrying resources individually " + ex.getMessage());
+            ids.clear();
+            for (int i = 0; i < resources.size(); i++) {
+                IBaseResource resource = resources.get(i);
+                try {
+                    ids.add(transactionTemplate.execute(status -> store(dao, resource)));
+                } catch (RuntimeException resourceEx) {
+                    long lineNumber = lineNumbers.get(i);
+                    if (isTransient(resourceEx)) {
+                        unsettled[(int) (lineNumber - startLine - 1)] = true;
+                        job.failed(input, lineNumber, resourceEx.getMessage() + " (imported again when the import is resumed)");
+                    } else {
+                        job.failed(input, lineNumber, resourceEx.getMessage());
+                    }
+                    resourcesFailed.increment();
+                }
+            }
+        }
+
+        job.imported(input, ids.size());
+        resourcesImported.add(ids.size());
+        chunksCommitted.increment();
+        recordRate(ids.size());
+        List<long[]> settled = new ArrayList<>();
+        int from = 0;
+        for (int i = 0; i <= lines.size(); i++) {
+            if (i == lines.size() || unsettled[i]) {
+                if (i > from) {
+                    settled.add(new long[] {startLine + from, startLine + i});
+                }
+                from = i + 1;
+            }
+        }
+        checkpoint.committed(settled);
+        for (String id : ids) {
+            for (BiConsumer<String, String> listener : writeListeners) {
+                listener.accept(input.getResourceType(), id);
+            }
+        }
+    }
+
+    /**
+     * Whether the write failed because of the database (unavailable, timed out, deadlocked) rather than the resource,
+     * so writing it again later may succeed
+     */
+    private static boolean isTransient(Throwable ex) {
+        for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessException || cause instanceof TransactionException || cause instanceof SQLException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private String store(IFhirResourceDao<IBaseResource> dao, IBaseResource resource) {
+        IIdType resourceId = resource.getIdElement();
+        DaoMethodOutcome outcome = (resourceId != null && resourceId.hasIdPart()) ? dao.update(resource) : dao.create(resource);
+        return outcome.getId().getIdPart();
+    }
+
+    private synchronized void recordRate(long count) {
+        long second = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        int bucket = (int) (second % RATE_WINDOW_SECONDS);
+        if (rateSeconds[bucket] != second) {
+            rateSeconds[bucket] = second;
+            rateCounts[bucket] = 0;
+        }
+        rateCounts[bucket] += count;
+    }
+
+    public void shutdown() {
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public int getActiveJobs() {
+        return getActiveJobCount();
+    }
+
+    @Override
+    public long getJobsStarted() {
+        return jobsStarted.sum();
+    }
+
+    @Override
+    public long getJobsCompleted() {
+        return jobsCompleted.sum();
+    }
+
+    @Override
+    public long getJobsFailed() {
+        return jobsFailed.sum();
+    }
+
+    @Override
+    public long getResourcesImported() {
+        return resourcesImported.sum();
+    }
+
+    @Override
+    public long getResourcesFailed() {
+        return resourcesFailed.sum();
+    }
+
+    @Override
+    public long getChunksCommitted() {
+        return chunksCommitted.sum();
+    }
+
+    @Override
+    public synchronized double getResourcesPerSecond() {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW_SECONDS; i++) {
+            if (now - rateSeconds[i] < RATE_WINDOW_SECONDS) {
+                total += rateCounts[i];
+            }
+        }
+        return (double) total / RATE_WINDOW_SECONDS;
+    }
+}
@@ -0,0 +1,23 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+public interface BulkImportServiceMBean {
+
+    int getActiveJobs();
+
+    long getJobsStarted();
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getResourcesImported();
+
+    long getResourcesFailed();
+
+    long getChunksCommitted();
+
+    /**
+     * @return resources imported per second over the last minute
+     */
+    double getResourcesPerSecond();
+}
@@ -0,0 +1,162 @@
+package uk.gov.wildfyre.cdr.bulk;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * How far the import of one NDJSON file has got, kept in a properties file so an interrupted import can carry on
+ * from where it stopped.
+ *
+ * Chunks of lines are written in parallel and can commit out of order, so the lines up to the first chunk which
+ * has not committed are recorded along with each chunk after that point which has. On resume every committed line is
+ * skipped, resources without an id are created so importing them twice would duplicate them. Only a chunk which
+ * committed as the server stopped, before its checkpoint was saved, is imported again. Lines which could not be
+ * written because the database was unavailable are left out, so resuming the import writes them. The checkpoint only applies
+ * while the file's size and modification time are unchanged, and is removed once the whole file has been imported.
+ */
+class ImportCheckpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportCheckpoint.class);
+
+    private final Path checkpointFile;
+
+    private final long size;
+
+    private final long modified;
+
+    private final TreeMap<Long, Long> committedChunks = new TreeMap<>();
+
+    private long committedLines;
+
+    private long totalLines = -1;
+
+    private ImportCheckpoint(Path checkpointFile, long size, long modified, long committedLines) {
+        this.checkpointFile = checkpointFile;
+        this.size = size;
+        this.modified = modified;
+        this.committedLines = committedLines;
+    }
+
+    static ImportCheckpoint open(Path checkpointDir, Path input) throws IOException {
+        Files.createDirectories(checkpointDir);
+        Path checkpointFile = checkpointDir.resolve(DigestUtils.sha256Hex(input.toString()) + ".properties");
+        long size = Files.size(input);
+        long modified = Files.getLastModifiedTime(input).toMillis();
+        long committedLines = 0;
+        if (Files.exists(checkpointFile)) {
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(checkpointFile)) {
+                properties.load(in);
+            }
+            if (String.valueOf(size).equals(properties.getProperty("size"))
+                    && String.valueOf(modified).equals(properties.getProperty("modified"))) {
+                committedLines = Long.parseLong(properties.getProperty("lines", "0"));
+                log.info("Resuming import of " + input + " after line " + committedLines);
+            } else {
+                properties.clear();
+            }
+            ImportCheckpoint checkpoint = new ImportCheckpoint(checkpointFile, size, modified, committedLines);
+            String chunks = properties.getProperty("chunks", "");
+            for (String chunk : chunks.split(",")) {
+                int dash = chunk.indexOf('-');
+                if (dash > 0) {
+                    checkpoint.committedChunks.put(Long.parseLong(chunk.substring(0, dash)), Long.parseLong(chunk.substring(dash + 1)));
+                }
+            }
+            return checkpoint;
+        }
+        return new ImportCheckpoint(checkpointFile, size, modified, committedLines);
+    }
+
+    /**
+     * @return the number of lines from the start of the file which have all been committed
+     */
+    synchronized long getCommittedLines() {
+        return committedLines;
+    }
+
+    /**
+     * @param line the number of lines before the line, so 0 for the first
+     * @return true if the line was committed by an earlier run
+     */
+    synchronized boolean isCommitted(long line) {
+        if (line < committedLines) {
+            return true;
+        }
+        Map.Entry<Long, Long> chunk = committedChunks.floorEntry(line);
+        return chunk != null && line < chunk.getValue();
+    }
+
+    /**
+     * Lines [startLine, endLine) have been committed
+     */
+    synchronized void committed(long startLine, long endLine) {
+        committed(Collections.singletonList(new long[] {startLine, endLine}));
+    }
+
+    /**
+     * Each range of lines [range[0], range[1]) has been committed
+     */
+    synchronized void committed(List<long[]> ranges) {
+        if (ranges.isEmpty()) {
+            return;
+        }
+        for (long[] range : ranges) {
+            committedChunks.put(range[0], range[1]);
+        }
+        Long next;
+        while ((next = committedChunks.remove(committedLines)) != null) {
+            committedLines = next;
+        }
+        save();
+    }
+
+    /**
+     * The whole file has been read, once all of its lines have committed the checkpoint is removed
+     */
+    synchronized void finishedReading(long lines) {
+        totalLines = lines;
+        save();
+    }
+
+    private void save() {
+        try {
+            if (totalLines >= 0 && committedLines >= totalLines) {
+                Files.deleteIfExists(checkpointFile);
+                return;
+            }
+            Properties properties = new Properties();
+            properties.setProperty("size", String.valueOf(size));
+            properties.setProperty("modified", String.valueOf(modified));
+            properties.setProperty("lines", String.valueOf(committedLines));
+            StringBuilder chunks = new StringBuilder();
+            for (Map.Entry<Long, Long> chunk : committedChunks.entrySet()) {
+                if (chunks.length() > 0) {
+                    chunks.append(',');
+                }
+                chunks.append(chunk.getKey()).append('-').append(chunk.getValue());
+            }
+            properties.setProperty("chunks", chunks.toString());
+            Path tmp = Files.createTempFile(checkpointFile.getParent(), "checkpoint", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, null);
+            }
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.warn("Unable to save import checkpoint " + checkpointFile + " " + ex.getMessage());
+        }
+    }
+}
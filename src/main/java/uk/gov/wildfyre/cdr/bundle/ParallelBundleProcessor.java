@@ -0,0 +1,336 @@
+package uk.gov.wildfyre.cdr.bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the entries of batch Bundles concurrently on a bounded worker pool (bundle.threads), and prepares
+ * transaction Bundles before their single commit.
+ *
+ * Batch entries are independent of each other, so each entry is processed by the system DAO as a batch of one, in
+ * its own transaction, exactly as HAPI would process it serially. The responses are put back in entry order. Each
+ * entry gets its own copy of the request details and whatever the interceptors record in its user data is merged
+ * back into the request's once the entry completes.
+ *
+ * A transaction is processed on one Hibernate session, which can't be shared between threads, so its entries are
+ * still written one after the other. Before that happens, conditional references (e.g. Patient?identifier=x) are
+ * resolved in parallel, each distinct match URL once, and replaced with the literal reference, the same thing the
+ * DAO does when exactly one resource matches. A conditional reference is left to the transaction when an entry of
+ * the Bundle writes a resource of the type it targets, as the transaction could change what it matches, or when
+ * it doesn't match exactly one resource, so the transaction reports the error.
+ */
+public class ParallelBundleProcessor implements ParallelBundleProcessorMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBundleProcessor.class);
+
+    private final FhirContext ctx;
+
+    private final IFhirSystemDao<Bundle, Meta> systemDao;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final EntityManager entityManager;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ThreadPoolExecutor executor;
+
+    private final LongAdder batches = new LongAdder();
+
+    private final LongAdder batchEntries = new LongAdder();
+
+    private final LongAdder batchEntriesFailed = new LongAdder();
+
+    private final LongAdder transactions = new LongAdder();
+
+    private final LongAdder referencesResolved = new LongAdder();
+
+    private final LongAdder referencesDeferred = new LongAdder();
+
+    public ParallelBundleProcessor(FhirContext ctx, IFhirSystemDao<Bundle, Meta> systemDao, Map<String, IFhirResourceDao<?>> daos,
+                                   EntityManagerFactory entityManagerFactory, PlatformTransactionManager transactionManager, int threads) {
+        this.ctx = ctx;
+        this.systemDao = systemDao;
+        this.daos = daos;
+        this.entityManager = SharedEntityManagerCreator.createSharedEntityManager(entityManagerFactory);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bundle-entry-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Process the entries of a batch Bundle concurrently, returning the batch-response with the entries in the
+     * order of the request
+     */
+    public Bundle batch(ServletRequestDetails theRequestDetails, Bundle theRequest) {
+        List<Bundle.BundleEntryComponent> entries = theRequest.getEntry();
+        List<ServletRequestDetails> entryDetails = new ArrayList<>(entries.size());
+        List<Future<Bundle>> futures = new ArrayList<>(entries.size());
+
+        for (Bundle.BundleEntryComponent entry : entries) {
+            Bundle single = new Bundle();
+            single.setType(Bundle.BundleType.BATCH);
+            single.addEntry(entry);
+            ServletRequestDetails details = copy(theRequestDetails);
+            entryDetails.add(details);
+            futures.add(executor.submit(() -> systemDao.transaction(details, single)));
+        }
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                response.addEntry(entryResponse(futures.get(i)));
+                mergeUserData(entryDetails.get(i), theRequestDetails);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch interrupted", ex);
+        } finally {
+            for (Future<Bundle> future : futures) {
+                future.cancel(true);
+            }
+        }
+        batches.increment();
+        batchEntries.add(entries.size());
+        return response;
+    }
+
+    /**
+     * Resolve the conditional references of a transaction Bundle which don't depend on its entries
+     */
+    public void prepare(Bundle theRequest) {
+        transactions.increment();
+
+        Set<String> writtenTypes = new HashSet<>();
+        for (Bundle.BundleEntryComponent entry : theRequest.getEntry()) {
+            if (entry.getRequest().getMethod() == Bundle.HTTPVerb.GET) continue;
+            if (entry.getResource() != null) {
+                writtenTypes.add(entry.getResource().getResourceType().name());
+            } else if (entry.getRequest().hasUrl()) {
+                writtenTypes.add(resourceType(entry.getRequest().getUrl()));
+            }
+        }
+
+        Map<String, List<Reference>> conditional = new LinkedHashMap<>();
+        for (Bundle.BundleEntryComponent entry : theRequest.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource == null) continue;
+            for (Reference reference : ctx.newTerser().getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                String url = reference.getReference();
+                if (url == null || url.indexOf('?') < 1 || url.contains("://")) continue;
+                String type = resourceType(url);
+                if (writtenTypes.contains(type) || !daos.containsKey(type)) {
+                    referencesDeferred.increment();
+                    continue;
+                }
+                conditional.computeIfAbsent(url, key -> new ArrayList<>()).add(reference);
+            }
+        }
+        if (conditional.isEmpty()) return;
+
+        Map<String, Future<String>> resolved = new HashMap<>();
+        for (String url : conditional.keySet()) {
+            resolved.put(url, executor.submit(() -> resolve(url)));
+        }
+        try {
+            for (Map.Entry<String, List<Reference>> next : conditional.entrySet()) {
+                String id = resolved.get(next.getKey()).get();
+                if (id == null) {
+                    referencesDeferred.add(next.getValue().size());
+                    continue;
+                }
+                for (Reference reference : next.getValue()) {
+                    reference.setReference(id);
+                }
+                referencesResolved.add(next.getValue().size());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Transaction preparation interrupted", ex);
+        } catch (ExecutionException ex) {
+            // Leave the remaining references for the transaction to resolve, and report
+            log.warn("Unable to resolve conditional references ahead of the transaction: " + ex.getCause().getMessage());
+        } finally {
+            for (Future<String> future : resolved.values()) {
+                future.cancel(true);
+            }
+        }
+        log.debug("Looked up " + conditional.size() + " conditional references ahead of the transaction");
+    }
+
+    /**
+     * @return the literal reference (Type/id) if exactly one resource matches, otherwise null
+     */
+    private String resolve(String matchUrl) {
+        IFhirResourceDao<?> dao = daos.get(resourceType(matchUrl));
+        return transactionTemplate.execute(status -> {
+            Set<Long> pids = dao.processMatchUrl(matchUrl);
+            if (pids.size() != 1) {
+                return null;
+            }
+            ResourceTable entity = entityManager.find(ResourceTable.class, pids.iterator().next());
+            return (entity != null) ? entity.getIdDt().toUnqualifiedVersionless().getValue() : null;
+        });
+    }
+
+    private Bundle.BundleEntryComponent entryResponse(Future<Bundle> future) throws InterruptedException {
+        try {
+            return future.get().getEntryFirstRep();
+        } catch (ExecutionException ex) {
+            // The DAO records the failures of batch entries in their response, this is anything else
+            batchEntriesFailed.increment();
+            Throwable cause = ex.getCause();
+            log.error("Batch entry failed", cause);
+            int status = 500;
+            OperationOutcome outcome = null;
+            if (cause instanceof BaseServerResponseException) {
+                BaseServerResponseException serverException = (BaseServerResponseException) cause;
+                status = serverException.getStatusCode();
+                IBaseOperationOutcome operationOutcome = serverException.getOperationOutcome();
+                if (operationOutcome instanceof OperationOutcome) {
+                    outcome = (OperationOutcome) operationOutcome;
+                }
+            }
+            if (outcome == null) {
+                outcome = new OperationOutcome();
+                outcome.addIssue()
+                        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                        .setCode(OperationOutcome.IssueType.EXCEPTION)
+                        .setDiagnostics(cause.getMessage());
+            }
+            Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+            entry.getResponse()
+                    .setStatus(status + " " + Constants.HTTP_STATUS_NAMES.get(status))
+                    .setOutcome(outcome);
+            return entry;
+        }
+    }
+
+    /**
+     * The request details are not thread safe (the user data is a HashMap), each entry is given its own
+     */
+    private ServletRequestDetails copy(ServletRequestDetails theRequestDetails) {
+        ServletRequestDetails details = new ServletRequestDetails();
+        details.setServer(theRequestDetails.getServer());
+        details.setServletRequest(theRequestDetails.getServletRequest());
+        details.setServletResponse(theRequestDetails.getServletResponse());
+        details.setFhirServerBase(theRequestDetails.getFhirServerBase());
+        details.setCompleteUrl(theRequestDetails.getCompleteUrl());
+        details.setRequestPath(theRequestDetails.getRequestPath());
+        details.setRequestType(theRequestDetails.getRequestType());
+        details.setRestOperationType(theRequestDetails.getRestOperationType());
+        details.setParameters(theRequestDetails.getParameters());
+        return details;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void mergeUserData(ServletRequestDetails from, ServletRequestDetails to) {
+        for (Map.Entry<Object, Object> next : from.getUserData().entrySet()) {
+            Object existing = to.getUserData().get(next.getKey());
+            if (existing instanceof Collection && next.getValue() instanceof Collection) {
+                ((Collection<Object>) existing).addAll((Collection<Object>) next.getValue());
+            } else {
+                to.getUserData().put(next.getKey(), next.getValue());
+            }
+        }
+    }
+
+    private static String resourceType(String url) {
+        int end = url.length();
+        for (char separator : new char[] {'/', '?'}) {
+            int index = url.indexOf(separator);
+            if (index >= 0 && index < end) {
+                end = index;
+            }
+        }
+        return url.substring(0, end);
+    }
+
+    @Override
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public long getBatchEntries() {
+        return batchEntries.sum();
+    }
+
+    @Override
+    public long getBatchEntriesFailed() {
+        return batchEntriesFailed.sum();
+    }
+
+    @Override
+    public long getTransactions() {
+        return transactions.sum();
+    }
+
+    @Override
+    public long getReferencesResolved() {
+        return referencesResolved.sum();
+    }
+
+    @Override
+    public long getReferencesDeferred() {
+        return referencesDeferred.sum();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
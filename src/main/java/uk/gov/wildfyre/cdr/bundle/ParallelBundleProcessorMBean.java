@@ -0,0 +1,29 @@
+package uk.gov.wildfyre.cdr.bundle;
+
+public interface ParallelBundleProcessorMBean {
+
+    int getActiveThreads();
+
+    int getQueueDepth();
+
+    long getBatches();
+
+    long getBatchEntries();
+
+    /**
+     * @return batch entries which failed outside the DAO, entries rejected by the DAO are not counted
+     */
+    long getBatchEntriesFailed();
+
+    long getTransactions();
+
+    /**
+     * @return conditional references replaced with literal references before the transaction started
+     */
+    long getReferencesResolved();
+
+    /**
+     * @return conditional references left for the transaction to resolve
+     */
+    long getReferencesDeferred();
+}
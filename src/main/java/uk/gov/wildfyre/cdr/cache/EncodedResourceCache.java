@@ -0,0 +1,211 @@
+package uk.gov.wildfyre.cdr.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded read and vread responses, keyed by type, id, version and representation, held in an {@link OffHeapStore}.
+ *
+ * A specific version of a resource never changes, so entries are only dropped to make room. What can change is
+ * which version a plain read returns, so the latest version of each resource is tracked separately and forgotten
+ * whenever the resource is updated or deleted.
+ *
+ * A read that started before an update may finish after the update has invalidated the resource. To stop it
+ * putting the old version back as the latest, invalidations bump a counter for the resource's stripe and the
+ * latest version is only recorded if the stripe is unchanged since the read started, see {@link #stamp}.
+ */
+public class EncodedResourceCache implements EncodedResourceCacheMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(EncodedResourceCache.class);
+
+    private static final int SEGMENTS = 16;
+
+    private static final int STRIPES = 1024;
+
+    private final OffHeapStore store;
+
+    private final Cache<String, String> latestVersions;
+
+    private final AtomicLongArray stripes = new AtomicLongArray(STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder notModified = new LongAdder();
+
+    private final LongAdder puts = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * A cached response body and when the version was last updated
+     */
+    public static final class CachedResource {
+        private final long lastModified;
+        private final byte[] body;
+
+        private CachedResource(long lastModified, byte[] body) {
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    public EncodedResourceCache(long maxBytes, int blockSize) {
+        this.store = new OffHeapStore(maxBytes, blockSize, SEGMENTS);
+        this.latestVersions = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(1000, maxBytes / blockSize))
+                .build();
+        log.info("Resource cache of " + store.getCapacityBytes() + " bytes allocated off heap");
+    }
+
+    /**
+     * Taken before the resource is read, and handed back to {@link #put} so a stale read is not recorded as the latest
+     */
+    public long stamp(String resourceType, String id) {
+        return stripes.get(stripe(resourceType, id));
+    }
+
+    /**
+     * @return the version a read of the resource currently returns, or null if not known
+     */
+    public String getLatestVersion(String resourceType, String id) {
+        return latestVersions.getIfPresent(resourceKey(resourceType, id));
+    }
+
+    public CachedResource get(String resourceType, String id, String version, String representation) {
+        byte[] value = store.get(versionKey(resourceType, id, version, representation));
+        if (value == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        long lastModified = buffer.getLong();
+        byte[] body = new byte[buffer.remaining()];
+        buffer.get(body);
+        return new CachedResource(lastModified, body);
+    }
+
+    /**
+     * @param latest true if the body was returned by a read, rather than a vread, of the resource
+     */
+    public void put(String resourceType, String id, String version, String representation, long lastModified, byte[] body,
+                    long stamp, boolean latest) {
+        byte[] value = ByteBuffer.allocate(Long.BYTES + body.length).putLong(lastModified).put(body).array();
+        if (store.put(versionKey(resourceType, id, version, representation), value)) {
+            puts.increment();
+        }
+        if (latest) {
+            String key = resourceKey(resourceType, id);
+            // Checked again afterwards in case an invalidation slipped in between
+            if (stamp(resourceType, id) == stamp) {
+                latestVersions.put(key, version);
+                if (stamp(resourceType, id) != stamp) {
+                    latestVersions.invalidate(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * The resource has been updated or deleted, a read must no longer be answered from the cache
+     */
+    public void invalidate(String resourceType, String id) {
+        stripes.incrementAndGet(stripe(resourceType, id));
+        latestVersions.invalidate(resourceKey(resourceType, id));
+        invalidations.increment();
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.incrementAndGet(i);
+        }
+        latestVersions.invalidateAll();
+        store.clear();
+        invalidations.increment();
+        log.info("Resource cache cleared");
+    }
+
+    public void hit() {
+        hits.increment();
+    }
+
+    public void miss() {
+        misses.increment();
+    }
+
+    public void notModified() {
+        notModified.increment();
+    }
+
+    private int stripe(String resourceType, String id) {
+        return (resourceKey(resourceType, id).hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+
+    private static String resourceKey(String resourceType, String id) {
+        return resourceType + "/" + id;
+    }
+
+    private static String versionKey(String resourceType, String id, String version, String representation) {
+        return resourceType + "/" + id + "/" + version + "/" + representation;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return store.getEvictions();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public long getUsedBytes() {
+        return store.getUsedBytes();
+    }
+
+    @Override
+    public long getCapacityBytes() {
+        return store.getCapacityBytes();
+    }
+
+    @Override
+    public int getEntries() {
+        return store.getEntries();
+    }
+}
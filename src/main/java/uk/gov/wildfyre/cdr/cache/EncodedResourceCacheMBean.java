@@ -0,0 +1,24 @@
+package uk.gov.wildfyre.cdr.cache;
+
+public interface EncodedResourceCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getNotModified();
+
+    long getPuts();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    long getUsedBytes();
+
+    long getCapacityBytes();
+
+    int getEntries();
+
+    void invalidateAll();
+}
@@ -0,0 +1,204 @@
+package uk.gov.wildfyre.cdr.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU store of byte arrays held outside the Java heap.
+ *
+ * The memory is allocated up front as direct buffers, one per segment, and carved into fixed size blocks. A value
+ * occupies as many blocks as it needs, which are returned to the segment's free list when it is evicted or removed,
+ * so the store never allocates after construction and adds nothing for the garbage collector to trace beyond its
+ * small on-heap index. Keys are spread over the segments to keep lock contention down.
+ */
+public class OffHeapStore {
+
+    private final Segment[] segments;
+
+    private final int blockSize;
+
+    public OffHeapStore(long maxBytes, int blockSize, int segmentCount) {
+        this.blockSize = blockSize;
+        this.segments = new Segment[segmentCount];
+        long blocksPerSegment = Math.max(1, maxBytes / blockSize / segmentCount);
+        // A single direct buffer is limited to 2GB
+        blocksPerSegment = Math.min(blocksPerSegment, Integer.MAX_VALUE / blockSize);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((int) blocksPerSegment, blockSize);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[Math.abs(hash % segments.length)];
+    }
+
+    /**
+     * @return false if the value is too large to be stored
+     */
+    public boolean put(String key, byte[] value) {
+        return segmentFor(key).put(key, value);
+    }
+
+    /**
+     * @return a copy of the value, or null if it is not stored
+     */
+    public byte[] get(String key) {
+        return segmentFor(key).get(key);
+    }
+
+    public boolean remove(String key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getCapacityBytes() {
+        long capacity = 0;
+        for (Segment segment : segments) {
+            capacity += (long) segment.totalBlocks * blockSize;
+        }
+        return capacity;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.usedBytes();
+        }
+        return used;
+    }
+
+    public int getEntries() {
+        int entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.size();
+        }
+        return entries;
+    }
+
+    public long getEvictions() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            evictions += segment.evictions;
+        }
+        return evictions;
+    }
+
+    private static final class Slot {
+        private final int[] blocks;
+        private final int length;
+
+        private Slot(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+
+    private static final class Segment {
+        private final ByteBuffer arena;
+        private final int blockSize;
+        private final int totalBlocks;
+        private final int[] freeBlocks;
+        private int freeCount;
+        private final LinkedHashMap<String, Slot> index = new LinkedHashMap<>(16, 0.75f, true);
+        private volatile long evictions;
+
+        private Segment(int totalBlocks, int blockSize) {
+            this.totalBlocks = totalBlocks;
+            this.blockSize = blockSize;
+            this.arena = ByteBuffer.allocateDirect(totalBlocks * blockSize);
+            this.freeBlocks = new int[totalBlocks];
+            for (int i = 0; i < totalBlocks; i++) {
+                freeBlocks[i] = totalBlocks - 1 - i;
+            }
+            this.freeCount = totalBlocks;
+        }
+
+        private synchronized boolean put(String key, byte[] value) {
+            int needed = Math.max(1, (value.length + blockSize - 1) / blockSize);
+            // Don't let one value flush a quarter of the segment
+            if (needed > totalBlocks / 4) {
+                return false;
+            }
+            Slot existing = index.remove(key);
+            if (existing != null) {
+                release(existing);
+            }
+            Iterator<Map.Entry<String, Slot>> eldest = index.entrySet().iterator();
+            while (freeCount < needed && eldest.hasNext()) {
+                release(eldest.next().getValue());
+                eldest.remove();
+                evictions++;
+            }
+            int[] blocks = new int[needed];
+            for (int i = 0; i < needed; i++) {
+                blocks[i] = freeBlocks[--freeCount];
+            }
+            ByteBuffer buffer = arena.duplicate();
+            int offset = 0;
+            for (int block : blocks) {
+                int length = Math.min(blockSize, value.length - offset);
+                buffer.position(block * blockSize);
+                buffer.put(value, offset, length);
+                offset += length;
+            }
+            index.put(key, new Slot(blocks, value.length));
+            return true;
+        }
+
+        private synchronized byte[] get(String key) {
+            Slot slot = index.get(key);
+            if (slot == null) {
+                return null;
+            }
+            byte[] value = new byte[slot.length];
+            ByteBuffer buffer = arena.duplicate();
+            int offset = 0;
+            for (int block : slot.blocks) {
+                int length = Math.min(blockSize, slot.length - offset);
+                buffer.position(block * blockSize);
+                buffer.get(value, offset, length);
+                offset += length;
+            }
+            return value;
+        }
+
+        private synchronized boolean remove(String key) {
+            Slot slot = index.remove(key);
+            if (slot != null) {
+                release(slot);
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void clear() {
+            for (Slot slot : index.values()) {
+                release(slot);
+            }
+            index.clear();
+        }
+
+        private void release(Slot slot) {
+            for (int block : slot.blocks) {
+                freeBlocks[freeCount++] = block;
+            }
+        }
+
+        private synchronized long usedBytes() {
+            return (long) (totalBlocks - freeCount) * blockSize;
+        }
+
+        private synchronized int size() {
+            return index.size();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package uk.gov.wildfyre.cdr.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded search results, which stay valid until a resource of one of the types the search touched is written.
+ *
+ * Each resource type has a generation, bumped on every write to that type. A search records the generations of the
+ * types it touches before it runs, and its result is only cached, and later served, while they are all unchanged.
+ * Searches which could touch any type depend on {@link #ALL_TYPES}, which is bumped by every write.
+ *
+ * Entries also expire after a fixed time, which must be shorter than the server keeps the search behind the
+ * Bundle's next links. When searches may be answered by a lagging read replica, results are not cached until the
+ * types they touch have gone unwritten for the replica's maximum lag.
+ */
+public class SearchResultCache implements SearchResultCacheMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchResultCache.class);
+
+    public static final String ALL_TYPES = "*";
+
+    private final ConcurrentHashMap<String, Generation> generations = new ConcurrentHashMap<>();
+
+    // Bumped when every entry is invalidated at once, e.g. a SearchParameter has changed
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final Cache<String, CachedSearch> entries;
+
+    private final long settleMillis;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder puts = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * The generations of the types a search touches, taken before it runs
+     */
+    public static final class Snapshot {
+        private final long epoch;
+        private final Map<String, Long> generations;
+
+        private Snapshot(long epoch, Map<String, Long> generations) {
+            this.epoch = epoch;
+            this.generations = Collections.unmodifiableMap(generations);
+        }
+
+        public Set<String> getResourceTypes() {
+            return generations.keySet();
+        }
+    }
+
+    private static final class Generation {
+        private final AtomicLong value = new AtomicLong();
+        private volatile long lastWritten;
+    }
+
+    private static final class CachedSearch {
+        private final Snapshot snapshot;
+        private final byte[] body;
+
+        private CachedSearch(Snapshot snapshot, byte[] body) {
+            this.snapshot = snapshot;
+            this.body = body;
+        }
+    }
+
+    /**
+     * @param settleMillis how long after a write to a type searches touching it are not cached, 0 unless replicas
+     *                     may be behind the primary
+     */
+    public SearchResultCache(long maxBytes, int ttlSeconds, long settleMillis) {
+        this.settleMillis = settleMillis;
+        this.entries = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .<String, CachedSearch>weigher((key, value) -> key.length() * 2 + value.body.length)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public Snapshot snapshot(Set<String> resourceTypes) {
+        Map<String, Long> current = new HashMap<>();
+        for (String resourceType : resourceTypes) {
+            current.put(resourceType, generation(resourceType).value.get());
+        }
+        return new Snapshot(epoch.get(), current);
+    }
+
+    /**
+     * @return the encoded search result, or null if it is not cached or a type it touches has since been written
+     */
+    public byte[] get(String key) {
+        CachedSearch cached = entries.getIfPresent(key);
+        if (cached == null) {
+            misses.increment();
+            return null;
+        }
+        if (!isCurrent(cached.snapshot)) {
+            entries.invalidate(key);
+            invalidations.increment();
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return cached.body;
+    }
+
+    /**
+     * Cache the result, unless a type it touches was written while the search was running
+     */
+    public void put(String key, Snapshot snapshot, byte[] body) {
+        if (isCurrent(snapshot) && isSettled(snapshot)) {
+            entries.put(key, new CachedSearch(snapshot, body));
+            puts.increment();
+        }
+    }
+
+    /**
+     * A resource of this type has been created, updated or deleted
+     */
+    public void written(String resourceType) {
+        long now = System.currentTimeMillis();
+        for (Generation generation : new Generation[] { generation(resourceType), generation(ALL_TYPES) }) {
+            generation.lastWritten = now;
+            generation.value.incrementAndGet();
+        }
+        writes.increment();
+    }
+
+    @Override
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+        invalidations.add(entries.size());
+        entries.invalidateAll();
+        log.info("Search result cache cleared");
+    }
+
+    private boolean isCurrent(Snapshot snapshot) {
+        if (snapshot.epoch != epoch.get()) {
+            return false;
+        }
+        for (Map.Entry<String, Long> entry : snapshot.generations.entrySet()) {
+            if (generation(entry.getKey()).value.get() != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSettled(Snapshot snapshot) {
+        if (settleMillis <= 0) {
+            return true;
+        }
+        long settledBefore = System.currentTimeMillis() - settleMillis;
+        for (String resourceType : snapshot.generations.keySet()) {
+            if (generation(resourceType).lastWritten > settledBefore) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Generation generation(String resourceType) {
+        return generations.computeIfAbsent(resourceType, key -> new Generation());
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return (total == 0) ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getPuts() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return entries.stats().evictionCount();
+    }
+
+    @Override
+    public long getEntries() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,22 @@
+package uk.gov.wildfyre.cdr.cache;
+
+public interface SearchResultCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    long getPuts();
+
+    long getInvalidations();
+
+    long getWrites();
+
+    long getEvictions();
+
+    long getEntries();
+
+    void invalidateAll();
+}
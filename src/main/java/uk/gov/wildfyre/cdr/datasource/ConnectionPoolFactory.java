@@ -0,0 +1,139 @@
+package uk.gov.wildfyre.cdr.datasource;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.commons.dbcp2.BasicDataSource;
+import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.support.JmxSupport;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the JDBC connection pool selected by datasource.pool:
+ *
+ *   hikari - HikariCP (default), metrics under uk.gov.wildfyre.cdr:type=ConnectionPool,name={pool}
+ *   dbcp2  - commons-dbcp2 BasicDataSource, which registers its own MXBean under the same name
+ *
+ * Both are sized and tuned from the datasource.* settings in hapi.properties. Prepared statement caching is left to
+ * the JDBC driver where it supports it (PostgreSQL, SQL Server, MySQL), dbcp2 pools statements itself. Where the
+ * driver can, batched inserts are rewritten into multi-row inserts (datasource.rewrite_batched_inserts).
+ */
+public class ConnectionPoolFactory {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ConnectionPoolFactory.class);
+
+    public static final String POOL_TYPE = "ConnectionPool";
+
+    private ConnectionPoolFactory() {
+    }
+
+    public static DataSource create(String poolName, String driver, String url, String username, String password) {
+        String pool = HapiProperties.getDataSourcePool();
+        log.info("Creating " + pool + " connection pool " + poolName + " for " + url);
+        if ("dbcp2".equalsIgnoreCase(pool)) {
+            return createDbcp2(poolName, driver, url, username, password);
+        }
+        if (!"hikari".equalsIgnoreCase(pool)) {
+            throw new IllegalArgumentException("Unknown datasource.pool " + pool + ", expected hikari or dbcp2");
+        }
+        return createHikari(poolName, driver, url, username, password);
+    }
+
+    private static DataSource createHikari(String poolName, String driver, String url, String username, String password) {
+        int maxPoolSize = HapiProperties.getDataSourceMaxPoolSize();
+
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        config.setDriverClassName(driver);
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(maxPoolSize);
+        config.setMinimumIdle(Math.min(HapiProperties.getDataSourceMinIdle(), maxPoolSize));
+        config.setMaxLifetime(HapiProperties.getDataSourceMaxLifetimeMillis());
+        config.setIdleTimeout(HapiProperties.getDataSourceIdleTimeoutMillis());
+        config.setConnectionTimeout(HapiProperties.getDataSourceAcquireTimeoutMillis());
+        long leakDetection = HapiProperties.getDataSourceLeakDetectionMillis();
+        if (leakDetection > 0) {
+            config.setLeakDetectionThreshold(leakDetection);
+        }
+        Properties properties = statementCacheProperties(url, HapiProperties.getDataSourceStatementCacheSize());
+        properties.putAll(batchProperties(url));
+        config.setDataSourceProperties(properties);
+
+        HikariPoolMetrics metrics = new HikariPoolMetrics();
+        config.setMetricsTrackerFactory(metrics);
+        HikariDataSource dataSource = new HikariDataSource(config);
+        JmxSupport.register(POOL_TYPE, poolName, metrics);
+        return dataSource;
+    }
+
+    private static DataSource createDbcp2(String poolName, String driver, String url, String username, String password) {
+        BasicDataSource retVal = new BasicDataSource();
+        retVal.setDriverClassName(driver);
+        retVal.setUrl(url);
+        retVal.setUsername(username);
+        retVal.setPassword(password);
+        retVal.setMaxTotal(HapiProperties.getDataSourceMaxPoolSize());
+        retVal.setMinIdle(HapiProperties.getDataSourceMinIdle());
+        retVal.setMaxConnLifetimeMillis(HapiProperties.getDataSourceMaxLifetimeMillis());
+        retVal.setMinEvictableIdleTimeMillis(HapiProperties.getDataSourceIdleTimeoutMillis());
+        retVal.setTimeBetweenEvictionRunsMillis(TimeUnit.SECONDS.toMillis(30));
+        retVal.setMaxWaitMillis(HapiProperties.getDataSourceAcquireTimeoutMillis());
+
+        int statementCacheSize = HapiProperties.getDataSourceStatementCacheSize();
+        if (statementCacheSize > 0) {
+            retVal.setPoolPreparedStatements(true);
+            retVal.setMaxOpenPreparedStatements(statementCacheSize);
+        }
+        batchProperties(url).forEach((name, value) -> retVal.addConnectionProperty((String) name, (String) value));
+        // dbcp2 can't only warn about a leak, it logs abandoned connections as it closes them. Bulk work and large
+        // transactions legitimately hold a connection for minutes, so this has its own much longer timeout.
+        int removeAbandonedSeconds = HapiProperties.getDataSourceRemoveAbandonedSeconds();
+        if (removeAbandonedSeconds > 0) {
+            retVal.setLogAbandoned(true);
+            retVal.setRemoveAbandonedOnMaintenance(true);
+            retVal.setRemoveAbandonedTimeout(removeAbandonedSeconds);
+        }
+        retVal.setJmxName(JmxSupport.DOMAIN + ":type=" + POOL_TYPE + ",name=" + poolName);
+        return retVal;
+    }
+
+    /**
+     * Driver specific settings for caching prepared statements on each connection
+     */
+    private static Properties statementCacheProperties(String url, int cacheSize) {
+        Properties properties = new Properties();
+        if (url == null) {
+            return properties;
+        }
+        if (url.startsWith("jdbc:postgresql:")) {
+            properties.setProperty("preparedStatementCacheQueries", String.valueOf(cacheSize));
+        } else if (url.startsWith("jdbc:sqlserver:")) {
+            properties.setProperty("disableStatementPooling", String.valueOf(cacheSize <= 0));
+            properties.setProperty("statementPoolingCacheSize", String.valueOf(cacheSize));
+        } else if (url.startsWith("jdbc:mysql:")) {
+            properties.setProperty("cachePrepStmts", String.valueOf(cacheSize > 0));
+            properties.setProperty("prepStmtCacheSize", String.valueOf(cacheSize));
+        }
+        return properties;
+    }
+
+    /**
+     * Driver specific settings for sending a JDBC batch of inserts as multi-row inserts
+     */
+    private static Properties batchProperties(String url) {
+        Properties properties = new Properties();
+        if (url == null || !HapiProperties.getDataSourceRewriteBatchedInserts()) {
+            return properties;
+        }
+        if (url.startsWith("jdbc:postgresql:")) {
+            properties.setProperty("reWriteBatchedInserts", "true");
+        } else if (url.startsWith("jdbc:mysql:")) {
+            properties.setProperty("rewriteBatchedStatements", "true");
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,28 @@
+package uk.gov.wildfyre.cdr.datasource;
+
+public interface ConnectionPoolMetricsMBean {
+
+    String getPoolName();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getTotalConnections();
+
+    int getPendingThreads();
+
+    long getAcquired();
+
+    long getMeanAcquireMicros();
+
+    long getMaxAcquireMicros();
+
+    long getAcquireTimeouts();
+
+    long getMeanUsageMillis();
+
+    long getConnectionsCreated();
+
+    void resetMax();
+}
@@ -0,0 +1,135 @@
+package uk.gov.wildfyre.cdr.datasource;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool metrics for a HikariCP pool: pool occupancy from Hikari's own PoolStats, plus the time taken to
+ * acquire a connection, how long connections are held and how often acquisition timed out.
+ */
+public class HikariPoolMetrics implements MetricsTrackerFactory, IMetricsTracker, ConnectionPoolMetricsMBean {
+
+    private volatile String poolName;
+
+    private volatile PoolStats poolStats;
+
+    private final LongAdder acquired = new LongAdder();
+
+    private final LongAdder acquireNanos = new LongAdder();
+
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder usages = new LongAdder();
+
+    private final LongAdder usageMillis = new LongAdder();
+
+    private final LongAdder created = new LongAdder();
+
+    @Override
+    public IMetricsTracker create(String thePoolName, PoolStats thePoolStats) {
+        this.poolName = thePoolName;
+        this.poolStats = thePoolStats;
+        return this;
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        created.increment();
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquired.increment();
+        acquireNanos.add(elapsedAcquiredNanos);
+        maxAcquireNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usages.increment();
+        usageMillis.add(elapsedBorrowedMillis);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public void close() {
+        poolStats = null;
+    }
+
+    @Override
+    public String getPoolName() {
+        return poolName;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        PoolStats stats = poolStats;
+        return (stats != null) ? stats.getActiveConnections() : 0;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        PoolStats stats = poolStats;
+        return (stats != null) ? stats.getIdleConnections() : 0;
+    }
+
+    @Override
+    public int getTotalConnections() {
+        PoolStats stats = poolStats;
+        return (stats != null) ? stats.getTotalConnections() : 0;
+    }
+
+    @Override
+    public int getPendingThreads() {
+        PoolStats stats = poolStats;
+        return (stats != null) ? stats.getPendingThreads() : 0;
+    }
+
+    @Override
+    public long getAcquired() {
+        return acquired.sum();
+    }
+
+    @Override
+    public long getMeanAcquireMicros() {
+        long count = acquired.sum();
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(acquireNanos.sum() / count);
+    }
+
+    @Override
+    public long getMaxAcquireMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxAcquireNanos.get());
+    }
+
+    @Override
+    public long getAcquireTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getMeanUsageMillis() {
+        long count = usages.sum();
+        return (count == 0) ? 0 : usageMillis.sum() / count;
+    }
+
+    @Override
+    public long getConnectionsCreated() {
+        return created.sum();
+    }
+
+    @Override
+    public void resetMax() {
+        maxAcquireNanos.set(0);
+    }
+}
@@ -0,0 +1,243 @@
+package uk.gov.wildfyre.cdr.datasource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the connections for read only requests to a read replica, everything else to the primary.
+ *
+ * Requests are marked read only by {@link uk.gov.wildfyre.cdr.interceptors.ReadReplicaRoutingInterceptor}, anything
+ * not marked (writes, transactions, background jobs, schema updates) uses the primary. The mark belongs to the
+ * thread which set it, work handed to another thread (such as HAPI's search executor) is not routed. Replicas are checked every
+ * datasource.replica.health_check_seconds with datasource.replica.lag_query, a replica which fails the check or
+ * lags by more than datasource.replica.max_lag_millis is skipped, and if no replica is usable reads fall back to the
+ * primary. A client which has just written is kept on the primary for datasource.replica.sticky_seconds so it reads
+ * its own writes.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements Closeable, ReplicaRoutingDataSourceMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final String PRIMARY = "primary";
+
+    private static final int LAG_QUERY_TIMEOUT_SECONDS = 5;
+
+    private static final ThreadLocal<Boolean> readOnlyRequest = new ThreadLocal<>();
+
+    private final DataSource primary;
+
+    private final List<Replica> replicas;
+
+    private final long maxLagMillis;
+
+    private final String lagQuery;
+
+    private final Cache<String, Boolean> recentWriters;
+
+    private final ScheduledExecutorService healthChecker;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final LongAdder replicaRouted = new LongAdder();
+
+    private final LongAdder primaryRouted = new LongAdder();
+
+    private final LongAdder fallbacks = new LongAdder();
+
+    private final LongAdder stickyReads = new LongAdder();
+
+    private static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private volatile boolean healthy = false;
+        private volatile long lagMillis = -1;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    public ReplicaRoutingDataSource(DataSource primary, Map<String, DataSource> replicaDataSources, long maxLagMillis,
+                                    String lagQuery, long healthCheckSeconds, long stickySeconds) {
+        this.primary = primary;
+        this.maxLagMillis = maxLagMillis;
+        this.lagQuery = lagQuery;
+        this.recentWriters = CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(stickySeconds, TimeUnit.SECONDS)
+                .build();
+
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        List<Replica> list = new ArrayList<>();
+        for (Map.Entry<String, DataSource> entry : replicaDataSources.entrySet()) {
+            targets.put(entry.getKey(), entry.getValue());
+            list.add(new Replica(entry.getKey(), entry.getValue()));
+        }
+        this.replicas = list;
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        afterPropertiesSet();
+
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkReplicas, 0, healthCheckSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Mark the current thread's request as read only (or not), it may then be served from a replica
+     */
+    public static void setReadOnlyRequest(boolean readOnly) {
+        if (readOnly) {
+            readOnlyRequest.set(Boolean.TRUE);
+        } else {
+            readOnlyRequest.remove();
+        }
+    }
+
+    /**
+     * Remember that this client has written, its reads go to the primary for the next few seconds
+     */
+    public void recordWrite(String clientKey) {
+        if (clientKey != null) {
+            recentWriters.put(clientKey, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return true if the client wrote recently and should read from the primary
+     */
+    public boolean isSticky(String clientKey) {
+        if (clientKey != null && recentWriters.getIfPresent(clientKey) != null) {
+            stickyReads.increment();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (readOnlyRequest.get() == null) {
+            primaryRouted.increment();
+            return PRIMARY;
+        }
+        int size = replicas.size();
+        int start = Math.abs(next.getAndIncrement() % size);
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.healthy && replica.lagMillis <= maxLagMillis) {
+                replicaRouted.increment();
+                return replica.name;
+            }
+        }
+        fallbacks.increment();
+        primaryRouted.increment();
+        return PRIMARY;
+    }
+
+    private void checkReplicas() {
+        for (Replica replica : replicas) {
+            boolean wasHealthy = replica.healthy;
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.setQueryTimeout(LAG_QUERY_TIMEOUT_SECONDS);
+                try (ResultSet resultSet = statement.executeQuery(lagQuery)) {
+                    replica.lagMillis = resultSet.next() ? (long) (resultSet.getDouble(1) * 1000) : 0;
+                }
+                replica.healthy = true;
+                if (replica.lagMillis > maxLagMillis) {
+                    log.warn("Replica " + replica.name + " is " + replica.lagMillis + " ms behind, reading from the primary");
+                }
+            } catch (Exception ex) {
+                replica.healthy = false;
+                if (wasHealthy) {
+                    log.warn("Replica " + replica.name + " failed its health check " + ex.getMessage());
+                }
+            }
+            if (!wasHealthy && replica.healthy) {
+                log.info("Replica " + replica.name + " is available");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        healthChecker.shutdownNow();
+        closeQuietly(primary);
+        for (Replica replica : replicas) {
+            closeQuietly(replica.dataSource);
+        }
+    }
+
+    private void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception ex) {
+                log.warn("Unable to close connection pool " + ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public long getReplicaRouted() {
+        return replicaRouted.sum();
+    }
+
+    @Override
+    public long getPrimaryRouted() {
+        return primaryRouted.sum();
+    }
+
+    @Override
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    @Override
+    public long getStickyReads() {
+        return stickyReads.sum();
+    }
+
+    @Override
+    public long getStickyClients() {
+        return recentWriters.size();
+    }
+
+    @Override
+    public String[] getReplicaStatus() {
+        String[] status = new String[replicas.size()];
+        for (int i = 0; i < status.length; i++) {
+            Replica replica = replicas.get(i);
+            status[i] = replica.name + (replica.healthy ? " healthy" : " unhealthy") + " lag=" + replica.lagMillis + "ms";
+        }
+        return status;
+    }
+
+    @Override
+    public void checkNow() {
+        healthChecker.execute(this::checkReplicas);
+    }
+}
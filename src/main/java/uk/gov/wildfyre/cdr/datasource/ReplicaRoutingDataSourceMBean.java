@@ -0,0 +1,18 @@
+package uk.gov.wildfyre.cdr.datasource;
+
+public interface ReplicaRoutingDataSourceMBean {
+
+    long getReplicaRouted();
+
+    long getPrimaryRouted();
+
+    long getFallbacks();
+
+    long getStickyReads();
+
+    long getStickyClients();
+
+    String[] getReplicaStatus();
+
+    void checkNow();
+}
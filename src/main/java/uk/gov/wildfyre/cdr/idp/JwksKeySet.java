@@ -0,0 +1,289 @@
+package uk.gov.wildfyre.cdr.idp;
+
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.UnknownHostException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The RSA signing keys published by the identity provider, indexed by kid.
+ *
+ * Keys are read from the jwks_uri found in the openid-configuration and refreshed in the background on a schedule,
+ * and on demand when a token arrives signed with a kid we have not seen. Only one refresh runs at a time, concurrent
+ * callers wait on the refresh already in flight. Readers only ever see an immutable snapshot so lookups take no locks.
+ */
+public class JwksKeySet implements JwksKeySetMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(JwksKeySet.class);
+
+    private static final int HTTP_TIMEOUT_MILLIS = 10000;
+
+    private final String openIdConfigUrl;
+
+    private final long minRefreshMillis;
+
+    private volatile Keys keys = new Keys(Collections.emptyMap(), null);
+
+    private volatile long lastRefresh = 0;
+
+    private final AtomicReference<CompletableFuture<Keys>> refreshing = new AtomicReference<>();
+
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    private final AtomicLong unknownKeyIds = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    // One client for every refresh, closed by shutdown()
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * Immutable snapshot of the key set. The fallback is the last RSA key in the JWKS, used for tokens without a kid.
+     */
+    private static final class Keys {
+        private final Map<String, RsaVerifier> byKid;
+        private final RsaVerifier fallback;
+
+        private Keys(Map<String, RsaVerifier> byKid, RsaVerifier fallback) {
+            this.byKid = byKid;
+            this.fallback = fallback;
+        }
+
+        private boolean isEmpty() {
+            return fallback == null;
+        }
+    }
+
+    public JwksKeySet(String openIdConfigUrl, long refreshSeconds, long minRefreshSeconds) {
+        this.openIdConfigUrl = openIdConfigUrl;
+        this.minRefreshMillis = TimeUnit.SECONDS.toMillis(minRefreshSeconds);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(HTTP_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(HTTP_TIMEOUT_MILLIS)
+                .setSocketTimeout(HTTP_TIMEOUT_MILLIS)
+                .build();
+        this.httpClient = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+
+        refresh();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwks-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (refreshSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Find the verifier for the supplied token.
+     *
+     * @param jwtToken the raw JWT
+     * @return the verifier to use
+     * @throws AuthenticationException if no keys could be loaded from the identity provider, or the token's kid is
+     *         not in the key set, even after a refresh
+     */
+    public RsaVerifier getVerifier(String jwtToken) {
+        Keys current = keys;
+        if (current.isEmpty()) {
+            log.debug("No JWKS keys loaded, refreshing JWKS");
+            if (System.currentTimeMillis() - lastRefresh >= minRefreshMillis) {
+                current = refresh();
+            }
+            if (current.isEmpty()) {
+                log.warn("OAuth2 Authentication failure. No public keys could be loaded from " + openIdConfigUrl);
+                throw new AuthenticationException("Unable to verify OAuth2 Token");
+            }
+        }
+        String kid = OAuthTokenUtil.extractKeyId(jwtToken);
+        if (kid == null) {
+            return current.fallback;
+        }
+        RsaVerifier verifier = current.byKid.get(kid);
+        if (verifier != null) {
+            return verifier;
+        }
+
+        unknownKeyIds.incrementAndGet();
+        log.info("Unknown key id " + kid + ", refreshing JWKS");
+        if (System.currentTimeMillis() - lastRefresh >= minRefreshMillis) {
+            verifier = refresh().byKid.get(kid);
+        }
+        if (verifier == null) {
+            log.warn("OAuth2 Authentication failure. No public key found for kid " + kid);
+            throw new AuthenticationException("Invalid OAuth2 Token");
+        }
+        return verifier;
+    }
+
+    /**
+     * Reload the key set. If a refresh is already running the caller waits for that one instead of starting another.
+     */
+    private Keys refresh() {
+        while (true) {
+            CompletableFuture<Keys> inFlight = refreshing.get();
+            if (inFlight != null) {
+                try {
+                    return inFlight.get(HTTP_TIMEOUT_MILLIS * 2, TimeUnit.MILLISECONDS);
+                } catch (Exception ex) {
+                    return keys;
+                }
+            }
+            CompletableFuture<Keys> mine = new CompletableFuture<>();
+            if (refreshing.compareAndSet(null, mine)) {
+                try {
+                    Keys loaded = loadKeys();
+                    if (loaded != null) {
+                        keys = loaded;
+                    } else {
+                        refreshFailures.incrementAndGet();
+                    }
+                    lastRefresh = System.currentTimeMillis();
+                    refreshCount.incrementAndGet();
+                } catch (Exception ex) {
+                    refreshFailures.incrementAndGet();
+                    log.error("JWKS refresh failed " + ex.getMessage());
+                } finally {
+                    mine.complete(keys);
+                    refreshing.set(null);
+                }
+                return keys;
+            }
+        }
+    }
+
+    private Keys loadKeys() throws Exception {
+        log.info("OAuth2 openid = " + openIdConfigUrl);
+        JSONObject openIdObj = getJson(openIdConfigUrl);
+        if (openIdObj == null || !openIdObj.has("jwks_uri")) {
+            return null;
+        }
+        log.info("Calling jwks endpoint " + openIdObj.getString("jwks_uri"));
+        JSONObject jwksObj = getJson(openIdObj.getString("jwks_uri"));
+        if (jwksObj == null || !jwksObj.has("keys")) {
+            return null;
+        }
+
+        // https://auth0.com/blog/navigating-rs256-and-jwks/
+        Map<String, RsaVerifier> byKid = new HashMap<>();
+        RsaVerifier fallback = null;
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+        JSONArray keyArray = jwksObj.getJSONArray("keys");
+        for (Object object : keyArray) {
+            if (object instanceof JSONObject) {
+                JSONObject keyObj = (JSONObject) object;
+                if (keyObj.has("kty") && keyObj.getString("kty").equals("RSA")) {
+
+                    BigInteger modulus = new BigInteger(1, Base64.decodeBase64(keyObj.getString("n")));
+                    BigInteger exponent = new BigInteger(1, Base64.decodeBase64(keyObj.getString("e")));
+
+                    PublicKey key = factory.generatePublic(new RSAPublicKeySpec(modulus, exponent));
+                    RsaVerifier verifier = new RsaVerifier((RSAPublicKey) key, "SHA256withRSA");
+                    if (keyObj.has("kid")) {
+                        byKid.put(keyObj.getString("kid"), verifier);
+                    }
+                    fallback = verifier;
+                }
+            }
+        }
+        if (fallback == null) {
+            log.warn("No RSA keys found in JWKS");
+            return null;
+        }
+        log.info("Loaded " + byKid.size() + " JWKS keys " + byKid.keySet());
+        return new Keys(Collections.unmodifiableMap(byKid), fallback);
+    }
+
+    private JSONObject getJson(String url) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader(org.apache.http.HttpHeaders.CONTENT_TYPE, "application/json");
+        request.setHeader(org.apache.http.HttpHeaders.ACCEPT, "application/json");
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            if (response.getStatusLine().getStatusCode() == 200) {
+                String body = EntityUtils.toString(response.getEntity());
+                log.trace(body);
+                return new JSONObject(body);
+            }
+            log.error("Unexpected response from " + url + " " + response.getStatusLine());
+            EntityUtils.consumeQuietly(response.getEntity());
+        } catch (UnknownHostException e) {
+            log.error("Host not known");
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+        }
+        return null;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException ex) {
+            log.debug("Unable to close JWKS client " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public int getKeyCount() {
+        return keys.byKid.size();
+    }
+
+    @Override
+    public String getKeyIds() {
+        return keys.byKid.keySet().toString();
+    }
+
+    @Override
+    public long getLastRefresh() {
+        return lastRefresh;
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    @Override
+    public long getUnknownKeyIds() {
+        return unknownKeyIds.get();
+    }
+
+    @Override
+    public void forceRefresh() {
+        refresh();
+    }
+}
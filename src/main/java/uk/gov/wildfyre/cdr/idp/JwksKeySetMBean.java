@@ -0,0 +1,18 @@
+package uk.gov.wildfyre.cdr.idp;
+
+public interface JwksKeySetMBean {
+
+    int getKeyCount();
+
+    String getKeyIds();
+
+    long getLastRefresh();
+
+    long getRefreshCount();
+
+    long getRefreshFailures();
+
+    long getUnknownKeyIds();
+
+    void forceRefresh();
+}
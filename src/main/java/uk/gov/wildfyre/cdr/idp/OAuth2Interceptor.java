@@ -4,35 +4,22 @@ package uk.gov.wildfyre.cdr.idp;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
-import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.http.HttpHeaders;
 import org.springframework.security.jwt.crypto.sign.RsaVerifier;
 import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.support.JmxSupport;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.math.BigInteger;
-import java.net.UnknownHostException;
-import java.security.KeyFactory;
-import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
-import java.security.spec.RSAPublicKeySpec;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,109 +45,42 @@ public class OAuth2Interceptor extends InterceptorAdapter {
 
     private static final Pattern RESOURCE_PATTERN = Pattern.compile("^/(\\w+)[//|\\?]?.*$");
 
-    private JSONObject openIdObj;
+    private JwksKeySet keySet;
 
-    private JSONObject jwksObj;
+    private volatile ScopeIndex scopeIndex;
 
-    private RsaVerifier verifier;
+    private volatile boolean smartScope;
 
     private ApplicationContext appCtx;
 
+    private final OAuthTokenCache tokenCache;
+
     public OAuth2Interceptor(ApplicationContext context) {
 
         log.trace("OAuth2 init");
         excludedPaths.add("/metadata");
         appCtx = context;
 
+        tokenCache = new OAuthTokenCache(HapiProperties.getSecurityOauthTokenCacheSize());
+        JmxSupport.register("OAuthTokenCache", tokenCache);
+
         accessRights = getAccessRights();
+        scopeIndex = new ScopeIndex(accessRights.values(), HapiProperties.getSecurityOauthScope());
+        smartScope = HapiProperties.getSecuritySmartScope();
+        HapiProperties.subscribe(config -> {
+            // Tokens compiled against the old index are recompiled on their next use
+            if (!Objects.equals(config.getSecurityOauthScope(), scopeIndex.getServerScope())) {
+                scopeIndex = new ScopeIndex(accessRights.values(), config.getSecurityOauthScope());
+            }
+            smartScope = config.isSecuritySmartScope();
+        });
 
         if (HapiProperties.getSecurityOauth()) {
             log.trace("OAuth2 active");
-            HttpClient client = getHttpClient();
-            log.info("OAuth2 openid = "+HapiProperties.getSecurityOpenidConfig());
-            HttpGet request = new HttpGet(HapiProperties.getSecurityOpenidConfig());
-            request.setHeader(org.apache.http.HttpHeaders.CONTENT_TYPE, "application/json");
-            request.setHeader(org.apache.http.HttpHeaders.ACCEPT, "application/json");
-
-            try {
-
-                HttpResponse response = client.execute(request);
-
-                if (response.getStatusLine().toString().contains("200")) {
-                    InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-                    BufferedReader bR = new BufferedReader(reader);
-                    String line = "";
-
-                    StringBuilder responseStrBuilder = new StringBuilder();
-                    while ((line = bR.readLine()) != null) {
-                        responseStrBuilder.append(line);
-                    }
-                    openIdObj = new JSONObject(responseStrBuilder.toString());
-                }
-            } catch (UnknownHostException e) {
-                log.error("Host not known");
-            } catch (Exception ex) {
-                log.error(ex.getMessage());
-            }
-            if (openIdObj != null && openIdObj.has("jwks_uri"))  {
-                log.info("Calling jwks endpoint " + openIdObj.getString("jwks_uri"));
-                request = new HttpGet(openIdObj.getString("jwks_uri"));
-                request.setHeader(org.apache.http.HttpHeaders.CONTENT_TYPE, "application/json");
-                request.setHeader(org.apache.http.HttpHeaders.ACCEPT, "application/json");
-                try {
-
-                    HttpResponse response = client.execute(request);
-
-                    if (response.getStatusLine().toString().contains("200")) {
-                        InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-                        BufferedReader bR = new BufferedReader(reader);
-                        String line = "";
-
-                        StringBuilder responseStrBuilder = new StringBuilder();
-                        while ((line = bR.readLine()) != null) {
-                            responseStrBuilder.append(line);
-                        }
-                        log.trace(responseStrBuilder.toString());
-                        jwksObj = new JSONObject(responseStrBuilder.toString());
-                        // https://auth0.com/blog/navigating-rs256-and-jwks/
-                        if (jwksObj.has("keys")) {
-                            JSONArray keys = jwksObj.getJSONArray("keys");
-                            for (Object object : keys) {
-                                if (object instanceof JSONObject) {
-                                   JSONObject keyObj = (JSONObject) object;
-                                   if (keyObj.has("kty") && keyObj.getString("kty").equals("RSA")) {
-
-                                       BigInteger modulus = new BigInteger(1, Base64.decodeBase64(keyObj.getString("n")));
-                                       BigInteger exponent = new BigInteger(1, Base64.decodeBase64(keyObj.getString("e")));
-
-
-                                       RSAPublicKeySpec spec = new RSAPublicKeySpec(modulus, exponent);
-                                       KeyFactory factory = KeyFactory.getInstance("RSA");
-                                       PublicKey key = factory.generatePublic(spec);
-
-                                       verifier = new RsaVerifier((RSAPublicKey) key, "SHA256withRSA");
-                                       if (verifier == null) throw new InternalErrorException("Unable to process public key");
-                                       /*
-                                       JSONArray x5cObj = keyObj.getJSONArray("x5c");
-                                       for (Object obj : x5cObj) {
-                                           if (obj instanceof String) {
-
-                                           }
-                                       }
-
-                                        */
-                                   }
-                                }
-                            }
-                        }
-                    }
-                } catch (UnknownHostException e) {
-                    log.error("Host not known");
-                } catch (Exception ex) {
-                    log.error(ex.getMessage());
-                }
-            }
-
+            keySet = new JwksKeySet(HapiProperties.getSecurityOpenidConfig(),
+                    HapiProperties.getSecurityJwksRefreshSeconds(),
+                    HapiProperties.getSecurityJwksMinRefreshSeconds());
+            JmxSupport.register("JwksKeySet", keySet);
         }
 
     }
@@ -209,7 +129,8 @@ public class OAuth2Interceptor extends InterceptorAdapter {
             log.warn("OAuth2 Authentication failure.  No OAuth Token supplied in Authorization Header on Request.");
             throw new AuthenticationException("Unauthorised access to protected resource");
         }
-        OAuthToken oAuthToken = OAuthTokenUtil.parseOAuthToken(authorizationHeader, verifier);
+        String jwtToken = OAuthTokenUtil.extractTokenFromHeader(authorizationHeader);
+        OAuthToken oAuthToken = tokenCache.get(jwtToken, token -> OAuthTokenUtil.parseJwtToken(token, getVerifier(token)));
 
 
         // Check that the OAuth Token has not expired
@@ -222,7 +143,7 @@ public class OAuth2Interceptor extends InterceptorAdapter {
 
         // Check that the Scopes on the Token allow access to the specified resource
         String resourceName = extractResourceName(resourcePath);
-        if (!allowedAccess(resourceName, theRequest.getMethod(), oAuthToken)){
+        if (!allowedAccess(resourceName, accessMethod(theRequest, resourcePath), oAuthToken)){
             log.warn("OAuth2 Authentication failed due to insufficient access rights: ");
             throw new ForbiddenOperationException(String.format("Insufficient Access Rights to access %s.", resourceName));
         }
@@ -231,6 +152,19 @@ public class OAuth2Interceptor extends InterceptorAdapter {
         return true;
     }
 
+    /**
+     * The method whose access the request needs, a search made with POST [base]/[type]/_search (or the system
+     * level [base]/_search) only reads so needs the same access as GET
+     */
+    private static String accessMethod(HttpServletRequest theRequest, String resourcePath) {
+        String method = theRequest.getMethod();
+        if ("POST".equals(method) && resourcePath != null
+                && (resourcePath.endsWith("/_search") || resourcePath.endsWith("/_search/"))) {
+            return "GET";
+        }
+        return method;
+    }
+
     /**
      * Check if the Scopes on the OAuth Token allow access to the specified Resource
      *
@@ -239,40 +173,95 @@ public class OAuth2Interceptor extends InterceptorAdapter {
      * @param oAuthToken
      * @return
      */
-
-    private boolean inList(List<String> scopes,String scope) {
-        for(String str: scopes) {
-           // log.info(str);
-            if(str.trim().contains(scope))
-                return true;
-        }
-        return false;
-    }
     public boolean allowedAccess(String resourceName, String method, OAuthToken oAuthToken) {
-        log.info(HapiProperties.getSecurityOauthScope());
-        log.info(HapiProperties.getSecuritySmartScope().toString());
-        log.info(oAuthToken.getScopes().toString());
-        if (HapiProperties.getSecuritySmartScope()) {
-            if (accessRights.containsKey(resourceName)) {
-                String requiredAccess = accessRights.get(resourceName);
-                return oAuthToken.allowsAccess(requiredAccess, method);
+        ScopePermissions permissions = oAuthToken.getPermissions(scopeIndex);
+        if (smartScope) {
+            String requiredAccess = accessRights.get(resourceName);
+            if (requiredAccess != null) {
+                return permissions.allows(requiredAccess, method);
             }
-            log.info(String.format("Access to %s is unrestricted.", resourceName));
+            log.debug("Access to {} is unrestricted.", resourceName);
             return true;
         } else {
-
-            if (inList(oAuthToken.getScopes(),HapiProperties.getSecurityOauthScope())) {
-                log.info(String.format("Access to %s is unrestricted.", resourceName));
+            if (permissions.hasServerScope()) {
+                log.debug("Access to {} is unrestricted.", resourceName);
                 return true;
             } else {
-                log.warn("Unable to find "+ HapiProperties.getSecurityOauthScope() + " in "+oAuthToken.getScopes().toString() );
-                String requiredAccess = accessRights.get(resourceName);
-                return oAuthToken.allowsAccess(requiredAccess, method);
+                log.debug("Unable to find {} in {}", scopeIndex.getServerScope(), oAuthToken.getScopes());
+                return permissions.allows(accessRights.get(resourceName), method);
             }
         }
 
     }
 
+    /**
+     * Check that the request's token allows access to the resource type, for operations such as $export and $import
+     * which handle resources of many types at one URL. The token has already been verified on the way in.
+     */
+    public boolean allowedAccess(HttpServletRequest theRequest, String resourceName, String method) {
+        String authorizationHeader = theRequest.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorizationHeader == null) {
+            return false;
+        }
+        String jwtToken = OAuthTokenUtil.extractTokenFromHeader(authorizationHeader);
+        OAuthToken oAuthToken = tokenCache.get(jwtToken, token -> OAuthTokenUtil.parseJwtToken(token, getVerifier(token)));
+        return allowedAccess(resourceName, method, oAuthToken);
+    }
+
+    /**
+     * Check that the request's token carries the server scope, for administrative operations such as a reindex which
+     * act on the whole server rather than on resources of a type. The token has already been verified on the way in.
+     */
+    public boolean hasServerScope(HttpServletRequest theRequest) {
+        String authorizationHeader = theRequest.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorizationHeader == null) {
+            return false;
+        }
+        String jwtToken = OAuthTokenUtil.extractTokenFromHeader(authorizationHeader);
+        OAuthToken oAuthToken = tokenCache.get(jwtToken, token -> OAuthTokenUtil.parseJwtToken(token, getVerifier(token)));
+        return oAuthToken.getPermissions(scopeIndex).hasServerScope();
+    }
+
+    /**
+     * Identify the client making the request, so that work such as an $export job can be bound to the client that
+     * started it. Falls back to a digest of the token when it names no client, so the job is bound to that token.
+     */
+    public String getClient(HttpServletRequest theRequest) {
+        String authorizationHeader = theRequest.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorizationHeader == null) {
+            return null;
+        }
+        String jwtToken = OAuthTokenUtil.extractTokenFromHeader(authorizationHeader);
+        OAuthToken oAuthToken = tokenCache.get(jwtToken, token -> OAuthTokenUtil.parseJwtToken(token, getVerifier(token)));
+        String client = oAuthToken.getClient();
+        return (client != null) ? client : DigestUtils.sha256Hex(jwtToken);
+    }
+
+    /**
+     * Tokens are never accepted unverified, without a key to check the signature against the request is refused
+     */
+    private RsaVerifier getVerifier(String jwtToken) {
+        RsaVerifier verifier = (keySet != null) ? keySet.getVerifier(jwtToken) : null;
+        if (verifier == null) {
+            log.warn("OAuth2 Authentication failure. No public key available to verify the token");
+            throw new AuthenticationException("Unable to verify OAuth2 Token");
+        }
+        return verifier;
+    }
+
+    /**
+     * Stop refreshing the signing keys, when the server is destroyed
+     */
+    public void shutdown() {
+        if (keySet != null) {
+            keySet.shutdown();
+        }
+    }
+
+    public OAuthTokenCache getTokenCache() {
+        return tokenCache;
+    }
+
     public String extractResourceName(String resourcePath) {
         Matcher match = RESOURCE_PATTERN.matcher(resourcePath);
         if (!match.matches()){
@@ -281,9 +270,4 @@ public class OAuth2Interceptor extends InterceptorAdapter {
         }
         return match.group(1);
     }
-
-    private HttpClient getHttpClient(){
-        final HttpClient httpClient = HttpClientBuilder.create().build();
-        return httpClient;
-    }
 }
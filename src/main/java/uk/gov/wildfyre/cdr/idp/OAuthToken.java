@@ -2,14 +2,8 @@ package uk.gov.wildfyre.cdr.idp;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonSerializer;
-import com.fasterxml.jackson.databind.SerializerProvider;
 
-import java.io.IOException;
 import java.util.List;
-import java.util.function.Predicate;
 
 /**
  * DTO which contains the details of a OAuth2 JWT Token
@@ -33,6 +27,12 @@ public class OAuthToken {
     @JsonProperty("iat")
     public Integer issuedAt;
 
+    @JsonProperty("sub")
+    public String subject;
+
+    @JsonProperty("client_id")
+    public String clientId;
+
     // KGM possibly wrong mapping here. Check format of scopes in OAuth2
     @JsonProperty("scope")
     public List<String> scope;
@@ -47,29 +47,39 @@ public class OAuthToken {
     }
 
     /**
-     * Check if there are any scopes on the Token which grant access to the protected resource
+     * The client the token was issued to, the client_id claim or failing that the subject, qualified by the issuer
      *
-     * @param requiredScope
-     * @param method
-     * @return true is access is granted by 1 or more scopes otherwise false
+     * @return null if the token names neither
      */
-    public boolean allowsAccess(String requiredScope, String method){
-        return getScopes().stream().anyMatch(getScopeFilter(requiredScope, method));
+    public String getClient() {
+        String client = (clientId != null) ? clientId : subject;
+        return (client != null) ? issuer + "|" + client : null;
     }
 
+    private volatile ScopePermissions permissions;
+
     /**
-     *  Create a Predicate which will be used to filter the list of available scopes.
-     *
-     * TODO - At present we are not associating the HTTP Request Method with the *.read, or *.write suffixes on the Scope
-     * TODO - This is left as a future exercise since we are currently only allowing read-only access.
+     * The scopes on this token compiled against the server's access rights. Compiled on first use, tokens
+     * are cached so this happens once per token.
+     */
+    public ScopePermissions getPermissions(ScopeIndex index) {
+        ScopePermissions current = permissions;
+        if (current == null || current.getIndex() != index) {
+            current = ScopePermissions.compile(getScopes(), index);
+            permissions = current;
+        }
+        return current;
+    }
+
+    /**
+     * Check if there are any scopes on the Token which grant access to the protected resource
      *
-     * @param requiredScoped - The Scope that is required to access the resource e.g. 'Patient'
-     * @param method - The HTTP Method which is being processed e.g. 'GET' or 'POST'
-     * @return A Predicate to find the Scopes which match this Resource.
+     * @param index
+     * @param requiredScope
+     * @param method
+     * @return true is access is granted by 1 or more scopes otherwise false
      */
-    private Predicate<String> getScopeFilter(String requiredScoped, String method) {
-        // Match either the resource name or wildcard '*'
-        String scopeRegex = String.format("^\\w*/(?:\\*|%1s)\\..*", requiredScoped);
-        return scope -> scope.matches(scopeRegex);
+    public boolean allowsAccess(ScopeIndex index, String requiredScope, String method){
+        return getPermissions(index).allows(requiredScope, method);
     }
 }
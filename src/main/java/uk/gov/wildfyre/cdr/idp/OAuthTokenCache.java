@@ -0,0 +1,100 @@
+package uk.gov.wildfyre.cdr.idp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of verified OAuth2 tokens.
+ *
+ * Clients reuse the same bearer token for many calls, so once a token has been verified and decoded
+ * it is kept (keyed by a SHA-256 digest of the raw token) until its exp claim is reached, or for at most
+ * an hour so a long lived token is checked against the current keys now and then.
+ * Tokens without an expiry are never cached. Only tokens whose signature has been verified may be cached,
+ * the parser must fail rather than return a token it could not verify.
+ */
+public class OAuthTokenCache implements OAuthTokenCacheMBean {
+
+    private static final long MAX_AGE_MINUTES = 60;
+
+    private final Cache<String, OAuthToken> tokens;
+
+    private final int maxSize;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong expired = new AtomicLong();
+
+    public OAuthTokenCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, maxSize))
+                .expireAfterWrite(MAX_AGE_MINUTES, TimeUnit.MINUTES)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Return the cached token, or verify and decode it using the supplied parser and cache the result.
+     *
+     * @param jwtToken the raw JWT (without the Bearer prefix)
+     * @param parser verifies the signature and decodes the token, expected to throw AuthenticationException if
+     *               the token is invalid or cannot be verified
+     * @return the decoded token
+     */
+    public OAuthToken get(String jwtToken, Function<String, OAuthToken> parser) {
+        String key = DigestUtils.sha256Hex(jwtToken);
+        OAuthToken oAuthToken = tokens.getIfPresent(key);
+        if (oAuthToken != null) {
+            if (!oAuthToken.isExpired()) {
+                hits.incrementAndGet();
+                return oAuthToken;
+            }
+            tokens.invalidate(key);
+            expired.incrementAndGet();
+        }
+        misses.incrementAndGet();
+
+        oAuthToken = parser.apply(jwtToken);
+        if (maxSize > 0 && oAuthToken.expiry != null && !oAuthToken.isExpired()) {
+            tokens.put(key, oAuthToken);
+        }
+        return oAuthToken;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return tokens.stats().evictionCount() + expired.get();
+    }
+
+    @Override
+    public int getSize() {
+        return (int) tokens.size();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void clear() {
+        tokens.invalidateAll();
+    }
+}
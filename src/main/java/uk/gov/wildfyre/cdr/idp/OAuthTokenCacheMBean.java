@@ -0,0 +1,16 @@
+package uk.gov.wildfyre.cdr.idp;
+
+public interface OAuthTokenCacheMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    int getSize();
+
+    int getMaxSize();
+
+    void clear();
+}
@@ -2,7 +2,9 @@ package uk.gov.wildfyre.cdr.idp;
 
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Base64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.jwt.Jwt;
@@ -16,13 +18,17 @@ public class OAuthTokenUtil {
     private static final String TOKEN_PREFIX = "bearer ";
     private static final Logger log = LoggerFactory.getLogger(OAuthTokenUtil.class);
 
+    // ObjectMapper is thread safe once configured, so share one instance rather than building one per token
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
+
     public static OAuthToken parseOAuthToken(String oauthHeader, RsaVerifier verifier){
         log.trace("parseOAuthToken = "+oauthHeader);
         assert oauthHeader != null:"OAuth Token should not be null";
         return parseJwtToken(extractTokenFromHeader(oauthHeader), verifier);
     }
 
-    private static OAuthToken parseJwtToken(String jwtToken, RsaVerifier verifier) {
+    static OAuthToken parseJwtToken(String jwtToken, RsaVerifier verifier) {
         log.trace("parseJwtToken = "+jwtToken);
         try {
             Jwt jwt = null;
@@ -41,14 +47,31 @@ public class OAuthTokenUtil {
             if (jwt == null) throw new AuthenticationException("Invalid OAuth2 Token");
             log.trace("claims "+ jwt.getClaims());
             log.trace("encoded "+ jwt.getEncoded());
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
             return mapper.readValue(jwt.getClaims().getBytes(), OAuthToken.class);
         } catch (IOException e) {
             throw new AuthenticationException("Invalid OAuth2 Token", e);
         }
     }
 
+    /**
+     * Read the kid from the JOSE header of the token, without verifying it.
+     *
+     * @return the key id, or null if the header does not carry one
+     */
+    public static String extractKeyId(String jwtToken) {
+        int headerEnd = jwtToken.indexOf('.');
+        if (headerEnd <= 0) {
+            throw new AuthenticationException("Invalid OAuth2 Token");
+        }
+        try {
+            JsonNode header = mapper.readTree(Base64.decodeBase64(jwtToken.substring(0, headerEnd)));
+            JsonNode kid = header.get("kid");
+            return (kid != null && kid.isTextual()) ? kid.asText() : null;
+        } catch (IOException e) {
+            throw new AuthenticationException("Invalid OAuth2 Token", e);
+        }
+    }
+
     public static String extractTokenFromHeader(String authHeader) {
         if (authHeader.toLowerCase().startsWith(TOKEN_PREFIX)) {
             return authHeader.substring(TOKEN_PREFIX.length());
@@ -0,0 +1,49 @@
+package uk.gov.wildfyre.cdr.idp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns a bit position to each access right the server checks (the values of OAuth2Interceptor's accessRights map)
+ * so that a token's scopes can be compiled into a {@link ScopePermissions} bitset.
+ *
+ * Built once when the interceptor starts and shared by every token.
+ */
+public final class ScopeIndex {
+
+    private final Map<String, Integer> positions;
+
+    private final String serverScope;
+
+    /**
+     * @param accessRights the scope names which protect resources e.g. 'Patient'
+     * @param serverScope the non SMART scope which grants unrestricted access (security.oauth2.scope), may be null
+     */
+    public ScopeIndex(Collection<String> accessRights, String serverScope) {
+        Map<String, Integer> map = new HashMap<>();
+        for (String accessRight : accessRights) {
+            if (!map.containsKey(accessRight)) {
+                map.put(accessRight, map.size());
+            }
+        }
+        this.positions = Collections.unmodifiableMap(map);
+        this.serverScope = (serverScope != null) ? serverScope.trim() : null;
+    }
+
+    /**
+     * @return the bit position for the scope, or null if the scope is not one the server checks
+     */
+    public Integer positionOf(String accessRight) {
+        return (accessRight != null) ? positions.get(accessRight) : null;
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public String getServerScope() {
+        return serverScope;
+    }
+}
@@ -0,0 +1,112 @@
+package uk.gov.wildfyre.cdr.idp;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The scopes on an OAuth2 token compiled into read and write bitsets (positions taken from a {@link ScopeIndex}).
+ *
+ * SMART scopes take the form context/Resource.access e.g. 'patient/Observation.read' or 'user/*.*'.
+ * A '.read' scope grants GET, HEAD and OPTIONS, a '.write' scope grants the other HTTP methods, '.*' grants both.
+ * The OAuth2Interceptor passes a search made with POST [type]/_search as a GET.
+ *
+ * Compiled once per token, each access decision is then a bit lookup.
+ */
+public final class ScopePermissions {
+
+    private static final Pattern SMART_SCOPE = Pattern.compile("^\\w*/(\\*|\\w+)\\.(read|write|\\*)$");
+
+    private final ScopeIndex index;
+
+    private final BitSet read;
+
+    private final BitSet write;
+
+    private final boolean readAll;
+
+    private final boolean writeAll;
+
+    private final boolean serverScope;
+
+    private ScopePermissions(ScopeIndex index, BitSet read, BitSet write, boolean readAll, boolean writeAll, boolean serverScope) {
+        this.index = index;
+        this.read = read;
+        this.write = write;
+        this.readAll = readAll;
+        this.writeAll = writeAll;
+        this.serverScope = serverScope;
+    }
+
+    public static ScopePermissions compile(List<String> scopes, ScopeIndex index) {
+        BitSet read = new BitSet(index.size());
+        BitSet write = new BitSet(index.size());
+        boolean readAll = false;
+        boolean writeAll = false;
+        boolean serverScope = false;
+
+        if (scopes != null) {
+            for (String entry : scopes) {
+                if (entry == null) continue;
+                // A single space delimited scope claim is mapped to a one element list
+                for (String scope : entry.trim().split("\\s+")) {
+                    if (index.getServerScope() != null && scope.contains(index.getServerScope())) {
+                        serverScope = true;
+                    }
+                    Matcher match = SMART_SCOPE.matcher(scope);
+                    if (!match.matches()) continue;
+
+                    String access = match.group(2);
+                    boolean grantsRead = !access.equals("write");
+                    boolean grantsWrite = !access.equals("read");
+
+                    if (match.group(1).equals("*")) {
+                        readAll |= grantsRead;
+                        writeAll |= grantsWrite;
+                    } else {
+                        Integer position = index.positionOf(match.group(1));
+                        if (position == null) continue;
+                        if (grantsRead) read.set(position);
+                        if (grantsWrite) write.set(position);
+                    }
+                }
+            }
+        }
+        return new ScopePermissions(index, read, write, readAll, writeAll, serverScope);
+    }
+
+    /**
+     * Check if the scopes grant access to the protected resource
+     *
+     * @param requiredScope - The Scope that is required to access the resource e.g. 'Patient'
+     * @param method - The HTTP Method which is being processed e.g. 'GET' or 'POST'
+     * @return true if access is granted by 1 or more scopes otherwise false
+     */
+    public boolean allows(String requiredScope, String method) {
+        boolean isWrite = isWrite(method);
+        if (isWrite ? writeAll : readAll) {
+            return true;
+        }
+        Integer position = index.positionOf(requiredScope);
+        if (position == null) {
+            return false;
+        }
+        return isWrite ? write.get(position) : read.get(position);
+    }
+
+    /**
+     * @return true if the token carries the server's non SMART scope (security.oauth2.scope)
+     */
+    public boolean hasServerScope() {
+        return serverScope;
+    }
+
+    ScopeIndex getIndex() {
+        return index;
+    }
+
+    private static boolean isWrite(String method) {
+        return !("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method));
+    }
+}
@@ -0,0 +1,40 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import org.hibernate.search.backend.IndexingMonitor;
+import org.hibernate.search.backend.LuceneWork;
+import org.hibernate.search.elasticsearch.impl.ElasticsearchIndexManager;
+
+import java.util.List;
+
+/**
+ * The Elasticsearch index manager, handing the work of committed transactions to the {@link AsyncIndexer} rather
+ * than sending it to Elasticsearch before the commit returns.
+ *
+ * Set as hibernate.search.default.indexmanager when indexing.async=true. Work which isn't about a single document
+ * (purge all, flush, optimize) and work arriving before the indexer has started is sent straight away as before.
+ */
+public class AsyncElasticsearchIndexManager extends ElasticsearchIndexManager {
+
+    @Override
+    public void performOperations(List<LuceneWork> workList, IndexingMonitor monitor) {
+        AsyncIndexer indexer = AsyncIndexer.get();
+        if (indexer == null || !indexer.isQueueing()) {
+            super.performOperations(workList, monitor);
+            return;
+        }
+        for (LuceneWork work : workList) {
+            if (work.getId() == null) {
+                super.performOperations(workList, monitor);
+                return;
+            }
+        }
+        indexer.enqueue(this, workList);
+    }
+
+    /**
+     * Send the work to Elasticsearch now, as a _bulk request
+     */
+    void send(List<LuceneWork> workList) {
+        super.performOperations(workList, null);
+    }
+}
@@ -0,0 +1,502 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import org.apache.lucene.index.IndexableField;
+import org.hibernate.search.backend.LuceneWork;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.Search;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends Elasticsearch index work in the background, so a write no longer waits for Elasticsearch before its commit
+ * returns and an Elasticsearch slowdown no longer stalls writes.
+ *
+ * Hibernate Search still builds each document from the entity when the transaction commits (the full text of a
+ * resource is only held on the entity at that point), the {@link AsyncElasticsearchIndexManager} then puts the work
+ * on a bounded queue. A single worker takes up to indexing.batch_size documents, or indexing.batch_bytes of field
+ * text, off the queue at a time and sends them as one _bulk request, so documents are indexed in commit order.
+ *
+ * When the queue is full a commit waits up to indexing.offer_timeout_millis for room, slowing writers to the rate
+ * Elasticsearch can keep up with. Beyond that, and for documents Elasticsearch rejects, the entity is written to the
+ * {@link IndexRetryJournal} and indexed again from the database every indexing.retry_seconds. Work still queued at
+ * shutdown is journalled too. The entities are also recorded by the journal as they are queued and counted off once
+ * sent, so after a crash whatever was still queued or being sent is indexed again when the server starts. A search by
+ * _content or _text may not see a write until its document has been sent.
+ */
+public class AsyncIndexer implements AsyncIndexerMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncIndexer.class);
+
+    private static volatile AsyncIndexer instance;
+
+    private static final ThreadLocal<Boolean> DIRECT = new ThreadLocal<>();
+
+    private final BlockingQueue<Item> queue;
+
+    private final int batchSize;
+
+    private final long batchBytes;
+
+    private final long offerTimeoutMillis;
+
+    private final long retryMillis;
+
+    private final int maxAttempts;
+
+    private final IndexRetryJournal journal;
+
+    private final Map<LuceneWork, Item> inFlight = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> retrying = new HashMap<>();
+
+    private FhirContext ctx;
+
+    private EntityManagerFactory entityManagerFactory;
+
+    private Map<String, IFhirResourceDao<?>> daos;
+
+    private volatile Thread worker;
+
+    private volatile boolean running;
+
+    private volatile long lagMillis;
+
+    private final LongAdder enqueued = new LongAdder();
+
+    private final LongAdder indexed = new LongAdder();
+
+    private final LongAdder bulkRequests = new LongAdder();
+
+    private final LongAdder failedDocuments = new LongAdder();
+
+    private final LongAdder blockedCommits = new LongAdder();
+
+    private final LongAdder journalled = new LongAdder();
+
+    private final LongAdder retried = new LongAdder();
+
+    private final LongAdder abandoned = new LongAdder();
+
+    /**
+     * A document waiting to be sent
+     */
+    private static final class Item {
+        private final AsyncElasticsearchIndexManager indexManager;
+        private final LuceneWork work;
+        private final long bytes;
+        private final long enqueuedAt;
+        private final int segment;
+        private volatile boolean failed;
+
+        private Item(AsyncElasticsearchIndexManager indexManager, LuceneWork work, long bytes, int segment) {
+            this.indexManager = indexManager;
+            this.work = work;
+            this.bytes = bytes;
+            this.enqueuedAt = System.currentTimeMillis();
+            this.segment = segment;
+        }
+    }
+
+    public AsyncIndexer(int queueSize, int batchSize, long batchBytes, long offerTimeoutMillis, String retryDirectory,
+                        int retrySeconds, int maxAttempts) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.batchBytes = batchBytes;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.retryMillis = TimeUnit.SECONDS.toMillis(retrySeconds);
+        this.maxAttempts = maxAttempts;
+        this.journal = new IndexRetryJournal(Paths.get(retryDirectory).toAbsolutePath().normalize());
+        instance = this;
+    }
+
+    /**
+     * The indexer Hibernate Search hands its work to, null unless indexing.async=true
+     */
+    static AsyncIndexer get() {
+        return instance;
+    }
+
+    /**
+     * Start the worker, until then work is sent as the transaction commits. The DAOs are used to rebuild the
+     * full text of a resource when it is retried.
+     */
+    public synchronized void start(FhirContext ctx, EntityManagerFactory entityManagerFactory, Map<String, IFhirResourceDao<?>> daos) {
+        if (running) return;
+        this.ctx = ctx;
+        this.entityManagerFactory = entityManagerFactory;
+        this.daos = daos;
+        running = true;
+        worker = new Thread(this::run, "async-indexer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the worker, anything still queued is journalled and indexed after the restart
+     */
+    public synchronized void shutdown() {
+        if (!running) return;
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        List<Item> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        List<IndexRetryJournal.Entry> entries = new ArrayList<>();
+        for (Item item : remaining) {
+            entries.add(entry(item.work, 0));
+        }
+        journal.append(entries);
+        if (!worker.isAlive()) {
+            // Otherwise a batch may still be on its way, the pending segments are replayed after the restart
+            journal.clearPending();
+        }
+        journalled.add(entries.size());
+        if (!remaining.isEmpty()) {
+            log.info("Journalled " + remaining.size() + " documents still waiting to be indexed");
+        }
+    }
+
+    /**
+     * Run the action with the index work it commits sent straight away rather than queued, for bulk work such as
+     * a reindex which would otherwise fill the queue ahead of the server's own writes
+     */
+    public static void direct(Runnable action) {
+        DIRECT.set(Boolean.TRUE);
+        try {
+            action.run();
+        } finally {
+            DIRECT.remove();
+        }
+    }
+
+    /**
+     * Whether work should be queued, false on the worker itself which sends the work of its retries straight away
+     */
+    boolean isQueueing() {
+        return running && Thread.currentThread() != worker && DIRECT.get() == null;
+    }
+
+    /**
+     * Called as a transaction commits with the work Hibernate Search has built for one index
+     */
+    void enqueue(AsyncElasticsearchIndexManager indexManager, List<LuceneWork> workList) {
+        // Recorded before it is queued, so a crash from here on can't lose it
+        List<IndexRetryJournal.Entry> pending = new ArrayList<>();
+        for (LuceneWork work : workList) {
+            if (work.getId() != null) {
+                pending.add(entry(work, 0));
+            }
+        }
+        int segment = pending.isEmpty() ? -1 : journal.pending(pending);
+
+        List<IndexRetryJournal.Entry> overflow = new ArrayList<>();
+        int overflowPending = 0;
+        for (LuceneWork work : workList) {
+            Item item = new Item(indexManager, work, bytes(work), (work.getId() != null) ? segment : -1);
+            if (!queue.offer(item)) {
+                blockedCommits.increment();
+                boolean queued = false;
+                try {
+                    queued = queue.offer(item, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!queued) {
+                    overflow.add(entry(work, 0));
+                    if (work.getId() != null) overflowPending++;
+                    continue;
+                }
+            }
+            enqueued.increment();
+        }
+        if (!overflow.isEmpty()) {
+            journal.append(overflow);
+            journal.sent(segment, overflowPending);
+            journalled.add(overflow.size());
+        }
+    }
+
+    /**
+     * Called by the {@link IndexingErrorHandler} for each document Elasticsearch did not accept
+     */
+    void failed(LuceneWork work) {
+        Item item = inFlight.get(work);
+        if (item != null) {
+            item.failed = true;
+            return;
+        }
+        if (work.getId() == null) {
+            return;
+        }
+        // Sent straight away, by a retry on the worker or before the worker started
+        IndexRetryJournal.Entry entry = entry(work, 0);
+        Integer attempts = (Thread.currentThread() == worker) ? retrying.get(entry.entityClass + "#" + entry.id) : null;
+        failedDocuments.increment();
+        retryLater(new IndexRetryJournal.Entry(entry.entityClass, entry.id, (attempts != null) ? attempts + 1 : 1));
+    }
+
+    private void run() {
+        long nextRetry = System.currentTimeMillis();
+        while (running) {
+            try {
+                Item first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    List<Item> batch = new ArrayList<>();
+                    batch.add(first);
+                    long bytes = first.bytes;
+                    Item next;
+                    while (batch.size() < batchSize && bytes < batchBytes && (next = queue.poll()) != null) {
+                        batch.add(next);
+                        bytes += next.bytes;
+                    }
+                    send(batch);
+                }
+                if (System.currentTimeMillis() >= nextRetry) {
+                    retry();
+                    nextRetry = System.currentTimeMillis() + retryMillis;
+                }
+            } catch (InterruptedException ex) {
+                break;
+            } catch (RuntimeException ex) {
+                log.error("Indexing worker " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private void send(List<Item> batch) {
+        Map<AsyncElasticsearchIndexManager, List<Item>> byIndex = new LinkedHashMap<>();
+        for (Item item : batch) {
+            byIndex.computeIfAbsent(item.indexManager, key -> new ArrayList<>()).add(item);
+        }
+        List<IndexRetryJournal.Entry> failures = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long lag = 0;
+        for (Map.Entry<AsyncElasticsearchIndexManager, List<Item>> index : byIndex.entrySet()) {
+            List<LuceneWork> works = new ArrayList<>();
+            for (Item item : index.getValue()) {
+                inFlight.put(item.work, item);
+                works.add(item.work);
+            }
+            try {
+                index.getKey().send(works);
+            } catch (RuntimeException ex) {
+                log.warn("Bulk indexing of " + works.size() + " documents failed " + ex.getMessage());
+                for (Item item : index.getValue()) {
+                    item.failed = true;
+                }
+            } finally {
+                for (Item item : index.getValue()) {
+                    inFlight.remove(item.work);
+                }
+            }
+            bulkRequests.increment();
+            for (Item item : index.getValue()) {
+                if (item.failed) {
+                    failures.add(entry(item.work, 1));
+                } else {
+                    indexed.increment();
+                    lag = Math.max(lag, now - item.enqueuedAt);
+                }
+            }
+        }
+        lagMillis = lag;
+        if (!failures.isEmpty()) {
+            failedDocuments.add(failures.size());
+            journal.append(failures);
+            journalled.add(failures.size());
+        }
+        Map<Integer, Integer> bySegment = new HashMap<>();
+        for (Item item : batch) {
+            if (item.segment >= 0) {
+                bySegment.merge(item.segment, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Integer, Integer> segment : bySegment.entrySet()) {
+            journal.sent(segment.getKey(), segment.getValue());
+        }
+    }
+
+    /**
+     * Index the journalled entities again from the database, a batch per transaction
+     */
+    private void retry() {
+        List<IndexRetryJournal.Entry> entries;
+        try {
+            entries = journal.take();
+        } catch (IOException ex) {
+            log.warn("Unable to read indexing journal " + ex.getMessage());
+            return;
+        }
+        if (entries.isEmpty()) return;
+        log.info("Retrying indexing of " + entries.size() + " documents");
+        int from = 0;
+        for (; from < entries.size() && running; from += batchSize) {
+            List<IndexRetryJournal.Entry> chunk = entries.subList(from, Math.min(entries.size(), from + batchSize));
+            retrying.clear();
+            for (IndexRetryJournal.Entry entry : chunk) {
+                retrying.put(entry.entityClass + "#" + entry.id, entry.attempts);
+            }
+            EntityManager entityManager = entityManagerFactory.createEntityManager();
+            try {
+                entityManager.getTransaction().begin();
+                FullTextEntityManager fullTextEntityManager = Search.getFullTextEntityManager(entityManager);
+                for (IndexRetryJournal.Entry entry : chunk) {
+                    Class<?> entityClass = Class.forName(entry.entityClass);
+                    Serializable id = id(entityManager, entityClass, entry.id);
+                    Object entity = entityManager.find(entityClass, id);
+                    if (entity == null) {
+                        fullTextEntityManager.purge(entityClass, id);
+                    } else {
+                        if (entity instanceof ResourceTable) {
+                            ResourceFullText.prepare(ctx, daos, (ResourceTable) entity);
+                        }
+                        fullTextEntityManager.index(entity);
+                    }
+                }
+                // The work is built and sent as the transaction commits, failures come back through failed()
+                entityManager.getTransaction().commit();
+                retried.add(chunk.size());
+            } catch (ClassNotFoundException | RuntimeException ex) {
+                log.warn("Retry of " + chunk.size() + " documents failed " + ex.getMessage());
+                if (entityManager.getTransaction().isActive()) {
+                    entityManager.getTransaction().rollback();
+                }
+                for (IndexRetryJournal.Entry entry : chunk) {
+                    retryLater(new IndexRetryJournal.Entry(entry.entityClass, entry.id, entry.attempts + 1));
+                }
+            } finally {
+                entityManager.close();
+                retrying.clear();
+            }
+        }
+        journal.replayed(entries.subList(Math.min(from, entries.size()), entries.size()));
+    }
+
+    private void retryLater(IndexRetryJournal.Entry entry) {
+        if (entry.attempts >= maxAttempts) {
+            abandoned.increment();
+            log.error("Giving up indexing " + entry.entityClass + "#" + entry.id + " after " + entry.attempts + " attempts");
+            journal.abandon(entry);
+            return;
+        }
+        List<IndexRetryJournal.Entry> entries = new ArrayList<>();
+        entries.add(entry);
+        journal.append(entries);
+        journalled.increment();
+    }
+
+    private static Serializable id(EntityManager entityManager, Class<?> entityClass, String id) {
+        Class<?> idType = entityManager.getMetamodel().entity(entityClass).getIdType().getJavaType();
+        if (idType == Long.class) return Long.valueOf(id);
+        if (idType == Integer.class) return Integer.valueOf(id);
+        return id;
+    }
+
+    private static IndexRetryJournal.Entry entry(LuceneWork work, int attempts) {
+        return new IndexRetryJournal.Entry(work.getEntityType().getPojoType().getName(), String.valueOf(work.getId()), attempts);
+    }
+
+    /**
+     * Roughly the size of the document's _bulk entry, from the text of its fields
+     */
+    private static long bytes(LuceneWork work) {
+        long bytes = 64;
+        if (work.getDocument() == null) {
+            return bytes;
+        }
+        for (IndexableField field : work.getDocument().getFields()) {
+            bytes += field.name().length();
+            String value = field.stringValue();
+            if (value != null) {
+                bytes += value.length();
+            } else if (field.binaryValue() != null) {
+                bytes += field.binaryValue().length;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    @Override
+    public long getOldestQueuedMillis() {
+        Item oldest = queue.peek();
+        return (oldest != null) ? System.currentTimeMillis() - oldest.enqueuedAt : 0;
+    }
+
+    @Override
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getIndexed() {
+        return indexed.sum();
+    }
+
+    @Override
+    public long getBulkRequests() {
+        return bulkRequests.sum();
+    }
+
+    @Override
+    public long getFailedDocuments() {
+        return failedDocuments.sum();
+    }
+
+    @Override
+    public long getBlockedCommits() {
+        return blockedCommits.sum();
+    }
+
+    @Override
+    public long getJournalled() {
+        return journalled.sum();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    @Override
+    public long getAbandoned() {
+        return abandoned.sum();
+    }
+}
@@ -0,0 +1,43 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+public interface AsyncIndexerMBean {
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * @return how long the document at the head of the queue has been waiting
+     */
+    long getOldestQueuedMillis();
+
+    /**
+     * @return the longest a document of the last bulk request waited between its commit and being sent
+     */
+    long getLagMillis();
+
+    long getEnqueued();
+
+    long getIndexed();
+
+    long getBulkRequests();
+
+    long getFailedDocuments();
+
+    /**
+     * @return commits which found the queue full and had to wait for room
+     */
+    long getBlockedCommits();
+
+    /**
+     * @return documents written to the retry journal, because they failed or the queue stayed full
+     */
+    long getJournalled();
+
+    long getRetried();
+
+    /**
+     * @return documents given up on after indexing.max_attempts, listed in failed.log
+     */
+    long getAbandoned();
+}
@@ -0,0 +1,395 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import org.hibernate.search.jpa.FullTextEntityManager;
+import org.hibernate.search.jpa.Search;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rebuilds the full text (Elasticsearch) index from the database while the server carries on serving requests, e.g.
+ * after the analyzers of the ElasticsearchMappingProvider change or the index is lost.
+ *
+ * A reader per resource type pages through the type's ids in order, reindex.batch_size at a time, and hands each batch
+ * to a shared pool of reindex.threads workers. A worker loads its batch in one transaction, works out the full text
+ * of each resource again (see {@link ResourceFullText}) and has Hibernate Search index it, which sends the batch as a
+ * _bulk request. Deleted resources are removed from the index. Only a couple of batches per worker are in flight at
+ * once, the readers wait for the workers to catch up, so the reindex takes at most reindex.threads plus a connection
+ * per type from the pool. The index work is sent straight to Elasticsearch rather than through the AsyncIndexer's
+ * queue, so it doesn't hold up the index work of the server's own writes.
+ *
+ * Elasticsearch reports the documents it rejects to the {@link IndexingErrorHandler} rather than failing the commit,
+ * so each batch's resources are watched there while it is sent and those rejected are indexed again one at a time.
+ * A batch which can't be finished at all stops the reindex, so resuming it starts again from that batch.
+ *
+ * Progress through each type is checkpointed, see {@link ReindexCheckpoint}. One reindex runs at a time.
+ */
+public class FullTextReindexService implements FullTextReindexServiceMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(FullTextReindexService.class);
+
+    private final FhirContext ctx;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final Path checkpointDir;
+
+    private final int batchSize;
+
+    private final int maxInFlight;
+
+    private final ExecutorService readers;
+
+    private final ExecutorService workers;
+
+    private volatile ReindexJob job;
+
+    private final LongAdder jobsStarted = new LongAdder();
+
+    private final LongAdder resourcesIndexed = new LongAdder();
+
+    private final LongAdder resourcesFailed = new LongAdder();
+
+    private final LongAdder batchesIndexed = new LongAdder();
+
+    public FullTextReindexService(FhirContext ctx, Map<String, IFhirResourceDao<?>> daos, EntityManagerFactory entityManagerFactory,
+                                  String checkpointDirectory, int threads, int batchSize) {
+        this.ctx = ctx;
+        this.daos = daos;
+        this.entityManagerFactory = entityManagerFactory;
+        this.checkpointDir = Paths.get(checkpointDirectory).toAbsolutePath().normalize();
+        this.batchSize = batchSize;
+        this.maxInFlight = threads * 2;
+
+        AtomicInteger readerCount = new AtomicInteger();
+        this.readers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "reindex-reader-" + readerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "reindex-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isIndexable(String resourceType) {
+        return daos.containsKey(resourceType);
+    }
+
+    public List<String> getIndexableTypes() {
+        return new ArrayList<>(daos.keySet());
+    }
+
+    /**
+     * Start reindexing the types, carrying on from the checkpoint of an earlier reindex of the same types
+     *
+     * @param restart ignore the checkpoint and start from the first resource
+     * @param purge remove every resource from the index first, only when not resuming
+     * @return null if a reindex is already running
+     */
+    public synchronized ReindexJob submit(List<String> resourceTypes, boolean restart, boolean purge) {
+        if (job != null && !job.isFinished()) {
+            return null;
+        }
+        ReindexJob submitted = new ReindexJob(resourceTypes);
+        job = submitted;
+        jobsStarted.increment();
+        readers.execute(() -> run(submitted, restart, purge));
+        log.info("Full text reindex " + submitted.getId() + " accepted for " + resourceTypes);
+        return submitted;
+    }
+
+    /**
+     * @return the running reindex, or the last one to finish
+     */
+    public ReindexJob getJob() {
+        return job;
+    }
+
+    /**
+     * Stop the reindex, its checkpoint is kept so it can be resumed by submitting the same types again
+     */
+    public boolean cancel() {
+        ReindexJob current = job;
+        if (current == null || current.isFinished()) {
+            return false;
+        }
+        current.finish(ReindexJob.Status.CANCELLED, null);
+        return true;
+    }
+
+    private void run(ReindexJob job, boolean restart, boolean purge) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        job.started();
+        try {
+            ReindexCheckpoint checkpoint = ReindexCheckpoint.open(checkpointDir, job.getResourceTypes(), restart);
+            if (purge && !checkpoint.isResumed()) {
+                purge();
+            }
+            for (String resourceType : job.getResourceTypes()) {
+                job.counted(resourceType, count(resourceType), checkpoint.getDone(resourceType));
+            }
+
+            List<Future<?>> typeReaders = new ArrayList<>();
+            for (String resourceType : job.getResourceTypes()) {
+                typeReaders.add(readers.submit(() -> {
+                    read(job, resourceType, checkpoint, inFlight);
+                    return null;
+                }));
+            }
+            for (Future<?> typeReader : typeReaders) {
+                typeReader.get();
+            }
+            // Wait for the last batches to be indexed
+            inFlight.acquire(maxInFlight);
+            if (!job.isFinished()) {
+                checkpoint.delete();
+                job.finish(ReindexJob.Status.COMPLETE, null);
+                log.info("Full text reindex " + job.getId() + " complete, " + job.getDone() + " resources in "
+                        + (job.getCompletedAt() - job.getStartedAt()) / 1000 + "s, " + job.getErrorCount() + " failed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            job.finish(ReindexJob.Status.CANCELLED, null);
+        } catch (Exception ex) {
+            log.error("Full text reindex " + job.getId() + " failed " + ex.getMessage());
+            job.finish(ReindexJob.Status.FAILED, ex.getMessage());
+        }
+    }
+
+    /**
+     * Page through the ids of the type after the checkpoint, handing each page to the workers
+     */
+    private void read(ReindexJob job, String resourceType, ReindexCheckpoint checkpoint, Semaphore inFlight) throws InterruptedException {
+        long after = checkpoint.getAfter(resourceType);
+        long batch = 0;
+        while (!job.isFinished()) {
+            List<Long> ids = ids(resourceType, after);
+            if (ids.isEmpty()) {
+                break;
+            }
+            after = ids.get(ids.size() - 1);
+            submitBatch(job, resourceType, checkpoint, batch++, ids, inFlight);
+        }
+        job.read(resourceType);
+    }
+
+    private void submitBatch(ReindexJob job, String resourceType, ReindexCheckpoint checkpoint, long batch, List<Long> ids,
+                             Semaphore inFlight) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            workers.execute(() -> {
+                try {
+                    if (job.isFinished()) {
+                        return;
+                    }
+                    indexBatch(job, resourceType, ids);
+                    checkpoint.finished(resourceType, batch, ids.get(ids.size() - 1), ids.size());
+                    batchesIndexed.increment();
+                } catch (RuntimeException ex) {
+                    // The checkpoint can't move past a batch which was never finished, so stop here and let a resume
+                    // start again from it rather than carry on indexing batches which would all be done again
+                    log.warn("Full text reindex " + job.getId() + " batch failed " + ex.getMessage());
+                    job.error(resourceType + " after " + ids.get(0) + ": " + ex.getMessage());
+                    job.finish(ReindexJob.Status.FAILED, resourceType + " batch from " + ids.get(0) + " failed: " + ex.getMessage());
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Index the batch in one transaction, then a resource at a time those which failed or Elasticsearch rejected so
+     * only the failing resources are left out
+     */
+    private void indexBatch(ReindexJob job, String resourceType, List<Long> ids) {
+        List<Long> retry = new ArrayList<>();
+        Set<Long> rejected = IndexingErrorHandler.watch(ids);
+        try {
+            AsyncIndexer.direct(() -> index(ids));
+            for (Long id : ids) {
+                if (rejected.contains(id)) {
+                    retry.add(id);
+                }
+            }
+        } catch (RuntimeException ex) {
+            log.debug("Reindex batch failed, retrying resources individually " + ex.getMessage());
+            retry.addAll(ids);
+        } finally {
+            IndexingErrorHandler.unwatch(ids);
+        }
+        job.indexed(resourceType, ids.size() - retry.size());
+        resourcesIndexed.add(ids.size() - retry.size());
+
+        for (Long id : retry) {
+            List<Long> single = new ArrayList<>();
+            single.add(id);
+            Set<Long> singleRejected = IndexingErrorHandler.watch(single);
+            try {
+                AsyncIndexer.direct(() -> index(single));
+                if (singleRejected.isEmpty()) {
+                    job.indexed(resourceType, 1);
+                    resourcesIndexed.increment();
+                } else {
+                    job.failed(resourceType, id, "rejected by Elasticsearch");
+                    resourcesFailed.increment();
+                }
+            } catch (RuntimeException resourceEx) {
+                job.failed(resourceType, id, resourceEx.getMessage());
+                resourcesFailed.increment();
+            } finally {
+                IndexingErrorHandler.unwatch(single);
+            }
+        }
+    }
+
+    private void index(List<Long> ids) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            FullTextEntityManager fullTextEntityManager = Search.getFullTextEntityManager(entityManager);
+            List<ResourceTable> entities = entityManager
+                    .createQuery("SELECT r FROM ResourceTable r WHERE r.myId IN (:ids)", ResourceTable.class)
+                    .setParameter("ids", ids)
+                    .getResultList();
+            for (ResourceTable entity : entities) {
+                if (entity.getDeleted() != null) {
+                    fullTextEntityManager.purge(ResourceTable.class, entity.getId());
+                } else {
+                    ResourceFullText.prepare(ctx, daos, entity);
+                    fullTextEntityManager.index(entity);
+                }
+            }
+            // Nothing is written, the index work is sent as the transaction commits
+            entityManager.getTransaction().commit();
+        } catch (RuntimeException ex) {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            throw ex;
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private List<Long> ids(String resourceType, long after) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return entityManager
+                    .createQuery("SELECT r.myId FROM ResourceTable r WHERE r.myResourceType = :type AND r.myId > :after ORDER BY r.myId", Long.class)
+                    .setParameter("type", resourceType)
+                    .setParameter("after", after)
+                    .setMaxResults(batchSize)
+                    .getResultList();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private long count(String resourceType) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return entityManager
+                    .createQuery("SELECT COUNT(r.myId) FROM ResourceTable r WHERE r.myResourceType = :type", Long.class)
+                    .setParameter("type", resourceType)
+                    .getSingleResult();
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    private void purge() {
+        log.info("Removing every resource from the full text index");
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            entityManager.getTransaction().begin();
+            FullTextEntityManager fullTextEntityManager = Search.getFullTextEntityManager(entityManager);
+            fullTextEntityManager.purgeAll(ResourceTable.class);
+            fullTextEntityManager.flushToIndexes();
+            entityManager.getTransaction().commit();
+        } finally {
+            if (entityManager.getTransaction().isActive()) {
+                entityManager.getTransaction().rollback();
+            }
+            entityManager.close();
+        }
+    }
+
+    public void shutdown() {
+        readers.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String getStatus() {
+        ReindexJob current = job;
+        return (current != null) ? current.getStatus().name() : "NONE";
+    }
+
+    @Override
+    public double getPercentComplete() {
+        ReindexJob current = job;
+        if (current == null || current.getTotal() == 0) {
+            return 0;
+        }
+        return Math.min(100.0, 100.0 * current.getDone() / current.getTotal());
+    }
+
+    @Override
+    public long getEtaSeconds() {
+        ReindexJob current = job;
+        return (current != null) ? current.getEtaSeconds() : 0;
+    }
+
+    @Override
+    public double getResourcesPerSecond() {
+        ReindexJob current = job;
+        return (current != null) ? current.getResourcesPerSecond() : 0;
+    }
+
+    @Override
+    public long getJobsStarted() {
+        return jobsStarted.sum();
+    }
+
+    @Override
+    public long getResourcesIndexed() {
+        return resourcesIndexed.sum();
+    }
+
+    @Override
+    public long getResourcesFailed() {
+        return resourcesFailed.sum();
+    }
+
+    @Override
+    public long getBatchesIndexed() {
+        return batchesIndexed.sum();
+    }
+}
@@ -0,0 +1,26 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+public interface FullTextReindexServiceMBean {
+
+    /**
+     * @return the status of the running reindex or the last to finish, NONE if there hasn't been one
+     */
+    String getStatus();
+
+    double getPercentComplete();
+
+    /**
+     * @return the estimated seconds left, -1 until there is a rate to estimate from
+     */
+    long getEtaSeconds();
+
+    double getResourcesPerSecond();
+
+    long getJobsStarted();
+
+    long getResourcesIndexed();
+
+    long getResourcesFailed();
+
+    long getBatchesIndexed();
+}
@@ -0,0 +1,269 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The documents waiting to be indexed again, kept in a file so they survive a restart.
+ *
+ * Each line is the entity class, its id and the number of attempts made so far. The document is rebuilt from the
+ * database when it is retried, so only the latest state of an entity is indexed however many times it is journalled.
+ * A document which has failed max_attempts times is moved to failed.log and left for a reindex.
+ *
+ * Documents are also written to a pending segment as they are queued, and counted off as they are sent or moved to
+ * the journal. A segment is removed once all of its documents are accounted for, so after a crash the segments left
+ * behind hold every document which may not have been sent, and they are moved to the journal when the server starts.
+ * The segments are not forced to disk, a crash of the machine rather than the server can still lose the last writes.
+ */
+class IndexRetryJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexRetryJournal.class);
+
+    private final Path journal;
+
+    private final Path taken;
+
+    private final Path replaying;
+
+    private final Path failed;
+
+    private final Path directory;
+
+    // Documents in a segment before the next is started, so one which never drains can't grow without bound
+    private static final int SEGMENT_ENTRIES = 10000;
+
+    // Guards the pending segments apart from the journal itself, so commits don't wait on a retry's file I/O
+    private final Object pendingLock = new Object();
+
+    private final Map<Integer, Integer> outstanding = new LinkedHashMap<>();
+
+    private int segment;
+
+    private int segmentEntries;
+
+    // Kept open for the current segment, so a commit only writes and flushes its lines
+    private Writer segmentWriter;
+
+    /**
+     * A journalled document
+     */
+    static final class Entry {
+        final String entityClass;
+        final String id;
+        final int attempts;
+
+        Entry(String entityClass, String id, int attempts) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.attempts = attempts;
+        }
+    }
+
+    IndexRetryJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.journal = directory.resolve("retry.log");
+        this.taken = directory.resolve("retry.taken");
+        this.replaying = directory.resolve("retry.replay");
+        this.failed = directory.resolve("failed.log");
+        this.directory = directory;
+        recoverPending();
+    }
+
+    /**
+     * Record documents about to be queued
+     *
+     * @return the segment they were written to, to be handed back to {@link #sent}
+     */
+    int pending(List<Entry> entries) {
+        synchronized (pendingLock) {
+            if (segmentEntries >= SEGMENT_ENTRIES) {
+                closeSegment();
+                segment++;
+                segmentEntries = 0;
+            }
+            try {
+                if (segmentWriter == null) {
+                    segmentWriter = Files.newBufferedWriter(pendingSegment(segment), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                for (Entry entry : entries) {
+                    segmentWriter.write(entry.entityClass + " " + entry.id + " " + entry.attempts + "\n");
+                }
+                segmentWriter.flush();
+            } catch (IOException ex) {
+                log.error("Unable to record " + entries.size() + " documents waiting to be indexed " + ex.getMessage());
+                closeSegment();
+            }
+            outstanding.merge(segment, entries.size(), Integer::sum);
+            segmentEntries += entries.size();
+            return segment;
+        }
+    }
+
+    /**
+     * Count off documents of the segment which have been sent, or moved to the journal
+     */
+    void sent(int pendingSegment, int count) {
+        synchronized (pendingLock) {
+            Integer left = outstanding.get(pendingSegment);
+            if (left == null) return;
+            left -= count;
+            if (left > 0) {
+                outstanding.put(pendingSegment, left);
+                return;
+            }
+            outstanding.remove(pendingSegment);
+            if (pendingSegment == segment) {
+                closeSegment();
+                segment++;
+                segmentEntries = 0;
+            }
+            try {
+                Files.deleteIfExists(pendingSegment(pendingSegment));
+            } catch (IOException ex) {
+                log.warn("Unable to remove pending segment " + pendingSegment + " " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Everything still pending has been journalled, at shutdown
+     */
+    void clearPending() {
+        synchronized (pendingLock) {
+            for (Integer pendingSegment : new ArrayList<>(outstanding.keySet())) {
+                sent(pendingSegment, Integer.MAX_VALUE);
+            }
+            closeSegment();
+        }
+    }
+
+    private void closeSegment() {
+        if (segmentWriter == null) return;
+        try {
+            segmentWriter.close();
+        } catch (IOException ex) {
+            log.warn("Unable to close pending segment " + segment + " " + ex.getMessage());
+        }
+        segmentWriter = null;
+    }
+
+    /**
+     * Move the documents of segments left by a crash to the journal
+     */
+    private void recoverPending() throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "pending.*.log")) {
+            for (Path file : files) {
+                read(file, entries);
+                segments.add(file);
+            }
+        }
+        if (segments.isEmpty()) return;
+        log.warn("Recovering " + entries.size() + " documents which may not have been indexed before the server stopped");
+        append(new ArrayList<>(entries.values()));
+        for (Path file : segments) {
+            Files.delete(file);
+        }
+    }
+
+    private Path pendingSegment(int pendingSegment) {
+        return directory.resolve("pending." + pendingSegment + ".log");
+    }
+
+    synchronized void append(List<Entry> entries) {
+        if (entries.isEmpty()) return;
+        try (Writer writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Entry entry : entries) {
+                writer.write(entry.entityClass + " " + entry.id + " " + entry.attempts + "\n");
+            }
+        } catch (IOException ex) {
+            // Nothing more can be done, the documents are missing from the index until a reindex
+            log.error("Unable to journal " + entries.size() + " documents for indexing " + ex.getMessage());
+        }
+    }
+
+    synchronized void abandon(Entry entry) {
+        try (Writer writer = Files.newBufferedWriter(failed, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(entry.entityClass + " " + entry.id + " " + entry.attempts + "\n");
+        } catch (IOException ex) {
+            log.error("Unable to record failed document " + entry.entityClass + "#" + entry.id + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Take the journalled documents to be retried, each entity once with its highest attempt count. A replay left
+     * unfinished by a restart is taken up again.
+     */
+    synchronized List<Entry> take() throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        if (Files.exists(replaying)) {
+            read(replaying, entries);
+        }
+        if (Files.exists(journal)) {
+            Files.move(journal, taken, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (Files.exists(taken)) {
+            read(taken, entries);
+        }
+        if (entries.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // Written before the taken file is removed, so a restart part way through still has them
+        Path tmp = Files.createTempFile(replaying.getParent(), "retry", ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.entityClass + " " + entry.id + " " + entry.attempts + "\n");
+            }
+        }
+        Files.move(tmp, replaying, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(taken);
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * The taken documents have been retried, those which failed again have been appended to the journal. Any not
+     * reached (the server is stopping) are put back in the journal first.
+     */
+    synchronized void replayed(List<Entry> notReplayed) {
+        append(notReplayed);
+        try {
+            Files.deleteIfExists(replaying);
+        } catch (IOException ex) {
+            log.warn("Unable to remove " + replaying + " " + ex.getMessage());
+        }
+    }
+
+    private static void read(Path file, Map<String, Entry> entries) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 3) continue;
+                String key = fields[0] + "#" + fields[1];
+                int attempts = Integer.parseInt(fields[2]);
+                Entry existing = entries.get(key);
+                if (existing == null || existing.attempts < attempts) {
+                    entries.put(key, new Entry(fields[0], fields[1], attempts));
+                }
+            }
+        }
+    }
+}
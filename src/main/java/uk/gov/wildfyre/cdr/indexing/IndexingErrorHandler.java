@@ -0,0 +1,76 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import org.hibernate.search.backend.LuceneWork;
+import org.hibernate.search.exception.ErrorContext;
+import org.hibernate.search.exception.ErrorHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Set as hibernate.search.error_handler, so documents which Elasticsearch rejects are journalled by the
+ * {@link AsyncIndexer} (when indexing.async=true) to be retried rather than only logged. Elasticsearch reports
+ * rejected documents here rather than failing the commit, so the {@link FullTextReindexService} watches the resources
+ * of each batch it sends to learn which were not indexed.
+ */
+public class IndexingErrorHandler implements ErrorHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexingErrorHandler.class);
+
+    // Resource ids being reindexed, to the set their batch's rejected ids are added to
+    private static final Map<Long, Set<Long>> watched = new ConcurrentHashMap<>();
+
+    /**
+     * Watch the resources while a reindex sends them
+     *
+     * @return the ids Elasticsearch rejects, filled in until {@link #unwatch} is called
+     */
+    static Set<Long> watch(List<Long> ids) {
+        Set<Long> rejected = ConcurrentHashMap.newKeySet();
+        for (Long id : ids) {
+            watched.put(id, rejected);
+        }
+        return rejected;
+    }
+
+    static void unwatch(List<Long> ids) {
+        for (Long id : ids) {
+            watched.remove(id);
+        }
+    }
+
+    @Override
+    public void handle(ErrorContext context) {
+        log.warn("Indexing failed " + context.getThrowable());
+        for (LuceneWork work : context.getFailingOperations()) {
+            failed(work);
+        }
+        if (context.getOperationAtFault() != null) {
+            failed(context.getOperationAtFault());
+        }
+    }
+
+    private static void failed(LuceneWork work) {
+        if (work.getId() instanceof Long && work.getEntityType().getPojoType() == ResourceTable.class) {
+            Set<Long> rejected = watched.get(work.getId());
+            if (rejected != null) {
+                rejected.add((Long) work.getId());
+                return;
+            }
+        }
+        AsyncIndexer indexer = AsyncIndexer.get();
+        if (indexer != null) {
+            indexer.failed(work);
+        }
+    }
+
+    @Override
+    public void handleException(String errorMsg, Throwable exception) {
+        log.error(errorMsg, exception);
+    }
+}
@@ -0,0 +1,145 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * How far a full text reindex has got through each resource type, kept in a properties file so a stopped or
+ * interrupted reindex carries on from where it stopped.
+ *
+ * Each type is read in order of resource id and its batches are indexed in parallel, so they can finish out of order.
+ * Only the ids up to the first batch which has not finished are recorded, a later batch which had finished is
+ * indexed again on resume. The checkpoint applies to a reindex of the same types and is removed once it completes.
+ */
+class ReindexCheckpoint {
+
+    private static final Logger log = LoggerFactory.getLogger(ReindexCheckpoint.class);
+
+    private final Path checkpointFile;
+
+    private final String types;
+
+    private final Map<String, TypeState> states = new HashMap<>();
+
+    /**
+     * The batches of one type which have finished, and the point every batch up to has finished
+     */
+    private static final class TypeState {
+        private final TreeMap<Long, long[]> finishedBatches = new TreeMap<>();
+        private long nextBatch;
+        private long after;
+        private long done;
+    }
+
+    private ReindexCheckpoint(Path checkpointFile, String types) {
+        this.checkpointFile = checkpointFile;
+        this.types = types;
+    }
+
+    /**
+     * @param restart ignore any checkpoint and start again from the first resource
+     */
+    static ReindexCheckpoint open(Path checkpointDir, List<String> resourceTypes, boolean restart) throws IOException {
+        Files.createDirectories(checkpointDir);
+        String types = String.join(",", resourceTypes);
+        ReindexCheckpoint checkpoint = new ReindexCheckpoint(checkpointDir.resolve("reindex.properties"), types);
+        Properties properties = new Properties();
+        if (!restart && Files.exists(checkpoint.checkpointFile)) {
+            try (InputStream in = Files.newInputStream(checkpoint.checkpointFile)) {
+                properties.load(in);
+            }
+            if (types.equals(properties.getProperty("types"))) {
+                log.info("Resuming reindex of " + types);
+            } else {
+                properties.clear();
+            }
+        }
+        for (String resourceType : resourceTypes) {
+            TypeState state = new TypeState();
+            state.after = Long.parseLong(properties.getProperty(resourceType + ".after", "0"));
+            state.done = Long.parseLong(properties.getProperty(resourceType + ".done", "0"));
+            checkpoint.states.put(resourceType, state);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @return true if an earlier run had made progress which this one carries on from
+     */
+    synchronized boolean isResumed() {
+        for (TypeState state : states.values()) {
+            if (state.after > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the id every resource of the type up to has been indexed
+     */
+    synchronized long getAfter(String resourceType) {
+        return states.get(resourceType).after;
+    }
+
+    synchronized long getDone(String resourceType) {
+        return states.get(resourceType).done;
+    }
+
+    /**
+     * Batch number batch of the type, the resources up to lastId, has been indexed
+     */
+    synchronized void finished(String resourceType, long batch, long lastId, long count) {
+        TypeState state = states.get(resourceType);
+        state.finishedBatches.put(batch, new long[] {lastId, count});
+        boolean advanced = false;
+        long[] next;
+        while ((next = state.finishedBatches.remove(state.nextBatch)) != null) {
+            state.after = next[0];
+            state.done += next[1];
+            state.nextBatch++;
+            advanced = true;
+        }
+        if (advanced) {
+            save();
+        }
+    }
+
+    synchronized void delete() {
+        try {
+            Files.deleteIfExists(checkpointFile);
+        } catch (IOException ex) {
+            log.warn("Unable to remove reindex checkpoint " + checkpointFile + " " + ex.getMessage());
+        }
+    }
+
+    private void save() {
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("types", types);
+            for (Map.Entry<String, TypeState> state : states.entrySet()) {
+                properties.setProperty(state.getKey() + ".after", String.valueOf(state.getValue().after));
+                properties.setProperty(state.getKey() + ".done", String.valueOf(state.getValue().done));
+            }
+            Path tmp = Files.createTempFile(checkpointFile.getParent(), "checkpoint", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, null);
+            }
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.warn("Unable to save reindex checkpoint " + checkpointFile + " " + ex.getMessage());
+        }
+    }
+}
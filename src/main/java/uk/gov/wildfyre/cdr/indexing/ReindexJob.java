@@ -0,0 +1,223 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one full text reindex, see {@link FullTextReindexService}
+ */
+public class ReindexJob {
+
+    // Only the first errors are kept, the rest are counted
+    private static final int MAX_ERRORS = 100;
+
+    public enum Status {
+        ACCEPTED, IN_PROGRESS, COMPLETE, FAILED, CANCELLED
+    }
+
+    /**
+     * The progress through one resource type
+     */
+    public static final class TypeProgress {
+        private final String resourceType;
+        private volatile long total;
+        private volatile long resumedFrom;
+        private final AtomicLong indexed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile boolean read;
+
+        TypeProgress(String resourceType) {
+            this.resourceType = resourceType;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        /**
+         * @return the number of resources of the type when the job started
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return resources indexed by an earlier run of the job
+         */
+        public long getResumedFrom() {
+            return resumedFrom;
+        }
+
+        public long getIndexed() {
+            return indexed.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return true once every resource of the type has been handed to the workers
+         */
+        public boolean isRead() {
+            return read;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final Map<String, TypeProgress> types = new LinkedHashMap<>();
+
+    private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger errorCount = new AtomicInteger();
+
+    private volatile Status status = Status.ACCEPTED;
+
+    private volatile long startedAt;
+
+    private volatile long completedAt;
+
+    private volatile String failure;
+
+    ReindexJob(List<String> resourceTypes) {
+        for (String resourceType : resourceTypes) {
+            types.put(resourceType, new TypeProgress(resourceType));
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETE || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public List<TypeProgress> getTypes() {
+        return new ArrayList<>(types.values());
+    }
+
+    public List<String> getResourceTypes() {
+        return new ArrayList<>(types.keySet());
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getCompletedAt() {
+        return completedAt;
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (TypeProgress type : types.values()) {
+            total += type.total;
+        }
+        return total;
+    }
+
+    /**
+     * @return resources indexed, by this run and those before it
+     */
+    public long getDone() {
+        long done = 0;
+        for (TypeProgress type : types.values()) {
+            done += type.resumedFrom + type.indexed.get() + type.failed.get();
+        }
+        return done;
+    }
+
+    /**
+     * @return resources indexed per second by this run
+     */
+    public double getResourcesPerSecond() {
+        if (startedAt == 0) {
+            return 0;
+        }
+        long end = (completedAt != 0) ? completedAt : System.currentTimeMillis();
+        long done = 0;
+        for (TypeProgress type : types.values()) {
+            done += type.indexed.get() + type.failed.get();
+        }
+        double seconds = Math.max(1, end - startedAt) / 1000.0;
+        return done / seconds;
+    }
+
+    /**
+     * @return the estimated seconds left at the rate so far, -1 until there is a rate
+     */
+    public long getEtaSeconds() {
+        if (isFinished()) {
+            return 0;
+        }
+        double rate = getResourcesPerSecond();
+        if (rate <= 0) {
+            return -1;
+        }
+        return Math.round(Math.max(0, getTotal() - getDone()) / rate);
+    }
+
+    void started() {
+        startedAt = System.currentTimeMillis();
+        status = Status.IN_PROGRESS;
+    }
+
+    void counted(String resourceType, long total, long resumedFrom) {
+        TypeProgress type = types.get(resourceType);
+        type.total = total;
+        type.resumedFrom = resumedFrom;
+    }
+
+    void read(String resourceType) {
+        types.get(resourceType).read = true;
+    }
+
+    void indexed(String resourceType, long count) {
+        types.get(resourceType).indexed.addAndGet(count);
+    }
+
+    void failed(String resourceType, long id, String message) {
+        types.get(resourceType).failed.incrementAndGet();
+        error(resourceType + "/" + id + ": " + message);
+    }
+
+    void error(String message) {
+        if (errorCount.incrementAndGet() <= MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    synchronized void finish(Status finalStatus, String failureMessage) {
+        if (isFinished()) {
+            return;
+        }
+        failure = failureMessage;
+        completedAt = System.currentTimeMillis();
+        status = finalStatus;
+    }
+}
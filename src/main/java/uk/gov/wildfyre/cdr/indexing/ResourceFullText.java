@@ -0,0 +1,53 @@
+package uk.gov.wildfyre.cdr.indexing;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IDomainResource;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+
+import java.util.Map;
+
+/**
+ * The words of a resource's content and narrative are held on the ResourceTable entity only while it is being
+ * written, they are not stored in the database. Anything indexing a resource it has loaded works them out again
+ * from the resource here first, as HAPI does when the resource is written.
+ */
+class ResourceFullText {
+
+    private ResourceFullText() {
+    }
+
+    static void prepare(FhirContext ctx, Map<String, IFhirResourceDao<?>> daos, ResourceTable entity) {
+        IFhirResourceDao<?> dao = daos.get(entity.getResourceType());
+        if (!(dao instanceof IDao)) return;
+        IBaseResource resource = ((IDao) dao).toResource(entity, false);
+        if (resource == null) return;
+        entity.setContentTextParsedIntoWords(BaseHapiFhirDao.parseContentTextIntoWords(ctx, resource));
+        if (resource instanceof IDomainResource && ((IDomainResource) resource).getText() != null
+                && ((IDomainResource) resource).getText().getDiv() instanceof XhtmlNode) {
+            StringBuilder words = new StringBuilder();
+            appendText((XhtmlNode) ((IDomainResource) resource).getText().getDiv(), words);
+            entity.setNarrativeTextParsedIntoWords(words.toString().replaceAll("\\s+", " ").trim());
+        }
+    }
+
+    /**
+     * The text nodes of the narrative, which hold it with entities already resolved, as HAPI indexes it
+     */
+    private static void appendText(XhtmlNode node, StringBuilder words) {
+        if (node.getNodeType() == NodeType.Text) {
+            if (node.getContent() != null) {
+                words.append(node.getContent()).append(' ');
+            }
+            return;
+        }
+        for (XhtmlNode child : node.getChildNodes()) {
+            appendText(child, words);
+        }
+    }
+}
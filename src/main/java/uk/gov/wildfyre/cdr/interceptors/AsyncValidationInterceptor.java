@@ -0,0 +1,37 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import uk.gov.wildfyre.cdr.validation.AsyncValidationService;
+
+/**
+ * Shadow validation mode (validation.async=true): writes are not held up by validation. Each resource created or
+ * updated by the JPA layer, including the entries of transactions, is handed to the {@link AsyncValidationService}
+ * once it has been given its id and version.
+ */
+public class AsyncValidationInterceptor extends ServerOperationInterceptorAdapter {
+
+    private final AsyncValidationService validationService;
+
+    public AsyncValidationInterceptor(AsyncValidationService validationService) {
+        this.validationService = validationService;
+    }
+
+    @Override
+    public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
+        submit(theResource);
+    }
+
+    @Override
+    public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
+        submit(theNewResource);
+    }
+
+    private void submit(IBaseResource theResource) {
+        if (theResource instanceof Resource) {
+            validationService.submit((Resource) theResource);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.bulk.BulkExportJob;
+import uk.gov.wildfyre.cdr.bulk.BulkExportService;
+import uk.gov.wildfyre.cdr.idp.OAuth2Interceptor;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The FHIR Bulk Data export endpoints, run as jobs by the {@link BulkExportService}:
+ *
+ *   GET [base]/$export, [base]/Patient/$export or [base]/Group/[id]/$export (with Prefer: respond-async)
+ *       accepts the job, 202 Accepted with Content-Location pointing at its status
+ *   GET [base]/$export-poll-status?_jobId=[id]
+ *       202 with X-Progress while running, then 200 with the manifest of NDJSON files
+ *   DELETE [base]/$export-poll-status?_jobId=[id]
+ *       cancels the job and removes its files
+ *   GET [base]/$export-download/[id]/[type].ndjson
+ *       one of the files listed in the manifest
+ *
+ * _type and _since are supported, _outputFormat must be NDJSON. Must be registered after the OAuth2Interceptor,
+ * every exported type must be readable with the request's token. A job belongs to the client which started it, the
+ * token's client (or the caller's address without OAuth2), and is unknown to any other client.
+ */
+public class BulkExportInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportInterceptor.class);
+
+    private static final Pattern SYSTEM_EXPORT = Pattern.compile("^/\\$export$");
+
+    private static final Pattern PATIENT_EXPORT = Pattern.compile("^/Patient/\\$export$");
+
+    private static final Pattern GROUP_EXPORT = Pattern.compile("^/Group/([A-Za-z0-9\\-.]{1,64})/\\$export$");
+
+    private static final Pattern POLL_STATUS = Pattern.compile("^/\\$export-poll-status$");
+
+    private static final Pattern DOWNLOAD = Pattern.compile("^/\\$export-download/([0-9a-f\\-]{36})/([A-Za-z]+)\\.ndjson$");
+
+    private static final Set<String> OUTPUT_FORMATS = new HashSet<>(Arrays.asList(
+            "application/fhir+ndjson", "application/ndjson", "ndjson"));
+
+    private static final String NDJSON = "application/fhir+ndjson";
+
+    private static final String RESPOND_ASYNC = "respond-async";
+
+    private final BulkExportService exportService;
+
+    private final OAuth2Interceptor oAuth2Interceptor;
+
+    private final int maxJobs;
+
+    /**
+     * @param oAuth2Interceptor null unless OAuth2 is enabled
+     */
+    public BulkExportInterceptor(BulkExportService exportService, OAuth2Interceptor oAuth2Interceptor, int maxJobs) {
+        this.exportService = exportService;
+        this.oAuth2Interceptor = oAuth2Interceptor;
+        this.maxJobs = maxJobs;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String path = theRequest.getPathInfo();
+        if (path == null || path.indexOf("$export") < 0) {
+            return true;
+        }
+
+        Matcher group = GROUP_EXPORT.matcher(path);
+        if (SYSTEM_EXPORT.matcher(path).matches()) {
+            kickOff(theRequest, theResponse, BulkExportJob.Level.SYSTEM, null);
+        } else if (PATIENT_EXPORT.matcher(path).matches()) {
+            kickOff(theRequest, theResponse, BulkExportJob.Level.PATIENT, null);
+        } else if (group.matches()) {
+            kickOff(theRequest, theResponse, BulkExportJob.Level.GROUP, group.group(1));
+        } else if (POLL_STATUS.matcher(path).matches()) {
+            pollStatus(theRequest, theResponse);
+        } else {
+            Matcher download = DOWNLOAD.matcher(path);
+            if (!download.matches()) {
+                return true;
+            }
+            download(theRequest, theResponse, download.group(1), download.group(2));
+        }
+        return false;
+    }
+
+    private void kickOff(HttpServletRequest theRequest, HttpServletResponse theResponse, BulkExportJob.Level level, String groupId) {
+        if (!"GET".equals(theRequest.getMethod())) {
+            throw new InvalidRequestException("$export must be requested with GET");
+        }
+        String prefer = theRequest.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(RESPOND_ASYNC)) {
+            throw new InvalidRequestException("$export requires the header Prefer: respond-async");
+        }
+        String outputFormat = theRequest.getParameter("_outputFormat");
+        if (outputFormat != null && !OUTPUT_FORMATS.contains(outputFormat)) {
+            throw new InvalidRequestException("Unsupported _outputFormat " + outputFormat + ", only NDJSON is supported");
+        }
+
+        List<String> resourceTypes = new ArrayList<>();
+        String types = theRequest.getParameter("_type");
+        if (types != null && !types.trim().isEmpty()) {
+            for (String type : types.split(",")) {
+                String resourceType = type.trim();
+                if (!exportService.isExportable(resourceType)) {
+                    throw new InvalidRequestException("Unknown resource type in _type: " + resourceType);
+                }
+                if (!resourceTypes.contains(resourceType)) {
+                    resourceTypes.add(resourceType);
+                }
+            }
+        } else {
+            resourceTypes.addAll(exportService.getExportableTypes());
+        }
+
+        if (oAuth2Interceptor != null) {
+            for (String resourceType : resourceTypes) {
+                if (!oAuth2Interceptor.allowedAccess(theRequest, resourceType, "GET")) {
+                    throw new ForbiddenOperationException("Insufficient Access Rights to export " + resourceType);
+                }
+            }
+        }
+
+        Date since = null;
+        String sinceParameter = theRequest.getParameter(Constants.PARAM_SINCE);
+        if (sinceParameter != null) {
+            try {
+                since = new InstantType(sinceParameter).getValue();
+            } catch (DataFormatException ex) {
+                throw new InvalidRequestException("Invalid _since " + sinceParameter);
+            }
+        }
+
+        // Checked and submitted together so concurrent kick-offs can't exceed the limit
+        BulkExportJob job;
+        synchronized (this) {
+            if (exportService.getActiveJobCount() >= maxJobs) {
+                throw new UnclassifiedServerFailureException(429, "Too many exports in progress, try again later");
+            }
+            String request = theRequest.getRequestURL() + (theRequest.getQueryString() != null ? "?" + theRequest.getQueryString() : "");
+            job = exportService.submit(owner(theRequest), request, ResponseEncoding.serverBase(theRequest), level, groupId, resourceTypes, since);
+        }
+
+        theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                job.getServerBase() + "/$export-poll-status?_jobId=" + job.getId());
+    }
+
+    private void pollStatus(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String jobId = theRequest.getParameter("_jobId");
+        if (jobId == null) {
+            throw new InvalidRequestException("_jobId is required");
+        }
+        BulkExportJob job = ownedJob(theRequest, jobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("Unknown export " + jobId);
+        }
+        if ("DELETE".equals(theRequest.getMethod())) {
+            if (!exportService.cancel(jobId)) {
+                throw new ResourceNotFoundException("Unknown export " + jobId);
+            }
+            theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+            return;
+        }
+
+        switch (job.getStatus()) {
+            case COMPLETE:
+                byte[] manifest = manifest(job).toString().getBytes(StandardCharsets.UTF_8);
+                theResponse.setStatus(HttpServletResponse.SC_OK);
+                theResponse.setContentType("application/json;charset=utf-8");
+                theResponse.setContentLength(manifest.length);
+                write(theResponse, manifest);
+                break;
+            case FAILED:
+                throw new InternalErrorException("Export failed: " + job.getError());
+            case CANCELLED:
+                throw new ResourceNotFoundException("Export " + jobId + " was cancelled");
+            default:
+                theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+                theResponse.setHeader("X-Progress", job.getExported() + " resources exported, "
+                        + (job.getResourceTypes().size() - job.getRemainingTypes()) + " of " + job.getResourceTypes().size() + " types complete");
+                theResponse.setHeader("Retry-After", "10");
+        }
+    }
+
+    private JSONObject manifest(BulkExportJob job) {
+        JSONArray output = new JSONArray();
+        for (BulkExportJob.Output next : job.getOutputs().values()) {
+            output.put(new JSONObject()
+                    .put("type", next.getResourceType())
+                    .put("url", job.getServerBase() + "/$export-download/" + job.getId() + "/" + next.getResourceType() + ".ndjson")
+                    .put("count", next.getCount()));
+        }
+        return new JSONObject()
+                .put("transactionTime", new InstantType(job.getTransactionTime()).getValueAsString())
+                .put("request", job.getRequest())
+                .put("requiresAccessToken", HapiProperties.getSecurityOauth())
+                .put("output", output)
+                .put("error", new JSONArray());
+    }
+
+    private void download(HttpServletRequest theRequest, HttpServletResponse theResponse, String jobId, String resourceType) {
+        BulkExportJob job = ownedJob(theRequest, jobId);
+        BulkExportJob.Output output = (job != null && job.getStatus() == BulkExportJob.Status.COMPLETE)
+                ? job.getOutputs().get(resourceType)
+                : null;
+        if (output == null) {
+            throw new ResourceNotFoundException("Unknown export file " + jobId + "/" + resourceType);
+        }
+        if (oAuth2Interceptor != null && !oAuth2Interceptor.allowedAccess(theRequest, resourceType, "GET")) {
+            throw new ForbiddenOperationException("Insufficient Access Rights to read " + resourceType);
+        }
+
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(NDJSON);
+        theResponse.setHeader("Content-Length", Long.toString(output.getFile().toFile().length()));
+        try (OutputStream out = theResponse.getOutputStream()) {
+            Files.copy(output.getFile(), out);
+        } catch (IOException ex) {
+            log.debug("Unable to send export file " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return null if there is no such job or it was started by another client
+     */
+    private BulkExportJob ownedJob(HttpServletRequest theRequest, String jobId) {
+        BulkExportJob job = exportService.getJob(jobId);
+        return (job != null && job.getOwner().equals(owner(theRequest))) ? job : null;
+    }
+
+    private String owner(HttpServletRequest theRequest) {
+        if (oAuth2Interceptor != null) {
+            String client = oAuth2Interceptor.getClient(theRequest);
+            if (client != null) {
+                return client;
+            }
+        }
+        String forwardedFor = theRequest.getHeader("X-Forwarded-For");
+        if (forwardedFor != null && !forwardedFor.isEmpty()) {
+            int comma = forwardedFor.indexOf(',');
+            return (comma > 0) ? forwardedFor.substring(0, comma).trim() : forwardedFor.trim();
+        }
+        return theRequest.getRemoteAddr();
+    }
+
+    private void write(HttpServletResponse theResponse, byte[] body) {
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write export status " + ex.getMessage());
+        }
+    }
+}
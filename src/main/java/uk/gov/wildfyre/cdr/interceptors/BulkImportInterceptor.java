@@ -0,0 +1,239 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Parameters;
+import org.hl7.fhir.dstu3.model.PrimitiveType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.bulk.BulkImportJob;
+import uk.gov.wildfyre.cdr.bulk.BulkImportService;
+import uk.gov.wildfyre.cdr.idp.OAuth2Interceptor;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The bulk NDJSON import endpoints, run as jobs by the {@link BulkImportService}:
+ *
+ *   POST [base]/$import (with Prefer: respond-async) and a Parameters body listing the files, e.g.
+ *       inputFormat = application/fhir+ndjson, input = (type = Patient, url = patients.ndjson)
+ *       accepts the job, 202 Accepted with Content-Location pointing at its status
+ *   GET [base]/$import-poll-status?_jobId=[id]
+ *       202 with X-Progress while running, then 200 with the counts and errors for each file
+ *   DELETE [base]/$import-poll-status?_jobId=[id]
+ *       stops the job, submitting the same files again resumes it
+ *
+ * Files are read from bulk.import.dir, urls are resolved against it and may not point outside it. Must be
+ * registered after the OAuth2Interceptor, every imported type must be writable with the request's token.
+ */
+public class BulkImportInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkImportInterceptor.class);
+
+    private static final String IMPORT = "/$import";
+
+    private static final String POLL_STATUS = "/$import-poll-status";
+
+    private static final Set<String> INPUT_FORMATS = new HashSet<>(Arrays.asList(
+            "application/fhir+ndjson", "application/ndjson", "ndjson"));
+
+    private static final String RESPOND_ASYNC = "respond-async";
+
+    private final BulkImportService importService;
+
+    private final FhirContext ctx;
+
+    private final OAuth2Interceptor oAuth2Interceptor;
+
+    private final int maxJobs;
+
+    /**
+     * @param oAuth2Interceptor null unless OAuth2 is enabled
+     */
+    public BulkImportInterceptor(BulkImportService importService, FhirContext ctx, OAuth2Interceptor oAuth2Interceptor, int maxJobs) {
+        this.importService = importService;
+        this.ctx = ctx;
+        this.oAuth2Interceptor = oAuth2Interceptor;
+        this.maxJobs = maxJobs;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String path = theRequest.getPathInfo();
+        if (IMPORT.equals(path)) {
+            kickOff(theRequest, theResponse);
+            return false;
+        }
+        if (POLL_STATUS.equals(path)) {
+            pollStatus(theRequest, theResponse);
+            return false;
+        }
+        return true;
+    }
+
+    private void kickOff(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"POST".equals(theRequest.getMethod())) {
+            throw new InvalidRequestException("$import must be requested with POST");
+        }
+        String prefer = theRequest.getHeader(Constants.HEADER_PREFER);
+        if (prefer == null || !prefer.contains(RESPOND_ASYNC)) {
+            throw new InvalidRequestException("$import requires the header Prefer: respond-async");
+        }
+
+        Parameters parameters = parseParameters(theRequest);
+        List<BulkImportJob.Input> inputs = new ArrayList<>();
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            if ("inputFormat".equals(parameter.getName())) {
+                String inputFormat = primitive(parameter);
+                if (inputFormat != null && !INPUT_FORMATS.contains(inputFormat)) {
+                    throw new InvalidRequestException("Unsupported inputFormat " + inputFormat + ", only NDJSON is supported");
+                }
+            } else if ("input".equals(parameter.getName())) {
+                inputs.add(input(theRequest, parameter));
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new InvalidRequestException("$import requires at least one input");
+        }
+
+        BulkImportJob job;
+        synchronized (this) {
+            if (importService.getActiveJobCount() >= maxJobs) {
+                throw new UnclassifiedServerFailureException(429, "Too many imports in progress, try again later");
+            }
+            job = importService.submit(theRequest.getRequestURL().toString(), inputs);
+        }
+
+        theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                ResponseEncoding.serverBase(theRequest) + POLL_STATUS + "?_jobId=" + job.getId());
+    }
+
+    private Parameters parseParameters(HttpServletRequest theRequest) {
+        String contentType = theRequest.getContentType();
+        IParser parser = (contentType != null && contentType.contains("xml")) ? ctx.newXmlParser() : ctx.newJsonParser();
+        try (Reader reader = new InputStreamReader(theRequest.getInputStream(), StandardCharsets.UTF_8)) {
+            return parser.parseResource(Parameters.class, reader);
+        } catch (IOException | DataFormatException ex) {
+            throw new InvalidRequestException("$import requires a Parameters resource: " + ex.getMessage());
+        }
+    }
+
+    private BulkImportJob.Input input(HttpServletRequest theRequest, Parameters.ParametersParameterComponent parameter) {
+        String resourceType = null;
+        String url = null;
+        for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+            if ("type".equals(part.getName())) {
+                resourceType = primitive(part);
+            } else if ("url".equals(part.getName())) {
+                url = primitive(part);
+            }
+        }
+        if (resourceType == null || url == null) {
+            throw new InvalidRequestException("Each $import input requires a type and a url");
+        }
+        if (!importService.isImportable(resourceType)) {
+            throw new InvalidRequestException("Unknown resource type " + resourceType);
+        }
+        if (oAuth2Interceptor != null && !oAuth2Interceptor.allowedAccess(theRequest, resourceType, "POST")) {
+            throw new ForbiddenOperationException("Insufficient Access Rights to import " + resourceType);
+        }
+        Path file = importService.resolve(url);
+        if (file == null) {
+            throw new InvalidRequestException("Input " + url + " is not a file in the import directory");
+        }
+        return new BulkImportJob.Input(resourceType, url, file);
+    }
+
+    private String primitive(Parameters.ParametersParameterComponent parameter) {
+        return (parameter.getValue() instanceof PrimitiveType) ? ((PrimitiveType<?>) parameter.getValue()).getValueAsString() : null;
+    }
+
+    private void pollStatus(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String jobId = theRequest.getParameter("_jobId");
+        if (jobId == null) {
+            throw new InvalidRequestException("_jobId is required");
+        }
+        if ("DELETE".equals(theRequest.getMethod())) {
+            if (!importService.cancel(jobId)) {
+                throw new ResourceNotFoundException("Unknown import " + jobId);
+            }
+            theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+            return;
+        }
+
+        BulkImportJob job = importService.getJob(jobId);
+        if (job == null) {
+            throw new ResourceNotFoundException("Unknown import " + jobId);
+        }
+        switch (job.getStatus()) {
+            case COMPLETE:
+                byte[] summary = summary(job).toString().getBytes(StandardCharsets.UTF_8);
+                theResponse.setStatus(HttpServletResponse.SC_OK);
+                theResponse.setContentType("application/json;charset=utf-8");
+                theResponse.setContentLength(summary.length);
+                try (OutputStream out = theResponse.getOutputStream()) {
+                    out.write(summary);
+                } catch (IOException ex) {
+                    log.debug("Unable to write import status " + ex.getMessage());
+                }
+                break;
+            case FAILED:
+                throw new InternalErrorException("Import failed: " + job.getFailure());
+            case CANCELLED:
+                throw new ResourceNotFoundException("Import " + jobId + " was cancelled");
+            default:
+                theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+                theResponse.setHeader("X-Progress", job.getImported() + " resources imported, " + job.getFailed()
+                        + " failed, " + Math.round(job.getResourcesPerSecond()) + " per second");
+                theResponse.setHeader("Retry-After", "10");
+        }
+    }
+
+    private JSONObject summary(BulkImportJob job) {
+        JSONArray output = new JSONArray();
+        for (BulkImportJob.Input input : job.getInputs()) {
+            output.put(new JSONObject()
+                    .put("type", input.getResourceType())
+                    .put("inputUrl", input.getUrl())
+                    .put("count", input.getImported())
+                    .put("failed", input.getFailed())
+                    .put("resumedFromLine", input.getResumedFrom()));
+        }
+        JSONArray errors = new JSONArray();
+        for (String error : job.getErrors()) {
+            errors.put(error);
+        }
+        return new JSONObject()
+                .put("transactionTime", new InstantType(job.getTransactionTime()).getValueAsString())
+                .put("request", job.getRequest())
+                .put("resourcesPerSecond", job.getResourcesPerSecond())
+                .put("output", output)
+                .put("errorCount", job.getErrorCount())
+                .put("error", errors);
+    }
+}
@@ -0,0 +1,119 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import org.hl7.fhir.dstu3.model.SearchParameter;
+import org.hl7.fhir.dstu3.model.StructureDefinition;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.providers.FHIRCDRConformanceProvider;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves GET [base]/metadata from the pre-encoded CapabilityStatement held by {@link FHIRCDRConformanceProvider},
+ * answering If-None-Match with 304 Not Modified, and invalidates it when a SearchParameter or StructureDefinition
+ * is created, updated or deleted.
+ *
+ * Requests carrying parameters other than _format (e.g. _summary, _pretty) are left to HAPI.
+ */
+public class CapabilityStatementInterceptor extends ServerOperationInterceptorAdapter implements CapabilityStatementInterceptorMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CapabilityStatementInterceptor.class);
+
+    private final FHIRCDRConformanceProvider conformanceProvider;
+
+    private final LongAdder served = new LongAdder();
+
+    private final LongAdder notModified = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    public CapabilityStatementInterceptor(FHIRCDRConformanceProvider conformanceProvider) {
+        this.conformanceProvider = conformanceProvider;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"GET".equals(theRequest.getMethod()) || !"/metadata".equals(theRequest.getPathInfo())) {
+            return true;
+        }
+        if (!ResponseEncoding.hasOnlyFormatParameter(theRequest)) {
+            return true;
+        }
+
+        boolean xml = ResponseEncoding.isXml(theRequest);
+        FHIRCDRConformanceProvider.CachedCapabilityStatement cached = conformanceProvider.getCachedConformance(theRequest);
+        String etag = cached.getETag(xml);
+
+        theResponse.setHeader(Constants.HEADER_ETAG, etag);
+        theResponse.setHeader(Constants.HEADER_CACHE_CONTROL, "no-cache");
+        String ifNoneMatch = theRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || "*".equals(ifNoneMatch.trim()))) {
+            notModified.increment();
+            theResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        byte[] body = xml ? cached.getXml() : cached.getJson();
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(ResponseEncoding.contentType(xml));
+        theResponse.setContentLength(body.length);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write CapabilityStatement " + ex.getMessage());
+        }
+        served.increment();
+        return false;
+    }
+
+    @Override
+    public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
+        invalidateFor(theResource);
+    }
+
+    @Override
+    public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidateFor(theNewResource);
+    }
+
+    @Override
+    public void resourceDeleted(RequestDetails theRequest, IBaseResource theResource) {
+        invalidateFor(theResource);
+    }
+
+    private void invalidateFor(IBaseResource theResource) {
+        if (theResource instanceof SearchParameter || theResource instanceof StructureDefinition) {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void invalidate() {
+        invalidations.increment();
+        conformanceProvider.invalidate();
+    }
+
+    @Override
+    public long getServed() {
+        return served.sum();
+    }
+
+    @Override
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+}
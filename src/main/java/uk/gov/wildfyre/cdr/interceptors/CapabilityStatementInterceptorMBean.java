@@ -0,0 +1,12 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+public interface CapabilityStatementInterceptorMBean {
+
+    long getServed();
+
+    long getNotModified();
+
+    long getInvalidations();
+
+    void invalidate();
+}
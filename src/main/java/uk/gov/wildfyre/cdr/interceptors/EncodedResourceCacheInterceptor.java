@@ -0,0 +1,241 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.ETagSupportEnum;
+import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.cache.EncodedResourceCache;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Answers GET [base]/[type]/[id] and [base]/[type]/[id]/_history/[vid] from the {@link EncodedResourceCache}
+ * without going to the database, including If-None-Match with 304 Not Modified. Misses are read by HAPI as usual
+ * and the response is added to the cache on the way out.
+ *
+ * Updates and deletes invalidate the resource as they happen and again once the request has completed, as a read
+ * running alongside the write could otherwise cache the version being replaced. Operations on an instance, such as
+ * $meta-add and $meta-delete which change meta without an update, invalidate it the same way. An $expunge clears the
+ * cache.
+ *
+ * Requests carrying parameters other than _format (e.g. _summary, _elements) are left to HAPI, as are reads of
+ * Binary, which HAPI answers with the raw content unless a FHIR format is asked for. Must be registered
+ * after the OAuth2Interceptor, so cached responses are only served to clients allowed to read them.
+ */
+public class EncodedResourceCacheInterceptor extends ServerOperationInterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(EncodedResourceCacheInterceptor.class);
+
+    private static final Pattern READ_PATH = Pattern.compile("^/([A-Z][A-Za-z]+)/([A-Za-z0-9\\-.]{1,64})(?:/_history/([A-Za-z0-9\\-.]{1,64}))?$");
+
+    private static final String CANDIDATE = EncodedResourceCacheInterceptor.class.getName() + ".candidate";
+
+    private static final String WRITTEN = EncodedResourceCacheInterceptor.class.getName() + ".written";
+
+    private static final String EXPUNGE = "$expunge";
+
+    private static final String BINARY = "Binary";
+
+    private final EncodedResourceCache cache;
+
+    /**
+     * A read or vread which can be served from, or added to, the cache
+     */
+    private static final class Candidate {
+        private final String resourceType;
+        private final String id;
+        private final String version;
+        private final boolean xml;
+        private final boolean pretty;
+        private final long stamp;
+
+        private Candidate(String resourceType, String id, String version, boolean xml, boolean pretty, long stamp) {
+            this.resourceType = resourceType;
+            this.id = id;
+            this.version = version;
+            this.xml = xml;
+            this.pretty = pretty;
+            this.stamp = stamp;
+        }
+
+        private String representation() {
+            return (xml ? "xml" : "json") + (pretty ? "-pretty" : "");
+        }
+    }
+
+    public EncodedResourceCacheInterceptor(EncodedResourceCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"GET".equals(theRequest.getMethod()) || theRequest.getPathInfo() == null) {
+            return true;
+        }
+        Matcher matcher = READ_PATH.matcher(theRequest.getPathInfo());
+        if (!matcher.matches() || !ResponseEncoding.hasOnlyFormatParameter(theRequest)) {
+            return true;
+        }
+
+        String resourceType = matcher.group(1);
+        if (BINARY.equals(resourceType)) {
+            return true;
+        }
+        String id = matcher.group(2);
+        Candidate candidate = new Candidate(resourceType, id, matcher.group(3), ResponseEncoding.isXml(theRequest),
+                HapiProperties.getDefaultPrettyPrint(), cache.stamp(resourceType, id));
+        theRequest.setAttribute(CANDIDATE, candidate);
+
+        String version = (candidate.version != null) ? candidate.version : cache.getLatestVersion(resourceType, id);
+        EncodedResourceCache.CachedResource cached = (version != null)
+                ? cache.get(resourceType, id, version, candidate.representation())
+                : null;
+        if (cached == null) {
+            cache.miss();
+            return true;
+        }
+
+        boolean etags = HapiProperties.getEtagSupport() == ETagSupportEnum.ENABLED;
+        String etag = "W/\"" + version + "\"";
+        if (etags) {
+            theResponse.setHeader(Constants.HEADER_ETAG, etag);
+            String ifNoneMatch = theRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+            if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.contains("\"" + version + "\""))) {
+                cache.notModified();
+                theResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return false;
+            }
+        }
+
+        byte[] body = cached.getBody();
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(ResponseEncoding.contentType(candidate.xml));
+        theResponse.setContentLength(body.length);
+        if (cached.getLastModified() > 0) {
+            theResponse.setDateHeader(Constants.HEADER_LAST_MODIFIED, cached.getLastModified());
+        }
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION,
+                ResponseEncoding.serverBase(theRequest) + "/" + resourceType + "/" + id + "/" + Constants.PARAM_HISTORY + "/" + version);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write cached resource " + ex.getMessage());
+        }
+        cache.hit();
+        return false;
+    }
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject,
+                                    HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        Candidate candidate = (Candidate) theServletRequest.getAttribute(CANDIDATE);
+        RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+        if (candidate == null || theResponseObject == null
+                || (operation != RestOperationTypeEnum.READ && operation != RestOperationTypeEnum.VREAD)) {
+            return true;
+        }
+
+        IIdType resourceId = theResponseObject.getIdElement();
+        String version = resourceId.getVersionIdPart();
+        if (version == null || !candidate.resourceType.equals(resourceId.getResourceType())
+                || !candidate.id.equals(resourceId.getIdPart())) {
+            return true;
+        }
+
+        try {
+            IParser parser = candidate.xml
+                    ? theRequestDetails.getServer().getFhirContext().newXmlParser()
+                    : theRequestDetails.getServer().getFhirContext().newJsonParser();
+            parser.setPrettyPrint(candidate.pretty);
+            parser.setServerBaseUrl(theRequestDetails.getFhirServerBase());
+            byte[] body = parser.encodeResourceToString(theResponseObject).getBytes(StandardCharsets.UTF_8);
+            long lastModified = (theResponseObject.getMeta().getLastUpdated() != null)
+                    ? theResponseObject.getMeta().getLastUpdated().getTime()
+                    : 0;
+            cache.put(candidate.resourceType, candidate.id, version, candidate.representation(), lastModified, body,
+                    candidate.stamp, candidate.version == null);
+        } catch (RuntimeException ex) {
+            log.debug("Unable to cache " + resourceId.getValue() + " " + ex.getMessage());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest,
+                                                HttpServletResponse theResponse) {
+        if (theRequestDetails.getRestOperationType() == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE) {
+            invalidateInstance(theRequestDetails);
+        }
+        return true;
+    }
+
+    @Override
+    public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidate(theRequest, theNewResource);
+    }
+
+    @Override
+    public void resourceDeleted(RequestDetails theRequest, IBaseResource theResource) {
+        invalidate(theRequest, theResource);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        if (EXPUNGE.equals(theRequestDetails.getOperation())) {
+            cache.invalidateAll();
+            return;
+        }
+        if (theRequestDetails.getRestOperationType() == RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE) {
+            invalidateInstance(theRequestDetails);
+        }
+        // Now the write has been committed
+        Set<String> written = (Set<String>) theRequestDetails.getUserData().get(WRITTEN);
+        if (written != null) {
+            for (String key : written) {
+                int slash = key.indexOf('/');
+                cache.invalidate(key.substring(0, slash), key.substring(slash + 1));
+            }
+        }
+    }
+
+    private void invalidateInstance(RequestDetails theRequestDetails) {
+        IIdType resourceId = theRequestDetails.getId();
+        if (theRequestDetails.getResourceName() != null && resourceId != null && resourceId.getIdPart() != null) {
+            cache.invalidate(theRequestDetails.getResourceName(), resourceId.getIdPart());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void invalidate(RequestDetails theRequest, IBaseResource theResource) {
+        IIdType resourceId = theResource.getIdElement();
+        String resourceType = (resourceId.getResourceType() != null)
+                ? resourceId.getResourceType()
+                : theResource.getClass().getSimpleName();
+        if (resourceId.getIdPart() == null) {
+            return;
+        }
+        cache.invalidate(resourceType, resourceId.getIdPart());
+        if (theRequest != null) {
+            Set<String> written = (Set<String>) theRequest.getUserData().computeIfAbsent(WRITTEN, key -> new HashSet<String>());
+            written.add(resourceType + "/" + resourceId.getIdPart());
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.idp.OAuth2Interceptor;
+import uk.gov.wildfyre.cdr.indexing.FullTextReindexService;
+import uk.gov.wildfyre.cdr.indexing.ReindexJob;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The full text reindex endpoints, run by the {@link FullTextReindexService}:
+ *
+ *   POST [base]/$reindex-fulltext[?_type=Patient,Observation][&_restart=true][&_purge=true]
+ *       starts rebuilding the index for the types (all types by default), 202 Accepted with Content-Location pointing
+ *       at its progress. A reindex of the same types which was stopped carries on where it stopped unless _restart is
+ *       given, _purge empties the index first when not resuming. 429 if a reindex is already running.
+ *   GET [base]/$reindex-fulltext-status
+ *       the progress of each type, the rate and the estimated time left
+ *   DELETE [base]/$reindex-fulltext-status
+ *       stops the reindex, submitting the same types again resumes it
+ *
+ * Must be registered after the OAuth2Interceptor. A reindex acts on the whole server, so the request's token must
+ * carry the server scope whichever types it covers.
+ */
+public class FullTextReindexInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(FullTextReindexInterceptor.class);
+
+    private static final String REINDEX = "/$reindex-fulltext";
+
+    private static final String STATUS = "/$reindex-fulltext-status";
+
+    private final FullTextReindexService reindexService;
+
+    private final OAuth2Interceptor oAuth2Interceptor;
+
+    /**
+     * @param oAuth2Interceptor null unless OAuth2 is enabled
+     */
+    public FullTextReindexInterceptor(FullTextReindexService reindexService, OAuth2Interceptor oAuth2Interceptor) {
+        this.reindexService = reindexService;
+        this.oAuth2Interceptor = oAuth2Interceptor;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String path = theRequest.getPathInfo();
+        if (REINDEX.equals(path)) {
+            kickOff(theRequest, theResponse);
+            return false;
+        }
+        if (STATUS.equals(path)) {
+            status(theRequest, theResponse);
+            return false;
+        }
+        return true;
+    }
+
+    private void kickOff(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"POST".equals(theRequest.getMethod())) {
+            throw new InvalidRequestException("$reindex-fulltext must be requested with POST");
+        }
+        List<String> resourceTypes = new ArrayList<>();
+        String typeParameter = theRequest.getParameter("_type");
+        if (typeParameter != null && !typeParameter.trim().isEmpty()) {
+            for (String resourceType : typeParameter.split(",")) {
+                resourceType = resourceType.trim();
+                if (!reindexService.isIndexable(resourceType)) {
+                    throw new InvalidRequestException("Unknown resource type " + resourceType);
+                }
+                if (!resourceTypes.contains(resourceType)) {
+                    resourceTypes.add(resourceType);
+                }
+            }
+        } else {
+            resourceTypes.addAll(reindexService.getIndexableTypes());
+        }
+        checkAccess(theRequest);
+
+        ReindexJob job = reindexService.submit(resourceTypes, "true".equals(theRequest.getParameter("_restart")),
+                "true".equals(theRequest.getParameter("_purge")));
+        if (job == null) {
+            throw new UnclassifiedServerFailureException(429, "A reindex is already in progress, see " + STATUS);
+        }
+        theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+        theResponse.setHeader(Constants.HEADER_CONTENT_LOCATION, ResponseEncoding.serverBase(theRequest) + STATUS);
+    }
+
+    private void status(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        ReindexJob job = reindexService.getJob();
+        if (job == null) {
+            throw new ResourceNotFoundException("No reindex has been run");
+        }
+        if ("DELETE".equals(theRequest.getMethod())) {
+            checkAccess(theRequest);
+            if (!reindexService.cancel()) {
+                throw new ResourceNotFoundException("No reindex is in progress");
+            }
+            theResponse.setStatus(HttpServletResponse.SC_ACCEPTED);
+            return;
+        }
+        checkAccess(theRequest);
+
+        byte[] progress = progress(job).toString().getBytes(StandardCharsets.UTF_8);
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType("application/json;charset=utf-8");
+        theResponse.setContentLength(progress.length);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(progress);
+        } catch (IOException ex) {
+            log.debug("Unable to write reindex status " + ex.getMessage());
+        }
+    }
+
+    private void checkAccess(HttpServletRequest theRequest) {
+        if (oAuth2Interceptor != null && !oAuth2Interceptor.hasServerScope(theRequest)) {
+            throw new ForbiddenOperationException("Insufficient Access Rights to reindex, the server scope is required");
+        }
+    }
+
+    private JSONObject progress(ReindexJob job) {
+        JSONArray types = new JSONArray();
+        for (ReindexJob.TypeProgress type : job.getTypes()) {
+            types.put(new JSONObject()
+                    .put("type", type.getResourceType())
+                    .put("total", type.getTotal())
+                    .put("resumedFrom", type.getResumedFrom())
+                    .put("indexed", type.getIndexed())
+                    .put("failed", type.getFailed())
+                    .put("read", type.isRead()));
+        }
+        JSONArray errors = new JSONArray();
+        for (String error : job.getErrors()) {
+            errors.put(error);
+        }
+        long total = job.getTotal();
+        JSONObject progress = new JSONObject()
+                .put("id", job.getId())
+                .put("status", job.getStatus().name())
+                .put("total", total)
+                .put("done", job.getDone())
+                .put("percentComplete", (total > 0) ? Math.min(100.0, 100.0 * job.getDone() / total) : 0.0)
+                .put("resourcesPerSecond", job.getResourcesPerSecond())
+                .put("etaSeconds", job.getEtaSeconds())
+                .put("types", types)
+                .put("errorCount", job.getErrorCount())
+                .put("error", errors);
+        if (job.getStartedAt() != 0) {
+            progress.put("started", new InstantType(new Date(job.getStartedAt())).getValueAsString());
+        }
+        if (job.getCompletedAt() != 0) {
+            progress.put("completed", new InstantType(new Date(job.getCompletedAt())).getValueAsString());
+        }
+        if (job.getFailure() != null) {
+            progress.put("failure", job.getFailure());
+        }
+        return progress;
+    }
+}
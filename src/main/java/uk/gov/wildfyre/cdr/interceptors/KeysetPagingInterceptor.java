@@ -0,0 +1,150 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.paging.KeysetPagingProvider;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+import uk.gov.wildfyre.cdr.support.SearchRequestTranslator;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Answers searches and their next links with the {@link KeysetPagingProvider}.
+ *
+ * The first page of a GET [base]/[type]?..&_total=none search is taken over when the provider can page it by keyset,
+ * and a _getpages request is taken over when its id is a cursor. Everything else, including _getpages requests for
+ * searches stored by HAPI, carries on to HAPI. The Bundles have no total, as the search asked. The other interceptors see the Bundle in outgoingResponse as they would a Bundle
+ * built by HAPI, so the search cache is still filled. Must be registered after the OAuth2Interceptor.
+ */
+public class KeysetPagingInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(KeysetPagingInterceptor.class);
+
+    private final FhirContext ctx;
+
+    private final KeysetPagingProvider pagingProvider;
+
+    public KeysetPagingInterceptor(FhirContext ctx, KeysetPagingProvider pagingProvider) {
+        this.ctx = ctx;
+        this.pagingProvider = pagingProvider;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+        if (operation == null || !"GET".equals(theRequest.getMethod())) {
+            return true;
+        }
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+
+        KeysetPagingProvider.Page page;
+        if (operation == RestOperationTypeEnum.SEARCH_TYPE) {
+            int count = pagingProvider.pageSize(first(parameters, Constants.PARAM_COUNT));
+            if (count <= 0 || parameters.containsKey(Constants.PARAM_PRETTY)) {
+                return true;
+            }
+            page = pagingProvider.firstPage(theRequestDetails.getResourceName(), parameters, count, theRequestDetails);
+        } else if (operation == RestOperationTypeEnum.GET_PAGE) {
+            String searchId = first(parameters, Constants.PARAM_PAGINGACTION);
+            if (!KeysetPagingProvider.isCursor(searchId)) {
+                return true;
+            }
+            page = pagingProvider.nextPage(searchId, theRequestDetails);
+        } else {
+            return true;
+        }
+        if (page == null) {
+            return true;
+        }
+
+        Bundle bundle = bundle(theRequestDetails, theRequest, page);
+        // As HAPI calls them for a response it has built, last registered first
+        List<IServerInterceptor> interceptors = new ArrayList<>(theRequestDetails.getServer().getInterceptors());
+        Collections.reverse(interceptors);
+        for (IServerInterceptor interceptor : interceptors) {
+            if (!interceptor.outgoingResponse(theRequestDetails, bundle, theRequest, theResponse)) {
+                return false;
+            }
+        }
+        write(theRequestDetails, theRequest, theResponse, bundle);
+        return false;
+    }
+
+    private Bundle bundle(RequestDetails theRequestDetails, HttpServletRequest theRequest, KeysetPagingProvider.Page page) {
+        String serverBase = theRequestDetails.getFhirServerBase();
+        Bundle bundle = new Bundle();
+        bundle.setId(UUID.randomUUID().toString());
+        bundle.getMeta().setLastUpdated(new Date());
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+        bundle.addLink().setRelation("self").setUrl(theRequestDetails.getCompleteUrl());
+        if (page.getNextCursor() != null) {
+            StringBuilder next = new StringBuilder(serverBase);
+            next.append('?').append(Constants.PARAM_PAGINGACTION).append('=').append(page.getNextCursor());
+            if (page.getNextOffset() != null) {
+                // Handed over to HAPI's paging provider, which pages by offset
+                next.append('&').append(Constants.PARAM_PAGINGOFFSET).append('=').append(page.getNextOffset());
+                next.append('&').append(Constants.PARAM_COUNT).append('=').append(page.getCount());
+            }
+            String format = theRequest.getParameter(Constants.PARAM_FORMAT);
+            if (format != null) {
+                next.append('&').append(Constants.PARAM_FORMAT).append('=').append(SearchRequestTranslator.encode(format));
+            }
+            next.append('&').append(Constants.PARAM_BUNDLETYPE).append('=').append(Bundle.BundleType.SEARCHSET.toCode());
+            bundle.addLink().setRelation("next").setUrl(next.toString());
+        }
+        for (IBaseResource resource : page.getResources()) {
+            IIdType id = resource.getIdElement();
+            Bundle.SearchEntryMode mode = KeysetPagingProvider.isInclude(resource)
+                    ? Bundle.SearchEntryMode.INCLUDE : Bundle.SearchEntryMode.MATCH;
+            bundle.addEntry()
+                    .setFullUrl(serverBase + "/" + id.getResourceType() + "/" + id.getIdPart())
+                    .setResource((Resource) resource)
+                    .getSearch().setMode(mode);
+        }
+        return bundle;
+    }
+
+    private void write(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse, Bundle bundle) {
+        boolean xml = ResponseEncoding.isXml(theRequest);
+        IParser parser = xml ? ctx.newXmlParser() : ctx.newJsonParser();
+        parser.setPrettyPrint(HapiProperties.getDefaultPrettyPrint());
+        parser.setServerBaseUrl(theRequestDetails.getFhirServerBase());
+        byte[] body = parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(ResponseEncoding.contentType(xml));
+        theResponse.setContentLength(body.length);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write search page " + ex.getMessage());
+        }
+    }
+
+    private static String first(Map<String, String[]> parameters, String name) {
+        String[] values = parameters.get(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+}
@@ -0,0 +1,98 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import uk.gov.wildfyre.cdr.datasource.ReplicaRoutingDataSource;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Marks read only FHIR requests (datasource.replica.operations) so that {@link ReplicaRoutingDataSource} can serve
+ * them from a replica. Any request which is not a GET or HEAD is treated as a write, and the client that made it
+ * (identified by its Authorization header, or failing that its address) reads from the primary for a short while.
+ *
+ * The mark is held by the request's thread, so only reads which run entirely on it can be routed. HAPI runs searches
+ * on its own executor against the primary and then loads the page's resources on the request thread, which against
+ * a lagging replica would silently drop resources the search matched, so searches are never routed. The mark is
+ * cleared by JpaRestfulServer once the request is finished however it ends.
+ */
+public class ReadReplicaRoutingInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadReplicaRoutingInterceptor.class);
+
+    private static final Set<RestOperationTypeEnum> SYNCHRONOUS_READS = EnumSet.of(RestOperationTypeEnum.READ,
+            RestOperationTypeEnum.VREAD);
+
+    private final ReplicaRoutingDataSource dataSource;
+
+    private final Set<RestOperationTypeEnum> replicaOperations;
+
+    public ReadReplicaRoutingInterceptor(ReplicaRoutingDataSource dataSource, Set<RestOperationTypeEnum> replicaOperations) {
+        this.dataSource = dataSource;
+        this.replicaOperations = EnumSet.noneOf(RestOperationTypeEnum.class);
+        for (RestOperationTypeEnum operation : replicaOperations) {
+            if (SYNCHRONOUS_READS.contains(operation)) {
+                this.replicaOperations.add(operation);
+            } else {
+                log.warn("datasource.replica.operations " + operation + " is not run on the request thread, it is served from the primary");
+            }
+        }
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        // Container threads are reused, never inherit the previous request's routing
+        ReplicaRoutingDataSource.setReadOnlyRequest(false);
+        String method = theRequest.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            dataSource.recordWrite(clientKey(theRequest));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+        String method = theRequest.getMethod();
+        if (operation != null && replicaOperations.contains(operation)
+                && ("GET".equals(method) || "HEAD".equals(method))
+                && !dataSource.isSticky(clientKey(theRequest))) {
+            ReplicaRoutingDataSource.setReadOnlyRequest(true);
+        }
+        return true;
+    }
+
+    @Override
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        ReplicaRoutingDataSource.setReadOnlyRequest(false);
+    }
+
+    @Override
+    public boolean handleException(RequestDetails theRequestDetails, BaseServerResponseException theException, HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        ReplicaRoutingDataSource.setReadOnlyRequest(false);
+        return true;
+    }
+
+    private String clientKey(HttpServletRequest theRequest) {
+        String authorization = theRequest.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization != null) {
+            return DigestUtils.sha256Hex(authorization);
+        }
+        String forwardedFor = theRequest.getHeader("X-Forwarded-For");
+        if (forwardedFor != null && !forwardedFor.isEmpty()) {
+            int comma = forwardedFor.indexOf(',');
+            return (comma > 0) ? forwardedFor.substring(0, comma).trim() : forwardedFor.trim();
+        }
+        return theRequest.getRemoteAddr();
+    }
+}
@@ -2,48 +2,44 @@ package uk.gov.wildfyre.cdr.interceptors;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.EncodingEnum;
-import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.rest.client.api.IGenericClient;
-import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.server.RestfulServerUtils;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
 import ca.uhn.fhir.rest.server.method.ResourceParameter;
-import ca.uhn.fhir.validation.FhirValidator;
-import ca.uhn.fhir.validation.ValidationResult;
-import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import uk.gov.wildfyre.cdr.support.CareConnectProfile;
+import uk.gov.wildfyre.cdr.validation.ParallelBundleValidator;
+import uk.gov.wildfyre.cdr.validation.ValidationEngine;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class RequestValidatingInterceptor extends InterceptorAdapter {
     private Logger log = null; //LoggerFactory.getLogger(ServerInterceptor.class);
     private String myErrorMessageFormat = "ERROR - ${operationType} - ${idOrResourceName}";
 
-    private FhirValidator fhirValidator;
-
-    ValidationResult results;
-
     FhirContext ctx;
 
-    IGenericClient client = null;
+    private final ValidationEngine engine;
+
+    private ParallelBundleValidator bundleValidator;
 
-    public RequestValidatingInterceptor(Logger ourLog,  FhirContext ctx, String validationUrl) {
+    public RequestValidatingInterceptor(Logger ourLog,  FhirContext ctx, ValidationEngine engine) {
         super();
         this.log = ourLog;
         this.ctx = ctx; /// FhirContext.forR4();
-        // Calls to validation can result in excessive lookups.
-        ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-        ctx.getRestfulClientFactory().setConnectTimeout(1000 * 1000);
-        client = ctx.newRestfulGenericClient(validationUrl);
+        this.engine = engine;
     }
 
     public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) throws AuthenticationException {
@@ -53,42 +49,22 @@ public class RequestValidatingInterceptor extends InterceptorAdapter {
             log.trace("Incoming request does not appear to be FHIR, not going to validate");
             return true;
         } else {
-            Charset charset = ResourceParameter.determineRequestCharset(theRequestDetails);
-            String requestText = new String(theRequestDetails.loadRequestContents(), charset);
-            if (StringUtils.isBlank(requestText)) {
+            byte[] requestContents = theRequestDetails.loadRequestContents();
+            if (isBlank(requestContents)) {
                 log.trace("Incoming request does not have a body");
                 return true;
             } else {
 
                 if ((theRequest.getMethod().equals("POST") && !theRequest.getRequestURI().contains("$validate") ) || theRequest.getMethod().equals("PUT")) {
-                    IBaseResource resource = null;
-                    switch (encoding) {
-                        case JSON:
-                            resource = ctx.newJsonParser().parseResource(requestText);
-                            break;
-                        case XML:
-                            resource = ctx.newXmlParser().parseResource(requestText);
-                            break;
-                    }
-                    if (resource instanceof Bundle) {
-                        Bundle bundle = (Bundle) resource;
-                        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-                           entry.setResource((Resource) setProfile(entry.getResource()));
-                        }
-                    } else {
-                        resource = setProfile(resource);
-                    }
-                    log.trace("validating "+resource.getClass().getSimpleName());
-                    resource.setId((IdType) null); // remove to avoid trying to validate a specific resource
-                    MethodOutcome outcome = client.validate()
-                            .resource(resource)
-                            .execute();
-
-                    if (outcome.getOperationOutcome() !=null) {
-                        if (!pass((OperationOutcome) outcome.getOperationOutcome())) {
-                            log.info("Not Passed:" + ctx.newXmlParser().setPrettyPrint(true).encodeResourceToString(outcome.getOperationOutcome()));
-                            throw new UnprocessableEntityException(theRequestDetails.getServer().getFhirContext(), outcome.getOperationOutcome());
-                        }
+                    IBaseResource resource = parseResource(theRequestDetails, encoding, requestContents);
+                    // Hand the parsed resource to the method binding so the body is only parsed once
+                    theRequestDetails.setResource(resource);
+
+                    OperationOutcome outcome = validate((Resource) resource);
+
+                    if (!pass(outcome)) {
+                        log.info("Not Passed:" + ctx.newXmlParser().setPrettyPrint(true).encodeResourceToString(outcome));
+                        throw new UnprocessableEntityException(theRequestDetails.getServer().getFhirContext(), outcome);
                     }
                 }
                 return true;
@@ -96,7 +72,88 @@ public class RequestValidatingInterceptor extends InterceptorAdapter {
         }
     }
 
-    public Boolean pass(OperationOutcome outcome) {
+    /**
+     * Parse straight from the buffered request bytes, without first copying them into a String
+     */
+    private IBaseResource parseResource(RequestDetails theRequestDetails, EncodingEnum encoding, byte[] requestContents) {
+        Charset charset = ResourceParameter.determineRequestCharset(theRequestDetails);
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(requestContents), charset);
+        switch (encoding) {
+            case XML:
+                return ctx.newXmlParser().parseResource(reader);
+            case JSON:
+            default:
+                return ctx.newJsonParser().parseResource(reader);
+        }
+    }
+
+    /**
+     * Validate the resource against its CareConnect profile.
+     *
+     * The resource is shared with the method binding and will be persisted, so the profiles stamped on it and the
+     * removed id are put back once validation is done.
+     */
+    private OperationOutcome validate(Resource resource) {
+        List<Runnable> undo = new ArrayList<>();
+        try {
+            if (resource instanceof Bundle) {
+                Bundle bundle = (Bundle) resource;
+                for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                    if (entry.getResource() != null) {
+                        stampProfile(entry.getResource(), undo);
+                    }
+                }
+            } else {
+                stampProfile(resource, undo);
+            }
+            log.trace("validating "+resource.getClass().getSimpleName());
+            IdType id = resource.getIdElement();
+            resource.setId((IdType) null); // remove to avoid trying to validate a specific resource
+            undo.add(() -> resource.setIdElement(id));
+
+            if (bundleValidator != null && resource instanceof Bundle && ParallelBundleValidator.isBatchOrTransaction((Bundle) resource)) {
+                return bundleValidator.validate((Bundle) resource);
+            }
+            return engine.validate(resource);
+        } finally {
+            for (Runnable action : undo) {
+                action.run();
+            }
+        }
+    }
+
+    private void stampProfile(Resource resource, List<Runnable> undo) {
+        boolean hadMeta = resource.hasMeta();
+        int profiles = resource.getMeta().getProfile().size();
+        setProfile(resource);
+        if (resource.getMeta().getProfile().size() > profiles) {
+            undo.add(() -> {
+                if (hadMeta) {
+                    List<UriType> stamped = resource.getMeta().getProfile();
+                    stamped.subList(profiles, stamped.size()).clear();
+                } else {
+                    resource.setMeta(null);
+                }
+            });
+        }
+    }
+
+    private boolean isBlank(byte[] requestContents) {
+        if (requestContents == null) return true;
+        for (byte b : requestContents) {
+            if (!Character.isWhitespace(b)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Validate the entries of transaction and batch Bundles concurrently, rather than as one call
+     */
+    public void setBundleValidator(ParallelBundleValidator bundleValidator) {
+        this.bundleValidator = bundleValidator;
+    }
+
+    public static Boolean pass(OperationOutcome outcome) {
 
         for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
             switch (issue.getSeverity()) {
@@ -111,70 +168,7 @@ public class RequestValidatingInterceptor extends InterceptorAdapter {
 
 
     public IBaseResource setProfile(IBaseResource resource) {
-        if (resource.getMeta() != null) {
-            if (resource.getMeta().getProfile().size()>0) {
-                for (int i =0; i<resource.getMeta().getProfile().size(); i++)
-                    if (resource.getMeta().getProfile().get(i).toString().contains("CareConnect")) {
-                        return resource;
-                    }
-            }
-        }
-        log.trace("Adding profile to "+resource.getClass().getSimpleName());
-        switch(resource.getClass().getSimpleName()) {
-            case "Patient":
-                ((Patient) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Patient_1));
-                break;
-            case "Practitioner":
-                ((Practitioner) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Practitioner_1));
-                break;
-            case "PractitionerRole":
-                ((PractitionerRole) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.PractitionerRole_1));
-                break;
-            case "Organization":
-                log.info("Org called");
-                ((Organization) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Organization_1));
-                break;
-            case "Location":
-                ((Location) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Location_1));
-                break;
-            case "Observation":
-                // Observation is not currently profiled on STU3 Care Connect
-                ((Observation) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Observation_1));
-                break;
-            case "Encounter":
-                ((Encounter) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Encounter_1));
-                break;
-            case "Condition":
-                ((Condition) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Condition_1));
-                break;
-            case "Procedure":
-                ((Procedure) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Procedure_1));
-                break;
-            case "Immunization":
-                ((Immunization) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Immunization_1));
-                break;
-            case "MedicationRequest":
-                ((MedicationRequest) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.MedicationRequest_1));
-                break;
-            case "MedicationStatement":
-                ((MedicationStatement) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.MedicationStatement_1));
-                break;
-            case "AllergyIntolerance":
-                ((AllergyIntolerance) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.AllergyIntolerance_1));
-                break;
-            case "Medication":
-                ((Medication) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Medication_1));
-                break;
-            case "Flag":
-                ((Flag) resource).getMeta().getProfile().add(new UriType("https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Flag-1"));
-                break;
-            case "DocumentReference":
-                ((DocumentReference) resource).getMeta().getProfile().add(new UriType("https://fhir.nhs.uk/STU3/StructureDefinition/GPConnect-DocumentReference-1"));
-                break;
-
-
-        }
-        return resource;
+        return CareConnectProfile.setProfile(resource);
     }
 
 }
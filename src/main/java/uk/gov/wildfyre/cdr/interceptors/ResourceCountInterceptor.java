@@ -0,0 +1,45 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import uk.gov.wildfyre.cdr.statistics.ResourceCountStatistics;
+
+/**
+ * Keeps {@link ResourceCountStatistics} up to date as resources are created and deleted, and asks for a
+ * reconciliation once an $expunge has completed.
+ */
+public class ResourceCountInterceptor extends ServerOperationInterceptorAdapter {
+
+    private static final String EXPUNGE = "$expunge";
+
+    private final ResourceCountStatistics statistics;
+
+    public ResourceCountInterceptor(ResourceCountStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @Override
+    public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
+        statistics.created(resourceType(theResource));
+    }
+
+    @Override
+    public void resourceDeleted(RequestDetails theRequest, IBaseResource theResource) {
+        statistics.deleted(resourceType(theResource));
+    }
+
+    @Override
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        if (EXPUNGE.equals(theRequestDetails.getOperation())) {
+            statistics.requestReconcile();
+        }
+    }
+
+    private String resourceType(IBaseResource theResource) {
+        return theResource.getIdElement().getResourceType() != null
+                ? theResource.getIdElement().getResourceType()
+                : theResource.getClass().getSimpleName();
+    }
+}
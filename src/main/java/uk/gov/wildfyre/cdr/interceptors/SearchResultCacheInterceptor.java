@@ -0,0 +1,274 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.ServerOperationInterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.cache.SearchResultCache;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Answers repeated GET [base]/[type]?... searches from the {@link SearchResultCache}, and adds the first page of
+ * each search result to it on the way out.
+ *
+ * The types a search touches are its own type, the types _include and _revinclude bring in, and the types reached
+ * through chained parameters and _has. Where these can't be worked out (e.g. _include=*) the search depends on every
+ * type. Creates, updates and deletes bump the generation of their type as they happen and again once the request
+ * has completed, so a search running alongside a write is not cached with the old results.
+ *
+ * Searches using _summary, _elements or _pretty are left to HAPI. Must be registered after the OAuth2Interceptor.
+ */
+public class SearchResultCacheInterceptor extends ServerOperationInterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchResultCacheInterceptor.class);
+
+    private static final Pattern SEARCH_PATH = Pattern.compile("^/([A-Z][A-Za-z]+)/?$");
+
+    private static final Set<String> UNCACHED_PARAMETERS = new HashSet<>(Arrays.asList(
+            Constants.PARAM_SUMMARY, Constants.PARAM_ELEMENTS, Constants.PARAM_PRETTY));
+
+    private static final String CANDIDATE = SearchResultCacheInterceptor.class.getName() + ".candidate";
+
+    private static final String WRITTEN = SearchResultCacheInterceptor.class.getName() + ".written";
+
+    private static final String EXPUNGE = "$expunge";
+
+    private final SearchResultCache cache;
+
+    private final FhirContext ctx;
+
+    private static final class Candidate {
+        private final String key;
+        private final SearchResultCache.Snapshot snapshot;
+        private final boolean xml;
+        private final boolean pretty;
+
+        private Candidate(String key, SearchResultCache.Snapshot snapshot, boolean xml, boolean pretty) {
+            this.key = key;
+            this.snapshot = snapshot;
+            this.xml = xml;
+            this.pretty = pretty;
+        }
+    }
+
+    public SearchResultCacheInterceptor(SearchResultCache cache, FhirContext ctx) {
+        this.cache = cache;
+        this.ctx = ctx;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        if (!"GET".equals(theRequest.getMethod()) || theRequest.getPathInfo() == null) {
+            return true;
+        }
+        Matcher matcher = SEARCH_PATH.matcher(theRequest.getPathInfo());
+        if (!matcher.matches()) {
+            return true;
+        }
+        Map<String, String[]> parameters = new TreeMap<>(theRequest.getParameterMap());
+        for (String name : parameters.keySet()) {
+            if (UNCACHED_PARAMETERS.contains(name)) {
+                return true;
+            }
+        }
+
+        String resourceType = matcher.group(1);
+        Set<String> resourceTypes;
+        try {
+            resourceTypes = resourceTypes(resourceType, parameters);
+        } catch (DataFormatException ex) {
+            // Not a resource type this server knows, HAPI will reject it
+            return true;
+        }
+
+        boolean xml = ResponseEncoding.isXml(theRequest);
+        boolean pretty = HapiProperties.getDefaultPrettyPrint();
+        String key = cacheKey(theRequest, parameters, xml, pretty);
+
+        byte[] body = cache.get(key);
+        if (body == null) {
+            theRequest.setAttribute(CANDIDATE, new Candidate(key, cache.snapshot(resourceTypes), xml, pretty));
+            return true;
+        }
+
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(ResponseEncoding.contentType(xml));
+        theResponse.setContentLength(body.length);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write cached search " + ex.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public boolean outgoingResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject,
+                                    HttpServletRequest theServletRequest, HttpServletResponse theServletResponse) {
+        Candidate candidate = (Candidate) theServletRequest.getAttribute(CANDIDATE);
+        if (candidate == null || !(theResponseObject instanceof IBaseBundle)
+                || theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE) {
+            return true;
+        }
+        try {
+            IParser parser = candidate.xml ? ctx.newXmlParser() : ctx.newJsonParser();
+            parser.setPrettyPrint(candidate.pretty);
+            parser.setServerBaseUrl(theRequestDetails.getFhirServerBase());
+            cache.put(candidate.key, candidate.snapshot,
+                    parser.encodeResourceToString(theResponseObject).getBytes(StandardCharsets.UTF_8));
+        } catch (RuntimeException ex) {
+            log.debug("Unable to cache search " + ex.getMessage());
+        }
+        return true;
+    }
+
+    @Override
+    public void resourceCreated(RequestDetails theRequest, IBaseResource theResource) {
+        written(theRequest, theResource);
+    }
+
+    @Override
+    public void resourceUpdated(RequestDetails theRequest, IBaseResource theOldResource, IBaseResource theNewResource) {
+        written(theRequest, theNewResource);
+    }
+
+    @Override
+    public void resourceDeleted(RequestDetails theRequest, IBaseResource theResource) {
+        written(theRequest, theResource);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void processingCompletedNormally(ServletRequestDetails theRequestDetails) {
+        if (EXPUNGE.equals(theRequestDetails.getOperation())) {
+            cache.invalidateAll();
+            return;
+        }
+        // Now the writes have been committed
+        Set<String> written = (Set<String>) theRequestDetails.getUserData().get(WRITTEN);
+        if (written != null) {
+            for (String resourceType : written) {
+                cache.written(resourceType);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void written(RequestDetails theRequest, IBaseResource theResource) {
+        String resourceType = ctx.getResourceDefinition(theResource).getName();
+        if ("SearchParameter".equals(resourceType)) {
+            // Changes what searches match
+            cache.invalidateAll();
+        }
+        cache.written(resourceType);
+        if (theRequest != null) {
+            Set<String> written = (Set<String>) theRequest.getUserData().computeIfAbsent(WRITTEN, key -> new HashSet<String>());
+            written.add(resourceType);
+        }
+    }
+
+    /**
+     * The resource types whose contents can change the result of the search
+     */
+    private Set<String> resourceTypes(String resourceType, Map<String, String[]> parameters) {
+        RuntimeResourceDefinition definition = ctx.getResourceDefinition(resourceType);
+        Set<String> resourceTypes = new HashSet<>();
+        resourceTypes.add(definition.getName());
+
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (name.startsWith(Constants.PARAM_INCLUDE) || name.startsWith(Constants.PARAM_REVINCLUDE)) {
+                boolean revinclude = name.startsWith(Constants.PARAM_REVINCLUDE);
+                for (String value : parameter.getValue()) {
+                    String[] parts = value.split(":");
+                    if (parts.length < 2) {
+                        resourceTypes.add(SearchResultCache.ALL_TYPES);
+                    } else if (revinclude) {
+                        resourceTypes.add(parts[0]);
+                    } else if (parts.length > 2) {
+                        resourceTypes.add(parts[2]);
+                    } else {
+                        addTargets(resourceTypes, parts[0], parts[1]);
+                    }
+                }
+            } else if ("_list".equals(name)) {
+                resourceTypes.add("List");
+            } else if (name.startsWith(Constants.PARAM_HAS + ":")) {
+                String[] parts = name.split(":");
+                if (parts.length < 2 || name.indexOf(Constants.PARAM_HAS, 1) > 0) {
+                    resourceTypes.add(SearchResultCache.ALL_TYPES);
+                } else {
+                    resourceTypes.add(parts[1]);
+                }
+            } else if (name.indexOf('.') > 0) {
+                String chain = name.substring(0, name.indexOf('.'));
+                if (name.indexOf('.', chain.length() + 1) > 0) {
+                    // Beyond the first link the types can't be worked out from the parameter names
+                    resourceTypes.add(SearchResultCache.ALL_TYPES);
+                } else if (chain.indexOf(':') > 0) {
+                    resourceTypes.add(chain.substring(chain.indexOf(':') + 1));
+                } else {
+                    addTargets(resourceTypes, resourceType, chain);
+                }
+            }
+        }
+        return resourceTypes;
+    }
+
+    private void addTargets(Set<String> resourceTypes, String resourceType, String paramName) {
+        RuntimeSearchParam searchParam;
+        try {
+            searchParam = ctx.getResourceDefinition(resourceType).getSearchParam(paramName);
+        } catch (DataFormatException ex) {
+            searchParam = null;
+        }
+        if (searchParam == null || searchParam.getTargets() == null || searchParam.getTargets().isEmpty()) {
+            // e.g. a custom SearchParameter, or a reference to Any
+            resourceTypes.add(SearchResultCache.ALL_TYPES);
+        } else {
+            resourceTypes.addAll(searchParam.getTargets());
+        }
+    }
+
+    private String cacheKey(HttpServletRequest theRequest, Map<String, String[]> parameters,
+                            boolean xml, boolean pretty) {
+        // The server base appears in the Bundle's links
+        StringBuilder key = new StringBuilder(theRequest.getRequestURL().length() + 64);
+        key.append(xml ? "xml" : "json").append(pretty ? "-pretty " : " ");
+        key.append(theRequest.getRequestURL()).append('?');
+        // Names and values are decoded, so length prefixed to keep distinct queries apart
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String[] values = parameter.getValue().clone();
+            Arrays.sort(values);
+            for (String value : values) {
+                key.append(parameter.getKey().length()).append(':').append(parameter.getKey())
+                        .append(value.length()).append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,376 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.model.valueset.BundleEntryTransactionMethodEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.DateTimeType;
+import org.hl7.fhir.dstu3.model.Meta;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.support.BundleStreamWriter;
+import uk.gov.wildfyre.cdr.support.ResponseEncoding;
+import uk.gov.wildfyre.cdr.support.SearchRequestTranslator;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams large pages of search results and history (streaming.min_page_size entries or more) to the client
+ * rather than leaving HAPI to load the whole page, build the Bundle and then encode it.
+ *
+ * The search or history is run through the DAOs as HAPI would run it, the search parameters being translated by
+ * the {@link SearchRequestTranslator}, and the page is loaded streaming.fetch_size resources at a time, each slice
+ * in its own transaction. Each entry is written to the response as soon as its slice is loaded, so the memory a
+ * response takes doesn't grow with the page size. The next and previous links are the usual _getpages links and later
+ * pages are streamed in the same way.
+ *
+ * Anything the translation can't be checked to handle exactly (_summary, _elements, _id and the other special
+ * parameters) and _pretty are left to HAPI, as are errors found before the response starts. Once the response has
+ * started an error can only be logged and the response cut short. Must be registered after the OAuth2Interceptor.
+ */
+public class StreamingBundleInterceptor extends InterceptorAdapter implements StreamingBundleInterceptorMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingBundleInterceptor.class);
+
+    private static final String SEARCHSET = Bundle.BundleType.SEARCHSET.toCode();
+
+    private static final String HISTORY = Bundle.BundleType.HISTORY.toCode();
+
+    private static final Set<String> HISTORY_PARAMETERS = new HashSet<>(Arrays.asList(
+            Constants.PARAM_FORMAT, Constants.PARAM_COUNT, "_since"));
+
+    private static final Set<String> PAGE_PARAMETERS = new HashSet<>(Arrays.asList(
+            Constants.PARAM_FORMAT, Constants.PARAM_COUNT, Constants.PARAM_PAGINGACTION, Constants.PARAM_PAGINGOFFSET,
+            Constants.PARAM_BUNDLETYPE));
+
+    private final FhirContext ctx;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final IFhirSystemDao<Bundle, Meta> systemDao;
+
+    private final IPagingProvider pagingProvider;
+
+    private final SearchRequestTranslator translator;
+
+    private final int minPageSize;
+
+    private final int fetchSize;
+
+    private final LongAdder responses = new LongAdder();
+
+    private final LongAdder resources = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * A page of a search or history
+     */
+    private static final class Page {
+        private final IBundleProvider provider;
+        private final String searchId;
+        private final int offset;
+        private final int count;
+        private final String bundleType;
+
+        private Page(IBundleProvider provider, String searchId, int offset, int count, String bundleType) {
+            this.provider = provider;
+            this.searchId = searchId;
+            this.offset = offset;
+            this.count = count;
+            this.bundleType = bundleType;
+        }
+    }
+
+    public StreamingBundleInterceptor(FhirContext ctx, Map<String, IFhirResourceDao<?>> daos, IFhirSystemDao<Bundle, Meta> systemDao,
+                                      IPagingProvider pagingProvider, SearchRequestTranslator translator, int minPageSize, int fetchSize) {
+        this.ctx = ctx;
+        this.daos = daos;
+        this.systemDao = systemDao;
+        this.pagingProvider = pagingProvider;
+        this.translator = translator;
+        this.minPageSize = minPageSize;
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public boolean incomingRequestPostProcessed(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        RestOperationTypeEnum operation = theRequestDetails.getRestOperationType();
+        if (operation == null || !"GET".equals(theRequest.getMethod())) {
+            return true;
+        }
+        Map<String, String[]> parameters = theRequestDetails.getParameters();
+        int count = count(parameters);
+        if (count < minPageSize) {
+            return true;
+        }
+
+        Page page;
+        try {
+            switch (operation) {
+                case SEARCH_TYPE:
+                    page = search(theRequestDetails, parameters, count);
+                    break;
+                case HISTORY_INSTANCE:
+                case HISTORY_TYPE:
+                case HISTORY_SYSTEM:
+                    page = history(theRequestDetails, operation, parameters, count);
+                    break;
+                case GET_PAGE:
+                    page = page(parameters, count);
+                    break;
+                default:
+                    return true;
+            }
+        } catch (InvalidRequestException | DataFormatException | NumberFormatException ex) {
+            // HAPI will report it
+            log.debug("Not streaming " + theRequestDetails.getCompleteUrl() + ": " + ex.getMessage());
+            return true;
+        }
+        if (page == null) {
+            return true;
+        }
+
+        stream(theRequestDetails, theRequest, theResponse, page);
+        return false;
+    }
+
+    private Page search(RequestDetails theRequestDetails, Map<String, String[]> parameters, int count) {
+        IFhirResourceDao<?> dao = daos.get(theRequestDetails.getResourceName());
+        if (dao == null) {
+            return null;
+        }
+        SearchParameterMap map = translator.translate(theRequestDetails.getResourceName(), parameters);
+        if (map == null) {
+            return null;
+        }
+        map.setCount(count);
+
+        IBundleProvider provider = dao.search(map, theRequestDetails);
+        return new Page(provider, provider.getUuid(), 0, count, SEARCHSET);
+    }
+
+    private Page history(RequestDetails theRequestDetails, RestOperationTypeEnum operation, Map<String, String[]> parameters, int count) {
+        if (!HISTORY_PARAMETERS.containsAll(parameters.keySet())) {
+            return null;
+        }
+        String[] sinceValues = parameters.get("_since");
+        Date since = (sinceValues != null && sinceValues.length > 0) ? new DateTimeType(sinceValues[0]).getValue() : null;
+
+        IBundleProvider provider;
+        if (operation == RestOperationTypeEnum.HISTORY_SYSTEM) {
+            provider = systemDao.history(since, null, theRequestDetails);
+        } else {
+            IFhirResourceDao<?> dao = daos.get(theRequestDetails.getResourceName());
+            if (dao == null) {
+                return null;
+            }
+            IIdType id = theRequestDetails.getId();
+            provider = (operation == RestOperationTypeEnum.HISTORY_INSTANCE)
+                    ? dao.history(id, since, null, theRequestDetails)
+                    : dao.history(since, null, theRequestDetails);
+        }
+        return new Page(provider, provider.getUuid(), 0, count, HISTORY);
+    }
+
+    private Page page(Map<String, String[]> parameters, int count) {
+        if (!PAGE_PARAMETERS.containsAll(parameters.keySet())) {
+            return null;
+        }
+        String searchId = first(parameters, Constants.PARAM_PAGINGACTION);
+        if (searchId == null) {
+            return null;
+        }
+        IBundleProvider provider = pagingProvider.retrieveResultList(searchId);
+        if (provider == null) {
+            // Expired, HAPI answers 410 Gone
+            return null;
+        }
+        String offset = first(parameters, Constants.PARAM_PAGINGOFFSET);
+        String bundleType = first(parameters, Constants.PARAM_BUNDLETYPE);
+        return new Page(provider, searchId, (offset != null) ? Math.max(0, Integer.parseInt(offset)) : 0, count,
+                HISTORY.equals(bundleType) ? HISTORY : SEARCHSET);
+    }
+
+    private void stream(RequestDetails theRequestDetails, HttpServletRequest theRequest, HttpServletResponse theResponse, Page page) {
+        boolean xml = ResponseEncoding.isXml(theRequest);
+        String serverBase = theRequestDetails.getFhirServerBase();
+        IBundleProvider provider = page.provider;
+        Integer size = provider.size();
+        int end = (size == null) ? page.offset + page.count : Math.min(size, page.offset + page.count);
+
+        // Loaded before the response starts, so most errors are still reported by HAPI
+        int from = page.offset;
+        int to = Math.min(from + fetchSize, end);
+        List<IBaseResource> slice = (from < to) ? provider.getResources(from, to) : new ArrayList<>();
+
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(ResponseEncoding.contentType(xml));
+        int written = 0;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(theResponse.getOutputStream(), StandardCharsets.UTF_8));
+            BundleStreamWriter bundle = new BundleStreamWriter(ctx, writer, xml, serverBase);
+            String published = (provider.getPublished() != null) ? provider.getPublished().getValueAsString() : null;
+            bundle.start(UUID.randomUUID().toString(), published, page.bundleType, size);
+            bundle.links(links(theRequestDetails, theRequest, page, size));
+
+            Set<String> included = new HashSet<>();
+            while (!slice.isEmpty()) {
+                int matches = 0;
+                for (IBaseResource resource : slice) {
+                    if (write(bundle, resource, page.bundleType, serverBase, included)) {
+                        matches++;
+                    }
+                    written++;
+                }
+                from = to;
+                to = Math.min(from + fetchSize, end);
+                if (from >= to || matches == 0) {
+                    break;
+                }
+                slice = provider.getResources(from, to);
+            }
+            bundle.end();
+            writer.close();
+            responses.increment();
+        } catch (IOException | RuntimeException ex) {
+            failures.increment();
+            log.error("Streamed response to " + theRequestDetails.getCompleteUrl() + " failed after " + written + " entries", ex);
+        } finally {
+            resources.add(written);
+        }
+    }
+
+    /**
+     * @return false for an included resource, which doesn't count towards the page
+     */
+    private boolean write(BundleStreamWriter bundle, IBaseResource resource, String bundleType, String serverBase,
+                          Set<String> included) throws IOException {
+        IIdType id = resource.getIdElement();
+        String fullUrl = serverBase + "/" + id.getResourceType() + "/" + id.getIdPart();
+        IAnyResource anyResource = (IAnyResource) resource;
+
+        if (HISTORY.equals(bundleType)) {
+            String method = code(ResourceMetadataKeyEnum.ENTRY_TRANSACTION_METHOD.get(anyResource));
+            boolean deleted = ResourceMetadataKeyEnum.DELETED_AT.get(anyResource) != null;
+            bundle.historyEntry(fullUrl, deleted ? null : resource, method, id.toUnqualified().getValue());
+            return true;
+        }
+
+        String mode = code(ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get(anyResource));
+        if (BundleEntrySearchModeEnum.INCLUDE.getCode().equals(mode)) {
+            // Each slice brings its own includes, which may have been written already
+            if (!included.add(fullUrl)) {
+                return false;
+            }
+            bundle.searchEntry(fullUrl, resource, mode);
+            return false;
+        }
+        bundle.searchEntry(fullUrl, resource, (mode != null) ? mode : BundleEntrySearchModeEnum.MATCH.getCode());
+        return true;
+    }
+
+    private String[][] links(RequestDetails theRequestDetails, HttpServletRequest theRequest, Page page, Integer size) {
+        List<String[]> links = new ArrayList<>();
+        links.add(new String[] {"self", theRequestDetails.getCompleteUrl()});
+        if (page.searchId != null) {
+            String format = theRequest.getParameter(Constants.PARAM_FORMAT);
+            // Without a total the next page may turn out to be empty
+            if (size == null || page.offset + page.count < size) {
+                links.add(new String[] {"next", pageLink(theRequestDetails, page, page.offset + page.count, format)});
+            }
+            if (page.offset > 0) {
+                links.add(new String[] {"previous", pageLink(theRequestDetails, page, Math.max(0, page.offset - page.count), format)});
+            }
+        }
+        return links.toArray(new String[0][]);
+    }
+
+    private String pageLink(RequestDetails theRequestDetails, Page page, int offset, String format) {
+        StringBuilder link = new StringBuilder(theRequestDetails.getFhirServerBase());
+        link.append('?').append(Constants.PARAM_PAGINGACTION).append('=').append(SearchRequestTranslator.encode(page.searchId));
+        link.append('&').append(Constants.PARAM_PAGINGOFFSET).append('=').append(offset);
+        link.append('&').append(Constants.PARAM_COUNT).append('=').append(page.count);
+        if (format != null) {
+            link.append('&').append(Constants.PARAM_FORMAT).append('=').append(SearchRequestTranslator.encode(format));
+        }
+        link.append('&').append(Constants.PARAM_BUNDLETYPE).append('=').append(page.bundleType);
+        return link.toString();
+    }
+
+    /**
+     * The page size as HAPI works it out, or -1 if _count is not a number
+     */
+    private int count(Map<String, String[]> parameters) {
+        String value = first(parameters, Constants.PARAM_COUNT);
+        int count = pagingProvider.getDefaultPageSize();
+        if (value != null) {
+            try {
+                count = Integer.parseInt(value.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return Math.min(count, pagingProvider.getMaximumPageSize());
+    }
+
+    private static String first(Map<String, String[]> parameters, String name) {
+        String[] values = parameters.get(name);
+        return (values != null && values.length > 0) ? values[0] : null;
+    }
+
+    private static String code(Object value) {
+        if (value instanceof BundleEntrySearchModeEnum) {
+            return ((BundleEntrySearchModeEnum) value).getCode();
+        }
+        if (value instanceof BundleEntryTransactionMethodEnum) {
+            return ((BundleEntryTransactionMethodEnum) value).getCode();
+        }
+        return (value != null) ? value.toString() : null;
+    }
+
+    @Override
+    public long getResponses() {
+        return responses.sum();
+    }
+
+    @Override
+    public long getResources() {
+        return resources.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+}
@@ -0,0 +1,13 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+public interface StreamingBundleInterceptorMBean {
+
+    long getResponses();
+
+    long getResources();
+
+    /**
+     * @return streamed responses cut short by an error
+     */
+    long getFailures();
+}
@@ -0,0 +1,84 @@
+package uk.gov.wildfyre.cdr.interceptors;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.idp.OAuth2Interceptor;
+import uk.gov.wildfyre.cdr.validation.ValidationOutcomeStore;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads back the OperationOutcome of shadow validation (validation.async=true) for a resource version:
+ *
+ *   GET [base]/[type]/[id]/$validation-outcome
+ *       the outcome of the latest version validated
+ *   GET [base]/[type]/[id]/_history/[version]/$validation-outcome
+ *       the outcome of that version
+ *
+ * The diagnostics quote the resource, so the outcome needs the same access as reading the type. Must be registered
+ * after the OAuth2Interceptor.
+ */
+public class ValidationOutcomeInterceptor extends InterceptorAdapter {
+
+    private static final Logger log = LoggerFactory.getLogger(ValidationOutcomeInterceptor.class);
+
+    private static final Pattern OUTCOME = Pattern.compile(
+            "^/([A-Za-z]+)/([A-Za-z0-9\\-.]{1,64})(?:/_history/([A-Za-z0-9\\-.]{1,64}))?/\\$validation-outcome$");
+
+    private final ValidationOutcomeStore store;
+
+    private final OAuth2Interceptor oAuth2Interceptor;
+
+    /**
+     * @param oAuth2Interceptor null unless OAuth2 is enabled
+     */
+    public ValidationOutcomeInterceptor(ValidationOutcomeStore store, OAuth2Interceptor oAuth2Interceptor) {
+        this.store = store;
+        this.oAuth2Interceptor = oAuth2Interceptor;
+    }
+
+    @Override
+    public boolean incomingRequestPreProcessed(HttpServletRequest theRequest, HttpServletResponse theResponse) {
+        String path = theRequest.getPathInfo();
+        if (path == null || !path.endsWith("$validation-outcome")) {
+            return true;
+        }
+        Matcher match = OUTCOME.matcher(path);
+        if (!match.matches()) {
+            return true;
+        }
+        if (!"GET".equals(theRequest.getMethod())) {
+            throw new InvalidRequestException("$validation-outcome must be requested with GET");
+        }
+        String resourceType = match.group(1);
+        if (oAuth2Interceptor != null && !oAuth2Interceptor.allowedAccess(theRequest, resourceType, "GET")) {
+            throw new ForbiddenOperationException("Insufficient Access Rights to read " + resourceType);
+        }
+
+        String outcome = store.read(resourceType, match.group(2), match.group(3));
+        if (outcome == null) {
+            throw new ResourceNotFoundException("No validation outcome for " + path.substring(1, path.lastIndexOf('/')));
+        }
+        byte[] body = outcome.getBytes(StandardCharsets.UTF_8);
+        theResponse.setStatus(HttpServletResponse.SC_OK);
+        theResponse.setContentType(Constants.CT_FHIR_JSON_NEW + Constants.CHARSET_UTF8_CTSUFFIX);
+        theResponse.setContentLength(body.length);
+        try (OutputStream out = theResponse.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ex) {
+            log.debug("Unable to write validation outcome " + ex.getMessage());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,456 @@
+package uk.gov.wildfyre.cdr.paging;
+
+import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.valueset.BundleEntrySearchModeEnum;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.server.IPagingProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.hl7.fhir.dstu3.model.InstantType;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.support.SearchRequestTranslator;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pages through search results with a keyset cursor rather than by offset into a stored search.
+ *
+ * Only searches which ask for _total=none are paged this way, the Bundles carry no total as counting the matches
+ * would read them all. They are ordered by _lastUpdated (ascending unless _sort=-_lastUpdated, also when no _sort is
+ * given) then by id, and each page is a synchronous search, nothing is written to the search tables. The next link
+ * carries a signed cursor holding the search, the lastUpdated of the last resource returned and the ids already
+ * returned with that same lastUpdated. The next page adds _lastUpdated=ge (or le) that instant, an index range scan
+ * on HFJ_RESOURCE, and skips those ids. However deep the page, only one page (plus the ties) is read.
+ *
+ * A SearchParameter can't say "after this id within the same lastUpdated", so the ties are carried instead. A long
+ * run of resources with the same lastUpdated (a bulk import, or second precision timestamps) would make the cursor,
+ * and the rows read for each page, grow without bound. Once the ties pass MAX_TIES, or MAX_TIES_LENGTH characters,
+ * the rest of the search is stored by the delegate and the next link pages through it by offset, skipping the ties
+ * already returned.
+ *
+ * HAPI's IPagingProvider pages a stored IBundleProvider by offset, which can't express a cursor that changes from
+ * page to page, so the {@link uk.gov.wildfyre.cdr.interceptors.KeysetPagingInterceptor} answers these searches and
+ * their next links. Searches sorted any other way still go to the delegate (DatabaseBackedPagingProvider).
+ *
+ * Cursors are signed with paging.keyset.secret, which must be the same on every server behind a load balancer.
+ * When it is not set a random key is used and cursors stop working when the server restarts.
+ */
+public class KeysetPagingProvider implements KeysetPagingProviderMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(KeysetPagingProvider.class);
+
+    public static final String CURSOR_PREFIX = "k1.";
+
+    public static final String PARAM_TOTAL = "_total";
+
+    private static final String TOTAL_NONE = "none";
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final int MAX_TIES = 100;
+
+    private static final int MAX_TIES_LENGTH = 2048;
+
+    private final Map<String, IFhirResourceDao<?>> daos;
+
+    private final SearchRequestTranslator translator;
+
+    private final IPagingProvider delegate;
+
+    private final SecretKeySpec key;
+
+    private final LongAdder firstPages = new LongAdder();
+
+    private final LongAdder cursorPages = new LongAdder();
+
+    private final LongAdder delegated = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder handedOver = new LongAdder();
+
+    /**
+     * A page of matches and their includes. The next page is either a cursor or, once the search has been handed to
+     * the delegate, a stored search id and the offset into it. Both are null on the last page.
+     */
+    public static final class Page {
+        private final List<IBaseResource> resources;
+        private final String nextCursor;
+        private final int count;
+        private final Integer nextOffset;
+
+        private Page(List<IBaseResource> resources, String nextCursor, int count, Integer nextOffset) {
+            this.resources = resources;
+            this.nextCursor = nextCursor;
+            this.count = count;
+            this.nextOffset = nextOffset;
+        }
+
+        public List<IBaseResource> getResources() {
+            return resources;
+        }
+
+        public String getNextCursor() {
+            return nextCursor;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return the offset into the stored search named by the next cursor, null if the next cursor is a keyset
+         */
+        public Integer getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    /**
+     * Where a page starts, encoded in the next link
+     */
+    private static final class Cursor {
+        private final String resourceType;
+        private final String query;
+        private final boolean descending;
+        private final int count;
+        private final Long lastUpdated;
+        private final Set<String> ties;
+
+        private Cursor(String resourceType, String query, boolean descending, int count, Long lastUpdated, Set<String> ties) {
+            this.resourceType = resourceType;
+            this.query = query;
+            this.descending = descending;
+            this.count = count;
+            this.lastUpdated = lastUpdated;
+            this.ties = ties;
+        }
+    }
+
+    public KeysetPagingProvider(Map<String, IFhirResourceDao<?>> daos, SearchRequestTranslator translator,
+                                IPagingProvider delegate, String secret) {
+        this.daos = daos;
+        this.translator = translator;
+        this.delegate = delegate;
+        byte[] keyBytes;
+        if (secret != null && !secret.trim().isEmpty()) {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        } else {
+            log.warn("paging.keyset.secret is not set, paging cursors will not survive a restart");
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        }
+        this.key = new SecretKeySpec(keyBytes, HMAC);
+    }
+
+    public static boolean isCursor(String searchId) {
+        return searchId != null && searchId.startsWith(CURSOR_PREFIX);
+    }
+
+    /**
+     * The page size as HAPI works it out, or -1 if _count is not a number
+     */
+    public int pageSize(String countValue) {
+        int count = delegate.getDefaultPageSize();
+        if (countValue != null) {
+            try {
+                count = Integer.parseInt(countValue.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        return Math.min(count, delegate.getMaximumPageSize());
+    }
+
+    /**
+     * @return the first page, or null if the search can't be paged by keyset and is left to HAPI
+     */
+    public Page firstPage(String resourceType, Map<String, String[]> parameters, int count, RequestDetails theRequestDetails) {
+        String[] total = parameters.get(PARAM_TOTAL);
+        if (total == null || total.length != 1 || !TOTAL_NONE.equals(total[0]) || !daos.containsKey(resourceType)) {
+            delegated.increment();
+            return null;
+        }
+        Map<String, String[]> searchParameters = new LinkedHashMap<>(parameters);
+        searchParameters.remove(PARAM_TOTAL);
+        SearchParameterMap map = translator.translate(resourceType, searchParameters);
+        Boolean descending = (map != null) ? descending(map.getSort()) : null;
+        if (descending == null) {
+            delegated.increment();
+            return null;
+        }
+        firstPages.increment();
+        Cursor cursor = new Cursor(resourceType, query(searchParameters), descending, count, null, Collections.emptySet());
+        return page(cursor, map, theRequestDetails);
+    }
+
+    /**
+     * @throws InvalidRequestException if the cursor has been altered or was signed with another key
+     */
+    public Page nextPage(String searchId, RequestDetails theRequestDetails) {
+        Cursor cursor = decode(searchId);
+        cursorPages.increment();
+        return page(cursor, translate(cursor), theRequestDetails);
+    }
+
+    private SearchParameterMap translate(Cursor cursor) {
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for (NameValuePair pair : URLEncodedUtils.parse(cursor.query, StandardCharsets.UTF_8)) {
+            String[] values = parameters.get(pair.getName());
+            String[] added = (values == null) ? new String[1] : Arrays.copyOf(values, values.length + 1);
+            added[added.length - 1] = pair.getValue();
+            parameters.put(pair.getName(), added);
+        }
+        SearchParameterMap map = translator.translate(cursor.resourceType, parameters);
+        if (map == null) {
+            throw new InvalidRequestException("Invalid paging cursor");
+        }
+        return map;
+    }
+
+    private Page page(Cursor cursor, SearchParameterMap map, RequestDetails theRequestDetails) {
+        map.setSort(sort(cursor.descending));
+        if (cursor.lastUpdated != null) {
+            map.setLastUpdated(bound(map.getLastUpdated(), cursor.lastUpdated, cursor.descending));
+        }
+        // One more than the page to tell whether there is a next page
+        map.setLoadSynchronousUpTo(cursor.count + cursor.ties.size() + 1);
+
+        IBundleProvider provider = daos.get(cursor.resourceType).search(map, theRequestDetails);
+        Integer size = provider.size();
+        List<IBaseResource> loaded = provider.getResources(0, (size != null) ? size : Integer.MAX_VALUE);
+
+        List<IBaseResource> resources = new ArrayList<>();
+        Set<String> included = new HashSet<>();
+        int matches = 0;
+        boolean more = false;
+        long lastUpdated = (cursor.lastUpdated != null) ? cursor.lastUpdated : 0;
+        Set<String> ties = new LinkedHashSet<>();
+        for (IBaseResource resource : loaded) {
+            String id = resource.getIdElement().getIdPart();
+            if (isInclude(resource)) {
+                if (included.add(resource.getIdElement().getResourceType() + "/" + id)) {
+                    resources.add(resource);
+                }
+                continue;
+            }
+            long updated = ((Resource) resource).getMeta().getLastUpdated().getTime();
+            if (cursor.lastUpdated != null && updated == cursor.lastUpdated && cursor.ties.contains(id)) {
+                continue;
+            }
+            if (matches == cursor.count) {
+                more = true;
+                continue;
+            }
+            if (updated != lastUpdated) {
+                lastUpdated = updated;
+                ties.clear();
+            } else if (ties.isEmpty() && cursor.lastUpdated != null && updated == cursor.lastUpdated) {
+                ties.addAll(cursor.ties);
+            }
+            ties.add(id);
+            resources.add(resource);
+            matches++;
+        }
+
+        if (!more) {
+            return new Page(resources, null, cursor.count, null);
+        }
+        Cursor next = new Cursor(cursor.resourceType, cursor.query, cursor.descending, cursor.count, lastUpdated, ties);
+        if (ties.size() > MAX_TIES || String.join(",", ties).length() > MAX_TIES_LENGTH) {
+            String storedSearch = handOver(next, theRequestDetails);
+            if (storedSearch != null) {
+                return new Page(resources, storedSearch, cursor.count, ties.size());
+            }
+        }
+        return new Page(resources, encode(next), cursor.count, null);
+    }
+
+    /**
+     * Store the rest of the search with the delegate, from the cursor's lastUpdated in the same order
+     *
+     * @return the id of the stored search, whose first results are the ties already returned, or null if the
+     *         delegate could not store it
+     */
+    private String handOver(Cursor cursor, RequestDetails theRequestDetails) {
+        SearchParameterMap map = translate(cursor);
+        map.setSort(sort(cursor.descending));
+        map.setLastUpdated(bound(map.getLastUpdated(), cursor.lastUpdated, cursor.descending));
+        String searchId = delegate.storeResultList(daos.get(cursor.resourceType).search(map, theRequestDetails));
+        if (searchId == null) {
+            log.debug("Unable to hand a keyset search with " + cursor.ties.size() + " ties to the paging provider");
+            return null;
+        }
+        handedOver.increment();
+        return searchId;
+    }
+
+    /**
+     * _lastUpdated then id, so resources with the same lastUpdated come back in the same order on every page
+     */
+    private static SortSpec sort(boolean descending) {
+        SortOrderEnum order = descending ? SortOrderEnum.DESC : SortOrderEnum.ASC;
+        return new SortSpec(Constants.PARAM_LASTUPDATED, order, new SortSpec(Constants.PARAM_ID, order));
+    }
+
+    /**
+     * Narrow the search's own _lastUpdated range to start at the cursor
+     */
+    private DateRangeParam bound(DateRangeParam range, long lastUpdated, boolean descending) {
+        Date instant = new Date(lastUpdated);
+        DateParam lower = (range != null) ? range.getLowerBound() : null;
+        DateParam upper = (range != null) ? range.getUpperBound() : null;
+        DateParam from = new DateParam(descending ? ParamPrefixEnum.LESSTHAN_OR_EQUALS : ParamPrefixEnum.GREATERTHAN_OR_EQUALS,
+                new InstantType(instant).getValueAsString());
+        if (descending) {
+            if (upper == null || range.getUpperBoundAsInstant().after(instant)) {
+                upper = from;
+            }
+        } else {
+            if (lower == null || range.getLowerBoundAsInstant().before(instant)) {
+                lower = from;
+            }
+        }
+        return new DateRangeParam(lower, upper);
+    }
+
+    /**
+     * @return whether the sort is descending, or null if it can't be expressed as the keyset
+     */
+    private static Boolean descending(SortSpec sort) {
+        if (sort == null) {
+            return false;
+        }
+        if (sort.getChain() != null || !Constants.PARAM_LASTUPDATED.equals(sort.getParamName())) {
+            return null;
+        }
+        return sort.getOrder() == SortOrderEnum.DESC;
+    }
+
+    public static boolean isInclude(IBaseResource resource) {
+        Object mode = ResourceMetadataKeyEnum.ENTRY_SEARCH_MODE.get((IAnyResource) resource);
+        if (mode instanceof BundleEntrySearchModeEnum) {
+            return mode == BundleEntrySearchModeEnum.INCLUDE;
+        }
+        return BundleEntrySearchModeEnum.INCLUDE.getCode().equals(mode);
+    }
+
+    /**
+     * The search parameters to repeat on each page, without _count, _format and _sort which the cursor carries
+     */
+    private static String query(Map<String, String[]> parameters) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (Constants.PARAM_COUNT.equals(name) || Constants.PARAM_FORMAT.equals(name) || Constants.PARAM_SORT.equals(name)) {
+                continue;
+            }
+            for (String value : parameter.getValue()) {
+                if (query.length() > 0) query.append('&');
+                query.append(SearchRequestTranslator.encode(name)).append('=').append(SearchRequestTranslator.encode(value));
+            }
+        }
+        return query.toString();
+    }
+
+    private String encode(Cursor cursor) {
+        String payload = cursor.resourceType + "\n" + (cursor.descending ? "d" : "a") + "\n" + cursor.count + "\n"
+                + cursor.lastUpdated + "\n" + String.join(",", cursor.ties) + "\n" + cursor.query;
+        String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        return CURSOR_PREFIX + encoded + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(encoded));
+    }
+
+    private Cursor decode(String searchId) {
+        int dot = searchId.lastIndexOf('.');
+        if (!isCursor(searchId) || dot <= CURSOR_PREFIX.length()) {
+            throw invalid();
+        }
+        String encoded = searchId.substring(CURSOR_PREFIX.length(), dot);
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(searchId.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, sign(encoded))) {
+                throw invalid();
+            }
+            String[] fields = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8).split("\n", 6);
+            Set<String> ties = new LinkedHashSet<>();
+            for (String id : fields[4].split(",")) {
+                if (!id.isEmpty()) ties.add(id);
+            }
+            return new Cursor(fields[0], fields[5], "d".equals(fields[1]), Integer.parseInt(fields[2]),
+                    Long.valueOf(fields[3]), ties);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            throw invalid();
+        }
+    }
+
+    private InvalidRequestException invalid() {
+        rejected.increment();
+        return new InvalidRequestException("Invalid paging cursor");
+    }
+
+    private byte[] sign(String encoded) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            return mac.doFinal(encoded.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public long getFirstPages() {
+        return firstPages.sum();
+    }
+
+    @Override
+    public long getCursorPages() {
+        return cursorPages.sum();
+    }
+
+    @Override
+    public long getDelegated() {
+        return delegated.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getHandedOver() {
+        return handedOver.sum();
+    }
+}
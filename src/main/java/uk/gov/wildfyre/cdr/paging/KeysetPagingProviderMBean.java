@@ -0,0 +1,23 @@
+package uk.gov.wildfyre.cdr.paging;
+
+public interface KeysetPagingProviderMBean {
+
+    long getFirstPages();
+
+    long getCursorPages();
+
+    /**
+     * @return searches left to HAPI's paging provider because they can't be paged by keyset
+     */
+    long getDelegated();
+
+    /**
+     * @return cursors refused because their signature did not match
+     */
+    long getRejected();
+
+    /**
+     * @return searches handed to HAPI's paging provider part way through, because too many resources shared a lastUpdated
+     */
+    long getHandedOver();
+}
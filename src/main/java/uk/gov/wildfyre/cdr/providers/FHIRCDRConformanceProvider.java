@@ -1,51 +1,205 @@
 package uk.gov.wildfyre.cdr.providers;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.provider.dstu3.JpaConformanceProviderDstu3;
 import ca.uhn.fhir.rest.annotation.Metadata;
 import ca.uhn.fhir.rest.server.RestfulServer;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.dstu3.model.*;
 import org.json.JSONObject;
 import uk.gov.wildfyre.cdr.HapiProperties;
+import uk.gov.wildfyre.cdr.statistics.ResourceCountStatistics;
 
 import javax.servlet.http.HttpServletRequest;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.UnknownHostException;
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class FHIRCDRConformanceProvider extends JpaConformanceProviderDstu3 {
 
-    private volatile CapabilityStatement capabilityStatement;
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(FHIRCDRConformanceProvider.class);
 
-    private Instant lastRefresh;
+    // Statements built just after an invalidation are only kept briefly, the change may not have been committed yet
+    private static final long INVALIDATION_GRACE_MILLIS = 10000;
 
-    private JSONObject openIdObj;
+    private static final String RESOURCE_COUNT_EXTENSION = "http://hl7api.sourceforge.net/hapi-fhir/res/extdefs.html#resourceCount";
+
+    private final RestfulServer restfulServer;
+
+    private final long ttlMillis;
+
+    private volatile CachedCapabilityStatement cached;
+
+    private volatile long invalidatedAt;
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private ResourceCountStatistics resourceCountStatistics;
+
+    private static final int OPENID_TIMEOUT_MILLIS = 5000;
+
+    private static final long OPENID_MIN_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long OPENID_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private volatile JSONObject openIdObj;
+
+    // Only one thread fetches the openid-configuration, a failed fetch isn't tried again until the backoff has passed
+    private final ReentrantLock openIdLock = new ReentrantLock();
+
+    private volatile long openIdRetryAt;
+
+    private long openIdBackoffMillis = OPENID_MIN_BACKOFF_MILLIS;
+
+    /**
+     * The CapabilityStatement along with its pre-encoded JSON and XML forms and their ETags
+     */
+    public static final class CachedCapabilityStatement {
+        private final CapabilityStatement capabilityStatement;
+        private final byte[] json;
+        private final byte[] xml;
+        private final String etag;
+        private final long expiresAt;
+
+        private CachedCapabilityStatement(CapabilityStatement capabilityStatement, byte[] json, byte[] xml, long expiresAt) {
+            this.capabilityStatement = capabilityStatement;
+            this.json = json;
+            this.xml = xml;
+            this.etag = DigestUtils.sha256Hex(json).substring(0, 32);
+            this.expiresAt = expiresAt;
+        }
+
+        public CapabilityStatement getCapabilityStatement() {
+            return capabilityStatement;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getXml() {
+            return xml;
+        }
+
+        /**
+         * @return a strong ETag (quoted) for the requested representation
+         */
+        public String getETag(boolean isXml) {
+            return "\"" + etag + (isXml ? "-xml" : "-json") + "\"";
+        }
+    }
 
     public FHIRCDRConformanceProvider(RestfulServer theRestfulServer, IFhirSystemDao<Bundle, Meta> theSystemDao, DaoConfig theDaoConfig) {
         super(theRestfulServer, theSystemDao, theDaoConfig);
+        this.restfulServer = theRestfulServer;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(HapiProperties.getMetadataCacheTtlSeconds());
+    }
+
+    /**
+     * Take the resource counts from the maintained statistics rather than counting each resource type in the database
+     */
+    public void setResourceCountStatistics(ResourceCountStatistics resourceCountStatistics) {
+        this.resourceCountStatistics = resourceCountStatistics;
+        setIncludeResourceCounts(resourceCountStatistics == null);
     }
 
     @Override
     @Metadata
     public CapabilityStatement getServerConformance(HttpServletRequest theRequest) {
-        if (capabilityStatement != null) {
-            if (lastRefresh != null) {
-                java.time.Duration duration = java.time.Duration.between(Instant.now(), lastRefresh);
-                // May need to revisit
-                if ((duration.getSeconds() * 60) < 2) return capabilityStatement;
+        return getCachedConformance(theRequest).getCapabilityStatement();
+    }
+
+    /**
+     * Return the cached statement, building it if it has never been built, has been invalidated or the TTL
+     * (metadata.cache_ttl_seconds) has expired. Only one thread builds, others wait for it.
+     */
+    public CachedCapabilityStatement getCachedConformance(HttpServletRequest theRequest) {
+        CachedCapabilityStatement current = cached;
+        if (current != null && System.currentTimeMillis() < current.expiresAt) {
+            return current;
+        }
+        // Fetched before taking the lock, so a slow identity provider doesn't hold up every /metadata request
+        JSONObject openId = getOpenIdConfiguration();
+        synchronized (this) {
+            current = cached;
+            if (current != null && System.currentTimeMillis() < current.expiresAt) {
+                return current;
             }
+            long now = System.currentTimeMillis();
+            CapabilityStatement capabilityStatement = buildConformance(theRequest, openId);
+            FhirContext ctx = restfulServer.getFhirContext();
+            boolean pretty = HapiProperties.getDefaultPrettyPrint();
+            byte[] json = ctx.newJsonParser().setPrettyPrint(pretty).encodeResourceToString(capabilityStatement).getBytes(StandardCharsets.UTF_8);
+            byte[] xml = ctx.newXmlParser().setPrettyPrint(pretty).encodeResourceToString(capabilityStatement).getBytes(StandardCharsets.UTF_8);
+            // Also kept briefly while the oauth-uris are missing, so they are added once the identity provider answers
+            boolean incomplete = openId == null && isOpenIdAdvertised();
+            long expiresAt = (incomplete || now - invalidatedAt < INVALIDATION_GRACE_MILLIS) ? now + INVALIDATION_GRACE_MILLIS : now + ttlMillis;
+            cached = new CachedCapabilityStatement(capabilityStatement, json, xml, expiresAt);
+            log.debug("CapabilityStatement rebuilt");
+            return cached;
         }
-        lastRefresh = Instant.now();
+    }
+
+    /**
+     * @return the statement last built for a FHIR request, whether or not it has expired, or null if none has been
+     */
+    public CachedCapabilityStatement getBuiltConformance() {
+        return cached;
+    }
 
-        capabilityStatement = super.getServerConformance(theRequest);
+    /**
+     * Build a statement without caching it, for callers outside the FHIR servlet whose request would give the
+     * statement the wrong server base
+     */
+    public CapabilityStatement buildUncachedConformance(HttpServletRequest theRequest) {
+        return buildConformance(theRequest, getOpenIdConfiguration());
+    }
+
+    /**
+     * @return how many times the statement has been invalidated, so anything derived from it can tell it is out of date
+     * before the statement is rebuilt
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Force the statement to be rebuilt on the next request, e.g. after a SearchParameter or StructureDefinition change
+     */
+    public void invalidate() {
+        invalidatedAt = System.currentTimeMillis();
+        invalidations.incrementAndGet();
+        cached = null;
+        log.debug("CapabilityStatement invalidated");
+    }
+
+    private CapabilityStatement buildConformance(HttpServletRequest theRequest, JSONObject openId) {
+        CapabilityStatement capabilityStatement = super.getServerConformance(theRequest);
+
+        Map<String, Long> counts = resourceCountStatistics != null ? resourceCountStatistics.getResourceCounts() : null;
+        if (counts != null) {
+            for (CapabilityStatement.CapabilityStatementRestComponent nextRest : capabilityStatement.getRest()) {
+                for (CapabilityStatement.CapabilityStatementRestResourceComponent nextResource : nextRest.getResource()) {
+                    Long count = counts.get(nextResource.getType());
+                    if (count != null) {
+                        nextResource.addExtension(new Extension(RESOURCE_COUNT_EXTENSION, new DecimalType(count)));
+                    }
+                }
+            }
+        }
 
         if (HapiProperties.getSecurityOauth()) {
             for (CapabilityStatement.CapabilityStatementRestComponent nextRest : capabilityStatement.getRest()) {
@@ -58,48 +212,21 @@ public class FHIRCDRConformanceProvider extends JpaConformanceProviderDstu3 {
                 if (HapiProperties.getSecurityOpenidConfig() != null) {
                     Extension securityExtension = nextRest.getSecurity().addExtension()
                             .setUrl("http://fhir-registry.smarthealthit.org/StructureDefinition/oauth-uris");
-                    HttpClient client = getHttpClient();
-                    HttpGet request = new HttpGet(HapiProperties.getSecurityOpenidConfig());
-                    request.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
-                    request.setHeader(HttpHeaders.ACCEPT, "application/json");
-                    if (openIdObj == null) {
-                        try {
-
-                            HttpResponse response = client.execute(request);
-                            //System.out.println(response.getStatusLine());
-                            if (response.getStatusLine().toString().contains("200")) {
-                                InputStreamReader reader = new InputStreamReader(response.getEntity().getContent());
-                                BufferedReader bR = new BufferedReader(reader);
-                                String line = "";
-
-                                StringBuilder responseStrBuilder = new StringBuilder();
-                                while ((line = bR.readLine()) != null) {
-
-                                    responseStrBuilder.append(line);
-                                }
-                                openIdObj = new JSONObject(responseStrBuilder.toString());
-                            }
-                        } catch (UnknownHostException e) {
-                            System.out.println("Host not known");
-                        } catch (Exception ex) {
-                            System.out.println(ex.getMessage());
-                        }
-                    }
-                    if (openIdObj != null) {
-                        if (openIdObj.has("token_endpoint")) {
+                    if (openId != null) {
+                        if (openId.has("token_endpoint")) {
                             securityExtension.addExtension()
                                     .setUrl("token")
-                                    .setValue(new UriType(openIdObj.getString("token_endpoint")));
+                                    .setValue(new UriType(openId.getString("token_endpoint")));
                         }
-                        if (openIdObj.has("authorization_endpoint")) {
+                        if (openId.has("authorization_endpoint")) {
                             securityExtension.addExtension()
                                     .setUrl("authorize")
-                                    .setValue(new UriType(openIdObj.getString("authorization_endpoint")));
+                                    .setValue(new UriType(openId.getString("authorization_endpoint")));
                         }
-                        if (openIdObj.has("register_endpoint")) {
+                        if (openId.has("register_endpoint")) {
                             securityExtension.addExtension()
                                     .setUrl("register")
-                                    .setValue(new UriType(openIdObj.getString("register_endpoint")));
+                                    .setValue(new UriType(openId.getString("register_endpoint")));
                         }
                     }
                 }
@@ -121,8 +248,58 @@ public class FHIRCDRConformanceProvider extends JpaConformanceProviderDstu3 {
         return  capabilityStatement;
     }
 
-    private HttpClient getHttpClient(){
-        final HttpClient httpClient = HttpClientBuilder.create().build();
-        return httpClient;
+    private boolean isOpenIdAdvertised() {
+        return HapiProperties.getSecurityOauth() && HapiProperties.getSecurityOpenidConfig() != null;
+    }
+
+    /**
+     * The identity provider's openid-configuration, fetched once. Returns null while it can't be fetched, or while
+     * another thread is fetching it.
+     */
+    private JSONObject getOpenIdConfiguration() {
+        JSONObject current = openIdObj;
+        if (current != null || !isOpenIdAdvertised() || System.currentTimeMillis() < openIdRetryAt) {
+            return current;
+        }
+        if (!openIdLock.tryLock()) {
+            return openIdObj;
+        }
+        try {
+            if (openIdObj == null && System.currentTimeMillis() >= openIdRetryAt) {
+                openIdObj = fetchOpenIdConfiguration();
+                if (openIdObj == null) {
+                    openIdRetryAt = System.currentTimeMillis() + openIdBackoffMillis;
+                    openIdBackoffMillis = Math.min(openIdBackoffMillis * 2, OPENID_MAX_BACKOFF_MILLIS);
+                } else {
+                    openIdBackoffMillis = OPENID_MIN_BACKOFF_MILLIS;
+                }
+            }
+            return openIdObj;
+        } finally {
+            openIdLock.unlock();
+        }
+    }
+
+    private JSONObject fetchOpenIdConfiguration() {
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(OPENID_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(OPENID_TIMEOUT_MILLIS)
+                .setSocketTimeout(OPENID_TIMEOUT_MILLIS)
+                .build();
+        HttpGet request = new HttpGet(HapiProperties.getSecurityOpenidConfig());
+        request.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+        request.setHeader(HttpHeaders.ACCEPT, "application/json");
+        try (CloseableHttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(config).build();
+             CloseableHttpResponse response = client.execute(request)) {
+            if (response.getStatusLine().getStatusCode() == 200) {
+                return new JSONObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+            }
+            log.error("Unexpected response from " + HapiProperties.getSecurityOpenidConfig() + " " + response.getStatusLine());
+        } catch (UnknownHostException e) {
+            log.error("Host not known");
+        } catch (Exception ex) {
+            log.error(ex.getMessage());
+        }
+        return null;
     }
 }
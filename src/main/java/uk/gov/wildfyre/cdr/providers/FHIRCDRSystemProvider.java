@@ -0,0 +1,42 @@
+package uk.gov.wildfyre.cdr.providers;
+
+import ca.uhn.fhir.jpa.provider.dstu3.JpaSystemProviderDstu3;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.dstu3.model.Bundle;
+import uk.gov.wildfyre.cdr.bundle.ParallelBundleProcessor;
+
+/**
+ * The JPA system provider, handing batch Bundles to the {@link ParallelBundleProcessor} and letting it prepare
+ * transaction Bundles when one is set (bundle.parallel=true).
+ *
+ * The @Transaction binding is made on the method of JpaSystemProviderDstu3 and invoked on this override.
+ */
+public class FHIRCDRSystemProvider extends JpaSystemProviderDstu3 {
+
+    private ParallelBundleProcessor bundleProcessor;
+
+    public void setBundleProcessor(ParallelBundleProcessor bundleProcessor) {
+        this.bundleProcessor = bundleProcessor;
+    }
+
+    @Override
+    public Bundle transaction(RequestDetails theRequestDetails, Bundle theResources) {
+        if (bundleProcessor == null || !(theRequestDetails instanceof ServletRequestDetails)) {
+            return super.transaction(theRequestDetails, theResources);
+        }
+        ServletRequestDetails requestDetails = (ServletRequestDetails) theRequestDetails;
+        if (theResources.getType() == Bundle.BundleType.BATCH && theResources.getEntry().size() > 1) {
+            startRequest(requestDetails.getServletRequest());
+            try {
+                return bundleProcessor.batch(requestDetails, theResources);
+            } finally {
+                endRequest(requestDetails.getServletRequest());
+            }
+        }
+        if (theResources.getType() == Bundle.BundleType.TRANSACTION) {
+            bundleProcessor.prepare(theResources);
+        }
+        return super.transaction(theRequestDetails, theResources);
+    }
+}
@@ -0,0 +1,174 @@
+package uk.gov.wildfyre.cdr.statistics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live resource counts per resource type, so the CapabilityStatement does not need a count(*) per type.
+ *
+ * Counts are adjusted as resources are created and deleted and periodically reconciled against HFJ_RESOURCE
+ * (statistics.reconcile_seconds), which corrects any drift from rolled back transactions, expunges or writes that
+ * did not pass through the REST layer. Until the first reconciliation has finished no counts are reported.
+ */
+public class ResourceCountStatistics implements ResourceCountStatisticsMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceCountStatistics.class);
+
+    private static final String COUNT_QUERY =
+            "SELECT RES_TYPE, COUNT(*) FROM HFJ_RESOURCE WHERE RES_DELETED_AT IS NULL GROUP BY RES_TYPE";
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicBoolean reconcileRequested = new AtomicBoolean();
+
+    private volatile boolean reconciled = false;
+
+    private volatile long lastReconciled = 0;
+
+    private volatile long lastReconcileMillis = 0;
+
+    private volatile long lastDrift = 0;
+
+    private final AtomicLong reconcileFailures = new AtomicLong();
+
+    public ResourceCountStatistics(EntityManagerFactory entityManagerFactory, long reconcileSeconds) {
+        this.entityManagerFactory = entityManagerFactory;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "resource-count-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.execute(this::reconcile);
+        if (reconcileSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::reconcile, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public void created(String resourceType) {
+        adder(resourceType).increment();
+    }
+
+    public void deleted(String resourceType) {
+        adder(resourceType).decrement();
+    }
+
+    /**
+     * Reconcile in the background as soon as possible, e.g. after an $expunge. Repeated requests made before the
+     * reconciliation starts are collapsed into one.
+     */
+    public void requestReconcile() {
+        if (reconcileRequested.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                reconcileRequested.set(false);
+                reconcile();
+            });
+        }
+    }
+
+    /**
+     * @return the count for each resource type, or null if the counts have not been loaded from the database yet
+     */
+    public Map<String, Long> getResourceCounts() {
+        if (!reconciled) {
+            return null;
+        }
+        Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((type, count) -> snapshot.put(type, Math.max(0, count.sum())));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private LongAdder adder(String resourceType) {
+        return counts.computeIfAbsent(resourceType, type -> new LongAdder());
+    }
+
+    @Override
+    public synchronized void reconcile() {
+        long start = System.currentTimeMillis();
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            @SuppressWarnings("unchecked")
+            List<Object[]> rows = entityManager.createNativeQuery(COUNT_QUERY).getResultList();
+            Map<String, Long> actual = new TreeMap<>();
+            for (Object[] row : rows) {
+                actual.put((String) row[0], ((Number) row[1]).longValue());
+            }
+
+            long drift = 0;
+            for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+                if (!actual.containsKey(entry.getKey())) {
+                    drift += Math.abs(entry.getValue().sumThenReset());
+                }
+            }
+            for (Map.Entry<String, Long> entry : actual.entrySet()) {
+                LongAdder count = adder(entry.getKey());
+                long correction = entry.getValue() - count.sum();
+                count.add(correction);
+                drift += Math.abs(correction);
+            }
+
+            lastDrift = reconciled ? drift : 0;
+            reconciled = true;
+            lastReconciled = System.currentTimeMillis();
+            lastReconcileMillis = lastReconciled - start;
+            log.debug("Resource counts reconciled in " + lastReconcileMillis + " ms, drift " + lastDrift);
+        } catch (Exception ex) {
+            reconcileFailures.incrementAndGet();
+            log.warn("Unable to reconcile resource counts " + ex.getMessage());
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> snapshot = getResourceCounts();
+        return snapshot == null ? Collections.emptyMap() : snapshot;
+    }
+
+    @Override
+    public long getTotal() {
+        long total = 0;
+        for (LongAdder count : counts.values()) {
+            total += Math.max(0, count.sum());
+        }
+        return total;
+    }
+
+    @Override
+    public long getLastReconciled() {
+        return lastReconciled;
+    }
+
+    @Override
+    public long getLastReconcileMillis() {
+        return lastReconcileMillis;
+    }
+
+    @Override
+    public long getLastDrift() {
+        return lastDrift;
+    }
+
+    @Override
+    public long getReconcileFailures() {
+        return reconcileFailures.get();
+    }
+}
@@ -0,0 +1,20 @@
+package uk.gov.wildfyre.cdr.statistics;
+
+import java.util.Map;
+
+public interface ResourceCountStatisticsMBean {
+
+    Map<String, Long> getCounts();
+
+    long getTotal();
+
+    long getLastReconciled();
+
+    long getLastReconcileMillis();
+
+    long getLastDrift();
+
+    long getReconcileFailures();
+
+    void reconcile();
+}
@@ -0,0 +1,214 @@
+package uk.gov.wildfyre.cdr.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a Bundle to a Writer an entry at a time, so only the resource being encoded is held in memory.
+ *
+ * The Bundle's own elements are written directly in the requested encoding, in the order the FHIR XML schema
+ * requires, and each entry resource is encoded by HAPI's parser. Nothing is pretty printed.
+ */
+public class BundleStreamWriter {
+
+    private final Writer writer;
+
+    private final IParser parser;
+
+    private final boolean xml;
+
+    private boolean hasEntries;
+
+    public BundleStreamWriter(FhirContext ctx, Writer writer, boolean xml, String serverBase) {
+        // The parser closes the writer once it has encoded a resource
+        this.writer = new FilterWriter(writer) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        this.xml = xml;
+        this.parser = xml ? ctx.newXmlParser() : ctx.newJsonParser();
+        this.parser.setPrettyPrint(false);
+        this.parser.setServerBaseUrl(serverBase);
+    }
+
+    /**
+     * Start the Bundle, total and lastUpdated may be null
+     */
+    public void start(String id, String lastUpdated, String type, Integer total) throws IOException {
+        if (xml) {
+            writer.write("<Bundle xmlns=\"http://hl7.org/fhir\">");
+            xmlValue("id", id);
+            if (lastUpdated != null) {
+                writer.write("<meta>");
+                xmlValue("lastUpdated", lastUpdated);
+                writer.write("</meta>");
+            }
+            xmlValue("type", type);
+            if (total != null) {
+                xmlValue("total", total.toString());
+            }
+        } else {
+            writer.write("{\"resourceType\":\"Bundle\",");
+            jsonValue("id", id);
+            if (lastUpdated != null) {
+                writer.write(",\"meta\":{");
+                jsonValue("lastUpdated", lastUpdated);
+                writer.write('}');
+            }
+            writer.write(',');
+            jsonValue("type", type);
+            if (total != null) {
+                writer.write(",\"total\":");
+                writer.write(total.toString());
+            }
+        }
+    }
+
+    /**
+     * Write the links, between {@link #start} and the first entry
+     */
+    public void links(String[][] links) throws IOException {
+        if (links.length == 0) return;
+        if (!xml) {
+            writer.write(",\"link\":[");
+        }
+        for (int i = 0; i < links.length; i++) {
+            if (xml) {
+                writer.write("<link>");
+                xmlValue("relation", links[i][0]);
+                xmlValue("url", links[i][1]);
+                writer.write("</link>");
+            } else {
+                writer.write(i == 0 ? "{" : ",{");
+                jsonValue("relation", links[i][0]);
+                writer.write(',');
+                jsonValue("url", links[i][1]);
+                writer.write('}');
+            }
+        }
+        if (!xml) {
+            writer.write(']');
+        }
+    }
+
+    /**
+     * Write an entry of a searchset, searchMode may be null
+     */
+    public void searchEntry(String fullUrl, IBaseResource resource, String searchMode) throws IOException {
+        startEntry(fullUrl, resource);
+        if (searchMode != null) {
+            if (xml) {
+                writer.write("<search>");
+                xmlValue("mode", searchMode);
+                writer.write("</search>");
+            } else {
+                writer.write(",\"search\":{");
+                jsonValue("mode", searchMode);
+                writer.write('}');
+            }
+        }
+        endEntry();
+    }
+
+    /**
+     * Write an entry of a history Bundle, the resource is null if it was deleted
+     */
+    public void historyEntry(String fullUrl, IBaseResource resource, String method, String url) throws IOException {
+        startEntry(fullUrl, resource);
+        if (method != null) {
+            if (xml) {
+                writer.write("<request>");
+                xmlValue("method", method);
+                xmlValue("url", url);
+                writer.write("</request>");
+            } else {
+                writer.write(",\"request\":{");
+                jsonValue("method", method);
+                writer.write(',');
+                jsonValue("url", url);
+                writer.write('}');
+            }
+        }
+        endEntry();
+    }
+
+    public void end() throws IOException {
+        if (xml) {
+            writer.write("</Bundle>");
+        } else {
+            writer.write(hasEntries ? "]}" : "}");
+        }
+        writer.flush();
+    }
+
+    private void startEntry(String fullUrl, IBaseResource resource) throws IOException {
+        if (xml) {
+            writer.write("<entry>");
+            xmlValue("fullUrl", fullUrl);
+            if (resource != null) {
+                writer.write("<resource>");
+                parser.encodeResourceToWriter(resource, writer);
+                writer.write("</resource>");
+            }
+        } else {
+            writer.write(hasEntries ? ",{" : ",\"entry\":[{");
+            jsonValue("fullUrl", fullUrl);
+            if (resource != null) {
+                writer.write(",\"resource\":");
+                parser.encodeResourceToWriter(resource, writer);
+            }
+        }
+        hasEntries = true;
+    }
+
+    private void endEntry() throws IOException {
+        writer.write(xml ? "</entry>" : "}");
+    }
+
+    private void xmlValue(String name, String value) throws IOException {
+        writer.write('<');
+        writer.write(name);
+        writer.write(" value=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': writer.write("&amp;"); break;
+                case '<': writer.write("&lt;"); break;
+                case '>': writer.write("&gt;"); break;
+                case '"': writer.write("&quot;"); break;
+                default: writer.write(c);
+            }
+        }
+        writer.write("\"/>");
+    }
+
+    private void jsonValue(String name, String value) throws IOException {
+        writer.write('"');
+        writer.write(name);
+        writer.write("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
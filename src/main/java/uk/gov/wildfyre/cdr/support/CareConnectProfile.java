@@ -1,7 +1,16 @@
 package uk.gov.wildfyre.cdr.support;
 
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class CareConnectProfile {
 
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CareConnectProfile.class);
+
     public static final String Immunization_1 = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Immunization-1";
 
     public static final String MedicationStatement_1 = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-MedicationStatement-1";
@@ -24,4 +33,89 @@ public class CareConnectProfile {
     public static final String AllergyIntolerance_1 = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-AllergyIntolerance-1";
 
     public static final String Composition_1 = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Composition-1";
+
+    public static final String Flag_1 = "https://fhir.hl7.org.uk/STU3/StructureDefinition/CareConnect-Flag-1";
+
+    public static final String GPConnect_DocumentReference_1 = "https://fhir.nhs.uk/STU3/StructureDefinition/GPConnect-DocumentReference-1";
+
+    private static final List<String> PROFILES = Collections.unmodifiableList(Arrays.asList(
+            Immunization_1, MedicationStatement_1, MedicationRequest_1, Medication_1, Location_1, Organization_1,
+            Patient_1, Practitioner_1, PractitionerRole_1, Encounter_1, Condition_1, Procedure_1, Observation_1,
+            AllergyIntolerance_1, Composition_1, Flag_1, GPConnect_DocumentReference_1));
+
+    /**
+     * @return all the profiles the server stamps on incoming resources
+     */
+    public static List<String> getProfiles() {
+        return PROFILES;
+    }
+
+    /**
+     * Add the CareConnect profile for the resource type to meta.profile, unless a CareConnect profile is already present
+     */
+    public static IBaseResource setProfile(IBaseResource resource) {
+        if (resource.getMeta() != null) {
+            if (resource.getMeta().getProfile().size()>0) {
+                for (int i =0; i<resource.getMeta().getProfile().size(); i++)
+                    if (resource.getMeta().getProfile().get(i).toString().contains("CareConnect")) {
+                        return resource;
+                    }
+            }
+        }
+        log.trace("Adding profile to "+resource.getClass().getSimpleName());
+        switch(resource.getClass().getSimpleName()) {
+            case "Patient":
+                ((Patient) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Patient_1));
+                break;
+            case "Practitioner":
+                ((Practitioner) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Practitioner_1));
+                break;
+            case "PractitionerRole":
+                ((PractitionerRole) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.PractitionerRole_1));
+                break;
+            case "Organization":
+                ((Organization) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Organization_1));
+                break;
+            case "Location":
+                ((Location) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Location_1));
+                break;
+            case "Observation":
+                // Observation is not currently profiled on STU3 Care Connect
+                ((Observation) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Observation_1));
+                break;
+            case "Encounter":
+                ((Encounter) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Encounter_1));
+                break;
+            case "Condition":
+                ((Condition) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Condition_1));
+                break;
+            case "Procedure":
+                ((Procedure) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Procedure_1));
+                break;
+            case "Immunization":
+                ((Immunization) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Immunization_1));
+                break;
+            case "MedicationRequest":
+                ((MedicationRequest) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.MedicationRequest_1));
+                break;
+            case "MedicationStatement":
+                ((MedicationStatement) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.MedicationStatement_1));
+                break;
+            case "AllergyIntolerance":
+                ((AllergyIntolerance) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.AllergyIntolerance_1));
+                break;
+            case "Medication":
+                ((Medication) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Medication_1));
+                break;
+            case "Flag":
+                ((Flag) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.Flag_1));
+                break;
+            case "DocumentReference":
+                ((DocumentReference) resource).getMeta().getProfile().add(new UriType(CareConnectProfile.GPConnect_DocumentReference_1));
+                break;
+
+
+        }
+        return resource;
+    }
 }
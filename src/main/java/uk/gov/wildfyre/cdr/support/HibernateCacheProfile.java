@@ -0,0 +1,120 @@
+package uk.gov.wildfyre.cdr.support;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.management.ManagementService;
+import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
+import uk.gov.wildfyre.cdr.HapiProperties;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+/**
+ * Second level cache for the read mostly HAPI entities, switched on by hibernate.cache.use_second_level_cache.
+ *
+ * Each entity is cached read-write in its own ehcache region, bounded by hibernate.cache.regions.{region}.size
+ * entries and expiring after hibernate.cache.regions.{region}.ttl_seconds. The cache is local to this server, with
+ * several servers behind a load balancer keep the TTLs short. Region statistics are registered over JMX by ehcache
+ * (net.sf.ehcache domain), the totals by {@link HibernateCacheStatistics}.
+ */
+public class HibernateCacheProfile {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HibernateCacheProfile.class);
+
+    private static final String REGION_FACTORY = "org.hibernate.cache.ehcache.internal.SingletonEhcacheRegionFactory";
+
+    private static final String QUERY_RESULTS_REGION = "default-query-results-region";
+
+    private static final String UPDATE_TIMESTAMPS_REGION = "default-update-timestamps-region";
+
+    private static final class Region {
+        private final String name;
+        private final int defaultSize;
+        private final int defaultTtlSeconds;
+        // Entity classes have moved package between HAPI versions, the first one found is used
+        private final String[] entityClasses;
+
+        private Region(String name, int defaultSize, int defaultTtlSeconds, String... entityClasses) {
+            this.name = name;
+            this.defaultSize = defaultSize;
+            this.defaultTtlSeconds = defaultTtlSeconds;
+            this.entityClasses = entityClasses;
+        }
+    }
+
+    private static final Region[] REGIONS = {
+            new Region("ForcedId", 100000, 3600,
+                    "ca.uhn.fhir.jpa.model.entity.ForcedId", "ca.uhn.fhir.jpa.entity.ForcedId"),
+            new Region("ResourceTable", 10000, 300,
+                    "ca.uhn.fhir.jpa.model.entity.ResourceTable", "ca.uhn.fhir.jpa.entity.ResourceTable"),
+            new Region("SearchParam", 1000, 3600,
+                    "ca.uhn.fhir.jpa.model.entity.SearchParam", "ca.uhn.fhir.jpa.entity.SearchParam"),
+            new Region("TermCodeSystem", 1000, 3600,
+                    "ca.uhn.fhir.jpa.entity.TermCodeSystem"),
+            new Region("TermCodeSystemVersion", 1000, 3600,
+                    "ca.uhn.fhir.jpa.entity.TermCodeSystemVersion"),
+            new Region("TermConcept", 50000, 3600,
+                    "ca.uhn.fhir.jpa.entity.TermConcept")
+    };
+
+    private HibernateCacheProfile() {
+    }
+
+    /**
+     * Add the cache settings to the JPA properties, creating the ehcache regions when the cache is enabled
+     */
+    public static void apply(Properties jpaProperties) {
+        boolean queryCache = HapiProperties.getHibernateQueryCache();
+        if (!HapiProperties.getHibernateSecondLevelCache()) {
+            jpaProperties.put("hibernate.cache.use_second_level_cache", "false");
+            jpaProperties.put("hibernate.cache.use_query_cache", "false");
+            return;
+        }
+
+        Configuration configuration = new Configuration().name("cdr-hibernate");
+        configuration.addDefaultCache(new CacheConfiguration("default", 1000).timeToLiveSeconds(300));
+        for (Region region : REGIONS) {
+            String entityClass = findClass(region.entityClasses);
+            if (entityClass == null) {
+                log.warn("No entity found for cache region " + region.name + ", not cached");
+                continue;
+            }
+            int size = HapiProperties.getHibernateCacheRegionSize(region.name, region.defaultSize);
+            int ttl = HapiProperties.getHibernateCacheRegionTtlSeconds(region.name, region.defaultTtlSeconds);
+            configuration.addCache(new CacheConfiguration(region.name, size)
+                    .timeToLiveSeconds(ttl)
+                    .memoryStoreEvictionPolicy(MemoryStoreEvictionPolicy.LRU));
+            jpaProperties.put("hibernate.classcache." + entityClass, "read-write," + region.name);
+            log.info("Caching " + entityClass + " in region " + region.name + " (" + size + " entries, " + ttl + "s)");
+        }
+        if (queryCache) {
+            configuration.addCache(new CacheConfiguration(QUERY_RESULTS_REGION,
+                    HapiProperties.getHibernateCacheRegionSize(QUERY_RESULTS_REGION, 10000))
+                    .timeToLiveSeconds(HapiProperties.getHibernateCacheRegionTtlSeconds(QUERY_RESULTS_REGION, 300)));
+            // Timestamps must outlive every cached query so never expire
+            configuration.addCache(new CacheConfiguration(UPDATE_TIMESTAMPS_REGION, 0).eternal(true));
+        }
+
+        // The singleton region factory picks up this cache manager rather than creating its own
+        CacheManager cacheManager = CacheManager.create(configuration);
+        ManagementService.registerMBeans(cacheManager, ManagementFactory.getPlatformMBeanServer(), false, true, true, true);
+
+        jpaProperties.put("hibernate.cache.use_second_level_cache", "true");
+        jpaProperties.put("hibernate.cache.use_query_cache", String.valueOf(queryCache));
+        jpaProperties.put("hibernate.cache.region.factory_class", REGION_FACTORY);
+        jpaProperties.put("hibernate.generate_statistics", "true");
+    }
+
+    private static String findClass(String[] classNames) {
+        for (String className : classNames) {
+            try {
+                Class.forName(className, false, HibernateCacheProfile.class.getClassLoader());
+                return className;
+            } catch (ClassNotFoundException ex) {
+                // try the next
+            }
+        }
+        return null;
+    }
+}
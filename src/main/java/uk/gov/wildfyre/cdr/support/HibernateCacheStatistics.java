@@ -0,0 +1,62 @@
+package uk.gov.wildfyre.cdr.support;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Second level cache totals from Hibernate's statistics, see {@link HibernateCacheProfile}
+ */
+public class HibernateCacheStatistics implements HibernateCacheStatisticsMBean {
+
+    private final SessionFactory sessionFactory;
+
+    public HibernateCacheStatistics(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    private Statistics statistics() {
+        return sessionFactory.getStatistics();
+    }
+
+    @Override
+    public long getSecondLevelCacheHitCount() {
+        return statistics().getSecondLevelCacheHitCount();
+    }
+
+    @Override
+    public long getSecondLevelCacheMissCount() {
+        return statistics().getSecondLevelCacheMissCount();
+    }
+
+    @Override
+    public long getSecondLevelCachePutCount() {
+        return statistics().getSecondLevelCachePutCount();
+    }
+
+    @Override
+    public double getSecondLevelCacheHitRatio() {
+        long hits = getSecondLevelCacheHitCount();
+        long total = hits + getSecondLevelCacheMissCount();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getQueryCacheHitCount() {
+        return statistics().getQueryCacheHitCount();
+    }
+
+    @Override
+    public long getQueryCacheMissCount() {
+        return statistics().getQueryCacheMissCount();
+    }
+
+    @Override
+    public String[] getRegionNames() {
+        return statistics().getSecondLevelCacheRegionNames();
+    }
+
+    @Override
+    public void evictAll() {
+        sessionFactory.getCache().evictAllRegions();
+    }
+}
@@ -0,0 +1,20 @@
+package uk.gov.wildfyre.cdr.support;
+
+public interface HibernateCacheStatisticsMBean {
+
+    long getSecondLevelCacheHitCount();
+
+    long getSecondLevelCacheMissCount();
+
+    long getSecondLevelCachePutCount();
+
+    double getSecondLevelCacheHitRatio();
+
+    long getQueryCacheHitCount();
+
+    long getQueryCacheMissCount();
+
+    String[] getRegionNames();
+
+    void evictAll();
+}
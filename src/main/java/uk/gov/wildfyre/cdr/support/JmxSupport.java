@@ -0,0 +1,48 @@
+package uk.gov.wildfyre.cdr.support;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the server's runtime counters as JMX MBeans so they can be viewed through hawtio/jolokia.
+ */
+public class JmxSupport {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(JmxSupport.class);
+
+    public static final String DOMAIN = "uk.gov.wildfyre.cdr";
+
+    private JmxSupport() {
+    }
+
+    /**
+     * Register (or replace) an MBean under uk.gov.wildfyre.cdr:type=theType
+     *
+     * Failures are logged only, metrics must never stop the server starting.
+     */
+    public static void register(String theType, Object theMBean) {
+        register(DOMAIN + ":type=" + theType, theType, theMBean);
+    }
+
+    /**
+     * Register (or replace) one of several MBeans of the same type, under uk.gov.wildfyre.cdr:type=theType,name=theName
+     */
+    public static void register(String theType, String theName, Object theMBean) {
+        register(DOMAIN + ":type=" + theType + ",name=" + theName, theType, theMBean);
+    }
+
+    private static void register(String theObjectName, String theType, Object theMBean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(theObjectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(theMBean, name);
+            log.debug("Registered MBean " + name);
+        } catch (Exception ex) {
+            log.warn("Unable to register MBean " + theType + " " + ex.getMessage());
+        }
+    }
+}
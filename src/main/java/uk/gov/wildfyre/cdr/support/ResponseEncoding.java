@@ -0,0 +1,63 @@
+package uk.gov.wildfyre.cdr.support;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import uk.gov.wildfyre.cdr.HapiProperties;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Encoding decisions and links for responses written by interceptors, outside of HAPI's own response handling
+ */
+public class ResponseEncoding {
+
+    private ResponseEncoding() {
+    }
+
+    /**
+     * _format takes precedence over the Accept header, otherwise the server default_encoding applies
+     */
+    public static boolean isXml(HttpServletRequest theRequest) {
+        String format = theRequest.getParameter(Constants.PARAM_FORMAT);
+        if (format == null) {
+            format = theRequest.getHeader(Constants.HEADER_ACCEPT);
+        }
+        if (format == null || format.trim().isEmpty() || format.trim().equals("*/*")) {
+            return HapiProperties.getDefaultEncoding() == EncodingEnum.XML;
+        }
+        int xmlAt = format.indexOf("xml");
+        int jsonAt = format.indexOf("json");
+        if (xmlAt < 0 && jsonAt < 0) {
+            return HapiProperties.getDefaultEncoding() == EncodingEnum.XML;
+        }
+        return xmlAt >= 0 && (jsonAt < 0 || xmlAt < jsonAt);
+    }
+
+    /**
+     * @return true if the request has no parameters other than _format, so the default representation is wanted
+     */
+    public static boolean hasOnlyFormatParameter(HttpServletRequest theRequest) {
+        for (String name : theRequest.getParameterMap().keySet()) {
+            if (!Constants.PARAM_FORMAT.equals(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static String contentType(boolean isXml) {
+        return (isXml ? Constants.CT_FHIR_XML_NEW : Constants.CT_FHIR_JSON_NEW) + Constants.CHARSET_UTF8_CTSUFFIX;
+    }
+
+    /**
+     * @return server.address if set, otherwise the base of the request URL, without a trailing slash
+     */
+    public static String serverBase(HttpServletRequest theRequest) {
+        String serverAddress = HapiProperties.getServerAddress();
+        if (serverAddress != null && serverAddress.length() > 0) {
+            return serverAddress.endsWith("/") ? serverAddress.substring(0, serverAddress.length() - 1) : serverAddress;
+        }
+        String url = theRequest.getRequestURL().toString();
+        return url.substring(0, url.length() - theRequest.getPathInfo().length());
+    }
+}
@@ -0,0 +1,146 @@
+package uk.gov.wildfyre.cdr.support;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translates the parameters of a GET [base]/[type]?... search into a SearchParameterMap for running the search
+ * through the DAO directly, outside of HAPI's search method binding.
+ *
+ * The search parameters are translated by HAPI's MatchUrlService, which ignores most of the special parameters,
+ * so _sort, _include and _revinclude are added here and any other special parameter (_summary, _elements, _id
+ * etc.) is refused. Every parameter is checked to have been translated, a search which would not be run exactly
+ * as HAPI runs it is refused rather than answered differently.
+ */
+public class SearchRequestTranslator {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchRequestTranslator.class);
+
+    private static final Set<String> INCLUDE_PARAMETERS = new HashSet<>(Arrays.asList(
+            Constants.PARAM_INCLUDE, Constants.PARAM_INCLUDE + ":iterate", Constants.PARAM_INCLUDE + ":recurse"));
+
+    private static final Set<String> REVINCLUDE_PARAMETERS = new HashSet<>(Arrays.asList(
+            Constants.PARAM_REVINCLUDE, Constants.PARAM_REVINCLUDE + ":iterate", Constants.PARAM_REVINCLUDE + ":recurse"));
+
+    private final FhirContext ctx;
+
+    private final MatchUrlService matchUrlService;
+
+    public SearchRequestTranslator(FhirContext ctx, MatchUrlService matchUrlService) {
+        this.ctx = ctx;
+        this.matchUrlService = matchUrlService;
+    }
+
+    /**
+     * @return the search, without a count, or null if it can't be translated exactly
+     */
+    public SearchParameterMap translate(String resourceType, Map<String, String[]> parameters) {
+        StringBuilder matchUrl = new StringBuilder(resourceType).append('?');
+        Set<String> searchParameters = new HashSet<>();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (Constants.PARAM_FORMAT.equals(name) || Constants.PARAM_COUNT.equals(name) || Constants.PARAM_SORT.equals(name)
+                    || INCLUDE_PARAMETERS.contains(name) || REVINCLUDE_PARAMETERS.contains(name)) {
+                continue;
+            }
+            String baseName = baseName(name);
+            if (baseName.startsWith("_") && !Constants.PARAM_LASTUPDATED.equals(baseName) && !Constants.PARAM_HAS.equals(baseName)) {
+                return null;
+            }
+            searchParameters.add(baseName);
+            for (String value : parameter.getValue()) {
+                matchUrl.append(encode(name)).append('=').append(encode(value)).append('&');
+            }
+        }
+
+        SearchParameterMap map = matchUrlService.translateMatchUrl(matchUrl.toString(), ctx.getResourceDefinition(resourceType));
+        for (String name : searchParameters) {
+            boolean translated = Constants.PARAM_LASTUPDATED.equals(name) ? map.getLastUpdated() != null : map.containsKey(name);
+            if (!translated) {
+                log.debug(name + " was not translated");
+                return null;
+            }
+        }
+
+        String[] sort = parameters.get(Constants.PARAM_SORT);
+        if (sort != null) {
+            map.setSort(sort(sort));
+        }
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            boolean include = INCLUDE_PARAMETERS.contains(parameter.getKey());
+            boolean revinclude = REVINCLUDE_PARAMETERS.contains(parameter.getKey());
+            if (!include && !revinclude) continue;
+            boolean recurse = parameter.getKey().indexOf(':') > 0;
+            for (String value : parameter.getValue()) {
+                if (include) {
+                    map.addInclude(new Include(value, recurse));
+                } else {
+                    map.addRevInclude(new Include(value, recurse));
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * _sort=a,-b
+     */
+    private SortSpec sort(String[] values) {
+        SortSpec first = null;
+        SortSpec last = null;
+        for (String value : values) {
+            for (String part : value.split(",")) {
+                String name = part.trim();
+                if (name.isEmpty()) continue;
+                SortOrderEnum order = SortOrderEnum.ASC;
+                if (name.startsWith("-")) {
+                    order = SortOrderEnum.DESC;
+                    name = name.substring(1);
+                }
+                SortSpec spec = new SortSpec(name, order);
+                if (first == null) {
+                    first = spec;
+                } else {
+                    last.setChain(spec);
+                }
+                last = spec;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * The search parameter name without its modifier or chain, e.g. subject for subject:Patient.name
+     */
+    private static String baseName(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ':' || c == '.') {
+                return name.substring(0, i);
+            }
+        }
+        return name;
+    }
+
+    public static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
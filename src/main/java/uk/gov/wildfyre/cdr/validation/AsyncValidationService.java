@@ -0,0 +1,159 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import org.hl7.fhir.dstu3.model.IdType;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.gov.wildfyre.cdr.support.CareConnectProfile;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Shadow validation: written resources are validated on a background worker pool and the outcome stored in the
+ * {@link ValidationOutcomeStore} against the resource's id and version.
+ *
+ * A resource written inside a transaction is only queued once the transaction commits, so nothing is validated or
+ * stored for a write which rolls back. Submitting never blocks, when the bounded queue is full the resource is shed
+ * and counted.
+ */
+public class AsyncValidationService implements AsyncValidationServiceMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncValidationService.class);
+
+    private final ValidationEngine engine;
+
+    private final ValidationOutcomeStore store;
+
+    private final Predicate<OperationOutcome> passed;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int queueCapacity;
+
+    private final LongAdder submitted = new LongAdder();
+
+    private final LongAdder shed = new LongAdder();
+
+    private final LongAdder validated = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    public AsyncValidationService(ValidationEngine engine, ValidationOutcomeStore store, Predicate<OperationOutcome> passed,
+                                  int threads, int queueCapacity) {
+        this.engine = engine;
+        this.store = store;
+        this.passed = passed;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "shadow-validation-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queue a written resource for validation. The resource must already carry its server assigned id and version.
+     */
+    public void submit(Resource resource) {
+        IdType id = resource.getIdElement();
+        if (id == null || !id.hasIdPart()) {
+            return;
+        }
+        String type = resource.getResourceType().name();
+        String idPart = id.getIdPart();
+        String version = id.hasVersionIdPart() ? id.getVersionIdPart() : resource.getMeta().getVersionId();
+        // Copy on the request thread, the original is still used to build the response
+        Resource copy = resource.copy();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    queue(type, idPart, version, copy);
+                }
+            });
+        } else {
+            queue(type, idPart, version, copy);
+        }
+    }
+
+    private void queue(String type, String id, String version, Resource copy) {
+        try {
+            executor.execute(() -> validate(type, id, version, copy));
+            submitted.increment();
+        } catch (RejectedExecutionException ex) {
+            shed.increment();
+            log.debug("Shadow validation queue full, shed " + type + "/" + id);
+        }
+    }
+
+    private void validate(String type, String id, String version, Resource resource) {
+        try {
+            CareConnectProfile.setProfile(resource);
+            resource.setId((IdType) null); // remove to avoid trying to validate a specific resource
+            OperationOutcome outcome = engine.validate(resource);
+            validated.increment();
+            if (!passed.test(outcome)) {
+                failed.increment();
+                log.info("Shadow validation failed for " + type + "/" + id + "/_history/" + version);
+            }
+            store.store(type, id, version, outcome);
+        } catch (Exception ex) {
+            errors.increment();
+            log.warn("Shadow validation error for " + type + "/" + id + " " + ex.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getShed() {
+        return shed.sum();
+    }
+
+    @Override
+    public long getValidated() {
+        return validated.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+}
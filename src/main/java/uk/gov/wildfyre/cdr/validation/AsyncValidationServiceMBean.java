@@ -0,0 +1,18 @@
+package uk.gov.wildfyre.cdr.validation;
+
+public interface AsyncValidationServiceMBean {
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getSubmitted();
+
+    long getShed();
+
+    long getValidated();
+
+    long getFailed();
+
+    long getErrors();
+}
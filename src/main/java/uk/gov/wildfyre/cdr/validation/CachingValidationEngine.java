@@ -0,0 +1,108 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the outcome of validating a resource, keyed by a digest of its profile(s) and normalised content.
+ *
+ * Integration engines often resend byte identical resources (the same Practitioner or Organization on every
+ * message), these skip validation entirely. The content is normalised by encoding it as compact JSON without
+ * meta.versionId and meta.lastUpdated. Size and TTL come from validation.cache.size and validation.cache.ttl_seconds.
+ */
+public class CachingValidationEngine implements ValidationEngine, CachingValidationEngineMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingValidationEngine.class);
+
+    private final ValidationEngine engine;
+
+    private final FhirContext ctx;
+
+    private final Cache<String, OperationOutcome> outcomes;
+
+    public CachingValidationEngine(ValidationEngine engine, FhirContext ctx, long maxSize, long ttlSeconds) {
+        this.engine = engine;
+        this.ctx = ctx;
+        this.outcomes = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public OperationOutcome validate(IBaseResource resource) {
+        String key = getKey(resource);
+        OperationOutcome outcome = outcomes.getIfPresent(key);
+        if (outcome != null) {
+            log.trace("Validation cache hit " + key);
+            return outcome;
+        }
+        outcome = engine.validate(resource);
+        if (outcome.getUserData(CircuitBreakerValidationEngine.DEGRADED) == null) {
+            outcomes.put(key, outcome);
+        }
+        return outcome;
+    }
+
+    private String getKey(IBaseResource resource) {
+        StringBuilder key = new StringBuilder();
+        if (resource.getMeta() != null) {
+            for (IPrimitiveType<String> profile : resource.getMeta().getProfile()) {
+                key.append(profile.getValue()).append('|');
+            }
+        }
+        IParser parser = ctx.newJsonParser()
+                .setPrettyPrint(false)
+                .setDontEncodeElements(new HashSet<>(Arrays.asList("*.meta.versionId", "*.meta.lastUpdated")));
+        key.append(parser.encodeResourceToString(resource));
+        return DigestUtils.sha256Hex(key.toString());
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName();
+    }
+
+    @Override
+    public long getHits() {
+        return outcomes.stats().hitCount();
+    }
+
+    @Override
+    public long getMisses() {
+        return outcomes.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return outcomes.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictions() {
+        return outcomes.stats().evictionCount();
+    }
+
+    @Override
+    public long getSize() {
+        return outcomes.size();
+    }
+
+    @Override
+    public void clear() {
+        outcomes.invalidateAll();
+    }
+}
@@ -0,0 +1,16 @@
+package uk.gov.wildfyre.cdr.validation;
+
+public interface CachingValidationEngineMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getEvictions();
+
+    long getSize();
+
+    void clear();
+}
@@ -0,0 +1,165 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.gclient.UriClientParam;
+import org.hl7.fhir.dstu3.hapi.ctx.DefaultProfileValidationSupport;
+import org.hl7.fhir.dstu3.hapi.ctx.IValidationSupport;
+import org.hl7.fhir.dstu3.hapi.validation.PrePopulatedValidationSupport;
+import org.hl7.fhir.dstu3.hapi.validation.ValidationSupportChain;
+import org.hl7.fhir.dstu3.model.*;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.gov.wildfyre.cdr.support.CareConnectProfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds the validation support chain used by {@link LocalValidationEngine}.
+ *
+ * The CareConnect StructureDefinitions listed in {@link CareConnectProfile}, and the ValueSets and CodeSystems they
+ * bind to, are loaded once at start up and held in memory. They are read from the directory in
+ * validation.local.profiles_dir (json or xml files, Bundles are unpacked) if set, otherwise fetched once from the
+ * validation.server. Core FHIR definitions come from the HAPI validation resources on the classpath.
+ */
+public class CareConnectValidationSupport {
+
+    private static final Logger log = LoggerFactory.getLogger(CareConnectValidationSupport.class);
+
+    private static final String HL7_BASE = "http://hl7.org/fhir/";
+
+    private final FhirContext ctx;
+
+    private final PrePopulatedValidationSupport prePopulated = new PrePopulatedValidationSupport();
+
+    private final Set<String> loaded = new HashSet<>();
+
+    private CareConnectValidationSupport(FhirContext ctx) {
+        this.ctx = ctx;
+    }
+
+    public static IValidationSupport build(FhirContext ctx, String profilesDir, String validationServer) {
+        CareConnectValidationSupport support = new CareConnectValidationSupport(ctx);
+        if (profilesDir != null && !profilesDir.isEmpty()) {
+            support.loadDirectory(new File(profilesDir));
+        } else if (validationServer != null && !validationServer.isEmpty()) {
+            support.loadFromServer(validationServer);
+        } else {
+            log.warn("No source configured for CareConnect profiles, validating against core FHIR only");
+        }
+        log.info("Local validation support loaded " + support.loaded.size() + " conformance resources");
+        return new ValidationSupportChain(support.prePopulated, new DefaultProfileValidationSupport());
+    }
+
+    private void loadDirectory(File dir) {
+        File[] files = dir.listFiles((file, name) -> name.endsWith(".json") || name.endsWith(".xml"));
+        if (files == null) {
+            log.error("Unable to read validation profiles directory " + dir.getAbsolutePath());
+            return;
+        }
+        for (File file : files) {
+            IParser parser = file.getName().endsWith(".json") ? ctx.newJsonParser() : ctx.newXmlParser();
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                add(parser.parseResource(reader));
+            } catch (Exception ex) {
+                log.error("Unable to load " + file.getName() + " " + ex.getMessage());
+            }
+        }
+    }
+
+    private void loadFromServer(String validationServer) {
+        ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        IGenericClient client = ctx.newRestfulGenericClient(validationServer);
+
+        Set<String> valueSets = new HashSet<>();
+        for (String profile : CareConnectProfile.getProfiles()) {
+            StructureDefinition structureDefinition = fetch(client, StructureDefinition.class, profile);
+            if (structureDefinition == null) continue;
+            add(structureDefinition);
+            for (ElementDefinition element : structureDefinition.getSnapshot().getElement()) {
+                String valueSet = getValueSetUrl(element.getBinding());
+                if (valueSet != null && !valueSet.startsWith(HL7_BASE)) {
+                    valueSets.add(valueSet);
+                }
+            }
+        }
+
+        Set<String> codeSystems = new HashSet<>();
+        for (String url : valueSets) {
+            ValueSet valueSet = fetch(client, ValueSet.class, url);
+            if (valueSet == null) continue;
+            add(valueSet);
+            for (ValueSet.ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+                if (include.hasSystem() && !include.getSystem().startsWith(HL7_BASE)) {
+                    codeSystems.add(include.getSystem());
+                }
+            }
+        }
+        for (String url : codeSystems) {
+            CodeSystem codeSystem = fetch(client, CodeSystem.class, url);
+            if (codeSystem != null) {
+                add(codeSystem);
+            }
+        }
+    }
+
+    private <T extends MetadataResource> T fetch(IGenericClient client, Class<T> type, String url) {
+        try {
+            Bundle bundle = client.search().forResource(type)
+                    .where(new UriClientParam("url").matches().value(url))
+                    .returnBundle(Bundle.class)
+                    .execute();
+            for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+                if (type.isInstance(entry.getResource())) {
+                    return type.cast(entry.getResource());
+                }
+            }
+            log.warn("Unable to find " + type.getSimpleName() + " " + url);
+        } catch (Exception ex) {
+            log.error("Unable to fetch " + type.getSimpleName() + " " + url + " " + ex.getMessage());
+        }
+        return null;
+    }
+
+    private String getValueSetUrl(ElementDefinition.ElementDefinitionBindingComponent binding) {
+        if (binding == null || !binding.hasValueSet()) return null;
+        Type valueSet = binding.getValueSet();
+        if (valueSet instanceof Reference) {
+            return ((Reference) valueSet).getReference();
+        }
+        if (valueSet instanceof UriType) {
+            return ((UriType) valueSet).getValue();
+        }
+        return null;
+    }
+
+    private void add(IBaseResource resource) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                add(entry.getResource());
+            }
+        } else if (resource instanceof StructureDefinition) {
+            StructureDefinition structureDefinition = (StructureDefinition) resource;
+            if (!structureDefinition.hasSnapshot()) {
+                log.warn("StructureDefinition " + structureDefinition.getUrl() + " has no snapshot and will not validate");
+            }
+            prePopulated.addStructureDefinition(structureDefinition);
+            loaded.add(structureDefinition.getUrl());
+        } else if (resource instanceof ValueSet) {
+            prePopulated.addValueSet((ValueSet) resource);
+            loaded.add(((ValueSet) resource).getUrl());
+        } else if (resource instanceof CodeSystem) {
+            prePopulated.addCodeSystem((CodeSystem) resource);
+            loaded.add(((CodeSystem) resource).getUrl());
+        }
+    }
+}
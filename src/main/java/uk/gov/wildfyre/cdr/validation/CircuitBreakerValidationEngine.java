@@ -0,0 +1,359 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the time a request thread can spend waiting on validation.
+ *
+ * Each call runs on a small bounded pool and is abandoned once validation.timeout_millis has passed. Consecutive
+ * failures (timeouts, errors or 5xx from the validation server) open the breaker for validation.breaker.open_seconds,
+ * after which a single trial call decides whether to close it again. While the breaker is open, or a call fails,
+ * the validation.degrade policy applies:
+ *
+ *   reject - the write fails with HTTP 503
+ *   accept - the write is accepted and its resource(s) tagged as unvalidated
+ *   queue  - as accept, and a copy is queued to be validated once the breaker closes
+ *
+ * 4xx responses from the validation server are verdicts on the resource, they are passed through and do not count
+ * as failures.
+ */
+public class CircuitBreakerValidationEngine implements ValidationEngine, CircuitBreakerValidationEngineMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreakerValidationEngine.class);
+
+    public static final String UNVALIDATED_TAG_SYSTEM = "https://fhir.wildfyre.uk/validation";
+
+    public static final String UNVALIDATED_TAG_CODE = "unvalidated";
+
+    /**
+     * Marks outcomes produced by the degrade policy, these must not be cached as verdicts.
+     */
+    public static final String DEGRADED = "validation.degraded";
+
+    public enum DegradePolicy { REJECT, ACCEPT, QUEUE }
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final ValidationEngine engine;
+
+    private final long timeoutMillis;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final DegradePolicy degradePolicy;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    private final BlockingQueue<IBaseResource> deferred;
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder shortCircuits = new LongAdder();
+
+    private final LongAdder degraded = new LongAdder();
+
+    private final LongAdder opened = new LongAdder();
+
+    private final LongAdder deferredDropped = new LongAdder();
+
+    public CircuitBreakerValidationEngine(ValidationEngine engine, long timeoutMillis, int failureThreshold,
+                                          long openSeconds, int maxConcurrent, DegradePolicy degradePolicy, int queueSize) {
+        this.engine = engine;
+        this.timeoutMillis = timeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        this.degradePolicy = degradePolicy;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, maxConcurrent, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "validation-call-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.deferred = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        if (degradePolicy == DegradePolicy.QUEUE) {
+            Thread worker = new Thread(this::drainDeferred, "validation-deferred");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public static DegradePolicy parsePolicy(String value) {
+        if (value == null || value.trim().isEmpty()) return DegradePolicy.REJECT;
+        String policy = value.trim().toUpperCase();
+        if (policy.startsWith("ACCEPT")) return DegradePolicy.ACCEPT;
+        return DegradePolicy.valueOf(policy);
+    }
+
+    /**
+     * A call which timed out, failed or could not be started, its message is the reason
+     */
+    private static final class CallFailedException extends Exception {
+        private CallFailedException(String reason) {
+            super(reason);
+        }
+    }
+
+    @Override
+    public OperationOutcome validate(IBaseResource resource) {
+        if (!allowRequest()) {
+            shortCircuits.increment();
+            return degrade(resource, "validation circuit open");
+        }
+        // Validate a copy, a call abandoned on timeout keeps running and the request goes on to save the original
+        IBaseResource copy = (resource instanceof Resource) ? ((Resource) resource).copy() : resource;
+        try {
+            return call(copy);
+        } catch (CallFailedException ex) {
+            return degrade(resource, ex.getMessage());
+        }
+    }
+
+    /**
+     * Validate on the pool, waiting at most validation.timeout_millis, and record the result against the breaker.
+     * 4xx responses from the validation server are thrown as they are.
+     */
+    private OperationOutcome call(IBaseResource resource) throws CallFailedException {
+        calls.increment();
+        Future<OperationOutcome> future;
+        try {
+            future = executor.submit(() -> engine.validate(resource));
+        } catch (RejectedExecutionException ex) {
+            state.compareAndSet(State.HALF_OPEN, State.OPEN);
+            shortCircuits.increment();
+            throw new CallFailedException("too many concurrent validations");
+        }
+        try {
+            OperationOutcome outcome = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            onSuccess();
+            return outcome;
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            timeouts.increment();
+            onFailure();
+            throw new CallFailedException("validation timed out after " + timeoutMillis + " ms");
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            state.compareAndSet(State.HALF_OPEN, State.OPEN);
+            Thread.currentThread().interrupt();
+            throw new CallFailedException("validation interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof BaseServerResponseException
+                    && ((BaseServerResponseException) cause).getStatusCode() < 500) {
+                // The validation server answered, this is a verdict on the resource
+                onSuccess();
+                throw (BaseServerResponseException) cause;
+            }
+            onFailure();
+            log.warn("Validation call failed " + cause.getMessage());
+            throw new CallFailedException("validation failed " + cause.getMessage());
+        }
+    }
+
+    private boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            // Let one trial call through
+            return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        return false;
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.info("Validation circuit closed");
+        }
+    }
+
+    private void onFailure() {
+        failures.increment();
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || state.get() == State.HALF_OPEN) {
+            openedAt = System.currentTimeMillis();
+            if (state.getAndSet(State.OPEN) != State.OPEN) {
+                opened.increment();
+                log.warn("Validation circuit opened after " + consecutiveFailures.get() + " failures");
+            }
+        }
+    }
+
+    private OperationOutcome degrade(IBaseResource resource, String reason) {
+        degraded.increment();
+        switch (degradePolicy) {
+            case QUEUE:
+                if (!deferred.offer(((Resource) resource).copy())) {
+                    deferredDropped.increment();
+                }
+                tagUnvalidated(resource);
+                break;
+            case ACCEPT:
+                tagUnvalidated(resource);
+                break;
+            case REJECT:
+            default:
+                throw new ValidationUnavailableException("Unable to validate resource: " + reason);
+        }
+        log.debug("Accepted without validation: " + reason);
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.setUserData(DEGRADED, Boolean.TRUE);
+        return outcome;
+    }
+
+    private void tagUnvalidated(IBaseResource resource) {
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() != null) {
+                    tagUnvalidated(entry.getResource());
+                }
+            }
+        } else if (resource instanceof Resource) {
+            Resource res = (Resource) resource;
+            if (res.getMeta().getTag(UNVALIDATED_TAG_SYSTEM, UNVALIDATED_TAG_CODE) == null) {
+                res.getMeta().addTag(UNVALIDATED_TAG_SYSTEM, UNVALIDATED_TAG_CODE, "Accepted without profile validation");
+            }
+        }
+    }
+
+    /**
+     * Validate queued resources once the breaker lets calls through again. Failures are only logged, the
+     * writes have already been accepted. Each call has the same deadline as a live validation, so a trial call made
+     * from here can't hold the half open breaker for longer than a request's would.
+     */
+    private void drainDeferred() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                IBaseResource resource = deferred.take();
+                while (!allowRequest()) {
+                    Thread.sleep(1000);
+                }
+                try {
+                    OperationOutcome outcome = call(resource);
+                    for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+                        if (issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR
+                                || issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL) {
+                            log.warn("Deferred validation of " + resource.getClass().getSimpleName() + " failed: " + issue.getDiagnostics());
+                        }
+                    }
+                } catch (BaseServerResponseException ex) {
+                    log.warn("Deferred validation of " + resource.getClass().getSimpleName() + " failed: " + ex.getMessage());
+                } catch (CallFailedException ex) {
+                    requeue(resource);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void requeue(IBaseResource resource) {
+        if (!deferred.offer(resource)) {
+            deferredDropped.increment();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName();
+    }
+
+    @Override
+    public String getState() {
+        return state.get().name();
+    }
+
+    @Override
+    public String getDegradePolicy() {
+        return degradePolicy.name();
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getShortCircuits() {
+        return shortCircuits.sum();
+    }
+
+    @Override
+    public long getDegraded() {
+        return degraded.sum();
+    }
+
+    @Override
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @Override
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getDeferredQueueDepth() {
+        return deferred.size();
+    }
+
+    @Override
+    public long getDeferredDropped() {
+        return deferredDropped.sum();
+    }
+
+    @Override
+    public void reset() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+}
@@ -0,0 +1,30 @@
+package uk.gov.wildfyre.cdr.validation;
+
+public interface CircuitBreakerValidationEngineMBean {
+
+    String getState();
+
+    String getDegradePolicy();
+
+    long getTimeoutMillis();
+
+    long getCalls();
+
+    long getFailures();
+
+    long getTimeouts();
+
+    long getShortCircuits();
+
+    long getDegraded();
+
+    long getOpened();
+
+    int getActive();
+
+    int getDeferredQueueDepth();
+
+    long getDeferredDropped();
+
+    void reset();
+}
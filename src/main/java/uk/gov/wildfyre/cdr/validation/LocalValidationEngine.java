@@ -0,0 +1,37 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.dstu3.hapi.ctx.IValidationSupport;
+import org.hl7.fhir.dstu3.hapi.validation.FhirInstanceValidator;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Validates resources in process using the HAPI instance validator and a pre-loaded CareConnect validation support
+ * chain, avoiding the network round trip (and second parse) of the remote validation server.
+ */
+public class LocalValidationEngine implements ValidationEngine {
+
+    private final FhirValidator validator;
+
+    public LocalValidationEngine(FhirContext ctx, IValidationSupport validationSupport) {
+        FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupport);
+        validator = ctx.newValidator();
+        validator.setValidateAgainstStandardSchema(false);
+        validator.setValidateAgainstStandardSchematron(false);
+        validator.registerValidatorModule(instanceValidator);
+    }
+
+    @Override
+    public OperationOutcome validate(IBaseResource resource) {
+        ValidationResult result = validator.validateWithResult(resource);
+        return (OperationOutcome) result.toOperationOutcome();
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+}
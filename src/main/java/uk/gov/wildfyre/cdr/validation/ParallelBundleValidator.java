@@ -0,0 +1,165 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import org.hl7.fhir.dstu3.model.Bundle;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.hl7.fhir.dstu3.model.StringType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Validates the entries of a transaction or batch Bundle concurrently on a bounded worker pool.
+ *
+ * Each entry resource is validated on its own and the issues are merged into one OperationOutcome, with the
+ * expression of every issue rewritten to point at the entry e.g. Bundle.entry[12].resource.name. The Bundle itself
+ * is validated alongside them without its entry resources, so its own invariants and profile are still checked.
+ *
+ * In fail fast mode the remaining entries are cancelled as soon as one entry fails, the outcome then only holds the
+ * issues found so far. The pool queue is bounded, when it is full the request thread validates the entry itself.
+ */
+public class ParallelBundleValidator {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBundleValidator.class);
+
+    private final ValidationEngine engine;
+
+    private final Predicate<OperationOutcome> passed;
+
+    private final boolean failFast;
+
+    private final ThreadPoolExecutor executor;
+
+    public ParallelBundleValidator(ValidationEngine engine, Predicate<OperationOutcome> passed, int threads, boolean failFast) {
+        this.engine = engine;
+        this.passed = passed;
+        this.failFast = failFast;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 64),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "bundle-validation-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public static boolean isBatchOrTransaction(Bundle bundle) {
+        return bundle.getType() == Bundle.BundleType.TRANSACTION || bundle.getType() == Bundle.BundleType.BATCH;
+    }
+
+    public OperationOutcome validate(Bundle bundle) {
+        CompletionService<OperationOutcome> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<OperationOutcome>> futures = new ArrayList<>();
+
+        Bundle shell = shell(bundle);
+        futures.add(completionService.submit(() -> engine.validate(shell)));
+        for (int i = 0; i < bundle.getEntry().size(); i++) {
+            Resource resource = bundle.getEntry().get(i).getResource();
+            if (resource == null) continue;
+            final int index = i;
+            futures.add(completionService.submit(() -> relocate(engine.validate(resource), index, resource)));
+        }
+
+        OperationOutcome merged = new OperationOutcome();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                OperationOutcome outcome = completionService.take().get();
+                merged.getIssue().addAll(outcome.getIssue());
+                if (failFast && !passed.test(outcome)) {
+                    log.debug("Bundle validation failed fast after " + (i + 1) + " of " + futures.size() + " entries");
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Bundle validation interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            for (Future<OperationOutcome> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The Bundle with its entries but not their resources, sharing the rest of the original's elements. The engine
+     * must not change what it validates, the circuit breaker validates a copy.
+     */
+    private static Bundle shell(Bundle bundle) {
+        Bundle shell = new Bundle();
+        shell.setIdElement(bundle.getIdElement());
+        shell.setMeta(bundle.getMeta());
+        shell.setImplicitRulesElement(bundle.getImplicitRulesElement());
+        shell.setLanguageElement(bundle.getLanguageElement());
+        shell.setIdentifier(bundle.getIdentifier());
+        shell.setTypeElement(bundle.getTypeElement());
+        shell.setTotalElement(bundle.getTotalElement());
+        shell.setLink(bundle.getLink());
+        shell.setSignature(bundle.getSignature());
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Bundle.BundleEntryComponent shellEntry = shell.addEntry();
+            shellEntry.setLink(entry.getLink());
+            shellEntry.setFullUrlElement(entry.getFullUrlElement());
+            shellEntry.setSearch(entry.getSearch());
+            shellEntry.setRequest(entry.getRequest());
+            shellEntry.setResponse(entry.getResponse());
+        }
+        return shell;
+    }
+
+    /**
+     * Rewrite the issue expressions so they locate the issue within the Bundle. Works on a copy, the engine's
+     * outcome may be shared through the validation cache.
+     */
+    private OperationOutcome relocate(OperationOutcome engineOutcome, int index, Resource resource) {
+        OperationOutcome outcome = engineOutcome.copy();
+        String entryPath = "Bundle.entry[" + index + "].resource";
+        String resourceType = resource.getResourceType().name();
+        for (OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            List<StringType> expressions = new ArrayList<>();
+            for (StringType expression : issue.getExpression()) {
+                expressions.add(new StringType(rebase(expression.getValue(), resourceType, entryPath)));
+            }
+            if (expressions.isEmpty()) {
+                expressions.add(new StringType(entryPath));
+            }
+            issue.setExpression(expressions);
+
+            List<StringType> locations = new ArrayList<>();
+            for (StringType location : issue.getLocation()) {
+                locations.add(new StringType(rebase(location.getValue(), resourceType, entryPath)));
+            }
+            issue.setLocation(locations);
+        }
+        return outcome;
+    }
+
+    private String rebase(String path, String resourceType, String entryPath) {
+        if (path == null) return entryPath;
+        if (path.equals(resourceType)) return entryPath;
+        if (path.startsWith(resourceType + ".")) return entryPath + path.substring(resourceType.length());
+        return entryPath + "." + path;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
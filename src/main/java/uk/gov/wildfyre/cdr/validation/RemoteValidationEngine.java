@@ -0,0 +1,40 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Validates resources by calling $validate on the server configured in validation.server
+ */
+public class RemoteValidationEngine implements ValidationEngine {
+
+    private final IGenericClient client;
+
+    public RemoteValidationEngine(FhirContext ctx, String validationUrl, int timeoutMillis) {
+        // Calls to validation can result in excessive lookups.
+        ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        ctx.getRestfulClientFactory().setConnectTimeout(timeoutMillis);
+        ctx.getRestfulClientFactory().setSocketTimeout(timeoutMillis);
+        client = ctx.newRestfulGenericClient(validationUrl);
+    }
+
+    @Override
+    public OperationOutcome validate(IBaseResource resource) {
+        MethodOutcome outcome = client.validate()
+                .resource(resource)
+                .execute();
+        if (outcome.getOperationOutcome() == null) {
+            return new OperationOutcome();
+        }
+        return (OperationOutcome) outcome.getOperationOutcome();
+    }
+
+    @Override
+    public String getName() {
+        return "remote";
+    }
+}
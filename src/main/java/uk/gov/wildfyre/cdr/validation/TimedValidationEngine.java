@@ -0,0 +1,88 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records call count and latency of the wrapped engine, published over JMX so remote and local
+ * validation can be compared under real write traffic.
+ */
+public class TimedValidationEngine implements ValidationEngine, TimedValidationEngineMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(TimedValidationEngine.class);
+
+    private final ValidationEngine engine;
+
+    private final LongAdder validations = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    public TimedValidationEngine(ValidationEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public OperationOutcome validate(IBaseResource resource) {
+        long start = System.nanoTime();
+        try {
+            return engine.validate(resource);
+        } catch (RuntimeException ex) {
+            errors.increment();
+            throw ex;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            validations.increment();
+            totalNanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+            log.trace(engine.getName() + " validation took " + (elapsed / 1000000) + " ms");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return engine.getName();
+    }
+
+    @Override
+    public String getEngine() {
+        return engine.getName();
+    }
+
+    @Override
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = validations.sum();
+        return (count == 0) ? 0 : (totalNanos.sum() / (double) count) / 1000000;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public void reset() {
+        validations.reset();
+        errors.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+}
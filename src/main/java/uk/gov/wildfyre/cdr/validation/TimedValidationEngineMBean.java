@@ -0,0 +1,16 @@
+package uk.gov.wildfyre.cdr.validation;
+
+public interface TimedValidationEngineMBean {
+
+    String getEngine();
+
+    long getValidations();
+
+    long getErrors();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    void reset();
+}
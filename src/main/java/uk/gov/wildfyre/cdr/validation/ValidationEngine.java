@@ -0,0 +1,20 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Validates a resource against its CareConnect profile(s).
+ *
+ * Implementations must be thread safe, one engine is shared by all requests.
+ */
+public interface ValidationEngine {
+
+    /**
+     * @param resource the resource to validate, with meta.profile already set
+     * @return the validation outcome, never null
+     */
+    OperationOutcome validate(IBaseResource resource);
+
+    String getName();
+}
@@ -0,0 +1,164 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import uk.gov.wildfyre.cdr.HapiProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Stores the outcome of shadow (asynchronous) validation against the resource type, id and version.
+ *
+ * Outcomes are written as JSON under validation.async.outcome_dir, one file per version:
+ * {dir}/{type}/{id}/{version}.json
+ *
+ * Only the latest validation.async.outcome_versions outcomes of a resource are kept, and outcomes older than
+ * validation.async.outcome_retention_hours are removed every hour.
+ */
+@Component
+public class ValidationOutcomeStore {
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ValidationOutcomeStore.class);
+
+    private static final Pattern SAFE = Pattern.compile("[A-Za-z0-9\\-\\.]{1,64}");
+
+    @Autowired
+    private FhirContext ctx;
+
+    private final Path root = Paths.get(HapiProperties.getValidationAsyncOutcomeDir());
+
+    private final int maxVersions = Math.max(1, HapiProperties.getValidationAsyncOutcomeVersions());
+
+    private final long retentionMillis = TimeUnit.HOURS.toMillis(HapiProperties.getValidationAsyncOutcomeRetentionHours());
+
+    // Only when shadow validation is on, the store is created either way
+    private final ScheduledExecutorService cleaner;
+
+    public ValidationOutcomeStore() {
+        if (retentionMillis > 0 && HapiProperties.getValidationFlag() && HapiProperties.getValidationAsync()) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "validation-outcome-cleaner");
+                thread.setDaemon(true);
+                return thread;
+            });
+            cleaner.scheduleWithFixedDelay(this::removeExpired, 1, 60, TimeUnit.MINUTES);
+        } else {
+            cleaner = null;
+        }
+    }
+
+    public void store(String type, String id, String version, OperationOutcome outcome) {
+        if (!isSafe(type) || !isSafe(id) || !isSafe(version)) {
+            log.warn("Not storing validation outcome for " + type + "/" + id + "/" + version);
+            return;
+        }
+        try {
+            Path dir = root.resolve(type).resolve(id);
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, version, ".tmp");
+            Files.write(tmp, ctx.newJsonParser().encodeResourceToString(outcome).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, dir.resolve(version + ".json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            removeOldVersions(dir.toFile());
+        } catch (IOException ex) {
+            log.error("Unable to store validation outcome for " + type + "/" + id + " " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @param version the version to read, or null for the latest version validated
+     * @return the stored outcome as JSON, or null if there isn't one
+     */
+    public String read(String type, String id, String version) {
+        if (!isSafe(type) || !isSafe(id) || (version != null && !isSafe(version))) {
+            return null;
+        }
+        Path dir = root.resolve(type).resolve(id);
+        try {
+            Path file;
+            if (version != null) {
+                file = dir.resolve(version + ".json");
+            } else {
+                file = latest(dir.toFile());
+            }
+            if (file == null || !Files.exists(file)) {
+                return null;
+            }
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            log.error("Unable to read validation outcome for " + type + "/" + id + " " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private Path latest(File dir) {
+        File[] files = dir.listFiles((file, name) -> name.endsWith(".json"));
+        if (files == null || files.length == 0) return null;
+        Arrays.sort(files, BY_VERSION);
+        return files[files.length - 1].toPath();
+    }
+
+    /**
+     * Keep only the latest maxVersions outcomes of the resource
+     */
+    private void removeOldVersions(File dir) {
+        File[] files = dir.listFiles((file, name) -> name.endsWith(".json"));
+        if (files == null || files.length <= maxVersions) return;
+        Arrays.sort(files, BY_VERSION);
+        for (int i = 0; i < files.length - maxVersions; i++) {
+            if (!files[i].delete()) {
+                log.debug("Unable to remove validation outcome " + files[i]);
+            }
+        }
+    }
+
+    private void removeExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        File[] types = root.toFile().listFiles(File::isDirectory);
+        if (types == null) return;
+        for (File type : types) {
+            File[] resources = type.listFiles(File::isDirectory);
+            if (resources == null) continue;
+            for (File resource : resources) {
+                File[] files = resource.listFiles();
+                if (files == null) continue;
+                for (File file : files) {
+                    if (file.lastModified() < cutoff && !file.delete()) {
+                        log.debug("Unable to remove validation outcome " + file);
+                    }
+                }
+                // Only succeeds once the directory is empty
+                resource.delete();
+            }
+        }
+    }
+
+    // Numbered versions in order, any others before them
+    private static final Comparator<File> BY_VERSION = Comparator.comparingLong(ValidationOutcomeStore::versionOf);
+
+    private static long versionOf(File file) {
+        String name = file.getName().substring(0, file.getName().length() - 5);
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private boolean isSafe(String value) {
+        return value != null && SAFE.matcher(value).matches() && !value.startsWith(".");
+    }
+}
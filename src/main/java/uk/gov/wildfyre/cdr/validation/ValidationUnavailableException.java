@@ -0,0 +1,17 @@
+package uk.gov.wildfyre.cdr.validation;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Thrown (as HTTP 503) when a write can not be validated in time and the degrade policy is reject
+ */
+public class ValidationUnavailableException extends BaseServerResponseException {
+
+    public static final int STATUS_CODE = 503;
+
+    private static final long serialVersionUID = 1L;
+
+    public ValidationUnavailableException(String theMessage) {
+        super(STATUS_CODE, theMessage);
+    }
+}